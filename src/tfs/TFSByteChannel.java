@@ -0,0 +1,274 @@
+package tfs;
+
+/**
+ * TFSByteChannel.java
+ * 
+ * Class TFSByteChannel gives access to a TFS file as a java.nio.channels.SeekableByteChannel.
+ * The file is opened with TFSFileSystem.tfs_open() when the channel is created, and closed when
+ * the channel is closed. The channel keeps its own position, which is passed to tfs_seek() 
+ * before each read or write.
+ * 
+ * Buffers are written with tfs_write(int, ByteBuffer), so a large write is done as multi-block
+ * disk writes straight from the buffer. Buffers backed by an array are read into directly, while
+ * other buffers, such as direct buffers, are read into through a scratch array of BUFFER_BLOCKS
+ * blocks.
+ * 
+ * The position may be set past the end of the file. Reading there returns -1, and writing 
+ * there first fills the gap with 0.
+ * 
+ * The channel opens the file with a file descriptor of its own, so it does not share its 
+ * offset with other streams or channels on the same file, and closing it leaves them open.
+ * If the file is closed by TFS, for example because it was removed with tfs_rm(), the channel
+ * throws ClosedChannelException.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+public class TFSByteChannel implements SeekableByteChannel
+{
+	public final static int BUFFER_BLOCKS = 16;      //Size in blocks of the scratch array for buffers without one.
+	
+	private TFSFileSystem fs;            //File system holding the file.
+	private int fd;                      //File descriptor of the open file.
+	private int mode;                    //Mode the channel was opened with.
+	private long position;               //Position of the next read or write.
+	private byte[] scratch;              //Array for reading into buffers which are not backed by one. Created when needed.
+	private boolean closed;
+	
+	/**
+	 * Constructor opens the file at the end of path with the given mode.
+	 * 
+	 * @param fs The mounted file system holding the file.
+	 * @param path Path from the root to the file. The file must already exist.
+	 * @param mode TFSFileSystem.MODE_READ, MODE_WRITE or MODE_READ_WRITE.
+	 * @throws FileNotFoundException if the file does not exist.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public TFSByteChannel(TFSFileSystem fs, String path, int mode) throws IOException
+	{
+		int result = fs.tfs_open(path, mode);
+		if (result == -2)
+			throw new FileNotFoundException(path);
+		if (result < 0)
+			throw new IOException("Cannot open " + path);
+		
+		this.fs = fs;
+		this.mode = mode;
+		fd = result;
+	}
+	
+	/**
+	 * Reads bytes from the file at the current position into dst, as many as dst has room
+	 * for or up to end of file.
+	 * 
+	 * @param dst The buffer to read into.
+	 * @return int Number of bytes read, or -1 if position is at or past end of file.
+	 * @throws IOException if the channel is closed or the read fails.
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		ensureOpen();
+		if ((mode & TFSFileSystem.MODE_READ) == 0)
+			throw new NonReadableChannelException();
+		
+		if (position >= fileSize())
+			return -1;
+		if (!dst.hasRemaining())
+			return 0;
+		
+		seek();
+		int n;
+		if (dst.hasArray())                          //Read directly into dst's array.
+		{
+			n = fs.tfs_read(fd, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n < 0)
+				throw new IOException("Read failed");
+			dst.position(dst.position() + n);
+		}
+		else                                         //Read through scratch.
+		{
+			byte[] buf = scratch();
+			n = 0;
+			int result;
+			do
+			{
+				result = fs.tfs_read(fd, buf, 0, Math.min(buf.length, dst.remaining()));
+				if (result < 0)
+					throw new IOException("Read failed");
+				dst.put(buf, 0, result);
+				n += result;
+			} while (result > 0 && dst.hasRemaining());
+		}
+		
+		position += n;
+		return n;
+	}
+	
+	/**
+	 * Writes all remaining bytes of src to the file at the current position. If the position
+	 * is past end of file, the gap is filled with 0 first.
+	 * 
+	 * @param src The buffer holding the bytes to write.
+	 * @return int Number of bytes written.
+	 * @throws IOException if the channel is closed, the write fails, or the file would be
+	 * larger than Integer.MAX_VALUE bytes.
+	 */
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		ensureOpen();
+		if ((mode & TFSFileSystem.MODE_WRITE) == 0)
+			throw new NonWritableChannelException();
+		
+		if (position + src.remaining() > Integer.MAX_VALUE)   //Checked before the gap is filled.
+			throw new IOException("File would be larger than " + Integer.MAX_VALUE + " bytes");
+		
+		int size = fileSize();
+		if (position > size)                         //Fill gap between end of file and position.
+		{
+			fs.tfs_seek(fd, size);
+			byte[] zeros = new byte[TFSDiskInputOutput.getBlockSize()];
+			for (long gap = position - size; gap > 0; gap -= zeros.length)
+				writeFully(zeros, 0, (int) Math.min(gap, zeros.length));
+		}
+		
+		seek();
+		int n = src.remaining();
+		if (fs.tfs_write(fd, src) != n)              //Written straight from src, whether it has an array or not.
+			throw new IOException("Write failed");
+		
+		position += n;
+		return n;
+	}
+	
+	/**
+	 * @return long The current position of the channel.
+	 * @throws IOException if the channel is closed.
+	 */
+	public synchronized long position() throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+	
+	/**
+	 * Sets the position of the channel. It may be past end of file.
+	 * 
+	 * @param newPosition The new position.
+	 * @return This channel.
+	 * @throws IOException if the channel is closed.
+	 */
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position");
+		
+		position = newPosition;
+		return this;
+	}
+	
+	/**
+	 * @return long The size of the file.
+	 * @throws IOException if the channel is closed.
+	 */
+	public synchronized long size() throws IOException
+	{
+		ensureOpen();
+		return fileSize();
+	}
+	
+	/**
+	 * Shortens the file to size bytes with tfs_truncate(), if it is longer. If size is not less
+	 * than the size of the file, the file is unchanged. The position is moved back to size if
+	 * it is past it.
+	 * 
+	 * @param size The new size.
+	 * @return This channel.
+	 * @throws IOException if the channel is closed or the file cannot be shortened.
+	 */
+	public synchronized SeekableByteChannel truncate(long size) throws IOException
+	{
+		ensureOpen();
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size");
+		if ((mode & TFSFileSystem.MODE_WRITE) == 0)
+			throw new NonWritableChannelException();
+		if (size < fileSize() && fs.tfs_truncate(fd, (int) size) < 0)
+			throw new IOException("Cannot truncate file");
+		
+		if (position > size)
+			position = size;
+		return this;
+	}
+	
+	public synchronized boolean isOpen()
+	{
+		return !closed;
+	}
+	
+	/**
+	 * Closes the channel and the file.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+		
+		closed = true;
+		fs.tfs_close(fd);
+	}
+	
+	/**
+	 * Moves the file offset to the channel's position.
+	 * 
+	 * @throws IOException if position cannot be stored as a TFS file offset.
+	 */
+	private void seek() throws IOException
+	{
+		if (position > Integer.MAX_VALUE || fs.tfs_seek(fd, (int) position) < 0)
+			throw new IOException("Cannot seek to " + position);
+	}
+	
+	/**
+	 * Returns the size of the file.
+	 * 
+	 * @throws ClosedChannelException if the file descriptor is no longer open in TFS.
+	 */
+	private int fileSize() throws IOException
+	{
+		int size = fs.tfs_size(fd);
+		if (size < 0)
+			throw new ClosedChannelException();
+		
+		return size;
+	}
+	
+	private void writeFully(byte[] buf, int off, int len) throws IOException
+	{
+		if (fs.tfs_write(fd, buf, off, len) != len)
+			throw new IOException("Write failed");
+	}
+	
+	private byte[] scratch()
+	{
+		if (scratch == null)
+			scratch = new byte[TFSDiskInputOutput.getBlockSize() * BUFFER_BLOCKS];
+		
+		return scratch;
+	}
+	
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new ClosedChannelException();
+	}
+}
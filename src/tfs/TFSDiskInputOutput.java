@@ -9,6 +9,11 @@ package tfs;
  *    Class provides several static methods which allow the creation of the emulated disk, opening
  *    of the disk for access, closing the disk to end the session, reading and writing blocks 
  *    to disk, as well as a method for returning the size of the emulated disk.
+ *    
+ *    Blocks are read and written with positional reads and writes on the FileChannel of the
+ *    disk file, so the file pointer is never moved. This means several threads may read and 
+ *    write different blocks at the same time. Consecutive blocks can also be viewed without
+ *    any read, through a read-only memory mapping of the disk file made by tfs_dio_map().
  *   
  *      
  *
@@ -18,6 +23,11 @@ package tfs;
 **/
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 
 public class TFSDiskInputOutput 
@@ -26,6 +36,9 @@ public class TFSDiskInputOutput
 	
 	private static int blockSize;
 	private static RandomAccessFile tFS_Disk;			//The raf for the "disk."
+	private static FileChannel diskChannel;				//Channel of tFS_Disk, used for block reads and writes.
+	private static byte[] zeros;						//Block of zero bytes for padding writes.
+	private static volatile MappedByteBuffer diskMap;			//Read-only mapping of the whole disk, made by the first tfs_dio_map().
 	
 	/**
 	 * Creates the file for emulating a disk. Takes arguments for file name,
@@ -34,14 +47,14 @@ public class TFSDiskInputOutput
 	 * Any existing file is deleted.
 	 * 
 	 * @param byte[] fileName The name of the file as an array of bytes.
-	 * @param int length The length (size) of the file in bytes.
+	 * @param long length The length (size) of the file in bytes.
 	 * @param int bSize The block size in this emulated disk.
 	 *
 	 * @return int 0 if creation was successful, -1 if error encountered.
 	 *
 	**/
 	
-	public static int tfs_dio_create(byte [] fileName, int length, int bSize)
+	public static int tfs_dio_create(byte [] fileName, long length, int bSize)
 	{
 			if (length < bSize)		//Length of file cannot be less than block size.
 				return -1;
@@ -74,11 +87,11 @@ public class TFSDiskInputOutput
 	 * Method will not continue if the specified volume does not exist.
 	 * 
 	 * @param byte[] name Name of file.
-	 * @param nlength length of file.
+	 * @param nlength length of file in bytes, which may be more than 2 GB.
 	 * @return int -1 if error, 0 if success.
 	**/
 	
-	public static int tfs_dio_open(byte[] name, int nlength, int bSize)
+	public static int tfs_dio_open(byte[] name, long nlength, int bSize)
 	{
 		try{ 
 		String fN = new String(name, "UTF-8");         // for UTF-8 encoding, convert bytes to string.
@@ -88,6 +101,8 @@ public class TFSDiskInputOutput
 		
 		tFS_Disk = new RandomAccessFile(fN, "rw");		//Create RAF to enable random access to the "disk."
 		tFS_Disk.setLength(nlength);
+		diskChannel = tFS_Disk.getChannel();
+		diskMap = null;
 		blockSize = bSize;												//Set block size.
 	
 		}catch(Exception e)
@@ -116,6 +131,8 @@ public class TFSDiskInputOutput
 			}
 						
 			tFS_Disk = new RandomAccessFile(fN, "rw");		//Create RAF to enable random access to the "disk."
+			diskChannel = tFS_Disk.getChannel();
+			diskMap = null;
 			blockSize = bSize;
 			} catch (Exception e)
 			{
@@ -131,7 +148,8 @@ public class TFSDiskInputOutput
 	
 	
 	/**
-	 *   Get the number of blocks in total in the emulated disk file.
+	 *   Get the number of blocks in total in the emulated disk file. Block numbers are int,
+	 *   so a disk of more than Integer.MAX_VALUE blocks is treated as having that many.
 	 *
 	 *	@return int number of total blocks in file. -1 if error occurs
 	 **/
@@ -139,7 +157,7 @@ public class TFSDiskInputOutput
 	public static int tfs_dio_getSize()
 	{
 		try{
-		return ((int)(tFS_Disk.length() / blockSize));	//Length divided by block size gives number of blocks.
+		return ((int) Math.min(tFS_Disk.length() / blockSize, Integer.MAX_VALUE));	//Length divided by block size gives number of blocks.
 		
 		} catch (IOException ex)
 		{
@@ -160,22 +178,39 @@ public class TFSDiskInputOutput
 	 **/
 	public static int tfs_dio_readBlock(int blockNum, byte[] buf)
 	{
-		if (buf.length < blockSize)			//Make sure buffer is big enough.
+		return tfs_dio_readBlock(blockNum, buf, 0);
+	}
+	
+	/**
+	 *  Overloaded version of tfs_dio_readBlock which reads the block into buf starting
+	 *  at the given offset. This allows several blocks to be read into one large
+	 *  buffer without copying. Checks to make sure there is room for one block
+	 *  in buf after offset.
+	 *
+	 *  @param blockNum The block number in the disk file.
+	 *  @param buf byte[] Buffer to read block into.
+	 *  @param offset Position in buf where the first byte of the block is placed.
+	 *  @return int 0 if success, -1 if error encountered.
+	 *
+	 **/
+	public static int tfs_dio_readBlock(int blockNum, byte[] buf, int offset)
+	{
+		if (offset < 0 || buf.length - offset < blockSize)			//Make sure buffer is big enough.
 			return -1;
 		
-		if (blockNum > tfs_dio_getSize())  //Make sure this is a valid block number.
+		if (blockNum < 0 || blockNum > tfs_dio_getSize())  //Make sure this is a valid block number.
 		{
 			return -1;
 		}
 		
 		//The offset for the block to be read in the RAF. Calculated as block number x block size.
-		// Block numbers are from 0, as is the current file pointer.
-		long fileOffset = blockNum * blockSize;					
+		// Block numbers are from 0, as is the current file pointer. Calculated as long, since the
+		// offset of a block past 2 GB does not fit in an int.
+		long fileOffset = (long) blockNum * blockSize;					
 		
 		try {
 		
-				tFS_Disk.seek(fileOffset);		        //Move the pointer to correct offset at beginning of the block.
-				tFS_Disk.readFully(buf, 0, blockSize);	//Copy all bytes from this block into the buffer.		
+				readFully(ByteBuffer.wrap(buf, offset, blockSize), fileOffset);	//Copy all bytes from this block into the buffer.		
 				
 			}catch (IOException e)
 			{
@@ -199,16 +234,15 @@ public class TFSDiskInputOutput
 		if (buf.length > blockSize)			//Make sure buffer is NOT greater than block size.
 			return -1;
 		
-		if (blockNum > tfs_dio_getSize())  //Make sure this is a valid block number.
+		if (blockNum < 0 || blockNum > tfs_dio_getSize())  //Make sure this is a valid block number.
 		{
 			return -1;
 		}
 		
-		long fileOffset = blockNum * blockSize;   //Calculate current file pointer offset.
+		long fileOffset = (long) blockNum * blockSize;   //Calculate current file pointer offset.
 		try
 		{
-			tFS_Disk.seek(fileOffset);
-			tFS_Disk.write(buf, 0, buf.length);			//Write all bytes from the buffer into the block.
+			writeFully(ByteBuffer.wrap(buf), fileOffset);			//Write all bytes from the buffer into the block.
 		
 		}catch (IOException ex)
 		 {
@@ -219,6 +253,304 @@ public class TFSDiskInputOutput
 		 
 	}
 	
+	/**
+	 *   Overloaded version of tfs_dio_writeBlock which writes one block from buf
+	 *   starting at the given offset. This allows one large buffer to be written
+	 *   block by block without copying each block out of it first. If fewer than
+	 *   blockSize bytes remain in buf after offset, the rest of the block is
+	 *   filled with 0.
+	 *
+	 *  @param blockNum The block number in the disk file.
+	 *  @param buf byte[] Buffer holding the bytes to write.
+	 *  @param offset Position in buf of the first byte to write.
+	 *  @return int 0 if write is successful, -1 if error.
+	 **/
+	public static int tfs_dio_writeBlock(int blockNum, byte[] buf, int offset)
+	{
+		if (buf == null)								    //Case for writing an empty block. No need to actually write.
+			return 0;
+		
+		if (offset < 0 || offset > buf.length)			//Make sure offset is within buf.
+			return -1;
+		
+		if (blockNum < 0 || blockNum > tfs_dio_getSize())  //Make sure this is a valid block number.
+		{
+			return -1;
+		}
+		
+		int numBytes = Math.min(blockSize, buf.length - offset);   //Bytes of buf that fit in this block.
+		
+		long fileOffset = (long) blockNum * blockSize;   //Calculate current file pointer offset.
+		try
+		{
+			writeFully(ByteBuffer.wrap(buf, offset, numBytes), fileOffset);			//Write the bytes from buf into the block.
+			if (numBytes < blockSize)                                            //Fill rest of block with 0.
+				writeFully(ByteBuffer.wrap(zeroBlock(), 0, blockSize - numBytes), fileOffset + numBytes);   
+		
+		}catch (IOException ex)
+		 {
+		   return -1;
+		 }
+		 
+		 return 0;
+		 
+	}
+	
+	/**
+	 *  Reads count consecutive blocks, starting at blockNum, into buf starting at the given
+	 *  offset, with a single read of the disk file. Used for runs of consecutive blocks
+	 *  in a file, so that a large transfer is not split into one read per block.
+	 *
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param count The number of blocks to read.
+	 *  @param buf byte[] Buffer to read blocks into.
+	 *  @param offset Position in buf where the first byte of the first block is placed.
+	 *  @return int 0 if success, -1 if error encountered.
+	 **/
+	public static int tfs_dio_readBlocks(int blockNum, int count, byte[] buf, int offset)
+	{
+		int numBytes = count * blockSize;
+		if (count <= 0 || offset < 0 || buf.length - offset < numBytes)	//Make sure buffer is big enough.
+			return -1;
+		
+		if ((long) blockNum + count - 1 > tfs_dio_getSize())  //Make sure all blocks are valid block numbers.
+			return -1;
+		
+		try {
+				readFully(ByteBuffer.wrap(buf, offset, numBytes), (long) blockNum * blockSize);
+			}catch (IOException e)
+			{
+				return -1;
+			}
+		
+		return 0;
+	}
+	
+	/**
+	 *  Writes count consecutive blocks, starting at blockNum, from buf starting at the given 
+	 *  offset, with a single write to the disk file. Counterpart of tfs_dio_readBlocks().
+	 *
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param count The number of blocks to write.
+	 *  @param buf byte[] Buffer holding the bytes to write.
+	 *  @param offset Position in buf of the first byte to write.
+	 *  @return int 0 if success, -1 if error encountered.
+	 **/
+	public static int tfs_dio_writeBlocks(int blockNum, int count, byte[] buf, int offset)
+	{
+		int numBytes = count * blockSize;
+		if (count <= 0 || offset < 0 || buf.length - offset < numBytes)	//Make sure buf holds all the blocks.
+			return -1;
+		
+		if ((long) blockNum + count - 1 > tfs_dio_getSize())  //Make sure all blocks are valid block numbers.
+			return -1;
+		
+		try
+		{
+			writeFully(ByteBuffer.wrap(buf, offset, numBytes), (long) blockNum * blockSize);
+		}catch (IOException ex)
+		 {
+		   return -1;
+		 }
+		 
+		return 0;
+	}
+	
+	/**
+	 *  Writes count consecutive blocks, starting at blockNum, from the remaining bytes of src
+	 *  with a single write to the disk file. The bytes are taken straight from src, which may
+	 *  be a direct buffer, and its position is moved past them.
+	 *
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param count The number of blocks to write.
+	 *  @param src Buffer holding at least count blocks of bytes from its position.
+	 *  @return int 0 if success, -1 if error encountered.
+	 **/
+	public static int tfs_dio_writeBlocks(int blockNum, int count, ByteBuffer src)
+	{
+		int numBytes = count * blockSize;
+		if (count <= 0 || src.remaining() < numBytes)	//Make sure src holds all the blocks.
+			return -1;
+		
+		if ((long) blockNum + count - 1 > tfs_dio_getSize())  //Make sure all blocks are valid block numbers.
+			return -1;
+		
+		ByteBuffer run = src.duplicate();              //View of just the bytes for these blocks.
+		run.limit(run.position() + numBytes);
+		try
+		{
+			writeFully(run, (long) blockNum * blockSize);
+		}catch (IOException ex)
+		 {
+		   return -1;
+		 }
+		
+		src.position(src.position() + numBytes);
+		return 0;
+	}
+	
+	/**
+	 *  Transfers length bytes from src into the disk, starting at the first byte of blockNum,
+	 *  with FileChannel.transferFrom(), so the bytes are not copied through a buffer in the
+	 *  JVM. The blocks written must be consecutive. If the last block is only partly filled, 
+	 *  the rest of it is filled with 0.
+	 *
+	 *  @param src The channel to read from, starting at its current position.
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param length The number of bytes to transfer.
+	 *  @return int 0 if success, -1 if error or src ends before length bytes are read.
+	 **/
+	public static int tfs_dio_transferFrom(ReadableByteChannel src, int blockNum, int length)
+	{
+		int count = (length + blockSize - 1) / blockSize;     //Blocks written, including a partial last block.
+		if (length <= 0 || (long) blockNum + count - 1 > tfs_dio_getSize())
+			return -1;
+		
+		long position = (long) blockNum * blockSize;
+		try
+		{
+			for (long done = 0; done < length; )
+			{
+				long n = diskChannel.transferFrom(src, position + done, length - done);
+				if (n <= 0)                                    //src ended early.
+					return -1;
+				done += n;
+			}
+			
+			int fill = count * blockSize - length;
+			if (fill > 0)                                      //Fill rest of last block with 0.
+				writeFully(ByteBuffer.wrap(zeroBlock(), 0, fill), position + length);
+		}catch (IOException ex)
+		 {
+			return -1;
+		 }
+		
+		return 0;
+	}
+	
+	/**
+	 *  Transfers length bytes from the disk, starting at the first byte of blockNum, to target
+	 *  with FileChannel.transferTo(). Counterpart of tfs_dio_transferFrom(). The blocks read
+	 *  must be consecutive.
+	 *
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param length The number of bytes to transfer.
+	 *  @param target The channel to write to, at its current position.
+	 *  @return int 0 if success, -1 if error.
+	 **/
+	public static int tfs_dio_transferTo(int blockNum, int length, WritableByteChannel target)
+	{
+		int count = (length + blockSize - 1) / blockSize;
+		if (length <= 0 || (long) blockNum + count - 1 > tfs_dio_getSize())
+			return -1;
+		
+		long position = (long) blockNum * blockSize;
+		try
+		{
+			for (long done = 0; done < length; )
+			{
+				long n = diskChannel.transferTo(position + done, length - done, target);
+				if (n <= 0)
+					return -1;
+				done += n;
+			}
+		}catch (IOException ex)
+		 {
+			return -1;
+		 }
+		
+		return 0;
+	}
+	
+	/**
+	 *  Returns a read-only view of length bytes of the disk, starting at the first byte of 
+	 *  blockNum, which slices into a memory mapping of the disk file. The whole disk is mapped
+	 *  by the first call and the mapping is kept until the disk is closed, so later calls do not
+	 *  map anything. A disk too large for one mapping is mapped for each call instead. The 
+	 *  blocks must be consecutive.
+	 *
+	 *  @param blockNum The first block number in the disk file.
+	 *  @param length The number of bytes in the view.
+	 *  @return ByteBuffer The view, or null if error.
+	 **/
+	public static ByteBuffer tfs_dio_map(int blockNum, int length)
+	{
+		int count = (length + blockSize - 1) / blockSize;
+		if (length < 0 || blockNum < 0 || (long) blockNum + count - 1 > tfs_dio_getSize())
+			return null;
+		
+		long position = (long) blockNum * blockSize;
+		try
+		{
+			MappedByteBuffer map = diskMap;
+			if (map == null)
+			{
+				long diskLength = diskChannel.size();
+				if (diskLength > Integer.MAX_VALUE)                //Larger than one mapping can hold.
+					return diskChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				
+				map = diskChannel.map(FileChannel.MapMode.READ_ONLY, 0, diskLength);
+				diskMap = map;
+			}
+			
+			ByteBuffer view = map.duplicate();
+			view.position((int) position);
+			view.limit((int) position + length);
+			return view.slice();
+		}catch (IOException ex)
+		 {
+			return null;
+		 }
+	}
+	
+	/**
+	 *  Reads from the disk file into buf, starting at the given position in the file, until buf 
+	 *  is full. Does not move the file pointer.
+	 *
+	 *  @param buf The buffer to fill.
+	 *  @param position The position in the disk file of the first byte to read.
+	 *  @throws IOException if the read fails or the end of the disk file is reached.
+	 */
+	private static void readFully(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			int n = diskChannel.read(buf, position);
+			if (n < 0)
+				throw new EOFException("End of disk reached at position " + position);
+			
+			position += n;
+		}
+	}
+	
+	/**
+	 *  Writes all remaining bytes of buf to the disk file, starting at the given position in
+	 *  the file. Does not move the file pointer.
+	 *
+	 *  @param buf The buffer holding the bytes to write.
+	 *  @param position The position in the disk file of the first byte to write.
+	 *  @throws IOException if the write fails.
+	 */
+	private static void writeFully(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining())
+			position += diskChannel.write(buf, position);
+	}
+	
+	/**
+	 *  Returns a block of zero bytes, used to fill the end of partially written blocks.
+	 *  The array is only replaced if block size changes.
+	 *
+	 *  @return byte[] of blockSize zero bytes.
+	 */
+	private static byte[] zeroBlock()
+	{
+		if (zeros == null || zeros.length != blockSize)
+			zeros = new byte[blockSize];
+		
+		return zeros;
+	}
+	
 	/**
 	 * 
 	 * @return The block size for this emulated disk.
@@ -237,6 +569,7 @@ public class TFSDiskInputOutput
 	{
 		try{
 			  
+			  diskMap = null;					//Views already returned stay readable until they are collected.
 			  tFS_Disk.close();				//Call close method of RandomAccessFile.	
 		
 			} catch(Exception e)
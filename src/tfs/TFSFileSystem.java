@@ -22,9 +22,11 @@ package tfs;
  * and manipulate blocks in the file which emulates the file system's storage space on a disk.
  * 
  * Directories in the file system are implemented by the tfs.structures.Directory class.
- * This class manages the locations of files or directories using a doubly linked list.
+ * This class manages the locations of files or directories using a list of slots.
  * This list stores instances of the tfs.structures.FCB class, which represents
- * directory entries. These entries hold all the attributes needed for a directory entry.
+ * directory entries. Removed entries leave free slots, which are reused by new entries,
+ * so adding or removing an entry usually only needs the block holding its slot to be 
+ * written to disk, by tfs_store_dir_slot(). These entries hold all the attributes needed for a directory entry.
  * The Directory class gives convenient access to any and the ability to update any entries
  * in memory. It also provides a static method for creating an instance of Directory given
  * an array of the bytes, Directory.bytesToDir(). The main use for this method is in loading 
@@ -52,6 +54,31 @@ package tfs;
  * See documentation included in tfs.structures.FDT for more information on the implementation
  * of this class.
  * 
+ * Callers can open a file once with tfs_open() and then use the file descriptor returned
+ * with tfs_read(), tfs_write() and tfs_seek(), until it is closed with tfs_close().
+ * Whole files are moved between the host and TFS with tfs_import() and tfs_export().
+ * tfs_map() gives a read-only ByteBuffer view of a whole file, for random lookups without
+ * any further calls.
+ * Once tfs_setInlineLimit() is called, files created with at most that many bytes keep their
+ * data inline, in data slots after their entry in the parent directory, so reading them needs
+ * no blocks of their own. Such a file is moved to blocks once a write no longer fits.
+ * A file can also have its blocks hold its data compressed, by tfs_setCompressed(). It is
+ * then read and written in the same way as any other file.
+ * tfs_truncate() changes the size of a file without rewriting its data.
+ * With tfs_setDedup(), files are stored with a block map, and each block written which would
+ * hold the same bytes as a block of another file refers to that block instead. Copies refer
+ * to the blocks of the file copied. A shared block is copied when one of its files changes it.
+ * 
+ * A TFSFileSystem may be used by several threads at once. Lookups and reads run in parallel,
+ * holding read locks on the directories along their path. A call which changes a file or a
+ * directory locks for writing only the directories it changes, taking its locks from root 
+ * down the path, so reads and changes in other directories go on. Only the taking and freeing
+ * of blocks in the FAT is done one call at a time, under a short allocator lock, so a write 
+ * into blocks a file already has holds no lock beside that of its parent. A file is guarded
+ * by the lock of its parent directory. tfs_open() and tfs_close() change the FDT, so they 
+ * lock the parent directory of the file for writing. A file descriptor should only be used
+ * by one thread at a time. See tfs_begin() and the other private locking methods.
+ * 
  * 
  * 
  * 
@@ -62,9 +89,39 @@ package tfs;
 
 
 import tfs.structures.*;
+import tfs.exceptions.DirModException;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 public class TFSFileSystem 
@@ -72,13 +129,41 @@ public class TFSFileSystem
 	public final static String ENCODING = "UTF-8";      //UTF-8 encoding will be used for chars written to disk.
 	private final static String ROOT_NAME = "ROOT";    //Reserved name for root directory.
 	
+	public final static int MODE_READ = 1;              //Modes for tfs_open().
+	public final static int MODE_WRITE = 2;
+	public final static int MODE_READ_WRITE = MODE_READ | MODE_WRITE;
+	private final static int COPY_BLOCKS = 16;         //Number of blocks copied at a time by tfs_cp().
+	private final static int MAX_OPEN = 1 << 16;       //Largest capacity of the FDT.
+	public final static int MAX_INLINE = 16 * FCB.INLINE_SLOT_BYTES;    //Largest limit for tfs_setInlineLimit().
+	public final static int COMPRESS_CHUNK = 4096;     //Bytes of data compressed together in a compressed file.
+	private final static int COMPRESS_HEADER = 8;      //Bytes before the first chunk: position of index, chunk size.
+	
 	
 	private PartitionControlBlock PCB;        //The process control block for this file system.
 	private FDT fd_Table;                    //The file descriptor table for this system.
 	Directory rD;							//The root directory stored in memory.
 	
+	//Reused buffers are kept for each thread, so that calls from several threads do not share them.
+	private final ThreadLocal<ByteBuffer> dirScratch = new ThreadLocal<ByteBuffer>();   //Holds bytes of directories searched by tfs_find_entry().
+	private final ThreadLocal<FCBView> lookupViews = ThreadLocal.withInitial(FCBView::new);   //View of the entry found by tfs_lookup().
+	private final ThreadLocal<CharsetDecoder> printDecoders = ThreadLocal.withInitial(() -> Charset.forName(ENCODING)
+			.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));   //Used by tfs_print_FDT() for text.
+	
+	private final ReentrantReadWriteLock mountLock = new ReentrantReadWriteLock();   //Written by mkfs, mount and unmount. Read by every other call.
+	private final Map<Integer, ReentrantReadWriteLock> dirLocks = new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();   //Lock of each directory, by location.
+	private final ThreadLocal<LockScope> lockScopes = ThreadLocal.withInitial(LockScope::new);   //Directory locks held by the current call of each thread.
 	
-	private boolean isMounted;            //Keeps track of whether or not file system is mounted.
+	private final ReentrantLock allocLock = new ReentrantLock();   //Held while blocks are taken or freed, and while the FAT is written.
+	private volatile int inlineLimit;           //Largest file created with inline data, or 0 if none are.
+	
+	private volatile boolean dedup;             //true if blocks written share blocks of the same bytes.
+	private Map<Integer, Integer> blockRefs;    //References to each block referred to more than once, or null until counted.
+	private Map<String, Integer> blockIndex;    //Block holding each hash of bytes, or null until hashed.
+	private Map<Integer, String> blockKeys;     //Key of each block in blockIndex.
+	
+	
+	private volatile boolean isMounted;   //Keeps track of whether or not file system is mounted.
+	private final AtomicLong slotVersion = new AtomicLong();   //Counts changes which may move entries to other slots or paths. See EntrySlot.
 	
 	
 	
@@ -103,28 +188,50 @@ public class TFSFileSystem
 	 * The empty root directory is created in memory as an instance of tfs.structures.Directory.
 	 * The FAT is updated accordingly and then written to disk via tfs_sync() method.
 	 * 
+	 * length is a long, so the disk may be larger than 2 GB. Block numbers are int, and the 
+	 * FAT must fit in the PCB, so the disk may hold at most PartitionControlBlock.MAX_BLOCKS 
+	 * blocks. A larger disk needs a larger block size. Each file is still at most 2 GB.
+	 * 
 	 * @return 0 if success, -1 if an error occurred.
 	 */
-	public int tfs_mkfs(String pName, int length, int blockSize) throws UnsupportedEncodingException
+	public int tfs_mkfs(String pName, long length, int blockSize) throws UnsupportedEncodingException
+	{
+		mountLock.writeLock().lock();
+		try
+		{
+			return tfs_mkfs_locked(pName, length, blockSize);
+		} finally
+		{
+			mountLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_mkfs() once it holds its locks.
+	 */
+	private int tfs_mkfs_locked(String pName, long length, int blockSize) throws UnsupportedEncodingException
 	{
-				
 		//Set mount flag to false.
 		isMounted = false;
+		dirLocks.clear();              //Locations of directories are not kept by the new file system.
 		int result = 0;
-		
+	
+		if (blockSize <= 0 || length / blockSize > PartitionControlBlock.MAX_BLOCKS)   //Too many blocks for the FAT.
+			return -1;
+	
 		byte [] tempName = pName.getBytes(ENCODING);
 		result = TFSDiskInputOutput.tfs_dio_create(tempName, length, blockSize);	  //Create the emulated disk, destroying an existing disk file.
 		result = TFSDiskInputOutput.tfs_dio_open(tempName, length, blockSize);        //Open the disk (file session).
-		
+	
 		if (result != 0)
 		{
 			return result;    //Return error code if  virtual disk could not be created.
 		}
-			
+		
 		PCB = new PartitionControlBlock(blockSize, TFSDiskInputOutput.tfs_dio_getSize());	//Initialize the PCB (which initializes FAT as well) with block size and numBlocks.
 		int firstFreeBlock, rootDir = 0;
 		firstFreeBlock = rootDir = PCB.getFirstFreeBlock();  //Get the block number for first free block.
-		
+	
 		//Modify the FAT to represent the fact that PCB will now be written to disk.
 		for(int i = 0; i < firstFreeBlock; i++)
 		{
@@ -132,17 +239,17 @@ public class TFSFileSystem
 				result = PCB.updateFAT(i, (i + 1));		//Mark blocks represented in FAT so that each block is "linked" to the next block.
 			else 
 				result = PCB.updateFAT(i, -1);			//Else mark end of PCB with EOF.
-			
+		
 			if (result == -1)
 			{
 				return result;
-				
+			
 			}
 		}
-		
+	
 		//Create empty root directory in memory as an instance of the tfs.structures.Directory class.
 		rD = new Directory();
-		
+	
 		/*
 		 * Add the FCB representing root directory to the beginning of the root directory 
 		 * Other directories will not do this. The FCB's that manage them
@@ -150,20 +257,19 @@ public class TFSFileSystem
 		 * doesn't have a parent directory, so the FCB that represents it is simply stored at
 		 * its beginning and will be loaded from this point, when needed.
 		 */
-		
+	
 		rD.addNewEntry(new FCB(ROOT_NAME, true, rootDir, FCB.FCB_SIZE));
-		
+	
 		//Write root dir to disk at rootDir.
 		tfs_store_dir(rD, rootDir);
-		
+	
 		//Update FAT to represent the fact that root dir is now in file system. Also update next free block.
 		PCB.updateFAT(rootDir, -1);
 		PCB.setFirstFreeBlock(PCB.getFirstFreeBlock() + 1);  
-				
+			
 		/*Now write the PCB data into the emulated disk in the order specified above 
 		 constructor header in comments. FAT is written last. This is done using tfs_sync(). */
 		return tfs_sync();
-			
 	}
 	
 	/**
@@ -179,21 +285,38 @@ public class TFSFileSystem
 	 * 
 	 *@return int 0 if success, -1 if error occurred.
 	 */
-	public int tfs_mount(String pName, int length, int blockSize) throws UnsupportedEncodingException
+	public int tfs_mount(String pName, long length, int blockSize) throws UnsupportedEncodingException
+	{
+		mountLock.writeLock().lock();
+		try
+		{
+			return tfs_mount_locked(pName, length, blockSize);
+		} finally
+		{
+			mountLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_mount() once it holds its locks.
+	 */
+	private int tfs_mount_locked(String pName, long length, int blockSize) throws UnsupportedEncodingException
 	{
 		//Make sure file system is open.
 		if ( (TFSDiskInputOutput.tfs_dio_open_existing(pName.getBytes(ENCODING), blockSize)) < 0)
 				return -1;
-		
+		dirLocks.clear();
+		slotVersion.incrementAndGet();     //Slots recorded on another disk are not valid here.
+	
 
 		try{
 			this.PCB = tfs_readPCB();      //Read PCB into memory from file system.
-					
+				
 			}catch (Exception e)
 			{
 				return -1;
 			}
-		
+	
 	   /**
 		 * Size of root directory cannot be known, because its FCB is its first entry.
 		 * So first load this directory as a directory with only this one entry.
@@ -201,13 +324,24 @@ public class TFSFileSystem
 		rD = tfs_load_dir(PCB.getRootDir(), FCB.FCB_SIZE);   
 		//Then use the root FCB to load entire root directory since size is now known from the root dir FCB.
 		rD = tfs_load_dir(PCB.getRootDir(), ((rD.getFCBByName(ROOT_NAME, true)).getSize()));
-						
-		//Initialize the (initially empty) FDT in memory with an arbitrary capacity of file system capacity/blocksize
-		fd_Table = new FDT(length/PCB.getBlockSize());
-		
+					
+		//Initialize the (initially empty) FDT in memory with an arbitrary capacity of file system capacity/blocksize,
+		//up to MAX_OPEN, so that the FDT of a large disk does not take a table entry per block.
+		fd_Table = new FDT((int) Math.min(length / PCB.getBlockSize(), MAX_OPEN));
+	
+		blockRefs = null;                  //Shared blocks of this disk are counted, and hashed if the dedup layer is on.
+		blockIndex = null;
+		blockKeys = null;
+	
 		//Set isMounted to true.
 		isMounted = true;
-		
+	
+		if (tfs_load_refs() < 0 || (dedup && tfs_load_index() < 0))   //Done before any other call, which may free or share blocks.
+		{
+			isMounted = false;
+			return -1;
+		}
+	
 		return 0;
 	}
 	
@@ -226,76 +360,92 @@ public class TFSFileSystem
 	 * @return int 0 if sync completed successfully, -1 if error.
 	 */
 	public int tfs_sync()
-	{		
-				if (PCB == null)     //If partition control block is not loaded, return -1.
-					return -1;
-				
-				//PCB data to be written to emulated disk.
-				int blockSize = TFSDiskInputOutput.getBlockSize();
-				int numBlocks = PCB.getNumBlocks();
-				int firstFreeB = PCB.getFirstFreeBlock();
-				int rootDir = PCB.getRootDir();
-				
-				int [] curFAT = PCB.getFAT();
-				
-					
-				//Now convert and store the first 4 PCB entries into an array of bytes. Size needed is calculated as 16 bytes + number of blocks (entries in FAT) * 4
-				//since int is stored as 4 bytes.
-				
-								
-				byte [] PCB_Array = new byte[(16 + (4 * curFAT.length))];			//Array of all the bytes in the PCB.
-				byte [][] tempBytes = new byte[4 + curFAT.length][4];               //Temporary 2D array containing 4 bytes in each row.
-				
-				tempBytes[0] = intGetBytes(blockSize);
-				tempBytes[1] = intGetBytes(numBlocks);
-				tempBytes[2] = intGetBytes(firstFreeB);
-				tempBytes[3] = intGetBytes(rootDir);
-				
-				//Now convert and copy all the FAT entries using the same method. Start at beginning of FAT and iterate.
-				int curRow = 4;
-				int FATEntry = 0;
-				
-				while (curRow < tempBytes.length)
-				{
-					tempBytes[curRow] = intGetBytes(curFAT[FATEntry]);	 //Convert the current entry in the FAT to an array of bytes.					
-					FATEntry++;
-					curRow++;
-				}
-				
-				int curPos = 0;
+	{
+		tfs_begin();
+		allocLock.lock();             //The FAT is not changed while it is copied, and each sync writes after the last.
+		try
+		{
+			return tfs_sync_locked();
+		} finally
+		{
+			allocLock.unlock();
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_sync() once it holds its locks.
+	 */
+	private int tfs_sync_locked()
+	{
+			if (PCB == null)     //If partition control block is not loaded, return -1.
+				return -1;
+			
+			//PCB data to be written to emulated disk.
+			int blockSize = TFSDiskInputOutput.getBlockSize();
+			int numBlocks = PCB.getNumBlocks();
+			int firstFreeB = PCB.getFirstFreeBlock();
+			int rootDir = PCB.getRootDir();
+			
+			int [] curFAT = PCB.getFAT();
+			
 				
-				//Now copy everything from tempBytes to the large linear array of bytes, PCB_Array.
-				for (int row = 0; row < tempBytes.length; row++)
+			//Now convert and store the first 4 PCB entries into an array of bytes. Size needed is calculated as 16 bytes + number of blocks (entries in FAT) * 4
+			//since int is stored as 4 bytes.
+			
+							
+			byte [] PCB_Array = new byte[(16 + (4 * curFAT.length))];			//Array of all the bytes in the PCB.
+			byte [][] tempBytes = new byte[4 + curFAT.length][4];               //Temporary 2D array containing 4 bytes in each row.
+			
+			tempBytes[0] = intGetBytes(blockSize);
+			tempBytes[1] = intGetBytes(numBlocks);
+			tempBytes[2] = intGetBytes(firstFreeB);
+			tempBytes[3] = intGetBytes(rootDir);
+			
+			//Now convert and copy all the FAT entries using the same method. Start at beginning of FAT and iterate.
+			int curRow = 4;
+			int FATEntry = 0;
+			
+			while (curRow < tempBytes.length)
+			{
+				tempBytes[curRow] = intGetBytes(curFAT[FATEntry]);	 //Convert the current entry in the FAT to an array of bytes.					
+				FATEntry++;
+				curRow++;
+			}
+			
+			int curPos = 0;
+			
+			//Now copy everything from tempBytes to the large linear array of bytes, PCB_Array.
+			for (int row = 0; row < tempBytes.length; row++)
+			{
+				for (int col = 0; col < tempBytes[0].length; col++)
 				{
-					for (int col = 0; col < tempBytes[0].length; col++)
-					{
-						PCB_Array[curPos] = tempBytes[row][col];						
-						curPos++;
-					}
-					
+					PCB_Array[curPos] = tempBytes[row][col];						
+					curPos++;
 				}
 				
-				//Finally, write all the blocks into emulated disk file as buffers of blockSize arrays.
-				//Uses Arrays.copy of method to copy. Important that this method's upper range is NOT inclusive.
-				byte [] tempBuf = new byte[blockSize];
-				
-				int j = 0;
-				int blockNum = 0;
-				
-						
-				while (j < PCB_Array.length - blockSize)
-				{
-					tempBuf = Arrays.copyOfRange(PCB_Array, j, (j + blockSize));		//Copy next part of array to the tempBuf.
-					TFSDiskInputOutput.tfs_dio_writeBlock(blockNum, tempBuf);			//Write the buffer to a block.
+			}
+			
+			//Finally, write all the blocks into emulated disk file as buffers of blockSize arrays.
+			//Uses Arrays.copy of method to copy. Important that this method's upper range is NOT inclusive.
+			byte [] tempBuf = new byte[blockSize];
+			
+			int j = 0;
+			int blockNum = 0;
+			
 					
-					j += blockSize;			//Increment j by blockSize.
-					blockNum++;				//Increment blockNum to write to next.
-				}
+			while (j < PCB_Array.length - blockSize)
+			{
+				tempBuf = Arrays.copyOfRange(PCB_Array, j, (j + blockSize));		//Copy next part of array to the tempBuf.
+				TFSDiskInputOutput.tfs_dio_writeBlock(blockNum, tempBuf);			//Write the buffer to a block.
 				
-							
-				return 0;
+				j += blockSize;			//Increment j by blockSize.
+				blockNum++;				//Increment blockNum to write to next.
+			}
 			
-		}
+						
+			return 0;
+	}
 	
 	/**
 	 * Reads the PCB and FAT from disk into a large array of bytes.
@@ -314,6 +464,8 @@ public class TFSFileSystem
 	{ 
 		int blockSize = TFSDiskInputOutput.getBlockSize();
 		int numBlocks = TFSDiskInputOutput.tfs_dio_getSize();
+		if (numBlocks > PartitionControlBlock.MAX_BLOCKS)          //Disk was not made by tfs_mkfs() with this block size.
+			throw new IllegalStateException("Disk has too many blocks for its FAT: " + numBlocks);
 		
 		//First create the temp PCB with the data directly from emulated disk.
 		PartitionControlBlock tempPCB = new PartitionControlBlock(blockSize, numBlocks);
@@ -376,14 +528,29 @@ public class TFSFileSystem
 	 */
 	public int tfs_unmount()
 	{	
+		mountLock.writeLock().lock();
+		try
+		{
+			return tfs_unmount_locked();
+		} finally
+		{
+			mountLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_unmount() once it holds its locks.
+	 */
+	private int tfs_unmount_locked()
+	{
 		if (!(isMounted))                                         //Do nothing if it is not mounted.
 			return -1;
-		
+	
 		int success = tfs_sync();                                 //Attempt sync.
 		rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);   //Update FCB held in rD index 0.
 		tfs_store_dir(rD, PCB.getRootDir());                      //Store it root dir to disk.
-		
-						
+	
+					
 		 //If sync was successful, set root directory, PCB and FDT to null in memory so they can be removed by garbage collection. Then return 0.
 		if (success == 0)                    
 		{
@@ -391,14 +558,13 @@ public class TFSFileSystem
 			PCB = null;
 			fd_Table = null;
 			rD = null;
+			dirLocks.clear();
 			return 0;
 		}
-		
-				
+	
+			
 		else              //Otherwise, if sync was not successful, return -1.
 			return -1;
-				
-		
 	}
 	
 	
@@ -415,9 +581,16 @@ public class TFSFileSystem
 	
 	public String tfs_prffs() throws UnsupportedEncodingException
 	{
-		PartitionControlBlock diskPCB = tfs_readPCB();
+		tfs_begin();
+		try
+		{
+			PartitionControlBlock diskPCB = tfs_readPCB();
 					
-		return diskPCB.toString();
+			return diskPCB.toString();
+		} finally
+		{
+			tfs_end();
+		}
 	}
 	
 	
@@ -430,11 +603,17 @@ public class TFSFileSystem
 	 */
 	public String tfs_prmfs()
 	{
-		if (!(isMounted))
-			return "TFS file system not mounted";
-		
-		return PCB.toString();
+		tfs_begin();
+		try
+		{
+			if (!(isMounted))
+				return "TFS file system not mounted";
 		
+			return PCB.toString();
+		} finally
+		{
+			tfs_end();
+		}
 	}
 	
 	/**
@@ -457,6 +636,35 @@ public class TFSFileSystem
 	 * 
 	 */
 	public int tfs_mkdir(String path)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			return tfs_mkdir(path, -1, 0);                  //Create a new empty directory.
+		} catch (RuntimeException e)                        //No free block for the directory.
+		{
+			System.err.println("Could not create directory " + path + ": " + e.getMessage());
+			return -1;
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Adds the entry for a directory down the given path. If location is < 0, a new
+	 * empty directory is stored at the first free block. Otherwise the directory's
+	 * blocks must already be stored at location, and the entry is given the size passed.
+	 * This allows a whole directory tree to be written before it is linked into its parent,
+	 * as done by tfs_cp_recursive().
+	 * 
+	 * @param path String containing the absolute path from the root directory to the directory.
+	 * @param location The location (starting block) of the stored directory, or -1 to create a new one.
+	 * @param size The size in bytes of the stored directory. Ignored if location is < 0.
+	 * @return 0 if success, or -1 if directory could not be added.
+	 */
+	private int tfs_mkdir(String path, int location, int size)
 	{
 		if (!isMounted)                                  //Make sure file system is mounted.
 			return -1;
@@ -472,10 +680,20 @@ public class TFSFileSystem
 				if (rD.contains(dirs[0], true))          //If RD already contains the target., return -1.
 					return -1;
 					
-				int loc = PCB.getFirstFreeBlock();
-				Directory tmp = new Directory();
-				tfs_store_dir(tmp, loc);                             //Store the new Directory to disk at first free block.
-				rD.addNewEntry(new FCB(dirs[0], true, loc, 0));                 //Add new entry directly in root directory.
+				int loc = location;
+				if (loc < 0)                                             //Store a new empty Directory to disk at first free block.
+				{
+					loc = tfs_write_blocks(new Directory().getByteArr());
+					size = 0;
+					if (loc < 0)
+						return -1;
+				}
+				int oldSize = rD.getByteSize();
+				rD.addNewEntry(new FCB(dirs[0], true, loc, size));              //Add new entry directly in root directory.
+				
+				if (rD.getByteSize() == oldSize)                         //Entry took a free slot, so only it needs to be written.
+					return ( (tfs_store_dir_slot(rD, PCB.getRootDir(), rD.find(dirs[0], true))) >= 0 ? 0 : -1);
+				
 				rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);          //Update root directory's stored FCB for itself.
 				return (tfs_store_dir(rD, PCB.getRootDir()) >= 0 ? 0 : -1);     //Store root dir to disk
 		}
@@ -524,8 +742,13 @@ public class TFSFileSystem
 				return -1;
 			
 		   //Now make the new blank directory, since all conditions are met. Store it at first free block.
-		   int location = PCB.getFirstFreeBlock();
-		   tfs_store_dir(new Directory(), location);
+		   if (location < 0)
+		   {
+			   location = tfs_write_blocks(new Directory().getByteArr());
+			   size = 0;
+			   if (location < 0)
+				   return -1;
+		   }
 		   
 		   /*
 		    *   Update parent and ancestor (paren't parent) and write them to disk.
@@ -534,7 +757,12 @@ public class TFSFileSystem
 			*   reflect this change.
 			*/
 			
-		   parent.addNewEntry(new FCB(dirs[dirsChecked], true, location, 0));           //Add entry in parent for the new empty. dir.
+		   int oldSize = parent.getByteSize();
+		   parent.addNewEntry(new FCB(dirs[dirsChecked], true, location, size));        //Add entry in parent for the new dir.
+		   
+		   if (parent.getByteSize() == oldSize)      //Entry took a free slot, so only it needs to be written. Ancestor is unchanged.
+			   return ( (tfs_store_dir_slot(parent, nextParentFCB.getLocation(), parent.find(dirs[dirsChecked], true))) >= 0 ? 0 : -1);
+		   
 		   if ( (tfs_store_dir(parent, nextParentFCB.getLocation())) < 0)               //Store parent.
 				return -1;
 	 
@@ -566,6 +794,29 @@ public class TFSFileSystem
 	 * 
 	 */
 	public int tfs_rmdir(String path)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			return tfs_rmdir(path, false);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 *  Removes a directory at the given location down path absolute path from root.
+	 *  If recursive is true, everything stored in the directory is removed first by
+	 *  tfs_remove_tree(). Otherwise the directory is only removed if it is empty.
+	 *  
+	 *  @param path The path from root to the target, including target name.
+	 *  @param recursive boolean true if the contents of the directory should be removed as well.
+	 *  @return int 0 if success, -1 if path is invalid or other error occurs,
+	 *   -2 if directory is not empty and recursive is false. 
+	 */
+	private int tfs_rmdir(String path, boolean recursive)
 	{
 		if (!isMounted)                              //Check if file system is mounted.
 			return -1;
@@ -576,7 +827,8 @@ public class TFSFileSystem
 		
 		if (dirs[0] == ROOT_NAME)                   //Important. Prevents root metadata from being deleted.
 			return -1;
-				
+		
+		slotVersion.incrementAndGet();              //Blocks of the directory may be reused, so its slots are no longer valid.
 		int pathLength = dirs.length + 1;            //Length of path, given by size of dirs + 1 for root dir.
 		
 		if (pathLength == 2)                          //If target directory is in root directory.
@@ -585,12 +837,24 @@ public class TFSFileSystem
 				return -1;
 			
 			FCB targetFCB = rD.getFCBByName(dirs[0], true);
-			if ((targetFCB.getSize()) != 0 )           //If target in rD is not empty, return -2.
-				return -2;
+			if ((targetFCB.getSize()) != 0 )           //If target in rD is not empty, return -2, or remove its contents.
+			{
+				if (!recursive)
+					return -2;
+				if (tfs_remove_tree(targetFCB) < 0)
+					return -1;
+			}
 			
+			int oldSize = rD.getByteSize();
+			int slot = rD.find(targetFCB);
 			rD.removeEntry(targetFCB);                               //Otherwise remove target from rD
-			rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);   //Update RD's entry about itself.
 			tfs_clear_blocks(targetFCB.getLocation());               //Update FAT for these blocks.
+			
+			if (rD.getByteSize() == oldSize)                         //Slot was left free, so only it needs to be written.
+				return ( (tfs_store_dir_slot(rD, PCB.getRootDir(), slot)) >= 0 ? 0 : -1);
+			
+			tfs_refresh_slots(rD, PCB.getRootDir());                  //Directory was compacted, so slots of open files may have moved.
+			rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);   //Update RD's entry about itself.
 			return ( (tfs_store_dir(rD, PCB.getRootDir())) >= 0 ? 0 : -1);        //Store root dir to disk and return 0 if success, of -1 if fail.
 					
 		}
@@ -635,12 +899,23 @@ public class TFSFileSystem
 		    	return -1;
 		    
 		    if (targetFCB.getSize() != 0)
-		    	return -2;                                                    //If target not empty, return -1
+		    {
+		    	if (!recursive)
+		    		return -2;                                                //If target not empty, return -2
+		    	if (tfs_remove_tree(targetFCB) < 0)                           //Or remove its contents.
+		    		return -1;
+		    }
 		    
 		    tfs_clear_blocks(targetFCB.getLocation());                        //Clear FAT entry for this dir.
 		    
+		    int oldSize = parent.getByteSize();
+		    int slot = parent.find(targetFCB);
 		    parent.removeEntry(targetFCB);                                    //If it is empty, remove target from parent.
 		    
+		    if (parent.getByteSize() == oldSize)            //Slot was left free, so only it needs to be written. Ancestor is unchanged.
+		    	return ( (tfs_store_dir_slot(parent, nextParentFCB.getLocation(), slot)) >= 0 ? 0 : -1);
+		    
+		    tfs_refresh_slots(parent, nextParentFCB.getLocation());      //Parent was compacted, so slots of open files may have moved.
 		    tfs_store_dir(parent, nextParentFCB.getLocation());           //Store updated parent back to disk.
 		
 		    if (pathLength > 3)                                    //If path length is > 3, update ancestor's entry
@@ -671,12 +946,30 @@ public class TFSFileSystem
 	 */
 	public StringBuffer tfs_ls(String path)
 	{
+		tfs_begin();
+		try
+		{
+			return tfs_ls_locked(path);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_ls() once it holds its locks.
+	 */
+	private StringBuffer tfs_ls_locked(String path)
+	{
+		FCBView lookupView = lookupViews.get();
 		StringBuffer descBuf = new StringBuffer(FCB.FCB_SIZE);
 		if (!isMounted)                                          //Check if file system is mounted.
 		{
 			descBuf.append("TFS file system not mounted.\n");
 			return descBuf;
 		}
+	
+		tfs_lock_dir(PCB.getRootDir(), false);                 //Root is read by every path.
 		
 		//Special case if "/" is given as path, print root dir.
 		if (path.equals("/"))
@@ -684,75 +977,335 @@ public class TFSFileSystem
 			descBuf.append(rD.listContents());
 			return descBuf;
 		}
-				
+			
 		String tmpPath = path.split("/", 2)[1];                  //Get rid of first '/'
 		String[] dirs = tmpPath.split("/");                      //Split the path string by / symbol
-		
-		
+	
+	
 		if (dirs.length == 0)       //If no path is given
 		{
 			descBuf.append("Empty path given.\n");
 			return descBuf;
 		}
-		
-		int pathLength = dirs.length + 1;        //Length of path is number of elements + the rootdir.
-		Directory curDir = rD;                   //Start at root.
-		FCB curD_FCB = null;
-		
-		for (int i = 0; i < pathLength - 2; i++) //Go down path an check that it is valid, up to parent directory of target.
+	
+		//Go down path and check that it is valid. Directories along the path are searched without loading them.
+		int found = tfs_lookup(dirs, dirs.length, true, lookupView);
+	
+		if (found == -1)                                   //If a directory along the path is missing, path is invalid.
 		{
-			curD_FCB = curDir.getFCBByName(dirs[i], true);  //Note method returns null if FCB is not found.
-			
-			if(curD_FCB == null)                           //If current directory doesn't contain next dir in path, path is invalid.
-			{
-				descBuf.append("Invalid path.\n");
-				return descBuf;                             //Return the buffer with message "invalid path."
-			}			
-			curDir = tfs_load_dir(curD_FCB.getLocation(), curD_FCB.getSize());      //Load next directory from disk, if previous one contains it.
+			descBuf.append("Invalid path.\n");
+			return descBuf;                             //Return the buffer with message "invalid path."
 		}
-		
-		//Now look in the parent of target.
-		curD_FCB = curDir.getFCBByName(dirs[dirs.length - 1], true);
-		
-		if (curD_FCB == null)                        //If parent contains target, load it from disk and print its contents.
+	
+		if (found == -2)                             //If parent doesn't contain target, indicate this.
 		{
 			descBuf.append("Target directory \"" + dirs[dirs.length-1] + "\" not found");
 			return descBuf;                         //Return the StringBuffer with above message.
 		}
-					
+				
 		else                                         //Otherwise parent contains target. load it from disk.
 		{
-			curDir = tfs_load_dir(curD_FCB.getLocation(), curD_FCB.getSize());
+			Directory curDir = tfs_load_dir(lookupView.getLocation(), lookupView.getSize());
 			descBuf.append(curDir.listContents());   //Add contents of this directory to the string buffer.
 			return descBuf;                          //Return the StringBuffer.
-			
+
 		}
 	}
-	
+
 	/**
-	 * Overloaded version of tfs_create.
-	 * Creates an empty file (size = 0 bytes).
-	 * 
-	 * @param path The path from root to where file should be created. Last
-	 * element in path is new file name.
-	 * @return int write start location (block) if success, 
-	 * -1 for general failure, or -2 if  file already exists in parent directory.
+	 * Reads a page of entries from the target directory down the path, beginning at the entry
+	 * slot given by cursor. At most limit entries are added to out as FCB objects. Unlike tfs_ls,
+	 * the directory is never loaded as a whole. Entries are decoded block by block straight from
+	 * disk, so listing a directory of any size needs only one block in memory at a time.
+	 *
+	 * The returned cursor is passed to the next call to resume the listing where this call
+	 * stopped. When the end of the directory has been reached, no more entries are added to out.
+	 * The root directory's entry for itself is never returned, and free slots are skipped.
+	 *
+	 * Special case: If only "/" is given as path, root directory is read.
+	 *
+	 * @param path The absolute path from root to target directory.
+	 * @param cursor The entry slot to start reading from. 0 for the first page.
+	 * @param limit The maximum number of entries to add to out.
+	 * @param out List to which the entries that were read are added.
+	 * @return int cursor from which the next call should resume, -1 if a general error occurs
+	 * or -2 if the target directory cannot be found.
 	 */
-	public int tfs_create(String path)
+	public int tfs_readdir(String path, int cursor, int limit, List<FCB> out)
 	{
-		return ( tfs_create(path, 0) );          //Call tfs_create with the block size as size.
-	}
-	
-	/**
-	 * Creates a new file at a given location. Element after last "/" 
-	 * delimeter specifies name of file.
-	 * 
-	 * @param path The absolute path to where file should be created.
-	 * @param size The initial size of the empty file to create.
-	 * @return int write start location (block) if success, 
-	 * -1 for general failure, or -2 if  file already exists in parent directory.
-	 */
+		tfs_begin();
+		try
+		{
+			FCBView lookupView = lookupViews.get();
+			if (!isMounted || cursor < 0 || limit < 0)          //Check if file system is mounted and args are valid.
+				return -1;
+
+			tfs_lock_dir(PCB.getRootDir(), false);             //Root is read by every path.
+			
+			//Special case if "/" is given as path. Skip the first entry, which is the FCB of root dir itself.
+			if (path.equals("/"))
+				return tfs_read_entries(PCB.getRootDir(), rD.getByteSize(), Math.max(cursor, 1), limit, out);
+
+			String[] dirs = getValidPath(path);
+			if (dirs == null)
+				return -1;
+
+			int found = tfs_lookup(dirs, dirs.length, true, lookupView);   //Find target directory without loading the path.
+			if (found < 0)
+				return found;
+
+			return tfs_read_entries(lookupView.getLocation(), lookupView.getSize(), cursor, limit, out);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+
+	/**
+	 * Returns the FCB of the file or directory down the path. If the parent directory
+	 * holds both a file and a directory with the target name, the file is returned.
+	 * The path is searched without loading any directories into memory, so only the
+	 * returned FCB is created.
+	 *
+	 * Special case: If only "/" is given as path, the FCB of root directory is returned.
+	 *
+	 * @param path The absolute path from root to the target.
+	 * @return FCB of the target, or null if file system is not mounted or target cannot be found.
+	 */
+	public FCB tfs_stat(String path)
+	{
+		tfs_begin();
+		try
+		{
+			FCBView lookupView = lookupViews.get();
+			if (!isMounted)
+				return null;
+
+			tfs_lock_dir(PCB.getRootDir(), false);   //Root is read by every path.
+			if (path.equals("/"))                //Root dir's own FCB. Size is taken from memory, where it is current.
+				return new FCB(ROOT_NAME, true, PCB.getRootDir(), rD.getByteSize());
+
+			String[] dirs = getValidPath(path);
+			if (dirs == null)
+				return null;
+
+			int found = tfs_lookup(dirs, dirs.length, false, lookupView);   //Look for a file first.
+			if (found == -2)
+				found = tfs_lookup(dirs, dirs.length, true, lookupView);   //Then for a directory.
+
+			return (found < 0 ? null : lookupView.toFCB());
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Returns the FCB of the target of a path in the same way as tfs_stat(String), but reads it
+	 * straight from the slot recorded in cache by an earlier call for the same path. The path
+	 * is only searched if no slot is recorded, or if a directory has been compacted, removed
+	 * or renamed since, as its entries may then have moved. The slot found is then recorded in
+	 * cache for the next call. The slot is also not used if it no longer holds an entry of the
+	 * same name, such as after a rename.
+	 * 
+	 * @param path The absolute path from root to the target.
+	 * @param cache Holds the EntrySlot of the target from the last call, or null.
+	 * @return FCB of the target, or null if file system is not mounted or target cannot be found.
+	 */
+	public FCB tfs_stat(String path, AtomicReference<EntrySlot> cache)
+	{
+		tfs_begin();
+		try
+		{
+			FCBView lookupView = lookupViews.get();
+			if (!isMounted)
+				return null;
+
+			tfs_lock_dir(PCB.getRootDir(), false);
+			if (path.equals("/"))
+				return new FCB(ROOT_NAME, true, PCB.getRootDir(), rD.getByteSize());
+
+			String[] dirs = getValidPath(path);
+			if (dirs == null)
+				return null;
+			String name = dirs[dirs.length - 1];
+
+			long version = slotVersion.get();       //Read before the slot, so a move during the read is seen after it.
+			EntrySlot entry = cache.get();
+			if (entry != null && entry.getVersion() == version)
+			{
+				FCBView view = tfs_read_slot(entry.getParentLocation(), entry.getSlot());
+				if (view != null && !view.isFree() && view.is_Dir() == entry.is_Dir() && view.nameEquals(name) 
+						&& slotVersion.get() == version)
+					return view.toFCB();
+			}
+
+			int parentLoc = PCB.getRootDir();
+			int parentSize = rD.getByteSize();
+			if (dirs.length > 1)                     //Find the parent, then the target in it.
+			{
+				if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+					return null;
+				parentLoc = lookupView.getLocation();
+				parentSize = lookupView.getSize();
+			}
+
+			boolean dir = false;
+			int slot = tfs_find_entry(parentLoc, parentSize, name, false, lookupView);   //Look for a file first.
+			if (slot < 0)
+			{
+				dir = true;
+				slot = tfs_find_entry(parentLoc, parentSize, name, true, lookupView);    //Then for a directory.
+			}
+			if (slot < 0)
+				return null;
+
+			cache.set(new EntrySlot(parentLoc, slot, dir, version));
+			return lookupView.toFCB();
+		} finally
+		{
+			tfs_end();
+		}
+	}
+
+	/**
+	 * Searches the tree below the directory down the path for entries accepted by predicate, 
+	 * and passes the path and FCB of each match to consumer. Both files and directories are
+	 * tested, but the target directory itself is not.
+	 *
+	 * Directories are walked in parallel on the common ForkJoinPool by FindTask, one task per 
+	 * directory. Each directory is read from disk once, and predicate is given an FCBView 
+	 * positioned on each entry in the bytes read, so no FCB is created for entries which do 
+	 * not match. predicate may therefore be called from several threads at once, and the view
+	 * passed to it is only valid during the call. Calls to consumer are never made at the same
+	 * time, so consumer does not need to be thread safe, but matches arrive in no particular order.
+	 * Each directory is locked for reading while it and the tree below it are searched, and 
+	 * consumer is called while the directory of the match is locked, so consumer must not make
+	 * calls which change the file system.
+	 *
+	 * Special case: If only "/" is given as path, the whole file system is searched.
+	 *
+	 * @param path The absolute path from root to the directory to search.
+	 * @param predicate Test for entries to match, eg. v -> v.nameMatches("*.txt").
+	 * @param consumer Called with the absolute path and FCB of each match.
+	 * @return int number of matches, -1 if a general error occurs, or -2 if the
+	 * target directory cannot be found.
+	 */
+	public int tfs_find(String path, Predicate<FCBView> predicate, BiConsumer<String, FCB> consumer)
+	{
+		tfs_begin();
+		try
+		{
+			return tfs_find_locked(path, predicate, consumer);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_find() once it holds its locks.
+	 */
+	private int tfs_find_locked(String path, Predicate<FCBView> predicate, BiConsumer<String, FCB> consumer)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted)
+			return -1;
+
+		/*
+		 * The target is locked by this call, and the tasks lock the directories below it. The
+		 * calling thread holds none of those, so the tasks never wait for a lock it holds
+		 * while it waits for them.
+		 */
+		FindTask walk;
+		tfs_lock_dir(PCB.getRootDir(), false);   //Root is read by every path.
+		if (path.equals("/"))                //Skip the first entry of root, which is the FCB of root dir itself.
+			walk = new FindTask(PCB.getRootDir(), rD.getByteSize(), 1, "", predicate, consumer, new AtomicInteger(), false);
+		else
+		{
+			String[] dirs = getValidPath(path);
+			if (dirs == null)
+				return -1;
+
+			int found = tfs_lookup(dirs, dirs.length, true, lookupView);
+			if (found < 0)
+				return found;
+
+			walk = new FindTask(lookupView.getLocation(), lookupView.getSize(), 0, path, predicate, consumer, new AtomicInteger(), false);
+		}
+
+		try
+		{
+			ForkJoinPool.commonPool().invoke(walk);
+		} catch (RuntimeException e)
+		{
+			System.err.println("Searching " + path + " failed: " + e.getMessage());
+			return -1;
+		}
+
+		return walk.matches.get();
+	}
+
+	/**
+	 * Overloaded version of tfs_create.
+	 * Creates an empty file (size = 0 bytes).
+	 * 
+	 * @param path The path from root to where file should be created. Last
+	 * element in path is new file name.
+	 * @return int write start location (block) if success, 
+	 * -1 for general failure, or -2 if  file already exists in parent directory.
+	 */
+	public int tfs_create(String path)
+	{
+		return ( tfs_create(path, 0) );          //Call tfs_create with the block size as size.
+	}
+	
+	/**
+	 * Creates a new file at a given location. Element after last "/" 
+	 * delimeter specifies name of file. If size is within the limit set by tfs_setInlineLimit(),
+	 * the file keeps its data inline and no blocks are taken.
+	 * 
+	 * @param path The absolute path to where file should be created.
+	 * @param size The initial size of the empty file to create.
+	 * @return int write start location (block) if success, 0 for an inline file,
+	 * -1 for general failure, or -2 if  file already exists in parent directory.
+	 */
 	public int tfs_create(String path, int size)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			if (size >= 0 && size <= inlineLimit && inlineLimit > 0)
+				return tfs_create(path, size, -1, new byte[size], (byte) 0);
+		
+			return tfs_create(path, size, -1, null, (dedup ? FCB.MAPPED_FILE : 0));
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Adds the entry for a file down the given path. If location is < 0, blocks for size 
+	 * bytes are taken and filled with 0. Otherwise the file's blocks must already be linked
+	 * in the FAT and written at location, and they are not written again. This lets tfs_cp()
+	 * write the blocks of a copy once, before it is linked into its parent.
+	 * 
+	 * If inlineData is not null, the file is created with that data inline instead, and 
+	 * location is not used. If kind is COMPRESSED_FILE, the blocks at location must hold a
+	 * compressed file, and the entry is marked as compressed. If kind is MAPPED_FILE, location
+	 * is the first block of a block map, and a new file is given a map of holes only.
+	 * 
+	 * @param path The absolute path to where file should be created.
+	 * @param size The size of the file.
+	 * @param location The first block of the stored file, or -1 to store a new empty file.
+	 * @param inlineData The data of a new inline file, or null to store the file in blocks.
+	 * @param kind 0, or FCB.COMPRESSED_FILE or FCB.MAPPED_FILE for how the blocks at location are stored.
+	 * @return int write start location (block) if success, 0 for an inline file,
+	 * -1 for general failure, or -2 if  file already exists in parent directory.
+	 */
+	private int tfs_create(String path, int size, int location, byte[] inlineData, byte kind)
 	{
 		if (!isMounted)                              //Check if file system is mounted.
 			return -1;
@@ -762,7 +1315,7 @@ public class TFSFileSystem
 		if (size < blSize)
 			writeSize = blSize;        //Set to one block, if < blockSize.
 		
-		else if (size % blSize == 0)  //If size is divisible by block size, use size as is.
+		else if (size % blSize == 0 || size > Integer.MAX_VALUE - blSize)  //If size is divisible by block size, or cannot be rounded up in an int, use size as is.
 			writeSize = size;
 		
 		//Else set to closest value divisible by block size by discarding fractional part and adding block size.
@@ -782,13 +1335,20 @@ public class TFSFileSystem
 			if ((rD.contains(dirs[0], false)))         //If rD already contains this file, return -2.
 				return -2;
 			
-			//Otherwise write a block with size bytes to disk, getting location of first block.
-			int writeLocation = tfs_write_blocks(new byte[writeSize]); 
+			//Otherwise write the first block of the file to disk, getting its location. The rest is a hole.
+			int writeLocation = (inlineData != null ? 0 : location);
+			if (writeLocation < 0)
+				writeLocation = (kind == FCB.MAPPED_FILE ? tfs_new_map(size) : tfs_write_sparse(writeSize)); 
 			if (writeLocation < 0)                     //Check if write was successful.
 				return -1;
 			
 			//Add new entry for empty file to root dir with location and name.
-			rD.addNewEntry(new FCB(dirs[0], false, writeLocation, size));            
+			int oldSize = rD.getByteSize();
+			rD.addNewEntry(tfs_file_entry(dirs[0], writeLocation, size, inlineData, kind));            
+			
+			if (rD.getByteSize() == oldSize)          //Entry took a free slot, so only it needs to be written.
+				return ( (tfs_store_dir_slot(rD, PCB.getRootDir(), rD.find(dirs[0], false))) >= 0 ? writeLocation : -1);
+			
 			rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);   //Update RD's entry about itself.
 			
 			return ( (tfs_store_dir(rD, PCB.getRootDir())) >= 0 ? writeLocation : -1);        //Store root dir to disk and return 0 if success, of -1 if fail.
@@ -839,9 +1399,11 @@ public class TFSFileSystem
 			    if (parent.contains(dirs[dirsChecked], false))
 					return -2;                                      //Return -2 if it does already contain it.
 				
-			   //Now simply write a buffer of size bytes, at default value for byte (0).
+			   //Now write the first block of the file, at default value for byte (0). The rest is a hole.
 			 
-			  int writeLocation = tfs_write_blocks(new byte[writeSize]); 
+			  int writeLocation = (inlineData != null ? 0 : location);
+			  if (writeLocation < 0)
+				  writeLocation = (kind == FCB.MAPPED_FILE ? tfs_new_map(size) : tfs_write_sparse(writeSize)); 
 			  if (writeLocation < 0)                     //Check if write was successful.
 					return -1;
 			   			   
@@ -852,7 +1414,12 @@ public class TFSFileSystem
 				*   reflect this change.
 				*/
 				
-			   parent.addNewEntry(new FCB(dirs[dirsChecked], false, writeLocation, size));     //Add entry in parent for the new file.
+			   int oldSize = parent.getByteSize();
+			   parent.addNewEntry(tfs_file_entry(dirs[dirsChecked], writeLocation, size, inlineData, kind));     //Add entry in parent for the new file.
+			   
+			   if (parent.getByteSize() == oldSize)      //Entry took a free slot, so only it needs to be written. Ancestor is unchanged.
+				   return ( (tfs_store_dir_slot(parent, nextParentFCB.getLocation(), parent.find(dirs[dirsChecked], false))) >= 0 ? writeLocation : -1);
+			   
 			   if ( (tfs_store_dir(parent, nextParentFCB.getLocation())) < 0)               //Store parent.
 					return -1;
 		 
@@ -877,6 +1444,157 @@ public class TFSFileSystem
 		
 	}
 	
+	/**
+	 * Creates many new files in one directory at once. names[i] is given an empty file of
+	 * sizes[i] bytes, rounded up to whole blocks in the same way as tfs_create(). As there,
+	 * a file within the limit set by tfs_setInlineLimit() keeps its data inline instead, and
+	 * takes no blocks, and while the dedup layer is on the others are given a block map of
+	 * holes only.
+	 * 
+	 * The parent directory is found once, and the blocks of all files are taken in one pass 
+	 * over the FAT by tfs_alloc_chain(). The new entries are added to the parent together, which
+	 * is then stored once, writing the FAT to disk with it. Finally the entry for the parent in 
+	 * its own parent is updated with the new size. Nothing is created if any of the names 
+	 * already exists in the parent or appears twice in names.
+	 * 
+	 * Special case: If only "/" is given as parentPath, files are created in root directory.
+	 * 
+	 * @param parentPath The absolute path to the directory in which files should be created.
+	 * @param names The names of the files to create.
+	 * @param sizes The initial size of each file.
+	 * @return int number of files created if success, -1 for general failure, or -2 if
+	 * a file with one of the names already exists in the parent directory.
+	 */
+	public int tfs_createBatch(String parentPath, String[] names, int[] sizes)
+	{
+		tfs_begin();
+		try
+		{
+			return tfs_createBatch_locked(parentPath, names, sizes);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_createBatch() once it holds its locks.
+	 */
+	private int tfs_createBatch_locked(String parentPath, String[] names, int[] sizes)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || names == null || sizes == null || names.length != sizes.length)
+			return -1;
+	
+		List<FCB> entries = new ArrayList<FCB>(names.length);       //Entries for the new files.
+		for (int i = 0; i < names.length; i++)
+		{
+			if (names[i] == null || names[i].isEmpty() || names[i].contains("/") || sizes[i] < 0)
+				return -1;
+			boolean inline = (sizes[i] <= inlineLimit && inlineLimit > 0);   //Same choice as tfs_create().
+			entries.add(tfs_file_entry(names[i], 0, sizes[i], (inline ? new byte[sizes[i]] : null),
+					(dedup ? FCB.MAPPED_FILE : 0)));
+		}
+	
+		/*
+		 * Find parent directory. The ancestor (parent's parent) holds the entry of parent,
+		 * which must be updated with parent's new size. Directories above the ancestor are
+		 * searched by tfs_lookup() without loading them.
+		 */
+		Directory parent = rD;
+		Directory ancestor = null;
+		int parentLoc = PCB.getRootDir();
+		int ancestorLoc = -1;
+		String[] dirs = null;
+	
+		if (parentPath.equals("/"))
+			tfs_lock_dir(parentLoc, true);
+		else
+		{
+			dirs = getValidPath(parentPath);
+			if (dirs == null)
+				return -1;
+			tfs_lock_path(dirs, dirs.length + 1, 2);      //Parent and ancestor are written.
+		
+			ancestor = rD;
+			ancestorLoc = PCB.getRootDir();
+			if (dirs.length > 1)
+			{
+				if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+					return -1;
+				ancestorLoc = lookupView.getLocation();
+				ancestor = tfs_load_dir(ancestorLoc, lookupView.getSize());
+			}
+		
+			FCB parentFCB = ancestor.getFCBByName(dirs[dirs.length - 1], true);
+			if (parentFCB == null)
+				return -1;
+		
+			parentLoc = parentFCB.getLocation();
+			parent = tfs_load_dir(parentLoc, parentFCB.getSize());
+		}
+	
+		//Take blocks for every file which needs them in one pass over the FAT. Only the FAT in memory is changed so far.
+		int blSize = PCB.getBlockSize();
+		Allocation alloc = new Allocation(PCB.getRootDir() + 1);
+		int oldSize = 0;                          //Size of parent before entries are added.
+	
+		try
+		{
+			for (FCB entry : entries)
+			{
+				if (entry.isInline())                     //Data is kept in the entry, so no blocks are taken.
+					continue;
+				if (entry.isMapped())                     //Only a map of holes is taken, as by tfs_new_map().
+				{
+					entry.setLocation(tfs_alloc_chain(alloc, tfs_calcBlocksNeeded(4 * tfs_calcBlocksNeeded(entry.getSize()))));
+					continue;
+				}
+				int location = tfs_alloc_chain(alloc, 1); //Only the first block is taken. The rest of the file is a hole.
+				if (entry.getSize() > blSize)
+					PCB.updateFAT(location, FileAccessTable.HOLE);
+				entry.setLocation(location);
+			}
+		
+			oldSize = parent.getByteSize();
+			parent.addNewEntries(entries);        //Throws DirModException if any name is already used.
+		} catch (RuntimeException e)
+		{
+			for (int head : alloc.chains)         //Give back all blocks taken.
+				tfs_free_chain(head);
+		
+			System.err.println("Could not create files in " + parentPath + ": " + e.getMessage());
+			return (e instanceof DirModException ? -2 : -1);
+		}
+	
+		//Write the blocks taken for each new file, or for its map, from one buffer of zeros.
+		byte[] zeros = new byte[blSize];
+		for (FCB entry : entries)
+		{
+			for (int block = entry.getLocation(); block > 0; block = PCB.getFAT()[block])   //Inline files have none.
+			{
+				if (TFSDiskInputOutput.tfs_dio_writeBlock(block, zeros) < 0)
+					return -1;
+			}
+		}
+	
+		if (parent == rD)                                        //Files were created in root directory.
+		{
+			rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);
+			return ( (tfs_store_dir(rD, PCB.getRootDir())) >= 0 ? names.length : -1);
+		}
+	
+		if (tfs_store_dir(parent, parentLoc) < 0)                 //Store parent, writing FAT with it.
+			return -1;
+	
+		if (parent.getByteSize() == oldSize)                      //Entries only took free slots. Ancestor is unchanged.
+			return names.length;
+	
+		ancestor.updateEntrySize(dirs[dirs.length - 1], parent.getByteSize(), true);   //Update ancestor's entry.
+	
+		return ( (tfs_store_dir(ancestor, ancestorLoc)) >= 0 ? names.length : -1);
+	}
+	
 	/**
 	 * Removes a file from a given directory, if it exists.
 	 * 
@@ -886,38 +1604,61 @@ public class TFSFileSystem
 	 * @return 0 if success, -2 if file does not exist, or -1 if general error occurs.
 	 */
 	public int tfs_rm(String path)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			return tfs_rm_locked(path);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_rm() once it holds its locks.
+	 */
+	private int tfs_rm_locked(String path)
 	{
 		if (!isMounted)
 			return -1;
-		
+	
 		/**
 		 * Check validity of path and get a valid path.
 		 */
 		String[] dirs = getValidPath(path);
 		if (dirs == null)
 			return -1;
-		
+	
 		int pathLength = dirs.length + 1;
-		
+	
 		if (pathLength == 2)                             //If file will be removed from root directory.
 		{
 			if (!(rD.contains(dirs[0], false)))          //If rD does not contain file, return -2.
 				return -2;
-			
+		
 			//Otherwise, remove the FCB for this file from the directory.
+			int oldSize = rD.getByteSize();
+			int slot = rD.find(dirs[0], false);
 			FCB remFCB = rD.removeEntry(dirs[0], false);
-			tfs_clear_blocks(remFCB.getLocation());     //Reset FAT entries for current location and any linked blocks.
-			
-			if (!(fd_Table.isEmpty()) && fd_Table.isOpen(remFCB))  //If file is open, close it.
+			tfs_clear_blocks(remFCB);                    //Reset FAT entries for its blocks. Inline files have none.
+		
+			int tmpFD = (fd_Table.isEmpty() ? -1 : fd_Table.getFD(PCB.getRootDir(), slot));
+			while (tmpFD >= 0)                           //If file is open, close each of its entries.
 			{
-				int tmpFD = fd_Table.getFD(remFCB);
 				tfs_close_updateFDT(tmpFD);
+				tmpFD = (fd_Table.isEmpty() ? -1 : fd_Table.getFD(PCB.getRootDir(), slot));
 			}
-			
+		
+			if (rD.getByteSize() == oldSize)            //Slot was left free, so only it needs to be written.
+				return ( (tfs_store_dir_slot(rD, PCB.getRootDir(), slot)) >= 0 ? 0 : -1);
+		
+			tfs_refresh_slots(rD, PCB.getRootDir());                  //Directory was compacted, so slots of open files may have moved.
 			rD.updateEntrySize(ROOT_NAME, rD.getByteSize(), true);   //Update RD's entry about itself.
 			return ( (tfs_store_dir(rD, PCB.getRootDir())) >= 0 ? 0 : -1);        //Store root dir to disk and return 0 if success, of -1 if fail.
 		}
-		
+	
 		//If path length is longer, more dirs need to be searched before file can be removed.
 		else
 		{			
@@ -926,8 +1667,8 @@ public class TFSFileSystem
 			Directory ancestor = null;
 			FCB nextParentFCB = null;
 			FCB ancestorFCB = null;
+		
 			
-				
 			while (dirsChecked < pathLength - 2)                                  //Only go as far as parent of target                                          
 			{
 				if ( !(parent.contains(dirs[dirsChecked], true)) )               //Look for next directory in current directory
@@ -935,52 +1676,59 @@ public class TFSFileSystem
 					System.err.println("Directory " +dirs[dirsChecked] + " not in path\n");
 					return -1;                                                    //Return -1 if it is not found.
 				}
-				
+			
 				if (pathLength > 3)                                             //Store pointer to current parent as ancestor.
 				{
 						ancestor = parent;  
 						ancestorFCB = nextParentFCB;
 				}
-		                 
+	                 
 				nextParentFCB = parent.getFCBByName(dirs[dirsChecked], true);		          //Get FCB of the next directory down path from current parent.		
 				parent = tfs_load_dir(nextParentFCB.getLocation(), nextParentFCB.getSize());  //Load next parent from disk.
-						
+					
 				dirsChecked++;                                                 //Increment number of directories checked.  
 			}  //End- while
-			
-			
+		
+		
 			  /*
 		       * If above loop completes without returning -1, the parent directory needs to be checked
 		       * to see if it actually contains the file. 
 		       */
-			   		    
+		   		    
 			    FCB targetFCB = parent.getFCBByName(dirs[dirsChecked], false);      //Get FCB of target file.
 			    if (targetFCB == null)                                             //If null pointer is returned, target not found.
 			    	return -1;
-			    
-			    if (!(fd_Table.isEmpty()) && fd_Table.isOpen(targetFCB))        //If file is open, close it.
-				{
-					int tmpFD = fd_Table.getFD(targetFCB);
+		    
+			    int slot = parent.find(targetFCB);
+			    int tmpFD = (fd_Table.isEmpty() ? -1 : fd_Table.getFD(nextParentFCB.getLocation(), slot));
+			    while (tmpFD >= 0)                                               //If file is open, close each of its entries.
+			    {
 					tfs_close_updateFDT(tmpFD);
-				}
-			    			    
-			    tfs_clear_blocks(targetFCB.getLocation());                        //Clear FAT entry or entries for this file.
+					tmpFD = (fd_Table.isEmpty() ? -1 : fd_Table.getFD(nextParentFCB.getLocation(), slot));
+			    }
+		    
+			    tfs_clear_blocks(targetFCB);                                     //Clear FAT entry or entries for this file. Inline files have none.
+			    int oldSize = parent.getByteSize();
 			    parent.removeEntry(targetFCB);                                   //Remove the entry for the file from parent.
-			    
+		    
+			    if (parent.getByteSize() == oldSize)            //Slot was left free, so only it needs to be written. Ancestor is unchanged.
+			    	return ( (tfs_store_dir_slot(parent, nextParentFCB.getLocation(), slot)) >= 0 ? 0 : -1);
+		    
+			   tfs_refresh_slots(parent, nextParentFCB.getLocation());      //Parent was compacted, so slots of open files may have moved.
 			   tfs_store_dir(parent, nextParentFCB.getLocation());           //Store updated parent dir back to disk.
-			
+		
 			    if (pathLength > 3)                                    //If path length is > 3, update ancestor's entry of parent.
 			    {
 			    	ancestor.updateEntrySize(dirs[dirsChecked - 1], parent.getByteSize(), true);       //Update ancestor's entry.
 					return ((tfs_store_dir(ancestor, ancestorFCB.getLocation())) >= 0 ? 0 : -1);	  //Store ancestor to disk
 			    }
-			    
+		    
 			    else if(pathLength == 3)            //Special case. Update root dir if pathLength is 3, write it to disk at rootDir.
 				{
 					rD.updateEntrySize(dirs[0], parent.getByteSize(), true);
 					return ( (tfs_store_dir(rD, PCB.getRootDir())) >= 0 ? 0 : -1);
 				}
-			    
+		    
 			    return 0;   //Not really necessary.
 		}
 	}
@@ -999,16 +1747,7 @@ public class TFSFileSystem
 	 */
 	public int tfs_append(String path, String data)
 	{
-		if (!isMounted)       //Check if TFS is mounted.
-		return -1;
-	
-		String[] dirs = getValidPath(path);  //Get a valid path.
-		if (dirs == null)                    //Make sure path was valid.
-		{
-			return -1;
-		}
-		
-		if (data.length() == 0)        
+		if (data == null || data.length() == 0)        
 			return -1;
 		
 		byte[] app;
@@ -1020,69 +1759,158 @@ public class TFSFileSystem
 			return -1;
 		}
 		
-		int pathLen = dirs.length + 1;        //Length of path, add 1 for root.
-		int traversed = 0;                    //Number of directories traversed.
-		Directory parent = this.rD;          //First parent is root.
-		FCB nextParent_FCB = null;
-		
-		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
-		{
-			if ( !(parent.contains(dirs[traversed], true)) )     //Make sure parent contains next dir in path.
-			{   
-				System.err.println("Directory " +dirs[traversed] + " not in path\n");
-				return -1;
-			}
-						
+		return tfs_append(path, ByteBuffer.wrap(app));
+	}
+	
+	/**
+	 * Appends the bytes in data to the end of the file. Unlike tfs_append(String, String),
+	 * the bytes are written as they are, and data may be empty.
+	 * 
+	 * @param path The path from root to the target file.
+	 * @param data The bytes to append to the end of the file.
+	 * @return 0 if operation is successful, -1 if a general error occurs,
+	 * or -2 if file is not found in the parent directory.
+	 */
+	public int tfs_append(String path, byte[] data)
+	{
+		return (data == null ? -1 : tfs_append(path, data, 0, data.length));
+	}
+	
+	/**
+	 * Appends len bytes of data, starting at off, to the end of the file.
+	 * 
+	 * @param path The path from root to the target file.
+	 * @param data Array holding the bytes to append.
+	 * @param off Position in data of the first byte to append.
+	 * @param len Number of bytes to append.
+	 * @return 0 if operation is successful, -1 if a general error occurs,
+	 * or -2 if file is not found in the parent directory.
+	 */
+	public int tfs_append(String path, byte[] data, int off, int len)
+	{
+		if (data == null || off < 0 || len < 0 || off > data.length - len)
+			return -1;
+		
+		return tfs_append(path, ByteBuffer.wrap(data, off, len));
+	}
+	
+	/**
+	 * Appends the remaining bytes of each buffer in srcs, in order, to the end of the file,
+	 * moving the position of each buffer to its limit. The path is searched once, and each
+	 * buffer is written at the tail of the file by tfs_append_FDT(), straight from the buffer
+	 * for runs of whole blocks. The file's entry in its parent is stored once at the end.
+	 * Nothing is appended if the file would grow past Integer.MAX_VALUE bytes.
+	 * 
+	 * @param path The path from root to the target file.
+	 * @param srcs The buffers holding the bytes to append.
+	 * @return 0 if operation is successful, -1 if a general error occurs,
+	 * or -2 if file is not found in the parent directory.
+	 */
+	public int tfs_append(String path, ByteBuffer... srcs)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 1);                         //Only the entry of the file is stored.
+			return tfs_append_locked(path, srcs);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_append() once it holds its locks.
+	 */
+	private int tfs_append_locked(String path, ByteBuffer... srcs)
+	{
+		if (!isMounted || srcs == null)       //Check if TFS is mounted.
+			return -1;
+	
+		String[] dirs = getValidPath(path);  //Get a valid path.
+		if (dirs == null)                    //Make sure path was valid.
+		{
+			return -1;
+		}
+	
+		for (ByteBuffer src : srcs)
+		{
+			if (src == null)
+				return -1;
+		}
+	
+		int pathLen = dirs.length + 1;        //Length of path, add 1 for root.
+		int traversed = 0;                    //Number of directories traversed.
+		Directory parent = this.rD;          //First parent is root.
+		FCB nextParent_FCB = null;
+	
+		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
+		{
+			if ( !(parent.contains(dirs[traversed], true)) )     //Make sure parent contains next dir in path.
+			{   
+				System.err.println("Directory " +dirs[traversed] + " not in path\n");
+				return -1;
+			}
+					
 			nextParent_FCB = parent.getFCBByName(dirs[traversed], true);                    //Get FCB of next parent.
 			parent = tfs_load_dir(nextParent_FCB.getLocation(), nextParent_FCB.getSize());  //Load next parent.
 			traversed++;                                                                    //Increment num dirs traversed.
 		}
-		
+	
 		FCB targetFCB = parent.getFCBByName(dirs[traversed], false);  //Attempt to get FCB for file.
 		if (targetFCB == null)
 			return -2;                                                //Return -2 if parent doesn't contain the target.
-		
-		
-		
+	
+	
+	
 		int fd = -1;
-		
-		if (!(fd_Table.isEmpty()))
-			fd = fd_Table.getFD(targetFCB);             //Get FD for file, which also determines if file is open.
-				
+		int parentLoc = (nextParent_FCB == null ? PCB.getRootDir() : nextParent_FCB.getLocation());
+		int slot = parent.find(targetFCB);
+	
+		if (!(fd_Table.isEmpty()))                      //Get FD for file, which also determines if file is open.
+			fd = fd_Table.getFD(parentLoc, slot);
+			
 		if (fd < 0)                                     //If file is not open, open it.
 		{
-			fd = tfs_open_getFD(targetFCB);
+			fd = tfs_open_getFD(targetFCB, parentLoc, slot);
 			if (fd < 0)                                 //If file could not be opened, return -1.
 				return -1;
 		}
-		
-		tfs_seek_updateFDT(fd, targetFCB.getSize());                  //Seek to EOF.
-		if ( (tfs_write_bytes_FDT(fd, app, app.length)) < 0)          //Begin write at this location.
-		{
-			System.err.println("Write failed.\n");
+	
+		long total = fd_Table.getFCB(fd).getSize();         //Size after the append, which must fit in an int.
+		for (ByteBuffer src : srcs)
+			total += src.remaining();
+		if (total > Integer.MAX_VALUE)                      //Nothing is appended.
 			return -1;
+	
+		int newSize = targetFCB.getSize();
+		for (ByteBuffer src : srcs)
+		{
+			newSize = tfs_append_FDT(fd, src);                  //Write at the tail of the file.
+			if (newSize < 0)          
+			{
+				System.err.println("Write failed.\n");
+				return -1;
+			}
 		}
-		
-		targetFCB.setSize(targetFCB.getSize() + app.length);  //Update size of file.
-		fd_Table.updateFCB(fd, targetFCB);                    //Update FDT's entry for file.
+		fd_Table.updateShared(fd);                            //Other entries of the file may have recorded a tail it no longer has.
+	
+		targetFCB = fd_Table.getFCB(fd);                      //Holds new size, and new data or blocks of an inline file.
 		parent.update(targetFCB);                             //Update parent directory's entry.
-		
+	
 		/*
 		 * Special case for a file in root directory. rD and parent point to the same
-		 * directory in memory in this situation.
+		 * directory in memory in this situation. The size of the parent does not change,
+		 * so only the slot holding the entry is stored.
 		 */
 		if (pathLen == 2)
-			return ( (tfs_store_dir(parent, PCB.getRootDir())) >= 0 ? 0 : -1); 
-		
+			return ( (tfs_store_dir_slot(parent, PCB.getRootDir(), parent.find(targetFCB))) >= 0 ? 0 : -1); 
+	
 		/*
 		 * General case for file in directories further down the directory tree. 
 		 */
 		else
-			return ( (tfs_store_dir(parent, nextParent_FCB.getLocation())) >= 0 ? 0 : -1);    
-		
-		                                                         
-		
-		
+			return ( (tfs_store_dir_slot(parent, nextParent_FCB.getLocation(), parent.find(targetFCB))) >= 0 ? 0 : -1);    
 	}
 	
 	
@@ -1098,971 +1926,4669 @@ public class TFSFileSystem
 	 */
 	public StringBuffer print(String path, int position, int number)
 	{
+		tfs_begin();
+		try
+		{
+			return print_locked(path, position, number);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of print() once it holds its locks.
+	 */
+	private StringBuffer print_locked(String path, int position, int number)
+	{
+		FCBView lookupView = lookupViews.get();
 		StringBuffer sB = new StringBuffer(24);
 		if (!isMounted)       //Check if TFS is mounted.
 		{
 			sB.append("Error. TFS file system not mounted\n");
 			return sB;
 		}
-		
-		String[] dirs = getValidPath(path);  //Get a valid path.
 	
+		String[] dirs = getValidPath(path);  //Get a valid path.
+
 		if (dirs == null)                    //Make sure path was valid.
 		{
 			sB.append("Invalid path.\n");
 			return sB;
 		}
-		
-		int pathLen = dirs.length + 1;        //Length of path, add 1 for root.
-		int traversed = 0;                    //Number of directories traversed.
-		Directory parent = this.rD;          //First parent is root.
-		FCB nextParent_FCB = null;
-		
-		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
+	
+		//Look through path to make sure it can be traversed to parent of target. Directories are searched without loading them.
+		int parentLoc = PCB.getRootDir();
+		tfs_lock_dir(parentLoc, false);
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
 		{
-			if ( !(parent.contains(dirs[traversed], true)) )     //Make sure parent contains next dir in path.
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
 			{   
-				sB.append("Directory " +dirs[traversed] + " not in path\n");
+				sB.append("Directory along path " + path + " not found\n");
 				return sB;
 			}
-						
-			nextParent_FCB = parent.getFCBByName(dirs[traversed], true);                    //Get FCB of next parent.
-			parent = tfs_load_dir(nextParent_FCB.getLocation(), nextParent_FCB.getSize());  //Load next parent.
-			traversed++;                                                                    //Increment num dirs traversed.
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
 		}
-		
-		FCB targetFCB = parent.getFCBByName(dirs[traversed], false);  //Attempt to get FCB for file.
-		if (targetFCB == null)
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
 		{
 			//Add err message to sB, return sB.
 			sB.append("Target file not in directory "); 
 			return sB;
 		}
-		
+	
+		FCB targetFCB = lookupView.toFCB();              //FCB for file, needed to open it.
+	
 		//Check if offset and number are valid.
 		if (position < 0 || position > targetFCB.getSize())
 		{
 			sB.append("Invalid file position.\n");
 			return sB;
 		}
-		
+	
 		if (number < 0 || ((targetFCB.getSize() - position) - number ) < 0 )
 		{
 			sB.append("Invalid number of characters to read from file\n");
 			return sB;
 		}
-					
-		int fd = -1;
-		if (!(fd_Table.isEmpty()))                //If FDT is not empty, check if file is open.
-			fd = fd_Table.getFD(targetFCB);            
-		
-		if (fd < 0)                               //Open file if it isn't.	
-		{
-			fd = tfs_open_getFD(targetFCB);
-			if (fd < 0)                           //If file can't be opened, add error message to sB, return sB.
-			{
-				sB.append("Cannot open file for read.\n");
-				return sB;
-			}
-		}
-		
-		tfs_seek_updateFDT(fd, position);                     //Seek to position in file.
-		
-		byte[] readBuf = new byte[number + 1];                //Buffer to read bytes into
-		if ( (tfs_read_bytes_FDT(fd, readBuf, number)) < 0)   //Read number bytes into readBuf.
+				
+		//Open file for this read only, even if it is open, so another thread's offset is not used.
+		int fd = tfs_open_getFD(targetFCB, parentLoc, slot);
+		if (fd < 0)                               //If file can't be opened, add error message to sB, return sB.
 		{
-			sB.append("Read failed.\n");
+			sB.append("Cannot open file for read.\n");
 			return sB;
 		}
-		
+	
+		sB.ensureCapacity(number);
+		int result = tfs_print_FDT(fd, position, number, null, sB);   //Decode the characters straight into sB.
+		tfs_close_updateFDT(fd);
+		if (result < 0)
+			sB.append("Read failed.\n");
+	
+		return sB;                                         //Return ByteBuffer sB with containing String.
+	}
+	
+	/**
+	 * Streaming version of print(), which writes number bytes of the file from position to out
+	 * as they are read, without holding them all in memory. The bytes are read COPY_BLOCKS blocks
+	 * at a time into one buffer, which is written to out each time.
+	 * 
+	 * @param path Path from the root to the target file.
+	 * @param position File offset from which to begin read.
+	 * @param number The number of bytes to write to out.
+	 * @param out The channel the bytes are written to.
+	 * @return int 0 if success, -1 if a general error occurs, -2 if the file cannot be found,
+	 * and -3 if position or number run past the end of the file.
+	 */
+	public int tfs_print(String path, int position, int number, WritableByteChannel out)
+	{
+		return (out == null ? -1 : tfs_print_stream(path, position, number, out, null));
+	}
+	
+	/**
+	 * Version of tfs_print(String, int, int, WritableByteChannel) which decodes the bytes into
+	 * characters with the ENCODING of TFS, appending them to out one buffer at a time. So the 
+	 * characters of a large file can be printed to System.out, or collected in a StringBuilder,
+	 * without a String of all of them being made first.
+	 * 
+	 * @param path Path from the root to the target file.
+	 * @param position File offset from which to begin read.
+	 * @param number The number of bytes to decode.
+	 * @param out The characters are appended to out.
+	 * @return int 0 if success, -1 if a general error occurs, -2 if the file cannot be found,
+	 * and -3 if position or number run past the end of the file.
+	 */
+	public int tfs_print(String path, int position, int number, Appendable out)
+	{
+		return (out == null ? -1 : tfs_print_stream(path, position, number, null, out));
+	}
+	
+	
+	/**
+	 * Opens the file at the end of path and returns a file descriptor for it, to be used 
+	 * with tfs_read(), tfs_write(), tfs_seek() and tfs_close(). The path is only resolved 
+	 * here. The FDT entry records the location of the parent directory and the slot of the
+	 * file's entry in it, so the size of the file can be stored without searching the path 
+	 * again. It also records the last block used by a read or write, so that the next one
+	 * does not walk the FAT from the first block of the file. The offset starts at 0.
+	 * 
+	 * Each call returns a new file descriptor with its own offset and mode, even if the file
+	 * is already open, and closing it does not close the file for the others. Changes to the
+	 * size of the file through one of them are seen through all of them.
+	 * 
+	 * @param path Path from the root to the target file.
+	 * @param mode MODE_READ, MODE_WRITE or MODE_READ_WRITE.
+	 * @return int File descriptor if success, -1 for general failure, 
+	 * or -2 if the file does not exist.
+	 */
+	public int tfs_open(String path, int mode)
+	{
+		tfs_begin();
 		try
 		{
-			sB.append(new String(readBuf, ENCODING));       //Convert the read bytes into a String.
-		}
-		catch (UnsupportedEncodingException ex)
+			tfs_lock_path(path, 1);
+			return tfs_open_locked(path, mode);
+		} finally
 		{
-			sB.append("Ouputting characters failed.\n");
-			return sB;
+			tfs_end();
 		}
-		
-		return sB;                                         //Return ByteBuffer sB with containing String.
-				
 	}
 	
-	
 	/**
-	 * Renames the target file, if it exists in the parent directory and a
-	 * file with the specified name does not already exist in that directory.  
-	 * 
-	 * @param path The path from the root to the target file to rename
-	 * @param repName The new name for the target file.
-	 * @return int 0 if success, -1 for general failure, or -2 if a file
-	 * with given new name already exists in directory.
+	 * Does the work of tfs_open() once it holds its locks.
 	 */
-	public int tfs_rename(String path, String repName)
+	private int tfs_open_locked(String path, int mode)
 	{
-		if (!isMounted)       //Check if TFS is mounted.
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || (mode & MODE_READ_WRITE) == 0 || (mode & ~MODE_READ_WRITE) != 0)
 			return -1;
-		
+	
 		String[] dirs = getValidPath(path);  //Get a valid path.
-		if (dirs == null)                    //Make sure path was valid.
-		{
+		if (dirs == null)
 			return -1;
-		}
-			
-		
-		int pathLen = dirs.length + 1;        //Length of path, add 1 for root.
-		int traversed = 0;                    //Number of directories traversed.
-		Directory parent = this.rD;          //First parent is root.
-		FCB nextParent_FCB = null;
-		
-		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
+	
+		int parentLoc = PCB.getRootDir();    //Find parent directory, starting with root.
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
 		{
-			if ( !(parent.contains(dirs[traversed], true)) )     //Make sure parent contains next dir in path.
-			{   
-				System.err.println("Directory " +dirs[traversed] + " not in path\n");
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
 				return -1;
-			}
-						
-			nextParent_FCB = parent.getFCBByName(dirs[traversed], true);                    //Get FCB of next parent.
-			parent = tfs_load_dir(nextParent_FCB.getLocation(), nextParent_FCB.getSize());  //Load next parent.
-			traversed++;
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
 		}
-		
-		if ( !(parent.contains(dirs[traversed], false)))   //If parent doesn't contain target file, return -1.
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
+			return -2;                       //Parent does not contain the file.
+		FCB targetFCB = lookupView.toFCB();
+	
+		try
 		{
-			System.err.println("File " +dirs[traversed] + " not in found \n");
-			return -1;
-		
-		}
-		
-		if (parent.contains(repName, false))               //If parent of target already contains file with new name, return -2.
-			return -2;
-		
-		/**
-		 * Handling for open file.
-		 */
-		int fd = -1;
-		boolean fileOpen = false;
-		FCB oldTarget = parent.getFCBByName(dirs[traversed], false);
-		if (!(fd_Table.isEmpty()) && fd_Table.isOpen(oldTarget))
+			return fd_Table.add(targetFCB, 0, mode, parentLoc, slot);   //New entry, sharing the FCB if file is open.
+		} catch (RuntimeException ex)
 		{
-			fd = fd_Table.getFD(oldTarget);                        //Get old FCB's fd.
-			fileOpen = true;
-		}
-		
-		parent.updateEntryName(dirs[traversed], repName, false);   //Call Directory class updateEntryName() method to update entry.
-		FCB updatedTarget = parent.getFCBByName(repName, false);   //Get new FCB.
-		
-		/*
-		 * Since file will only be accessed by one process at a time, it can be renamed while open.
-		 * Update entry in fd_Table.
-		 */
-		if (fileOpen)
-		{			
-			fd_Table.updateFCB(fd, updatedTarget);
+			return -1;                       //FDT is full.
 		}
-		
-		//Special case for target file in root directory. rD and parent point to the same object.
-		if (pathLen == 2)
-			return ( (tfs_store_dir(rD, PCB.getRootDir())) < 0 ? -1 : 0);
-		
-		//General case. Store parent back to disk at location given by the FCB which represents it, nextParent_FCB.
-		else
-			return ( (tfs_store_dir(parent, nextParent_FCB.getLocation())) < 0 ? -1 : 0);
-				
 	}
 	
-	
 	/**
-	 * Copies the contents of one file into a new file at a specified destination.
-	 * The contents of the original file is not changed.
-	 * 
-	 * Checks to make sure that the source file exists in its parent directory and
-	 * that the destination file to create does not already exist in its parent 
-	 * directory.
-	 * 
-	 * @param sourcePath Path from route to source file.
-	 * @param destinationPath The path from root to destination file to create.
-	 * 
-	 * @return 0 if success, -1 if a general error occurs, -2 if the source file
-	 * cannot be found, and -3 if the destination file already exists in the
-	 * location specified.
+	 * Reads up to len bytes from the file associated with fd into buf, starting at off, 
+	 * beginning at the file's current offset. The offset is moved past the bytes read.
 	 * 
+	 * @param fd File descriptor returned by tfs_open() with MODE_READ.
+	 * @param buf Buffer to read into.
+	 * @param off Position in buf of the first byte read.
+	 * @param len Maximum number of bytes to read.
+	 * @return int Number of bytes read, 0 at end of file, or -1 if an error occurs.
 	 */
-	public int tfs_cp(String sourcePath, String destinationPath)
+	public int tfs_read(int fd, byte[] buf, int off, int len)
 	{
-		String[] sPath = getValidPath(sourcePath);             //Get source path array.
-		if (sPath == null)
-		{
-			System.err.println("Invalid source path.\n");
-			System.err.flush();
-		}
-		
-		if ( (getValidPath(destinationPath)) == null)          //Check destination path.
-		{
-			System.err.println("Invalid destination path.\n");
-			System.err.flush();
-		}
-		
-		//Check if source file exists.
-		
-		int pathLen = sPath.length + 1;        //Length of path, add 1 for root.
-		int traversed = 0;                    //Number of directories traversed.
-		Directory parent = this.rD;          //First parent is root.
-		FCB nextParent_FCB = null;
-		
-		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
+		tfs_begin();
+		try
 		{
-			if ( !(parent.contains(sPath[traversed], true)) )     //Make sure parent contains next dir in path.
-			{   
-				System.err.println("Directory " +sPath[traversed] + " not in path\n");
-				System.err.flush();
+			if (!tfs_check_fd(fd, MODE_READ) || buf == null || off < 0 || len < 0 || off > buf.length - len)
 				return -1;
-			}
-						
-			nextParent_FCB = parent.getFCBByName(sPath[traversed], true);                    //Get FCB of next parent.
-			parent = tfs_load_dir(nextParent_FCB.getLocation(), nextParent_FCB.getSize());  //Load next parent.
-			traversed++;
-		}
+			tfs_lock_fd(fd, false);
 		
-		FCB sourceFCB = parent.getFCBByName(sPath[traversed], false);                       //FCB of the source file.
-		
-		if ( sourceFCB == null)                                    
-		{
-			System.err.println("File " +sPath[traversed] + " not found \n");
-			System.err.flush();
-			return -2;              //If parent doesn't contain source file, return -2.
-		}
-		
-		//Check if source file is empty.
-		if (sourceFCB.getSize() == 0)
-		{
-			System.err.println("Source file empty\n");
-			System.err.flush();
-			return -1;
-		}
-			
-		/*
-		 * If the parent contains the source file, continue with creating destination file at the specified destination.
-		 * New file will be same size as source file.
-		 */
-		int writeLoc = tfs_create(destinationPath, sourceFCB.getSize());
-		
-		if (writeLoc == -2)                 //File already exists in parent directory error.
-			return -3;
-		
-		if (writeLoc == -1)                //General error.
-			return -1;
-		
-		byte[] srcBytes;                    //Pointer to memory location holding bytes from source file.
+			int offset = fd_Table.getOffset(fd);
+			int n = Math.min(len, fd_Table.getFCB(fd).getSize() - offset);   //Do not read past EOF.
+			if (n <= 0)
+				return 0;
 		
-		try
-		{
-			srcBytes = tfs_read_blocks(sourceFCB.getLocation());            //Now read from source file into memory.
-		} catch (IllegalArgumentException e)
-		{
-			System.err.println("Reading from source file failed\n");
-			System.err.flush();
-			e.printStackTrace(System.err);
-			return -1;
-		}
+			if (tfs_read_bytes_FDT(fd, buf, off, n) < 0)
+				return -1;
 		
-		int writeResult = tfs_write_blocks(srcBytes, writeLoc);		       //If read is successful, write bytes to destination file.
-		if (writeResult < 0)
+			tfs_seek_updateFDT(fd, offset + n);
+			return n;
+		} finally
 		{
-			System.err.println("Writing to destination file failed.\n");
-			return -1;
+			tfs_end();
 		}
-		
-		return 0;	
-		
-		
 	}
-		
-	
 	
 	/**
-	 * Exit the file system by calling unmount to store PCB and FAT in disk, and then
-	 * closing the file session by calling TFSDiskInputOutput.tfs_dio_close().
+	 * Writes len bytes from buf, starting at off, to the file associated with fd, beginning at
+	 * the file's current offset. The offset is moved past the bytes written. If the file grows,
+	 * its new size is stored in its parent directory's entry, which is the only part of the 
+	 * parent written.
 	 * 
-	 * @return 0 if exit is successful, -1 if it fails.
+	 * @param fd File descriptor returned by tfs_open() with MODE_WRITE.
+	 * @param buf Buffer holding the bytes to write.
+	 * @param off Position in buf of the first byte to write.
+	 * @param len Number of bytes to write.
+	 * @return int Number of bytes written, or -1 if an error occurs.
 	 */
-	public int tfs_exit()
-	{	
-		if (isMounted)                                  //Unmount if mounted.
-			tfs_unmount();
-		return TFSDiskInputOutput.tfs_dio_close();		//Close session.
-				
+	public int tfs_write(int fd, byte[] buf, int off, int len)
+	{
+		if (buf == null || off < 0 || len < 0 || off > buf.length - len)
+			return -1;
+		
+		return tfs_write(fd, ByteBuffer.wrap(buf, off, len));
 	}
 	
 	/**
-	 * Simple method to check if file system is mounted or not
+	 * Writes the remaining bytes of src to the file associated with fd, beginning at the
+	 * file's current offset, and moves the position of src to its limit. Runs of whole blocks
+	 * are written to disk straight from src, so a direct buffer is not copied into an array.
 	 * 
-	 * @return boolean true if mounted, false otherwise
+	 * @param fd File descriptor returned by tfs_open() with MODE_WRITE.
+	 * @param src Buffer holding the bytes to write.
+	 * @return int Number of bytes written, or -1 if an error occurs.
 	 */
-	public boolean tfs_isMounted()
+	public int tfs_write(int fd, ByteBuffer src)
 	{
-		return (isMounted ? true : false);
+		tfs_begin();
+		try
+		{
+			if (!tfs_check_fd(fd, MODE_WRITE) || src == null)
+				return -1;
+			tfs_lock_fd(fd, true);
+			return tfs_write_locked(fd, src);
+		} finally
+		{
+			tfs_end();
+		}
 	}
 	
-
-	
+	/**
+	 * Does the work of tfs_write() once it holds its locks.
+	 */
+	private int tfs_write_locked(int fd, ByteBuffer src)
+	{
 	
+		int len = src.remaining();
+		if (len == 0)
+			return 0;
 	
+		int offset = fd_Table.getOffset(fd);
+		if (len > Integer.MAX_VALUE - offset || tfs_write_bytes_FDT(fd, src) < 0)
+			return -1;
 	
+		int end = offset + len;
+		FCB fileFCB = fd_Table.getFCB(fd);
+		boolean grew = (end > fileFCB.getSize());
+		if (grew)                                           //File grew. Record new size.
+		{
+			fileFCB.setSize(end);
+			fd_Table.updateTail(fd, fd_Table.getPosBlock(fd), ((end - 1) % PCB.getBlockSize()) + 1);
+		}
 	
+		if ((grew || fileFCB.isInline()) && tfs_store_entry_FDT(fd) < 0)     //Data of an inline file is stored with its entry.
+			return -1;
 	
+		fd_Table.updateShared(fd);                          //Other entries of the file may have recorded blocks it no longer uses.
+		tfs_seek_updateFDT(fd, end);
+		return len;
+	}
 	
-	/****************************************************************************
-	 * 
-	 * Private methods for handling the many different supporting functions 
-	 * needed by the methods in the public TFSFileSystem API. 
-	 * 
-	 ****************************************************************************
-	 */
-		
 	/**
-	 * Reads length bytes into buf from the file associated with the file descriptor fd.
-	 * Returns the number of bytes read. Read starts at current file offset in FDT.
-	 * Only the required number of blocks are read so that the number of disk
-	 * reads is minimized. Other file blocks are not read.
-	 * 
-	 * @param fd The file descriptor for file from which to read from disk.
-	 * @param buf Buffer in memory to read into.
-	 * @param length The number of bytes to read from disk.
+	 * Gathering version of tfs_write(int, ByteBuffer). Writes the remaining bytes of each 
+	 * buffer in srcs, in order, starting at the file's current offset. Nothing is written if
+	 * the file would grow past Integer.MAX_VALUE bytes.
 	 * 
-	 * @throws IllegalArgumentExcpeption if fd is invalid
-	 * @return int bytes read, or -1 if an error occurs in read operation
+	 * @param fd File descriptor returned by tfs_open() with MODE_WRITE.
+	 * @param srcs The buffers holding the bytes to write.
+	 * @return int Total number of bytes written, or -1 if an error occurs.
 	 */
-	private int tfs_read_bytes_FDT(int fd, byte[] buf, int length)
+	public int tfs_write(int fd, ByteBuffer[] srcs)
 	{
-		if (length <= 0)                      //If length is invalid.
-		{
-			System.err.println("Invalid value for length. Read failed");
-			return -1;
-		}
-		if (buf.length < length)              //If capacity of buf is < length, return -1
-		{
-			System.err.println("Not enough space in buffer. Cannot read from file.");
-			return -1;
-		}
-					
-								
-		int blSize = PCB.getBlockSize();
-		int offset = fd_Table.getOffset(fd); //Get current offset.            
-		if (offset < 0)                     //Make sure file is open.
-		{
-			System.err.println("File not open. Cannot read from file.\n");
-			return -1;                
-		}
-		/**
-		 * Calculate start location (block) for read, given current offset.
-		 */
-		int readLocation = fd_Table.getEntryLocation(fd);   //Location (start block of file) on disk.
-		             
-		int startBlockNum = offset / blSize;        //The nth block used by file where offset is.    
-		for (int i = 0; i < startBlockNum; i++)   //Find actual block num of nth block.
+		tfs_begin();
+		try
 		{
-			readLocation = PCB.getFAT()[readLocation];
-		}
-		
-		byte[] tmpBytes = new byte[blSize];    //Temporary buffer for blocks.
-		int bytesRead = 0;                      //Number of bytes read so far.
-		int inner = 0;                          //Position in tmpBytes.
-		
+			if (srcs == null)
+				return -1;
+			if (tfs_check_fd(fd, MODE_WRITE))
+			{
+				tfs_lock_fd(fd, true);                       //Held until all of srcs is written.
+				long end = fd_Table.getOffset(fd);
+				for (ByteBuffer src : srcs)
+					end += (src == null ? 0 : src.remaining());
+				if (end > Integer.MAX_VALUE)                 //File would be too large, so nothing is written.
+					return -1;
+			}
 		
+			int total = 0;
+			for (ByteBuffer src : srcs)
+			{
+				int n = tfs_write(fd, src);
+				if (n < 0)
+					return -1;
+				total += n;
+			}
 		
-		/**
-		 * Read the first block of (possibly) others into memory.
-		 * The extra bytes in the block are NOT written to buf, only
-		 * bytes beginning at current offset.
-		 */
-		if ( (TFSDiskInputOutput.tfs_dio_readBlock(readLocation, tmpBytes)) < 0)
+			return total;
+		} finally
 		{
-			return -1;
+			tfs_end();
 		}
-		/*
-		 * Calc number of bytes to discard. This relies on fractional part of being discarded when
-		 * startBlockNum is calculated.
-		 */
-				
-		int discardBytes = offset - ((startBlockNum) * blSize );        
-		
-		int i;
-		for(i = 0; i < length && i < buf.length && ( (discardBytes < tmpBytes.length)); i++)
+	}
+	
+	/**
+	 * Sets the offset of the file associated with fd, where the next read or write begins.
+	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @param offset New offset, from 0 up to the size of the file.
+	 * @return int The new offset, or -1 if fd or offset is invalid.
+	 */
+	public int tfs_seek(int fd, int offset)
+	{
+		tfs_begin();
+		try
 		{
-			buf[i] = tmpBytes[discardBytes];
-			discardBytes++;
-		}
-		bytesRead = i;                      //Number of bytes copied into buf.
-			
+			if (!tfs_check_fd(fd, 0) || offset < 0)
+				return -1;
 		
-		/*
-		 * Iterate and write contents of tmpBytes to buf on each pass. Increment by block size.
-		 * Continue until EOF is reached, or length bytes have been read. Uses FAT
-		 * to get block number for each linked block where data is stored. 
-		 * 
-		 * This block won't execute if bytesRead is already == length.
-		 * Note that curBlock is updated to the next block to read.
-		 */
-		for(int curBlock = (PCB.getFAT())[readLocation]; curBlock > 0 && bytesRead < length; curBlock = (PCB.getFAT())[curBlock])
+			return (tfs_seek_updateFDT(fd, offset) < 0 ? -1 : offset);
+		} finally
 		{
-			if( (TFSDiskInputOutput.tfs_dio_readBlock(curBlock, tmpBytes)) < 0 )  //Read from disk into tmpBytes.
-			{
-				System.err.println("Disk read failed.\n");                           //Make sure read succeeded.
-				return -1;
-			}
-			/*
-			 * Now copy from tmpBytes into buf until entire block has been copied, or
-			 * a total of length bytes have been copied.
-			 */
-			  while (inner < tmpBytes.length && bytesRead < length)
-			  {
-				  buf[bytesRead] = tmpBytes[inner];
-				  bytesRead++;                  //Increment number of bytes read.
-				  inner++;                      //Increment position in tmpBytes.
-				  
-			  }
-			  
-			  inner = 0;                       //Reset inner to 0 for (possible) next block.
+			tfs_end();
 		}
-		
-		return bytesRead;                      //Return number of bytes read.            
 	}
 	
 	/**
-	 * Writes length bytes to the location associated with the FDT entry for fd.
-	 * Write starts at the current offset for the specific file, also held in
-	 * FDT entry.
-	 * 
-	 * The number of disk reads and writes is limited by only reading part
-	 * of the file into memory. That is, those blocks that will be modified
-	 * and written back to disk. No other blocks are modified.
-	 * 
-	 * Returns the number of bytes written.
-	 * 
-	 * @param fd The file descriptor for file to write to disk
-	 * @param buf Memory location from which to write to disk.
-	 * @param length Number of bytes to write to disk.
-	 * @return int The number of bytes written or -1 if an error occurs.
+	 * Returns the offset of the file associated with fd, where the next read or write begins.
 	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @return int The current offset, or -1 if fd is not open.
 	 */
-	private int tfs_write_bytes_FDT(int fd, byte[] buf, int length)
+	public int tfs_tell(int fd)
 	{
-		if (length < 0)              //If length is invalid.
+		tfs_begin();
+		try
 		{
-			System.err.println("Invalid value for number of bytes to write");
-			return - 1;
-		}
+			if (!tfs_check_fd(fd, 0))
+				return -1;
 		
-		//If size of buf is smaller than length, meaning length bytes CANNOT be written
-		if (buf.length < length)
+			return fd_Table.getOffset(fd);
+		} finally
 		{
-			System.err.println("Cannot write. Buffer has < length bytes to write.");
-			return -1;
+			tfs_end();
 		}
-			
-		int location = 0;               //Disk location of file (starting block).
-		int offset = 0;                 //Offset at which to begin write.
+	}
+	
+	/**
+	 * Returns the size in bytes of the file associated with fd.
+	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @return int Size of the file, or -1 if fd is not open.
+	 */
+	public int tfs_size(int fd)
+	{
+		tfs_begin();
 		try
-		{                               //Attempt to get location.
-			location = fd_Table.getEntryLocation(fd);
-			
-		}catch (IllegalArgumentException e)
-		{
-			System.err.println("Error. Cannot write to disk. File not open.");
-			return -1;                          //Return -1 if entry for fd not in table.
-		}
-		
-		/**
-		 * Read part of file into memory, starting at the current offset.
-		 * 
-		 */
-		
-		
-		offset = fd_Table.getOffset(fd);        //Get current offset in file.
-		System.out.println("File offset at beginning of current write is  " + offset +"\n");
-		
-		int startBlockNum = offset / PCB.getBlockSize();  //Which nth block of file?
-		int readLocation = location;
-		for (int i = 0; i < startBlockNum; i++)           //Find actual block, beginning at 1st block of file.
 		{
-			readLocation = PCB.getFAT()[readLocation];
-					
-		}
-		
-		byte [] filePart;                                 //Will point to memory where part of file is stored.
+			if (!tfs_check_fd(fd, 0))
+				return -1;
 		
-		try{
-		filePart = tfs_read_blocks(readLocation);        //Read blocks into memory, starting at readLocation.
-		} catch (IllegalArgumentException e)
+			return fd_Table.getFCB(fd).getSize();
+		} finally
 		{
-			e.printStackTrace(System.err);
-			return -1;
+			tfs_end();
 		}
-		//Calculate number of bytes to move forward in filePart before beginning copy.
-		int skip = offset - (startBlockNum * PCB.getBlockSize());
-		
-		/*
-		 * Expand capacity of, if necessary when number of bytes wanted to be written is
-		 *  larger than the bytes that were read in - the bytes that will be skipped.
-		 *  This is filePart.length - skip.
-		 */
-		
-		if (length > filePart.length - skip)
+	}
+	
+	/**
+	 * Closes the file associated with fd, removing its entry from the FDT.
+	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @return int 0 if success, or -1 if fd is not open.
+	 */
+	public int tfs_close(int fd)
+	{
+		tfs_begin();
+		try
 		{
-			byte [] tmp = Arrays.copyOf(filePart, length + skip);  //The new expanded array.
-			
-			filePart = tmp;                 //filePart now points to expanded array.
-		}
-		
-		/*
-		 * Copy from buf into the part of file's bytes in memory. 
-		 * Start after the bytes that were skipped initially.
-		 */
+			if (!tfs_check_fd(fd, 0))
+				return -1;
+			tfs_lock_fd(fd, true);
 		
-		for (int cur = 0; cur < length; cur++)
+			tfs_close_updateFDT(fd);
+			return 0;
+		} finally
 		{
-			filePart[cur+skip] = buf[cur];
+			tfs_end();
 		}
-		
-		//Now write the modified blocks back into file, starting at readLocation.
-		try
-		{			
-			if ( (tfs_write_blocks(filePart, readLocation)) < 0)
-				return -1;
-								
-		}catch (RuntimeException ex)            //If an exception occurs during write, print the stack trace and return -1.
-		 {
-			ex.printStackTrace();
-			return -1;
-		 }
-		
-		return length;                         //Otherwise return length to indicate success.
-		
 	}
 	
-		
 	
 	/**
-	 * Loads a directory from disk from the given location (block) into the buffer.
-	 * Uses tfs_read_blocks() to read the blocks disk into memory from the given location.
-	 * These bytes are then use to reconstruct a Directory object in memory, which is
-	 * returned. 
+	 * Renames the target file, if it exists in the parent directory and a
+	 * file with the specified name does not already exist in that directory.  
 	 * 
-	 * Size parameter will typically be found by consulting the FCB which manages this 
+	 * @param path The path from the root to the target file to rename
+	 * @param repName The new name for the target file.
+	 * @return int 0 if success, -1 for general failure, or -2 if a file
+	 * with given new name already exists in directory.
+	 */
+	public int tfs_rename(String path, String repName)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			return tfs_rename_locked(path, repName);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_rename() once it holds its locks.
+	 */
+	private int tfs_rename_locked(String path, String repName)
+	{
+		if (!isMounted)       //Check if TFS is mounted.
+			return -1;
+	
+		String[] dirs = getValidPath(path);  //Get a valid path.
+		if (dirs == null)                    //Make sure path was valid.
+		{
+			return -1;
+		}
+		
+		slotVersion.incrementAndGet();       //Entries below a renamed directory are no longer down the same path.
+		int pathLen = dirs.length + 1;        //Length of path, add 1 for root.
+		int traversed = 0;                    //Number of directories traversed.
+		Directory parent = this.rD;          //First parent is root.
+		FCB nextParent_FCB = null;
+	
+		while(traversed < pathLen - 2)       //Look through path to make sure it can be traversed to target.
+		{
+			if ( !(parent.contains(dirs[traversed], true)) )     //Make sure parent contains next dir in path.
+			{   
+				System.err.println("Directory " +dirs[traversed] + " not in path\n");
+				return -1;
+			}
+					
+			nextParent_FCB = parent.getFCBByName(dirs[traversed], true);                    //Get FCB of next parent.
+			parent = tfs_load_dir(nextParent_FCB.getLocation(), nextParent_FCB.getSize());  //Load next parent.
+			traversed++;
+		}
+	
+		if ( !(parent.contains(dirs[traversed], false)))   //If parent doesn't contain target file, return -1.
+		{
+			System.err.println("File " +dirs[traversed] + " not in found \n");
+			return -1;
+	
+		}
+	
+		if (parent.contains(repName, false))               //If parent of target already contains file with new name, return -2.
+			return -2;
+	
+		/**
+		 * Handling for open file.
+		 */
+		int fd = -1;
+		boolean fileOpen = false;
+		int parentLoc = (pathLen == 2 ? PCB.getRootDir() : nextParent_FCB.getLocation());
+		if (!(fd_Table.isEmpty()))
+		{
+			fd = fd_Table.getFD(parentLoc, parent.find(dirs[traversed], false));     //Get old FCB's fd.
+			fileOpen = (fd >= 0);
+		}
+	
+		parent.updateEntryName(dirs[traversed], repName, false);   //Call Directory class updateEntryName() method to update entry.
+		FCB updatedTarget = parent.getFCBByName(repName, false);   //Get new FCB.
+	
+		/*
+		 * Since file will only be accessed by one process at a time, it can be renamed while open.
+		 * Update entry in fd_Table.
+		 */
+		if (fileOpen)
+		{			
+			fd_Table.updateFCB(fd, updatedTarget);
+		}
+	
+		//Special case for target file in root directory. rD and parent point to the same object.
+		if (pathLen == 2)
+			return ( (tfs_store_dir(rD, PCB.getRootDir())) < 0 ? -1 : 0);
+	
+		//General case. Store parent back to disk at location given by the FCB which represents it, nextParent_FCB.
+		else
+			return ( (tfs_store_dir(parent, nextParent_FCB.getLocation())) < 0 ? -1 : 0);
+	}
+	
+	
+	/**
+	 * Copies the contents of one file into a new file at a specified destination.
+	 * The contents of the original file is not changed.
+	 * 
+	 * Checks to make sure that the source file exists in its parent directory and
+	 * that the destination file to create does not already exist in its parent 
 	 * directory.
 	 * 
-	   @param location int block number of location (block) on disk to load
-	 * directory from.
-	 * @param size The exact size of the directory to be loaded.
-	 *
-	 * @return Directory object loaded from disk.
-	 * @throws IllegalArgumentException if location or size given is invalid.
+	 * Blocks for the copy are taken from the FAT by tfs_alloc_chain(), and the source is
+	 * copied into them by tfs_copy_chain() through a buffer of COPY_BLOCKS blocks, a run
+	 * of consecutive blocks at a time. Each block of the copy is written once, and the copy
+	 * is only linked into its parent after it has been written. An empty source gives an 
+	 * empty copy. A source stored with a block map is copied by copying its map instead, so
+	 * the copy refers to the same blocks. While the dedup layer is on, a source held in a chain
+	 * is first stored with a map by tfs_map_entry(), and copied the same way. See tfs_setDedup().
+	 * 
+	 * @param sourcePath Path from route to source file.
+	 * @param destinationPath The path from root to destination file to create.
+	 * 
+	 * @return 0 if success, -1 if a general error occurs, -2 if the source file
+	 * cannot be found, and -3 if the destination file already exists in the
+	 * location specified.
+	 * 
+	 */
+	public int tfs_cp(String sourcePath, String destinationPath)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_copy(sourcePath, destinationPath, false);
+			return tfs_cp_locked(sourcePath, destinationPath);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_cp() once it holds its locks.
+	 */
+	private int tfs_cp_locked(String sourcePath, String destinationPath)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || sourcePath == null || destinationPath == null)
+			return -1;
+	
+		String[] sPath = getValidPath(sourcePath);             //Get source path array.
+		if (sPath == null)
+		{
+			System.err.println("Invalid source path.\n");
+			System.err.flush();
+			return -1;
+		}
+	
+		String[] dPath = getValidPath(destinationPath);        //Check destination path.
+		if (dPath == null)
+		{
+			System.err.println("Invalid destination path.\n");
+			System.err.flush();
+			return -1;
+		}
+	
+		//Check if source file exists. Directories along the path are searched without loading them.
+		int found = tfs_lookup(sPath, sPath.length, false, lookupView);
+		if (found == -1)
+		{   
+			System.err.println("Directory along path " + sourcePath + " not found\n");
+			System.err.flush();
+			return -1;
+		}
+	
+		if (found == -2)                                    
+		{
+			System.err.println("File " +sPath[sPath.length - 1] + " not found \n");
+			System.err.flush();
+			return -2;              //If parent doesn't contain source file, return -2.
+		}
+	
+		FCB sourceFCB = lookupView.toFCB();                       //FCB of the source file.
+	
+		//Check that the destination does not exist yet and that its parent does, before any blocks are taken.
+		found = tfs_lookup(dPath, dPath.length, false, lookupView);
+		if (found >= 0)
+			return -3;
+		if (found == -1)
+		{
+			System.err.println("Directory along path " + destinationPath + " not found\n");
+			System.err.flush();
+			return -1;
+		}
+	
+		if (sourceFCB.isInline())                                 //Copy of an inline file is inline as well.
+		{
+			int result = tfs_create(destinationPath, sourceFCB.getSize(), -1, sourceFCB.getInlineData().clone(), (byte) 0);
+			return (result >= 0 ? 0 : (result == -2 ? -3 : -1));
+		}
+	
+		if (sourceFCB.isMapped() || (dedup && !sourceFCB.isCompressed()))   //Copy refers to the blocks of the source.
+		{
+			int location = (sourceFCB.isMapped() ? sourceFCB.getLocation() : tfs_map_entry(sPath));
+			if (location < 0)
+				return -1;
+		
+			int copy;
+			try
+			{
+				copy = tfs_write_blocks(tfs_read_blocks(location));        //Map of the copy.
+			} catch (RuntimeException e)
+			{
+				System.err.println("Copying " + sourcePath + " failed: " + e.getMessage());
+				return -1;
+			}
+			if (copy < 0)
+				return -1;
+		
+			int[] entries = tfs_read_map(copy);
+			for (int block : entries)
+			{
+				if (block > 0)
+					tfs_add_ref(block);
+			}
+		
+			int result = tfs_create(destinationPath, sourceFCB.getSize(), copy, null, FCB.MAPPED_FILE);
+			if (result < 0)
+			{
+				tfs_clear_blocks(entries, 0, entries.length);
+				tfs_clear_blocks(copy);
+			}
+			return (result >= 0 ? 0 : (result == -2 ? -3 : -1));
+		}
+	
+		//Take blocks for the copy and copy the source into them. Only the FAT in memory is changed so far.
+		int writeLoc;
+		try
+		{
+			writeLoc = tfs_alloc_chain(new Allocation(PCB.getRootDir() + 1), tfs_chain_length(sourceFCB.getLocation()));    //Copy has no blocks in holes of the source.
+		} catch (RuntimeException e)
+		{
+			System.err.println("Copying " + sourcePath + " failed: " + e.getMessage());
+			return -1;
+		}
+	
+		if (tfs_copy_chain(sourceFCB.getLocation(), writeLoc, new byte[COPY_BLOCKS * PCB.getBlockSize()]) < 0
+				|| tfs_sync() < 0)
+		{
+			System.err.println("Writing to destination file failed.\n");
+			tfs_free_chain(writeLoc);
+			return -1;
+		}
+	
+		int result = tfs_create(destinationPath, sourceFCB.getSize(), writeLoc, null, (sourceFCB.isCompressed() ? FCB.COMPRESSED_FILE : 0));   //Link the copy into its parent.
+		if (result < 0)
+		{
+			tfs_free_chain(writeLoc);
+			tfs_sync();
+			return (result == -2 ? -3 : -1);
+		}
+	
+		return 0;
+	}
+		
+	
+	
+	/**
+	 * Copies a file on the host into a new file in TFS. Blocks for the whole file are taken
+	 * from the FAT by tfs_alloc_chain() before anything is written, so on a disk without
+	 * much fragmentation the file is stored in one run of consecutive blocks. Each run is 
+	 * filled straight from the host file with FileChannel.transferFrom(), without copying 
+	 * the bytes through the JVM. The new file is only linked into its parent once all of its
+	 * blocks have been written. A file within the limit set by tfs_setInlineLimit() is read
+	 * into memory and stored inline instead. While the dedup layer is on, the file is stored
+	 * with a block map instead, and is read from the host COPY_BLOCKS blocks at a time and 
+	 * written by tfs_write_mapped(), so blocks held by other files are shared rather than 
+	 * written. See tfs_setDedup().
+	 * 
+	 * @param hostPath Path of the file on the host.
+	 * @param tfsPath The path from root to the file to create in TFS.
+	 * @return 0 if success, -1 if a general error occurs, -2 if the host file cannot be 
+	 * found or read, and -3 if the TFS file already exists.
+	 */
+	public int tfs_import(String hostPath, String tfsPath)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(tfsPath, 2);
+			return tfs_import_locked(hostPath, tfsPath);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_import() once it holds its locks.
+	 */
+	private int tfs_import_locked(String hostPath, String tfsPath)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || hostPath == null || tfsPath == null)
+			return -1;
+	
+		String[] dPath = getValidPath(tfsPath);
+		if (dPath == null)
+			return -1;
+	
+		int found = tfs_lookup(dPath, dPath.length, false, lookupView);
+		if (found >= 0)                                    //File already exists.
+			return -3;
+		if (found == -1)                                   //Parent directory does not exist.
+			return -1;
+	
+		try (FileChannel in = FileChannel.open(Paths.get(hostPath), StandardOpenOption.READ))
+		{
+			long size = in.size();
+			if (size > Integer.MAX_VALUE)                  //Larger than TFS file size can record.
+				return -1;
+		
+			if (size <= inlineLimit && inlineLimit > 0)    //Small file is stored inline.
+			{
+				ByteBuffer data = ByteBuffer.allocate((int) size);
+				while (data.hasRemaining() && in.read(data) >= 0)
+					;
+				if (data.hasRemaining())                   //Host file shrank while being read.
+					return -1;
+			
+				int result = tfs_create(tfsPath, (int) size, -1, data.array(), (byte) 0);
+				return (result >= 0 ? 0 : (result == -2 ? -3 : -1));
+			}
+		
+			if (dedup)                                     //Each block is hashed as it is written.
+				return tfs_import_mapped(in, (int) size, tfsPath);
+		
+			int writeLoc;
+			try
+			{
+				writeLoc = tfs_alloc_chain(new Allocation(PCB.getRootDir() + 1), tfs_calcBlocksNeeded((int) size));
+			} catch (RuntimeException e)
+			{
+				System.err.println("Importing " + hostPath + " failed: " + e.getMessage());
+				return -1;
+			}
+		
+			if (tfs_transfer_chain(in, writeLoc, (int) size, false) < 0 || tfs_sync() < 0)
+			{
+				tfs_free_chain(writeLoc);
+				return -1;
+			}
+		
+			int result = tfs_create(tfsPath, (int) size, writeLoc, null, (byte) 0);   //Link the file into its parent.
+			if (result < 0)
+			{
+				tfs_clear_blocks(writeLoc);
+				return (result == -2 ? -3 : -1);
+			}
+		
+			return 0;
+		} catch (NoSuchFileException | AccessDeniedException e)
+		{
+			return -2;
+		} catch (IOException e)
+		{
+			System.err.println("Importing " + hostPath + " failed: " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Stores a file read from the host with a block map, for tfs_import() while the dedup 
+	 * layer is on. A map of holes is stored first, and the host file is then read COPY_BLOCKS
+	 * blocks at a time and written by tfs_write_mapped(). The new file is only linked into its
+	 * parent once all of it has been written, and its blocks are released if anything fails.
+	 * 
+	 * @param in The host file, read from its start.
+	 * @param size The size of the host file.
+	 * @param tfsPath The path from root to the file to create in TFS.
+	 * @return 0 if success, -1 if a general error occurs, and -3 if the TFS file already exists.
+	 */
+	private int tfs_import_mapped(FileChannel in, int size, String tfsPath)
+	{
+		int location;
+		try
+		{
+			location = tfs_new_map(size);
+		} catch (RuntimeException e)
+		{
+			System.err.println("Importing to " + tfsPath + " failed: " + e.getMessage());
+			return -1;
+		}
+		if (location < 0)
+			return -1;
+	
+		FCB entry = new FCB("import", false, location, size);
+		entry.setFileOrDir(FCB.MAPPED_FILE);
+		ByteBuffer buf = ByteBuffer.allocate(COPY_BLOCKS * PCB.getBlockSize());
+		int result = 0;
+		try
+		{
+			for (int pos = 0; pos < size && result == 0; pos += buf.capacity())
+			{
+				buf.clear();
+				buf.limit(Math.min(buf.capacity(), size - pos));
+				while (buf.hasRemaining() && in.read(buf) >= 0)
+					;
+				if (buf.hasRemaining())                    //Host file shrank while being read.
+					result = -1;
+				else
+				{
+					buf.flip();
+					result = tfs_write_mapped(location, size, pos, buf);
+				}
+			}
+		} catch (IOException | RuntimeException e)
+		{
+			System.err.println("Importing to " + tfsPath + " failed: " + e.getMessage());
+			result = -1;
+		}
+	
+		if (result == 0)
+			result = tfs_create(tfsPath, size, location, null, FCB.MAPPED_FILE);   //Link the file into its parent.
+		if (result < 0)
+		{
+			tfs_clear_blocks(entry);
+			return (result == -2 ? -3 : -1);
+		}
+	
+		return 0;
+	}
+	
+	/**
+	 * Copies a file in TFS into a new file on the host. Each run of consecutive blocks in the
+	 * file is written to the host file with FileChannel.transferTo(), without copying the 
+	 * bytes through the JVM.
+	 * 
+	 * @param tfsPath The path from root to the file in TFS.
+	 * @param hostPath Path of the file to create on the host.
+	 * @return 0 if success, -1 if a general error occurs, -2 if the TFS file cannot be 
+	 * found, and -3 if the host file already exists.
+	 */
+	public int tfs_export(String tfsPath, String hostPath)
+	{
+		tfs_begin();
+		try
+		{
+			return tfs_export_locked(tfsPath, hostPath);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_export() once it holds its locks.
+	 */
+	private int tfs_export_locked(String tfsPath, String hostPath)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || hostPath == null || tfsPath == null)
+			return -1;
+	
+		String[] sPath = getValidPath(tfsPath);
+		if (sPath == null)
+			return -1;
+	
+		int found = tfs_lookup(sPath, sPath.length, false, lookupView);
+		if (found < 0)
+			return found;
+	
+		int location = lookupView.getLocation();
+		int size = lookupView.getSize();
+		byte[] inlineData = (lookupView.isInline() ? lookupView.toFCB().getInlineData() : null);
+		boolean compressed = lookupView.toFCB().isCompressed();
+		boolean mapped = lookupView.isMapped();
+	
+		try (FileChannel out = FileChannel.open(Paths.get(hostPath), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
+		{
+			if (inlineData != null)                        //Data is held in the entry. No blocks to transfer.
+			{
+				ByteBuffer src = ByteBuffer.wrap(inlineData);
+				while (src.hasRemaining())
+					out.write(src);
+				return 0;
+			}
+		
+			if (compressed || mapped)                      //Blocks must be inflated or looked up, so data passes through the JVM.
+			{
+				byte[] buf = new byte[compressed ? COMPRESS_CHUNK : COPY_BLOCKS * PCB.getBlockSize()];
+				for (int pos = 0; pos < size; pos += buf.length)
+				{
+					int n = Math.min(buf.length, size - pos);
+					if ((compressed ? tfs_read_compressed(location, size, pos, buf, 0, n) 
+							        : tfs_read_mapped(location, size, pos, buf, 0, n)) < 0)
+						return -1;
+					ByteBuffer src = ByteBuffer.wrap(buf, 0, n);
+					while (src.hasRemaining())
+						out.write(src);
+				}
+				return 0;
+			}
+		
+			return tfs_transfer_chain(out, location, size, true);
+		} catch (FileAlreadyExistsException e)
+		{
+			return -3;
+		} catch (IOException e)
+		{
+			System.err.println("Exporting " + tfsPath + " failed: " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns a read-only view of the whole contents of a file, so that a lookup table stored 
+	 * in TFS can be read at random without a call or copy for each lookup.
+	 * 
+	 * If the blocks of the file are consecutive on disk, the view slices straight into a memory
+	 * mapping of the disk, see TFSDiskInputOutput.tfs_dio_map(). Otherwise (and for inline, 
+	 * compressed, sparse or block mapped files) the contents are read once into a new buffer which the view
+	 * wraps. Writes made to the file afterwards may or may not show through the view, so a 
+	 * file should be mapped again once it is written.
+	 * 
+	 * @param path The path from root to the file.
+	 * @return ByteBuffer The view, with position 0 and limit the size of the file, or null if 
+	 * the file cannot be found or read.
+	 */
+	public ByteBuffer tfs_map(String path)
+	{
+		tfs_begin();
+		try
+		{
+			return tfs_map_locked(path);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_map() once it holds its locks.
+	 */
+	private ByteBuffer tfs_map_locked(String path)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || path == null)
+			return null;
+	
+		String[] sPath = getValidPath(path);
+		if (sPath == null || tfs_lookup(sPath, sPath.length, false, lookupView) < 0)
+			return null;
+	
+		int location = lookupView.getLocation();
+		int size = lookupView.getSize();
+		FCB fileFCB = lookupView.toFCB();
+		if (fileFCB.isInline())                          //Data is held in the entry, which was just decoded.
+			return ByteBuffer.wrap(fileFCB.getInlineData(), 0, size).asReadOnlyBuffer();
+	
+		if (!fileFCB.isCompressed() && !fileFCB.isMapped() && tfs_is_contiguous(location, size))
+		{
+			ByteBuffer view = TFSDiskInputOutput.tfs_dio_map(location, size);
+			if (view != null)
+				return view;
+		}
+	
+		byte[] data = new byte[size];
+		int result = 0;
+		if (size > 0)
+			result = (fileFCB.isCompressed() ? tfs_read_compressed(location, size, 0, data, 0, size)
+					: fileFCB.isMapped() ? tfs_read_mapped(location, size, 0, data, 0, size)
+					                     : tfs_read_range(location, 0, data, 0, size));
+	
+		return (result < 0 ? null : ByteBuffer.wrap(data).asReadOnlyBuffer());
+	}
+	
+	/**
+	 * Stores the data of a file compressed, or stores a compressed file uncompressed again.
+	 * 
+	 * The data of a compressed file is split into chunks of COMPRESS_CHUNK bytes, which are
+	 * compressed one at a time with java.util.zip.Deflater and stored one after the other in 
+	 * the file's blocks. An index of where each chunk ends is stored after the last one, so a 
+	 * read only reads and inflates the chunks it covers. A chunk which does not get smaller is 
+	 * stored as it is. A write re-encodes the chunks from the first one it covers up to the end
+	 * of the file, so appending only re-encodes the last chunk. Blocks no longer needed are 
+	 * freed after each write.
+	 * 
+	 * Inline files have no blocks, so cannot be compressed. A file stored with a block map is
+	 * given a chain of its own by tfs_unmap() first, and does not share blocks afterwards.
+	 * 
+	 * @param path The path from root to the file.
+	 * @param compressed true to compress the file, false to store it uncompressed.
+	 * @return int 0 if success, -1 if a general error occurs or the file is inline, or -2 if 
+	 * the file does not exist.
+	 */
+	public int tfs_setCompressed(String path, boolean compressed)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 1);                         //Only the entry of the file is stored.
+			return tfs_setCompressed_locked(path, compressed);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_setCompressed() once it holds its locks.
+	 */
+	private int tfs_setCompressed_locked(String path, boolean compressed)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || path == null)
+			return -1;
+	
+		String[] dirs = getValidPath(path);
+		if (dirs == null)
+			return -1;
+	
+		int parentLoc = PCB.getRootDir();    //Find parent directory, starting with root.
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
+		{
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+				return -1;
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
+		}
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
+			return -2;
+	
+		FCB target = lookupView.toFCB();
+		int fd = -1;
+		if (!(fd_Table.isEmpty()))
+			fd = fd_Table.getFD(parentLoc, slot);
+		if (fd >= 0)                         //If file is open, its entry in the FDT is changed as well.
+			target = fd_Table.getFCB(fd);
+	
+		if (target.isInline())
+			return -1;
+		if (target.isCompressed() == compressed)
+			return 0;
+		if (target.isMapped() && tfs_unmap(target) < 0)      //Blocks are rewritten in place, so the file needs a chain of its own.
+			return -1;
+	
+		//Read all of the data, then store it again in the new way in the same chain.
+		int size = target.getSize();
+		int location = target.getLocation();
+		byte[] data = new byte[size];
+		if (size > 0 && (target.isCompressed() ? tfs_read_compressed(location, size, 0, data, 0, size) 
+				                               : tfs_read_range(location, 0, data, 0, size)) < 0)
+			return -1;
+	
+		try
+		{
+			if (compressed)
+			{
+				ByteBuffer header = ByteBuffer.allocate(COMPRESS_HEADER);   //Header of an empty compressed file.
+				header.putInt(0, COMPRESS_HEADER);
+				header.putInt(4, COMPRESS_CHUNK);
+				if (tfs_write_range(location, 0, header.array(), 0, COMPRESS_HEADER) < 0
+						|| tfs_write_compressed(location, 0, 0, ByteBuffer.wrap(data)) < 0)
+					return -1;
+			}
+			else if ((size > 0 && tfs_write_range(location, 0, data, 0, size) < 0)
+					|| tfs_trim_chain(location, tfs_calcBlocksNeeded(size)) < 0)
+				return -1;
+		} catch (RuntimeException e)
+		{
+			System.err.println("Storing " + path + " failed: " + e.getMessage());
+			return -1;
+		}
+	
+		target.setFileOrDir(compressed ? FCB.COMPRESSED_FILE : (byte) 0);
+		if (fd >= 0)                         //Blocks were rewritten, so recorded blocks are not valid.
+		{
+			fd_Table.updatePos(fd, 0, location);
+			fd_Table.updateTail(fd, -1, 0);
+			fd_Table.updateShared(fd);
+		}
+	
+		return tfs_store_entry(parentLoc, slot, target);
+	}
+	
+	/**
+	 * Changes the size of a file to newSize. A file made shorter keeps its first newSize bytes. 
+	 * Its chain of blocks is walked only up to the new last block, where it is cut, and the blocks
+	 * after it are freed together, with one write of the FAT. Nothing is rewritten, so the cost
+	 * depends on the blocks kept rather than on the size of the file. A file made longer is 
+	 * extended by a hole, see FileAccessTable, so no blocks are written for the new bytes, 
+	 * which read as 0.
+	 * 
+	 * An inline file keeps its data in its entry while newSize fits in its data slots, and is
+	 * moved to blocks otherwise. A compressed file has only its new last chunk compressed again.
+	 * A file stored with a block map has entries added as holes, or has the blocks after its new
+	 * end released, see tfs_truncate_mapped().
+	 * 
+	 * If the file is open, its entry in the FDT is changed as well. Its offset is not moved.
+	 * 
+	 * @param path The path from root to the file.
+	 * @param newSize The new size of the file in bytes.
+	 * @return int 0 if success, -1 if a general error occurs, or -2 if the file cannot be found.
+	 */
+	public int tfs_truncate(String path, int newSize)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 1);                         //Only the entry of the file is stored.
+			return tfs_truncate_locked(path, newSize);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_truncate() once it holds its locks.
+	 */
+	private int tfs_truncate_locked(String path, int newSize)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || path == null || newSize < 0)
+			return -1;
+	
+		String[] dirs = getValidPath(path);
+		if (dirs == null)
+			return -1;
+	
+		int parentLoc = PCB.getRootDir();    //Find parent directory, starting with root.
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
+		{
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+				return -1;
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
+		}
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
+			return -2;
+	
+		FCB target = lookupView.toFCB();
+		int fd = -1;
+		if (!(fd_Table.isEmpty()))
+			fd = fd_Table.getFD(parentLoc, slot);
+	
+		boolean opened = (fd < 0);           //File is opened for the change, so it can be moved out of its entry.
+		if (opened && (fd = tfs_open_getFD(target, parentLoc, slot)) < 0)
+			return -1;
+	
+		int result = tfs_truncate_FDT(fd, newSize);
+		if (result == 0)
+		{
+			fd_Table.updateShared(fd);
+			result = tfs_store_entry(parentLoc, slot, fd_Table.getFCB(fd));
+		}
+		if (opened)
+			tfs_close_updateFDT(fd);
+	
+		return result;
+	}
+	
+	/**
+	 * Version of tfs_truncate(String, int) for a file opened by tfs_open() with MODE_WRITE.
+	 * The entry of the file is stored to the slot recorded in the FDT.
+	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @param newSize The new size of the file in bytes.
+	 * @return int 0 if success, or -1 if an error occurs.
+	 */
+	public int tfs_truncate(int fd, int newSize)
+	{
+		tfs_begin();
+		try
+		{
+			if (!tfs_check_fd(fd, MODE_WRITE) || newSize < 0)
+				return -1;
+			tfs_lock_fd(fd, true);
+		
+			if (tfs_truncate_FDT(fd, newSize) < 0)
+				return -1;
+		
+			fd_Table.updateShared(fd);                   //Other entries of the file may be past its new end.
+			return (tfs_store_entry_FDT(fd) < 0 ? -1 : 0);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Removes the directory down the given path along with everything stored in it.
+	 * The subtree is walked once, reading each directory a single time, and sibling
+	 * subtrees are read in parallel on the common ForkJoinPool. The blocks of all removed
+	 * entries are then freed in one pass over the FAT, which is written to disk once when
+	 * the target is removed from its parent.
+	 * 
+	 * Like tfs_rmdir(), the parent of the target and its own parent are locked for writing,
+	 * so no call can go down the path into the subtree while it is removed. Files open in the
+	 * subtree are only guarded by the lock of their own directory, so each such directory is
+	 * locked for writing as well before its files are closed.
+	 * 
+	 * @param path The path from root to the target directory.
+	 * @return int 0 if success, or -1 if path is invalid or other error occurs.
+	 */
+	public int tfs_rm_recursive(String path)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_path(path, 2);
+			return tfs_rmdir(path, true);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Copies the directory down the source path, along with everything stored in it, to a new
+	 * directory down the destination path. If the source is a file, it is copied by tfs_cp().
+	 * 
+	 * The source tree is walked once, and sibling subtrees are copied in parallel on the common
+	 * ForkJoinPool. Blocks for the copies are taken straight from the FAT by tfs_alloc_chain(),
+	 * and each block is written once with the data copied into it. The new tree is only linked
+	 * into the destination's parent after it has been written completely, and the FAT is written
+	 * to disk once at that point. If the copy fails, all blocks taken for it are freed again.
+	 * 
+	 * @param sourcePath The path from root to the directory to copy.
+	 * @param destinationPath The path from root to the new directory.
+	 * @return 0 if success, -1 if a general error occurs, -2 if the source
+	 * cannot be found, -3 if the destination already exists, and -4 if the
+	 * destination is the source directory or lies inside it.
+	 */
+	public int tfs_cp_recursive(String sourcePath, String destinationPath)
+	{
+		tfs_begin();
+		try
+		{
+			tfs_lock_copy(sourcePath, destinationPath, true);
+			return tfs_cp_recursive_locked(sourcePath, destinationPath);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_cp_recursive() once it holds its locks.
+	 */
+	private int tfs_cp_recursive_locked(String sourcePath, String destinationPath)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted)
+			return -1;
+	
+		String[] sPath = getValidPath(sourcePath);
+		String[] dPath = getValidPath(destinationPath);
+		if (sPath == null || dPath == null)
+		{
+			System.err.println("Invalid source or destination path.\n");
+			return -1;
+		}
+		if (tfs_is_within(dPath, sPath))                   //A tree cannot be copied into itself.
+			return -4;
+	
+		int found = tfs_lookup(sPath, sPath.length, true, lookupView);
+		if (found == -2)                                   //Source is not a directory, so copy it as a file.
+			return tfs_cp_locked(sourcePath, destinationPath);
+		if (found == -1)
+			return -2;
+	
+		FCB sourceFCB = lookupView.toFCB();                //FCB of the source directory.
+	
+		found = tfs_lookup(dPath, dPath.length, true, lookupView);
+		if (found >= 0)                                    //Destination already exists.
+			return -3;
+		if (found == -1)                                   //Destination's parent does not exist.
+			return -1;
+	
+		Allocation alloc = new Allocation(PCB.getRootDir() + 1);
+		int result = -1;
+	
+		try
+		{
+			Queue<Integer> maps = new ConcurrentLinkedQueue<Integer>();
+			CopyTreeTask copy = new CopyTreeTask(sourceFCB.getLocation(), sourceFCB.getSize(), maps, alloc, false);
+			ForkJoinPool.commonPool().invoke(copy);
+		
+			result = tfs_mkdir(destinationPath, copy.location, copy.copiedSize);   //Link the copy into its parent.
+			while (result >= 0 && !maps.isEmpty())                 //Copied maps refer to the same blocks.
+			{
+				for (int block : tfs_read_map(maps.remove()))
+				{
+					if (block > 0)
+						tfs_add_ref(block);
+				}
+			}
+		} catch (RuntimeException e)
+		{
+			System.err.println("Copying " + sourcePath + " failed: " + e.getMessage());
+		}
+	
+		if (result < 0)                                    //Free all blocks taken for the copy.
+		{
+			for (int head : alloc.chains)
+				tfs_free_chain(head);
+			tfs_sync();
+		}
+	
+		return result;
+	}
+	
+	/**
+	 * Exit the file system by calling unmount to store PCB and FAT in disk, and then
+	 * closing the file session by calling TFSDiskInputOutput.tfs_dio_close().
+	 * 
+	 * @return 0 if exit is successful, -1 if it fails.
+	 */
+	public int tfs_exit()
+	{	
+		mountLock.writeLock().lock();
+		try
+		{
+			if (isMounted)                                  //Unmount if mounted.
+				tfs_unmount();
+			return TFSDiskInputOutput.tfs_dio_close();		//Close session.
+		} finally
+		{
+			mountLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Simple method to check if file system is mounted or not
+	 * 
+	 * @return boolean true if mounted, false otherwise
+	 */
+	public boolean tfs_isMounted()
+	{
+		return (isMounted ? true : false);
+	}
+	
+	/**
+	 * Sets the largest size of a file which is created with its data inline, in data slots
+	 * following its entry in the parent directory. Each inline file reserves enough data slots
+	 * for limit bytes when created, so that it can grow up to limit bytes in place. A write 
+	 * past that moves the file to blocks. Files already stored are not changed, and inline files
+	 * are read and written the same way whatever the limit is. The limit is not stored on disk.
+	 * 
+	 * @param limit Largest size in bytes of an inline file, up to MAX_INLINE, or 0 to create
+	 * every file in blocks.
+	 * @return int 0 if success, or -1 if limit is invalid.
+	 */
+	public int tfs_setInlineLimit(int limit)
+	{
+		tfs_begin();
+		try
+		{
+			if (limit < 0 || limit > MAX_INLINE)
+				return -1;
+		
+			inlineLimit = limit;
+			return 0;
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Turns the dedup layer on or off. As a block in the FAT is followed by one block only, 
+	 * a chain cannot share a block with another chain except at its end. So while the layer
+	 * is on, files are stored with a block map instead: a chain holding the block of each block
+	 * of the file in turn, or 0 for a hole. Their entries are marked MAPPED_FILE. New files are
+	 * created with a map, and a file held in a chain is given one by tfs_map_file() when it is
+	 * first written or copied.
+	 * 
+	 * Every block written to a mapped file goes through tfs_write_blocks(), which hashes it
+	 * first and looks the hash up in an index from the hash of each block's bytes to the block.
+	 * If a block holds the same bytes, the file refers to that block instead, and nothing is 
+	 * written or taken. So any block of any file can be shared, wherever it is in the file.
+	 * tfs_cp() copies a mapped file by copying its map only.
+	 * 
+	 * Beside the FAT, the number of references to each block referred to by more than one map
+	 * entry is kept in memory. Blocks are only freed by tfs_clear_blocks() once nothing refers
+	 * to them, and a shared block is written to a new block rather than in place, so writes 
+	 * never change blocks another file refers to. Neither the counts nor the index are stored 
+	 * on disk. They are rebuilt from the maps of the entries marked MAPPED_FILE when the file
+	 * system is mounted, or for the index when the layer is turned on, so the counts are
+	 * correct even while the layer is off. Turning the layer on or off waits for every other
+	 * call to return, as mounting does.
+	 * Mapped files stay mapped once the layer is turned off, but blocks they write are no 
+	 * longer hashed.
+	 * 
+	 * @param on true to share blocks holding the same bytes, false to stop sharing new blocks.
+	 * @return int 0 if success, or -1 if the file system is not mounted or its shared blocks 
+	 * could not be counted or read.
+	 */
+	public int tfs_setDedup(boolean on)
+	{
+		mountLock.writeLock().lock();
+		try
+		{
+			if (!isMounted || (on && tfs_load_index() < 0))
+				return -1;
+		
+			dedup = on;
+			if (!on)                             //No new blocks are shared, but shared blocks are still counted.
+			{
+				blockIndex = null;
+				blockKeys = null;
+			}
+		
+			return 0;
+		} finally
+		{
+			mountLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes of blocks saved by map entries which refer to blocks held
+	 * by another entry, instead of holding a copy of them. The map of each file marked 
+	 * MAPPED_FILE is read, and every block referred to more than once is counted once for 
+	 * each entry after the first. Only reads, so the files are found by tfs_find() and each
+	 * map is read while the directory holding the file is locked for reading.
+	 * 
+	 * @return long Bytes saved, or -1 if the file system is not mounted or its entries could 
+	 * not be read.
+	 */
+	public long tfs_dedupSaved()
+	{
+		tfs_begin();
+		try
+		{
+			if (!isMounted)
+				return -1;
+		
+			long[] blocks = new long[1];         //Blocks of every mapped file, counting shared blocks for each.
+			Set<Integer> seen = new HashSet<Integer>();
+			int found = tfs_find("/", v -> v.isMapped(), (p, f) ->
+			{
+				int[] entries = tfs_read_map(f.getLocation());
+				for (int i = 0; entries != null && i < entries.length; i++)
+				{
+					if (entries[i] > 0)
+					{
+						blocks[0]++;
+						seen.add(entries[i]);
+					}
+				}
+			});
+			if (found < 0)
+				return -1;
+		
+			return (blocks[0] - seen.size()) * PCB.getBlockSize();
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+
+	
+	
+	
+	
+	
+	
+	
+	/****************************************************************************
+	 * 
+	 * Private methods for handling the many different supporting functions 
+	 * needed by the methods in the public TFSFileSystem API. 
+	 * 
+	 ****************************************************************************
+	 */
+		
+	/**
+	 * Reads length bytes into buf from the file associated with the file descriptor fd.
+	 * Returns the number of bytes read. Read starts at current file offset in FDT.
+	 * Only the required number of blocks are read so that the number of disk
+	 * reads is minimized. Other file blocks are not read.
+	 * 
+	 * @param fd The file descriptor for file from which to read from disk.
+	 * @param buf Buffer in memory to read into.
+	 * @param length The number of bytes to read from disk.
+	 * 
+	 * @throws IllegalArgumentExcpeption if fd is invalid
+	 * @return int bytes read, or -1 if an error occurs in read operation
+	 */
+	private int tfs_read_bytes_FDT(int fd, byte[] buf, int length)
+	{
+		return tfs_read_bytes_FDT(fd, buf, 0, length);
+	}
+	
+	/**
+	 * Overloaded version of tfs_read_bytes_FDT(int fd, byte[] buf, int length) which
+	 * reads into buf starting at bufOffset. At most the bytes up to EOF are read.
+	 * 
+	 * The read begins at the block recorded in the FDT by the previous read or write, if 
+	 * it is not past the block holding the offset, and records the last block it reads.
+	 * So reading a file in order walks each link of the FAT only once.
+	 * 
+	 * @param fd The file descriptor for file from which to read from disk.
+	 * @param buf Buffer in memory to read into.
+	 * @param bufOffset Position in buf of the first byte read.
+	 * @param length The number of bytes to read from disk.
+	 * @return int bytes read, or -1 if an error occurs in read operation
+	 */
+	private int tfs_read_bytes_FDT(int fd, byte[] buf, int bufOffset, int length)
+	{
+		if (length <= 0)                      //If length is invalid.
+		{
+			System.err.println("Invalid value for length. Read failed");
+			return -1;
+		}
+		if (buf.length - bufOffset < length)  //If capacity of buf is < length, return -1
+		{
+			System.err.println("Not enough space in buffer. Cannot read from file.");
+			return -1;
+		}
+		
+		int offset = fd_Table.getOffset(fd); //Get current offset.            
+		if (offset < 0)                     //Make sure file is open.
+		{
+			System.err.println("File not open. Cannot read from file.\n");
+			return -1;                
+		}
+		
+		length = Math.min(length, fd_Table.getFCB(fd).getSize() - offset);   //Stop at EOF.
+		if (length <= 0)
+			return 0;
+		
+		FCB fileFCB = fd_Table.getFCB(fd);
+		if (fileFCB.isInline())                       //Data is held in the entry. No blocks are read.
+		{
+			System.arraycopy(fileFCB.getInlineData(), offset, buf, bufOffset, length);
+			return length;
+		}
+		
+		if (fileFCB.isCompressed())                   //Only the chunks covered are read and inflated.
+			return (tfs_read_compressed(fileFCB.getLocation(), fileFCB.getSize(), offset, buf, bufOffset, length) < 0 ? -1 : length);
+		
+		if (fileFCB.isMapped())                       //Only the entries of the map covered are read.
+			return (tfs_read_mapped(fileFCB.getLocation(), fileFCB.getSize(), offset, buf, bufOffset, length) < 0 ? -1 : length);
+		
+		int blSize = PCB.getBlockSize();
+		int startIndex = fd_Table.getPosIndex(fd);        //Start at the block last used, if it is not past offset.
+		int startBlock = fd_Table.getPosBlock(fd);
+		if (startIndex > offset / blSize)
+		{
+			startIndex = 0;
+			startBlock = fd_Table.getEntryLocation(fd);
+		}
+		
+		int last = tfs_read_range(startBlock, offset - (startIndex * blSize), buf, bufOffset, length);
+		if (last < 0)
+		{
+			System.err.println("Disk read failed.\n");
+			return -1;
+		}
+		
+		if (PCB.getFAT()[last] != FileAccessTable.HOLE)       //Index of last is not known if the read ended in a hole.
+			fd_Table.updatePos(fd, (offset + length - 1) / blSize, last);
+		return length;                      //Return number of bytes read.            
+	}
+	
+	/**
+	 * Finds the file at the end of path and streams number bytes of it from position to
+	 * channel, or decoded to text if channel is null, with tfs_print_FDT(). The file is opened
+	 * for the read and closed again afterwards, even if it is already open, so that reads from
+	 * several threads do not share an offset.
+	 * 
+	 * @return int 0 if success, -1 if a general error occurs, -2 if the file cannot be found,
+	 * and -3 if position or number run past the end of the file.
+	 */
+	private int tfs_print_stream(String path, int position, int number, WritableByteChannel channel, Appendable text)
+	{
+		tfs_begin();
+		try
+		{
+			return tfs_print_stream_locked(path, position, number, channel, text);
+		} finally
+		{
+			tfs_end();
+		}
+	}
+	
+	/**
+	 * Does the work of tfs_print_stream() once it holds its locks.
+	 */
+	private int tfs_print_stream_locked(String path, int position, int number, WritableByteChannel channel, Appendable text)
+	{
+		FCBView lookupView = lookupViews.get();
+		if (!isMounted || path == null)
+			return -1;
+	
+		String[] dirs = getValidPath(path);
+		if (dirs == null)
+			return -1;
+	
+		int parentLoc = PCB.getRootDir();    //Find parent directory, starting with root.
+		tfs_lock_dir(parentLoc, false);
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
+		{
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+				return -2;
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
+		}
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
+			return -2;
+	
+		FCB targetFCB = lookupView.toFCB();
+		if (position < 0 || number < 0 || position > targetFCB.getSize() - number)
+			return -3;
+	
+		int fd = tfs_open_getFD(targetFCB, parentLoc, slot);
+		if (fd < 0)
+			return -1;
+	
+		int result = tfs_print_FDT(fd, position, number, channel, text);
+		tfs_close_updateFDT(fd);
+	
+		return result;
+	}
+	
+	/**
+	 * Reads number bytes of the file open as fd, from position, and passes them on as they are
+	 * read, so only one buffer of COPY_BLOCKS blocks is held at a time. The bytes are written 
+	 * to channel, or if channel is null, are decoded by the calling thread's decoder from 
+	 * printDecoders and appended to text. A character split between two buffers is carried 
+	 * over to the next one. The offset of fd is restored afterwards, in case fd is held by 
+	 * tfs_open().
+	 * 
+	 * @param fd The file descriptor of the file.
+	 * @param position File offset of the first byte.
+	 * @param number The number of bytes to pass on. Must not run past the end of the file.
+	 * @param channel The channel to write the bytes to, or null.
+	 * @param text The characters are appended to text if channel is null.
+	 * @return int 0 if success, or -1 if a read, write or append fails.
+	 */
+	private int tfs_print_FDT(int fd, int position, int number, WritableByteChannel channel, Appendable text)
+	{
+		int savedOffset = fd_Table.getOffset(fd);
+		byte[] chunk = new byte[Math.min(number, COPY_BLOCKS * PCB.getBlockSize())];
+		ByteBuffer bytes = ByteBuffer.wrap(chunk);
+		CharBuffer chars = null;
+		CharsetDecoder printDecoder = printDecoders.get();
+		if (channel == null)
+		{
+			printDecoder.reset();
+			chars = CharBuffer.allocate((int) (chunk.length * printDecoder.maxCharsPerByte()) + 1);
+		}
+		
+		int result = 0;
+		try
+		{
+			for (int done = 0; done < number; )
+			{
+				int n = Math.min(bytes.remaining(), number - done);
+				tfs_seek_updateFDT(fd, position + done);
+				if (tfs_read_bytes_FDT(fd, chunk, bytes.position(), n) != n)
+				{
+					result = -1;
+					break;
+				}
+				
+				done += n;
+				bytes.limit(bytes.position() + n);
+				bytes.position(0);
+				if (channel != null)
+				{
+					while (bytes.hasRemaining())
+						channel.write(bytes);
+				}
+				else
+				{
+					CoderResult cr;
+					do
+					{
+						cr = printDecoder.decode(bytes, chars, done == number);
+						tfs_append_chars(chars, text);
+					} while (cr.isOverflow());
+				}
+				
+				bytes.compact();                      //Keeps the start of a split character.
+			}
+			
+			if (channel == null && result == 0 && number > 0)   //Decoder is only flushed after the last decode.
+			{
+				printDecoder.flush(chars);
+				tfs_append_chars(chars, text);
+			}
+		} catch (IOException e)
+		{
+			result = -1;
+		}
+		
+		tfs_seek_updateFDT(fd, savedOffset);
+		return result;
+	}
+	
+	/**
+	 * Appends the characters decoded into chars to text, and clears chars for the next decode.
+	 * 
+	 * @throws IOException if text cannot be appended to.
+	 */
+	private void tfs_append_chars(CharBuffer chars, Appendable text) throws IOException
+	{
+		chars.flip();
+		text.append(chars);
+		chars.clear();
+	}
+	
+	/**
+	 * Writes length bytes to the location associated with the FDT entry for fd.
+	 * Write starts at the current offset for the specific file, also held in
+	 * FDT entry.
+	 * 
+	 * Only the blocks overlapped by the bytes written are touched, using 
+	 * tfs_write_range(). No other blocks are read or written, so the cost of a 
+	 * write depends on length, not on the size of the file.
+	 * 
+	 * Returns the number of bytes written.
+	 * 
+	 * @param fd The file descriptor for file to write to disk
+	 * @param buf Memory location from which to write to disk.
+	 * @param length Number of bytes to write to disk.
+	 * @return int The number of bytes written or -1 if an error occurs.
+	 * 
+	 */
+	private int tfs_write_bytes_FDT(int fd, byte[] buf, int length)
+	{
+		return tfs_write_bytes_FDT(fd, buf, 0, length);
+	}
+	
+	/**
+	 * Overloaded version of tfs_write_bytes_FDT(int fd, byte[] buf, int length) which
+	 * writes from buf starting at bufOffset. Like tfs_read_bytes_FDT(), the write begins at
+	 * the block recorded in the FDT by the previous read or write if it is not past the block
+	 * holding the offset, and records the last block it writes.
+	 * 
+	 * @param fd The file descriptor for file to write to disk
+	 * @param buf Memory location from which to write to disk.
+	 * @param bufOffset Position in buf of the first byte to write.
+	 * @param length Number of bytes to write to disk.
+	 * @return int The number of bytes written or -1 if an error occurs.
+	 */
+	private int tfs_write_bytes_FDT(int fd, byte[] buf, int bufOffset, int length)
+	{
+		if (length < 0)              //If length is invalid.
+		{
+			System.err.println("Invalid value for number of bytes to write");
+			return - 1;
+		}
+		
+		//If size of buf is smaller than length, meaning length bytes CANNOT be written
+		if (buf.length - bufOffset < length)
+		{
+			System.err.println("Cannot write. Buffer has < length bytes to write.");
+			return -1;
+		}
+		
+		return tfs_write_bytes_FDT(fd, ByteBuffer.wrap(buf, bufOffset, length));
+	}
+	
+	/**
+	 * Overloaded version of tfs_write_bytes_FDT() which writes the remaining bytes of src, 
+	 * moving its position past them.
+	 * 
+	 * @param fd The file descriptor for file to write to disk
+	 * @param src Buffer holding the bytes to write, from its position up to its limit.
+	 * @return int The number of bytes written or -1 if an error occurs.
+	 */
+	private int tfs_write_bytes_FDT(int fd, ByteBuffer src)
+	{
+		int length = src.remaining();
+		int location = 0;               //Disk location of file (starting block).
+		int offset = 0;                 //Offset at which to begin write.
+		try
+		{                               //Attempt to get location and offset.
+			location = fd_Table.getEntryLocation(fd);
+			offset = fd_Table.getOffset(fd);
+			
+		}catch (IllegalArgumentException e)
+		{
+			System.err.println("Error. Cannot write to disk. File not open.");
+			return -1;                          //Return -1 if entry for fd not in table.
+		}
+		
+		if (length == 0)
+			return 0;
+		
+		FCB fileFCB = fd_Table.getFCB(fd);
+		if (fileFCB.isInline())                        //Data is held in the entry, unless it no longer fits.
+		{
+			if (tfs_write_inline(fileFCB, offset, src))
+				return length;
+			if (tfs_spill_inline(fd) < 0)
+				return -1;
+			location = fileFCB.getLocation();
+		}
+		
+		if (dedup && !fileFCB.isMapped() && !fileFCB.isCompressed() && (location = tfs_map_FDT(fd)) < 0)   //Blocks written are hashed.
+			return -1;
+		
+		if (fileFCB.isMapped())                        //Each block written may be shared.
+		{
+			try
+			{
+				return (tfs_write_mapped(location, fileFCB.getSize(), offset, src) < 0 ? -1 : length);
+			}catch (RuntimeException ex)
+			 {
+				ex.printStackTrace();
+				return -1;
+			 }
+		}
+		
+		if (fileFCB.isCompressed())                    //Size is stored by the caller, as for other files.
+		{
+			try
+			{
+				return (tfs_write_compressed(location, fileFCB.getSize(), offset, src) < 0 ? -1 : length);
+			}catch (RuntimeException ex)
+			 {
+				ex.printStackTrace();
+				return -1;
+			 }
+		}
+		
+		if (offset + length > fd_Table.getFCB(fd).getSize())      //Write runs past EOF, so recorded tail will change.
+			fd_Table.updateTail(fd, -1, 0);
+		
+		int blSize = PCB.getBlockSize();
+		int startIndex = fd_Table.getPosIndex(fd);        //Start at the block last used, if it is not past offset.
+		int startBlock = fd_Table.getPosBlock(fd);
+		if (startIndex > offset / blSize)
+		{
+			startIndex = 0;
+			startBlock = location;
+		}
+		
+		try
+		{			
+			int last = tfs_write_range(startBlock, offset - (startIndex * blSize), src);
+			if (last == -2)                                //Write starts in a hole. Only its blocks are taken, with a block map.
+				return ((location = tfs_map_FDT(fd)) < 0 || tfs_write_mapped(location, fileFCB.getSize(), offset, src) < 0 ? -1 : length);
+			if (last < 0)
+				return -1;
+			
+			fd_Table.updatePos(fd, (offset + length - 1) / blSize, last);
+								
+		}catch (RuntimeException ex)            //If an exception occurs during write, print the stack trace and return -1.
+		 {
+			ex.printStackTrace();
+			return -1;
+		 }
+		
+		return length;                         //Otherwise return length to indicate success.
+		
+	}
+	
+	/**
+	 * Writes length bytes from buf, starting at bufOffset, into the file whose first block 
+	 * is location, starting at the file offset given. Only the blocks that the byte range 
+	 * overlaps are written. The first and last blocks are read, patched and written back 
+	 * if the range covers them only partly. Blocks covered fully are written directly from buf,
+	 * with one disk write for each run of consecutive blocks.
+	 * 
+	 * If the range runs past the last block of the file, free blocks are linked onto the end
+	 * of the chain and the FAT is synced. New blocks are filled with 0 where the range does 
+	 * not cover them. If the chain ended in a hole, the new last block is marked HOLE as well,
+	 * since the file may still continue in the hole. A chain can only end in one hole, so a
+	 * range which begins more than one block past the end of such a chain would need every 
+	 * block between to be taken and written as 0. Nothing is changed in that case, and -2 is
+	 * returned, so the caller can store the file with a block map instead, see tfs_map_FDT().
+	 * 
+	 * location may also be any later block of the file, with offset relative to that block.
+	 * 
+	 * @param location The first block of the file.
+	 * @param offset File offset at which to begin the write.
+	 * @param buf Buffer holding the bytes to write.
+	 * @param bufOffset Position in buf of the first byte to write.
+	 * @param length Number of bytes to write.
+	 * @return int The block holding the last byte written, -1 if a read or write fails, or -2 
+	 * if the range begins in the hole past the block after the end of the chain.
+	 * @throws RuntimeException If enough free blocks could not be found.
+	 */
+	private int tfs_write_range(int location, int offset, byte[] buf, int bufOffset, int length)
+	{
+		return tfs_write_range(location, offset, ByteBuffer.wrap(buf, bufOffset, length));
+	}
+	
+	/**
+	 * Overloaded version of tfs_write_range() which writes the remaining bytes of src, moving
+	 * its position past them. Runs of full blocks are written to disk straight from src, so
+	 * the bytes of a direct buffer are not copied into an array first.
+	 * 
+	 * @param location The first block of the file.
+	 * @param offset File offset at which to begin the write.
+	 * @param src Buffer holding the bytes to write, from its position up to its limit.
+	 * @return int The block holding the last byte written, -1 if a read or write fails, or -2
+	 * if the range begins in the hole past the block after the end of the chain.
+	 * @throws RuntimeException If enough free blocks could not be found.
+	 */
+	private int tfs_write_range(int location, int offset, ByteBuffer src)
+	{
+		int length = src.remaining();
+		int blSize = PCB.getBlockSize();
+		int blockIndex = offset / blSize;                 //The nth block of the file where offset is.
+		int lastIndex = (offset + length - 1) / blSize;   //The nth block of the file holding the last byte.
+		
+		//Walk the FAT to the block holding offset, or to the last block if the chain ends first.
+		int curBlock = location;
+		int curIndex = 0;
+		while (curIndex < blockIndex && PCB.getFAT()[curBlock] > 0)
+		{
+			curBlock = PCB.getFAT()[curBlock];
+			curIndex++;
+		}
+		
+		if (curIndex + 1 < blockIndex && PCB.getFAT()[curBlock] == FileAccessTable.HOLE)   //Blocks between would be in the hole.
+			return -2;
+		
+		//Count the blocks of the chain up to lastIndex, and link free blocks onto its end for any missing.
+		int have = curIndex + 1;                          //Blocks in chain up to and including endBlock.
+		int endBlock = curBlock;
+		while (have <= lastIndex && PCB.getFAT()[endBlock] > 0)
+		{
+			endBlock = PCB.getFAT()[endBlock];
+			have++;
+		}
+		
+		boolean linked = (have <= lastIndex);
+		if (linked)
+		{
+			int endMark = PCB.getFAT()[endBlock];             //-1, or HOLE if the file may continue in a hole.
+			allocLock.lock();
+			try
+			{
+				Queue<Integer> freeQ = tfs_getFreeBlocks(lastIndex + 1 - have, endBlock + 1);   //Search from just after the file's blocks.
+				while (!freeQ.isEmpty())
+				{
+					int next = freeQ.remove();
+					PCB.updateFAT(endBlock, next);
+					PCB.updateFAT(next, endMark);
+					endBlock = next;
+				}
+			} finally
+			{
+				allocLock.unlock();
+			}
+		}
+		
+		byte[] tmpBytes = null;                           //Temporary buffer for partial blocks.
+		
+		//Fill any new blocks before the one holding offset with 0.
+		while (curIndex < blockIndex)
+		{
+			curBlock = PCB.getFAT()[curBlock];
+			curIndex++;
+			if (curIndex < blockIndex && TFSDiskInputOutput.tfs_dio_writeBlock(curBlock, new byte[blSize]) < 0)
+				return -1;
+		}
+		
+		int inner = offset - (blockIndex * blSize);       //Position in the first block where write begins.
+		int written = 0;
+		
+		while (true)
+		{
+			int count = Math.min(blSize - inner, length - written);   //Bytes of this block being written.
+			
+			if (count == blSize)                          //Full block. Write it and any following consecutive full blocks directly from buf.
+			{
+				int run = 1;
+				while (length - written >= (run + 1) * blSize && PCB.getFAT()[curBlock + run - 1] == curBlock + run)
+					run++;
+				
+				if (TFSDiskInputOutput.tfs_dio_writeBlocks(curBlock, run, src) < 0)
+					return -1;
+				
+				count = run * blSize;
+				curBlock += run - 1;
+				curIndex += run - 1;
+			}
+			else                                          //Partial block. Read it, patch it, write it back.
+			{
+				if (tmpBytes == null)
+					tmpBytes = new byte[blSize];
+				
+				if (curIndex >= have)                     //New block holds nothing yet.
+					Arrays.fill(tmpBytes, (byte) 0);
+				else if (TFSDiskInputOutput.tfs_dio_readBlock(curBlock, tmpBytes) < 0)
+					return -1;
+				
+				src.get(tmpBytes, inner, count);
+				if (TFSDiskInputOutput.tfs_dio_writeBlock(curBlock, tmpBytes) < 0)
+					return -1;
+			}
+			
+			written += count;
+			inner = 0;
+			if (written >= length)
+				break;
+			
+			curBlock = PCB.getFAT()[curBlock];
+			curIndex++;
+		}
+		
+		if (linked)                                       //Store the FAT if blocks were added.
+			tfs_sync();
+		
+		return curBlock;
+	}
+	
+	/**
+	 * Reads length bytes into buf, starting at bufOffset, from the file whose first block is
+	 * location, starting at the file offset given. Only the blocks that the byte range overlaps
+	 * are read. Blocks covered fully are read directly into buf, with one disk read for each run
+	 * of consecutive blocks, while the first and last blocks are read through a temporary buffer
+	 * if the range covers them only partly. Like 
+	 * tfs_write_range(), location may be any block of the file, with offset relative to it.
+	 * If the chain ends in a hole, the part of the range in the hole is filled with 0 without
+	 * reading the disk.
+	 * 
+	 * @param location The first block of the file.
+	 * @param offset File offset at which to begin the read.
+	 * @param buf Buffer to read into.
+	 * @param bufOffset Position in buf of the first byte read.
+	 * @param length Number of bytes to read.
+	 * @return int The block holding the last byte read, or the last block of the chain if that 
+	 * byte is in a hole, or -1 if a read fails or the chain ends first without a hole.
+	 */
+	private int tfs_read_range(int location, int offset, byte[] buf, int bufOffset, int length)
+	{
+		int blSize = PCB.getBlockSize();
+		int curBlock = location;
+		int prevBlock = -1;                               //Block before curBlock in the chain.
+		for (int i = 0; i < offset / blSize && curBlock > 0; i++)   //Find block holding offset.
+		{
+			prevBlock = curBlock;
+			curBlock = PCB.getFAT()[curBlock];
+		}
+		
+		byte[] tmpBytes = null;                           //Temporary buffer for partial blocks.
+		int inner = offset % blSize;                      //Position in the first block where read begins.
+		int bytesRead = 0;
+		
+		while (bytesRead < length)
+		{
+			if (curBlock <= 0)
+			{
+				if (prevBlock < 0 || curBlock != FileAccessTable.HOLE)
+					return -1;
+				
+				Arrays.fill(buf, bufOffset + bytesRead, bufOffset + length, (byte) 0);   //Rest of range is in the hole.
+				return prevBlock;
+			}
+			
+			int count = Math.min(blSize - inner, length - bytesRead);   //Bytes of this block being read.
+			if (count == blSize)                          //Full block. Read it and any following consecutive full blocks directly into buf.
+			{
+				int run = 1;
+				while (length - bytesRead >= (run + 1) * blSize && PCB.getFAT()[curBlock + run - 1] == curBlock + run)
+					run++;
+				
+				if (TFSDiskInputOutput.tfs_dio_readBlocks(curBlock, run, buf, bufOffset + bytesRead) < 0)
+					return -1;
+				
+				count = run * blSize;
+				curBlock += run - 1;
+			}
+			else
+			{
+				if (tmpBytes == null)
+					tmpBytes = new byte[blSize];
+				if (TFSDiskInputOutput.tfs_dio_readBlock(curBlock, tmpBytes) < 0)
+					return -1;
+				System.arraycopy(tmpBytes, inner, buf, bufOffset + bytesRead, count);
+			}
+			
+			bytesRead += count;
+			inner = 0;
+			if (bytesRead < length)
+			{
+				prevBlock = curBlock;
+				curBlock = PCB.getFAT()[curBlock];
+			}
+		}
+		
+		return curBlock;
+	}
+	
+	/**
+	 * Appends length bytes from buf to the end of the file associated with fd, and updates 
+	 * the size in the file's FDT entry. The write starts at the tail block recorded in the FDT,
+	 * so only the partial tail block and any new blocks are written. The FAT is walked to find
+	 * the tail only on the first append after the file is opened. The tail is then recorded 
+	 * again for the next append, so appends cost the same however large the file grows.
+	 * 
+	 * @param fd The file descriptor for file to append to.
+	 * @param buf Memory location from which to write to disk.
+	 * @param length Number of bytes to append.
+	 * @return int The new size of the file, or -1 if an error occurs.
+	 */
+	private int tfs_append_FDT(int fd, byte[] buf, int length)
+	{
+		if (length < 0 || buf.length < length)
+		{
+			System.err.println("Cannot append. Invalid length.");
+			return -1;
+		}
+		
+		return tfs_append_FDT(fd, ByteBuffer.wrap(buf, 0, length));
+	}
+	
+	/**
+	 * Overloaded version of tfs_append_FDT() which appends the remaining bytes of src, moving
+	 * its position past them.
+	 * 
+	 * @param fd The file descriptor for file to append to.
+	 * @param src Buffer holding the bytes to append, from its position up to its limit.
+	 * @return int The new size of the file, or -1 if an error occurs.
+	 */
+	private int tfs_append_FDT(int fd, ByteBuffer src)
+	{
+		FCB fileFCB = fd_Table.getFCB(fd);
+		if (fileFCB == null)
+		{
+			System.err.println("Cannot append. File not open.");
+			return -1;
+		}
+		
+		int length = src.remaining();
+		if (length > Integer.MAX_VALUE - fileFCB.getSize())     //Size would not fit in an int.
+			return -1;
+		
+		int blSize = PCB.getBlockSize();
+		int size = fileFCB.getSize();
+		if (length == 0)
+			return size;
+		
+		if (fileFCB.isInline())                                //Data is held in the entry, unless it no longer fits.
+		{
+			if (tfs_write_inline(fileFCB, size, src))
+				return size + length;
+			if (tfs_spill_inline(fd) < 0)
+				return -1;
+		}
+		
+		if (dedup && !fileFCB.isMapped() && !fileFCB.isCompressed() && tfs_map_FDT(fd) < 0)   //Blocks written are hashed.
+			return -1;
+		
+		if (fileFCB.isCompressed() || fileFCB.isMapped())     //Last chunk is re-encoded with the new bytes, or blocks are mapped.
+		{
+			int newSize;
+			try
+			{
+				newSize = (fileFCB.isCompressed() ? tfs_write_compressed(fileFCB.getLocation(), size, size, src)
+						  : (tfs_write_mapped(fileFCB.getLocation(), size, size, src) < 0 ? -1 : size + length));
+			}catch (RuntimeException ex)
+			 {
+				ex.printStackTrace();
+				return -1;
+			 }
+			if (newSize < 0)
+				return -1;
+			
+			fileFCB.setSize(newSize);
+			return newSize;
+		}
+		
+		int tail = fd_Table.getTailBlock(fd);
+		int fill = fd_Table.getTailFill(fd);
+		if (tail < 0)                                          //Tail not known. Find it from the first block.
+		{
+			int tailIndex = (size == 0) ? 0 : (size - 1) / blSize;
+			int i = 0;
+			tail = fileFCB.getLocation();
+			for (; i < tailIndex && PCB.getFAT()[tail] > 0; i++)
+				tail = PCB.getFAT()[tail];
+			
+			if (i < tailIndex && PCB.getFAT()[tail] != FileAccessTable.HOLE)
+				return -1;
+			fill = size - (i * blSize);                       //Past the end of the block if the file ends in a hole.
+		}
+		
+		int last;
+		try
+		{
+			last = tfs_write_range(tail, fill, src);                 //Tail block is treated as start of the range.
+			if (last == -2)                                          //Append starts in a hole. Only its blocks are taken, with a block map.
+			{
+				if (tfs_map_FDT(fd) < 0 || tfs_write_mapped(fileFCB.getLocation(), size, size, src) < 0)
+					return -1;
+				fileFCB.setSize(size + length);
+				return size + length;
+			}
+		}catch (RuntimeException ex)
+		 {
+			ex.printStackTrace();
+			return -1;
+		 }
+		if (last < 0)
+			return -1;
+		
+		fd_Table.updateTail(fd, last, ((fill + length - 1) % blSize) + 1);
+		fileFCB.setSize(size + length);
+		return size + length;
+	}
+	
+	/**
+	 * Writes the remaining bytes of src into the data of an inline file at the given offset,
+	 * if they fit in its data slots, and moves the position of src past them. Only the FCB
+	 * is changed. Its entry must then be stored by the caller.
+	 * 
+	 * @param fileFCB The FCB of the inline file.
+	 * @param offset File offset at which to begin the write.
+	 * @param src Buffer holding the bytes to write.
+	 * @return boolean true if the bytes were written, or false if they do not fit.
+	 */
+	private boolean tfs_write_inline(FCB fileFCB, int offset, ByteBuffer src)
+	{
+		int end = offset + src.remaining();
+		if (end > fileFCB.getInlineSlots() * FCB.INLINE_SLOT_BYTES)
+			return false;
+		
+		byte[] data = fileFCB.getInlineData();
+		if (end > data.length)                                 //File grows.
+			data = Arrays.copyOf(data, end);
+		src.get(data, offset, end - offset);
+		fileFCB.setInlineData(data);
+		
+		return true;
+	}
+	
+	/**
+	 * Moves the data of the inline file associated with fd into blocks, when a write no
+	 * longer fits in its data slots. The FCB in the FDT is changed to point to the blocks,
+	 * and the last block used and tail recorded in the FDT are reset. Its entry must then be 
+	 * stored by the caller, which frees its data slots.
+	 * 
+	 * @param fd The file descriptor of the inline file.
+	 * @return int The first block of the file, or -1 if the write fails.
+	 */
+	private int tfs_spill_inline(int fd)
+	{
+		FCB fileFCB = fd_Table.getFCB(fd);
+		int blSize = PCB.getBlockSize();
+		int blocks = Math.max(1, (fileFCB.getSize() + blSize - 1) / blSize);
+		
+		int location;
+		try
+		{
+			location = tfs_write_blocks(Arrays.copyOf(fileFCB.getInlineData(), blocks * blSize));
+		} catch (RuntimeException ex)
+		 {
+			ex.printStackTrace();
+			return -1;
+		 }
+		if (location < 0)
+			return -1;
+		
+		fileFCB.setFileOrDir(false);                           //No longer inline. Size is unchanged.
+		fileFCB.setLocation(location);
+		fd_Table.updatePos(fd, 0, location);
+		fd_Table.updateTail(fd, -1, 0);
+		
+		return location;
+	}
+	
+	/**
+	 * Reads length bytes of the data of a compressed file into buf, starting at the given file
+	 * offset. Only the part of the index and the chunks covering the range are read, and each
+	 * chunk is inflated into a buffer of COMPRESS_CHUNK bytes before its part is copied.
+	 * 
+	 * @param location The first block of the file.
+	 * @param size The size of the file's data.
+	 * @param offset File offset of the first byte to read.
+	 * @param buf Buffer to read into.
+	 * @param bufOffset Position in buf of the first byte read.
+	 * @param length Number of bytes to read. Must not run past size.
+	 * @return int length, or -1 if a read fails or a chunk cannot be inflated.
+	 */
+	private int tfs_read_compressed(int location, int size, int offset, byte[] buf, int bufOffset, int length)
+	{
+		if (length <= 0)
+			return 0;
+		
+		ByteBuffer header = ByteBuffer.allocate(COMPRESS_HEADER);
+		if (tfs_read_range(location, 0, header.array(), 0, COMPRESS_HEADER) < 0)
+			return -1;
+		int indexPos = header.getInt(0);
+		int chunkSize = header.getInt(4);
+		
+		int first = offset / chunkSize;
+		int last = (offset + length - 1) / chunkSize;
+		int[] ends = tfs_read_chunk_index(location, indexPos, Math.max(first - 1, 0), last);
+		if (ends == null)
+			return -1;
+		
+		byte[] chunk = new byte[chunkSize];
+		byte[] stored = new byte[chunkSize];
+		Inflater inflater = new Inflater();
+		try
+		{
+			for (int c = first; c <= last; c++)
+			{
+				int start = (c == 0 ? COMPRESS_HEADER : ends[c - 1 - Math.max(first - 1, 0)]);
+				int storedLen = ends[c - Math.max(first - 1, 0)] - start;
+				int rawLen = Math.min(chunkSize, size - c * chunkSize);
+				if (storedLen < 0 || storedLen > chunkSize || tfs_read_range(location, start, stored, 0, storedLen) < 0)
+					return -1;
+				
+				if (storedLen == rawLen)                              //Chunk did not get smaller, so was stored as it is.
+					System.arraycopy(stored, 0, chunk, 0, rawLen);
+				else
+				{
+					inflater.reset();
+					inflater.setInput(stored, 0, storedLen);
+					if (inflater.inflate(chunk, 0, rawLen) != rawLen)
+						return -1;
+				}
+				
+				int from = Math.max(offset, c * chunkSize);              //Part of the range in this chunk.
+				int to = Math.min(offset + length, c * chunkSize + rawLen);
+				System.arraycopy(chunk, from - c * chunkSize, buf, bufOffset + (from - offset), to - from);
+			}
+		} catch (DataFormatException e)
+		{
+			System.err.println("Compressed chunk at block " + location + " is corrupt.");
+			return -1;
+		} finally
+		{
+			inflater.end();
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Writes the remaining bytes of src into a compressed file at the given file offset, which
+	 * must not be past size, and moves the position of src to its limit. The chunks before the
+	 * one holding offset are kept where they are. The data from that chunk to the end of the file
+	 * is read, patched, compressed again and written after them, followed by the whole index.
+	 * Blocks after the new end of the index are then freed.
+	 * 
+	 * @param location The first block of the file.
+	 * @param size The size of the file's data before the write.
+	 * @param offset File offset at which to begin the write.
+	 * @param src Buffer holding the bytes to write.
+	 * @return int The new size of the file's data, or -1 if a read or write fails.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+	private int tfs_write_compressed(int location, int size, int offset, ByteBuffer src)
+	{
+		ByteBuffer header = ByteBuffer.allocate(COMPRESS_HEADER);
+		if (tfs_read_range(location, 0, header.array(), 0, COMPRESS_HEADER) < 0)
+			return -1;
+		int chunkSize = header.getInt(4);
+		
+		int end = offset + src.remaining();
+		int newSize = Math.max(size, end);
+		int oldChunks = (size + chunkSize - 1) / chunkSize;
+		int newChunks = (newSize + chunkSize - 1) / chunkSize;
+		int first = offset / chunkSize;                            //First chunk changed.
+		
+		int[] ends = new int[newChunks];                             //End of each chunk in the stored bytes.
+		if (first > 0)
+		{
+			int[] kept = tfs_read_chunk_index(location, header.getInt(0), 0, first - 1);
+			if (kept == null)
+				return -1;
+			System.arraycopy(kept, 0, ends, 0, first);
+		}
+		
+		//Data from the first chunk changed to the end of the file, with the write applied.
+		int from = first * chunkSize;
+		byte[] data = new byte[newSize - from];
+		if (size > from && tfs_read_compressed(location, size, from, data, 0, size - from) < 0)
+			return -1;
+		src.get(data, offset - from, end - offset);
+		
+		int pos = (first == 0 ? COMPRESS_HEADER : ends[first - 1]);  //Where the changed chunks are stored.
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 4 * newChunks);
+		byte[] deflated = new byte[chunkSize];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			for (int c = first; c < newChunks; c++)
+			{
+				int chunkOff = (c - first) * chunkSize;
+				int rawLen = Math.min(chunkSize, data.length - chunkOff);
+				
+				deflater.reset();
+				deflater.setInput(data, chunkOff, rawLen);
+				deflater.finish();
+				int n = deflater.deflate(deflated);
+				
+				if (deflater.finished() && n < rawLen)
+					out.write(deflated, 0, n);
+				else                                               //Chunk does not get smaller. Store it as it is.
+					out.write(data, chunkOff, rawLen);
+				
+				ends[c] = pos + out.size();
+			}
+		} finally
+		{
+			deflater.end();
+		}
+		
+		int indexPos = pos + out.size();
+		ByteBuffer index = ByteBuffer.allocate(4 * newChunks);
+		for (int c = 0; c < newChunks; c++)
+			index.putInt(ends[c]);
+		out.write(index.array(), 0, index.capacity());
+		
+		byte[] tail = out.toByteArray();
+		header.putInt(0, indexPos);
+		if (tfs_write_range(location, pos, tail, 0, tail.length) < 0
+				|| tfs_write_range(location, 0, header.array(), 0, COMPRESS_HEADER) < 0
+				|| tfs_trim_chain(location, tfs_calcBlocksNeeded(indexPos + index.capacity())) < 0)
+			return -1;
+		
+		return newSize;
+	}
+	
+	/**
+	 * Reads the ends of chunks first to last from the index of a compressed file.
+	 * 
+	 * @return int[] holding the end of chunk first at 0, or null if the read fails.
+	 */
+	private int[] tfs_read_chunk_index(int location, int indexPos, int first, int last)
+	{
+		ByteBuffer index = ByteBuffer.allocate(4 * (last - first + 1));
+		if (tfs_read_range(location, indexPos + 4 * first, index.array(), 0, index.capacity()) < 0)
+			return null;
+		
+		int[] ends = new int[last - first + 1];
+		for (int i = 0; i < ends.length; i++)
+			ends[i] = index.getInt(4 * i);
+		
+		return ends;
+	}
+	
+	/**
+	 * Shortens the chain of blocks starting at location to the given number of blocks, and
+	 * frees the rest. Only the blocks kept are walked to find where to cut. The new last block 
+	 * is marked -1, even if the chain ended in a hole after it. Nothing is changed if the chain
+	 * is not longer than that. The FAT is synced once if it was changed.
+	 * 
+	 * @param location The first block of the chain.
+	 * @param blocks The number of blocks to keep. At least 1.
+	 * @return int The last block kept, 0 if the chain has fewer blocks than that, or -1 if the 
+	 * FAT could not be written.
+	 */
+	private int tfs_trim_chain(int location, int blocks)
+	{
+		int last = location;
+		int i = 1;
+		for (; i < blocks && PCB.getFAT()[last] > 0; i++)
+			last = PCB.getFAT()[last];
+		
+		if (i < blocks)                                     //Chain is shorter.
+			return 0;
+		
+		int rest = PCB.getFAT()[last];
+		if (rest == -1)                                     //Chain is not longer.
+			return last;
+		
+		allocLock.lock();                                   //rest is freed, so no other call may take it first.
+		try
+		{
+			PCB.updateFAT(last, -1);
+			if (rest > 0)
+				tfs_free_chain(rest);
+		} finally
+		{
+			allocLock.unlock();
+		}
+		
+		return (tfs_sync() < 0 ? -1 : last);
+	}
+	
+	/**
+	 * Changes the size of the file associated with fd to newSize, for tfs_truncate(). The FCB in 
+	 * the FDT is changed and the last block used and tail recorded in the FDT are reset. Its 
+	 * entry must then be stored by the caller.
+	 * 
+	 * @param fd The file descriptor of the file.
+	 * @param newSize The new size of the file in bytes.
+	 * @return int 0 if success, or -1 if a read or write fails.
+	 */
+	private int tfs_truncate_FDT(int fd, int newSize)
+	{
+		FCB fileFCB = fd_Table.getFCB(fd);
+		int size = fileFCB.getSize();
+		if (newSize == size)
+			return 0;
+		
+		try
+		{
+			if (fileFCB.isInline())
+			{
+				if (newSize <= fileFCB.getInlineSlots() * FCB.INLINE_SLOT_BYTES)    //Still fits in its data slots.
+				{
+					fileFCB.setInlineData(Arrays.copyOf(fileFCB.getInlineData(), newSize));
+					return 0;
+				}
+				if (tfs_spill_inline(fd) < 0)
+					return -1;
+			}
+			
+			int location = fileFCB.getLocation();
+			
+			if ((fileFCB.isCompressed() ? tfs_truncate_compressed(location, size, newSize) 
+					: fileFCB.isMapped() ? tfs_truncate_mapped(location, size, newSize)
+					                     : tfs_truncate_chain(location, size, newSize)) < 0)
+				return -1;
+		}catch (RuntimeException ex)
+		 {
+			System.err.println("Truncating file failed: " + ex.getMessage());
+			return -1;
+		 }
+		
+		fileFCB.setSize(newSize);
+		fd_Table.updatePos(fd, 0, fileFCB.getLocation());
+		fd_Table.updateTail(fd, -1, 0);
+		return 0;
+	}
+	
+	/**
+	 * Changes the size of the chain of a file from size to newSize bytes, for tfs_truncate_FDT().
+	 * The chain is cut after the block holding the last byte kept by tfs_trim_chain(), and the
+	 * rest of that block is filled with 0, so the bytes after the new end read as 0 if the file
+	 * grows again. If newSize runs past the blocks kept, the last block is marked HOLE instead.
+	 * 
+	 * @param location The first block of the file.
+	 * @param size The size of the file before the change.
+	 * @param newSize The new size of the file.
+	 * @return int 0 if success, or -1 if a write fails.
+	 */
+	private int tfs_truncate_chain(int location, int size, int newSize)
+	{
+		int blSize = PCB.getBlockSize();
+		int kept = Math.min(size, newSize);                 //Bytes of the data which are kept.
+		int blocks = tfs_calcBlocksNeeded(kept);
+		int last = tfs_trim_chain(location, blocks);
+		if (last <= 0)                                      //Failed, or the bytes kept already end in a hole.
+			return last;
+		
+		int used = kept - (blocks - 1) * blSize;            //Bytes of last which are kept.
+		if (used < blSize && tfs_write_range(last, used, new byte[blSize - used], 0, blSize - used) < 0)
+			return -1;
+		
+		if (newSize <= blocks * blSize)
+			return 0;
+		
+		PCB.updateFAT(last, FileAccessTable.HOLE);
+		return tfs_sync();
+	}
+	
+	/**
+	 * Changes the size of a compressed file from size to newSize bytes, for tfs_truncate_FDT().
+	 * A shorter file has the chunk holding its new end compressed again by tfs_write_compressed(),
+	 * which also writes the shorter index and frees the blocks after it. The chunks before it 
+	 * are not read. A longer file has the bytes added written as 0.
+	 * 
+	 * @param location The first block of the file.
+	 * @param size The size of the file's data before the change.
+	 * @param newSize The new size of the file's data.
+	 * @return int The new size, or -1 if a read or write fails.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+	private int tfs_truncate_compressed(int location, int size, int newSize)
+	{
+		if (newSize > size)
+			return tfs_write_compressed(location, size, size, ByteBuffer.wrap(new byte[newSize - size]));
+		
+		ByteBuffer header = ByteBuffer.allocate(COMPRESS_HEADER);
+		if (tfs_read_range(location, 0, header.array(), 0, COMPRESS_HEADER) < 0)
+			return -1;
+		
+		int from = newSize - (newSize % header.getInt(4));   //Start of the chunk holding the new end.
+		byte[] lastChunk = new byte[newSize - from];
+		if (lastChunk.length > 0 && tfs_read_compressed(location, size, from, lastChunk, 0, lastChunk.length) < 0)
+			return -1;
+		
+		return tfs_write_compressed(location, from, from, ByteBuffer.wrap(lastChunk));
+	}
+	
+	/**
+	 * Creates the entry for a new file, which is inline if inlineData is not null. An inline
+	 * file reserves data slots for the inline limit, or for its data if that is larger. Any
+	 * other file is marked with kind, as given to tfs_create().
+	 */
+	private FCB tfs_file_entry(String name, int location, int size, byte[] inlineData, byte kind)
+	{
+		if (inlineData == null)
+		{
+			FCB entry = new FCB(name, false, location, size);
+			entry.setFileOrDir(kind);
+			return entry;
+		}
+		
+		return new FCB(name, inlineData, FCB.inlineSlotsFor(Math.max(Math.max(inlineLimit, inlineData.length), 1)));
+	}
+	
+		
+	
+	/**
+	 * Loads a directory from disk from the given location (block) into the buffer.
+	 * Uses tfs_read_blocks() to read the blocks disk into memory from the given location.
+	 * These bytes are then use to reconstruct a Directory object in memory, which is
+	 * returned. 
+	 * 
+	 * Size parameter will typically be found by consulting the FCB which manages this 
+	 * directory.
+	 * 
+	   @param location int block number of location (block) on disk to load
+	 * directory from.
+	 * @param size The exact size of the directory to be loaded.
+	 *
+	 * @return Directory object loaded from disk.
+	 * @throws IllegalArgumentException if location or size given is invalid.
+	 */
+	
+	private Directory tfs_load_dir(int location, int size)
+	{
+		byte[] bDir = tfs_read_blocks(location);   //Call tfs_read_blocks and load them into memory here.
+		
+		/*
+		 * Now use the byte[] to reconstruct the Directory in memory, of size given by int size.
+		 * This is done by static Directory.bytesToDir() method. Note that this method
+		 * will not catch any IllegalArgumentException thrown by Directory.bytesToDir().
+		 */
+		return Directory.bytesToDir(bDir, size);
+	}
+
+	/**
+	 * Decodes up to limit entries of the directory stored at location into out, beginning at
+	 * entry slot firstSlot. Blocks are read one at a time by following the FAT, starting at the
+	 * block which holds firstSlot. Blocks before it are skipped by FAT lookup only, and no blocks
+	 * after the last entry decoded are read. An entry may span two blocks, so its bytes are
+	 * gathered in a small buffer before it is decoded, along with its data slots if it is inline.
+	 * Free slots and data slots are skipped, and do not count towards limit.
+	 *
+	 * @param location The location (starting block) of the directory.
+	 * @param size The size of the directory in bytes.
+	 * @param firstSlot The slot of the first entry to decode.
+	 * @param limit The maximum number of entries to decode.
+	 * @param out List to which the decoded entries are added.
+	 * @return int slot after the last entry decoded, or -1 if a disk read fails.
+	 */
+	private int tfs_read_entries(int location, int size, int firstSlot, int limit, List<FCB> out)
+	{
+		int numSlots = size / FCB.FCB_SIZE;
+		if (firstSlot >= numSlots || limit == 0)      //Nothing left to read.
+			return firstSlot;
+
+		int blSize = PCB.getBlockSize();
+		int bytePos = firstSlot * FCB.FCB_SIZE;       //Position of first entry within the directory.
+
+		int curBlock = location;
+		for (int i = 0; i < bytePos / blSize; i++)    //Find block holding the first entry.
+			curBlock = PCB.getFAT()[curBlock];
+
+		byte[] blockBuf = new byte[blSize];            //Holds the block currently being decoded.
+		byte[] entryBuf = new byte[FCB.FCB_SIZE];      //Gathers the bytes of one entry.
+		ByteBuffer entryBB = ByteBuffer.wrap(entryBuf);
+
+		if (TFSDiskInputOutput.tfs_dio_readBlock(curBlock, blockBuf) < 0)
+			return -1;
+
+		int inBlock = bytePos % blSize;               //Position within current block.
+		int slot = firstSlot;
+		int added = 0;
+
+		while (slot < numSlots && added < limit)
+		{
+			//Copy bytes of the current entry, reading the next linked block if the entry continues there.
+			int inEntry = 0;
+			int want = FCB.FCB_SIZE;                  //Bytes to gather. Grows to take in data slots.
+			FCB entry = null;
+			while (inEntry < want)
+			{
+				if (inBlock == blSize)
+				{
+					curBlock = PCB.getFAT()[curBlock];
+					if (curBlock <= 0 || TFSDiskInputOutput.tfs_dio_readBlock(curBlock, blockBuf) < 0)
+						return -1;
+					inBlock = 0;
+				}
+
+				int n = Math.min(want - inEntry, blSize - inBlock);
+				System.arraycopy(blockBuf, inBlock, entryBuf, inEntry, n);
+				inEntry += n;
+				inBlock += n;
+				
+				if (inEntry == FCB.FCB_SIZE && entry == null && FCB.holdsEntry(entryBB, 0))
+				{
+					entry = FCB.decode(entryBB, 0);
+					int dataSlots = Math.min(entry.getInlineSlots(), numSlots - slot - 1);
+					want += dataSlots * FCB.FCB_SIZE;
+					if (entryBuf.length < want)          //Grow buffer to hold the data slots.
+					{
+						entryBuf = Arrays.copyOf(entryBuf, want);
+						entryBB = ByteBuffer.wrap(entryBuf);
+					}
+					slot += dataSlots;
+				}
+			}
+
+			if (entry != null)                        //Free slots and data slots hold no entry.
+			{
+				if (want == (1 + entry.getInlineSlots()) * FCB.FCB_SIZE)
+					entry.readInlineData(entryBB, 0);
+				out.add(entry);
+				added++;
+			}
+			slot++;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Searches the directory stored at location for the entry with the given name and type,
+	 * without creating a Directory or any FCB objects. Blocks of the directory are read
+	 * into the calling thread's reused buffer in dirScratch one at a time, and each entry whose bytes have been
+	 * read is compared through view. Reading stops at the block holding the entry found, or
+	 * at the block holding its last data slot if it is inline.
+	 *
+	 * @param location The location (starting block) of the directory to search.
+	 * @param size The size of the directory in bytes.
+	 * @param name The name of the entry to find.
+	 * @param dOrF boolean true if entry to find is a directory, false if it is a file.
+	 * @param view View which is positioned on the entry if it is found.
+	 * @return int slot of the entry in the directory, or -1 if it is not found.
+	 */
+	private int tfs_find_entry(int location, int size, String name, boolean dOrF, FCBView view)
+	{
+		int blSize = PCB.getBlockSize();
+		int numSlots = size / FCB.FCB_SIZE;
+		int needed = ((size + blSize - 1) / blSize) * blSize;      //Size rounded up to whole blocks.
+
+		ByteBuffer scratchBB = dirScratch.get();
+		if (scratchBB == null || scratchBB.capacity() < needed)     //Grow buffer only if it is too small.
+		{
+			scratchBB = ByteBuffer.allocate(Math.max(needed, blSize));
+			dirScratch.set(scratchBB);
+		}
+
+		byte[] scratch = scratchBB.array();
+		int loaded = 0;                                             //Number of bytes read so far.
+		int slot = 0;
+		int found = -1;
+		int foundEnd = 0;                                           //End of the entry found, with its data slots.
+
+		for (int curBlock = location; (found < 0 ? slot < numSlots : loaded < foundEnd) && curBlock > 0; curBlock = PCB.getFAT()[curBlock])
+		{
+			if (TFSDiskInputOutput.tfs_dio_readBlock(curBlock, scratch, loaded) < 0)
+				return -1;
+			loaded += blSize;
+
+			//Compare every entry which has now been read completely.
+			while (found < 0 && slot < numSlots && (slot + 1) * FCB.FCB_SIZE <= loaded)
+			{
+				view.moveTo(scratchBB, slot);
+				if (!view.isFree() && view.is_Dir() == dOrF && view.nameEquals(name))
+				{
+					found = slot;
+					foundEnd = (slot + 1 + (view.isInline() ? view.getLocation() : 0)) * FCB.FCB_SIZE;
+				}
+				else
+					slot++;
+			}
+		}
+
+		if (found >= 0)
+			view.moveTo(scratchBB, found);
+
+		return found;
+	}
+
+	/**
+	 * Reads the entry in one slot of the directory at location, with its data slots if it is
+	 * inline. Only the blocks holding the entry are read.
+	 * 
+	 * The read lock of the directory is only held while the slot is read, and not until the 
+	 * call returns as with tfs_lock_dir(). The directories above it are not locked, so the 
+	 * caller may still go down the path from root afterwards without taking locks out of order.
+	 * 
+	 * @param location The location of the directory.
+	 * @param slot The slot to read.
+	 * @return FCBView A new view positioned on the entry, or null if the read fails.
+	 */
+	private FCBView tfs_read_slot(int location, int slot)
+	{
+		Lock lock = dirLocks.computeIfAbsent(location, k -> new ReentrantReadWriteLock()).readLock();
+		lock.lock();
+		try
+		{
+			ByteBuffer slotBB = ByteBuffer.allocate(FCB.FCB_SIZE);
+			if (tfs_read_range(location, slot * FCB.FCB_SIZE, slotBB.array(), 0, FCB.FCB_SIZE) < 0)
+				return null;
+			
+			FCBView view = new FCBView(slotBB, 0);
+			if (view.isFree() || !view.isInline())
+				return view;
+			
+			ByteBuffer inlineBB = ByteBuffer.allocate((1 + view.getLocation()) * FCB.FCB_SIZE);   //Location of an inline entry is its number of data slots.
+			if (tfs_read_range(location, slot * FCB.FCB_SIZE, inlineBB.array(), 0, inlineBB.capacity()) < 0)
+				return null;
+			
+			return view.moveTo(inlineBB, 0);
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Looks up the target at the end of a path, where the first count - 1 elements of dirs
+	 * are the directories leading to it from root. Each directory along the path is searched
+	 * with tfs_find_entry(), so no Directory or FCB objects are created. When found, view is
+	 * positioned on the target's entry, which stays valid until the next lookup.
+	 * 
+	 * During a public call, each directory is locked for reading before it is searched, and
+	 * a target directory is locked as well, so it can be read after the lookup. The locks are
+	 * held until the call returns.
+	 *
+	 * @param dirs Elements of the path, as returned by getValidPath().
+	 * @param count Number of elements of dirs to use. Element count - 1 is the target.
+	 * @param dOrF boolean true if target is a directory, false if it is a file.
+	 * @param view View which is positioned on the target's entry if it is found.
+	 * @return int slot of target in its parent directory, -1 if a directory along the path
+	 * cannot be found, or -2 if the parent directory does not contain the target.
+	 */
+	private int tfs_lookup(String[] dirs, int count, boolean dOrF, FCBView view)
+	{
+		int location = PCB.getRootDir();          //Start at root.
+		tfs_lock_dir(location, false);
+		int size = rD.getByteSize();
+
+		for (int i = 0; i < count - 1; i++)       //Go down path up to parent of target.
+		{
+			if (tfs_find_entry(location, size, dirs[i], true, view) < 0)
+				return -1;
+
+			location = view.getLocation();        //Read location and size before buffer is reused.
+			size = view.getSize();
+			tfs_lock_dir(location, false);
+		}
+
+		int slot = tfs_find_entry(location, size, dirs[count - 1], dOrF, view);
+		if (slot >= 0 && dOrF)
+			tfs_lock_dir(view.getLocation(), false);
+
+		return (slot < 0 ? -2 : slot);
+	}
+
+	/**
+	 * Stores a directory to disk at the given location (block). Uses tfs_write_blocks()
+	 * to write the blocks of the directory to disk to the given location. Note that
+	 * tfs_write_blocks calls tfs_sync() to synchronize file system data in memory with
+	 * data held on disk.
+	 * 
+	 * @param dir The Directory to store to disk.
+	 * @param location int block number of the location to store the directory.
+	 * @return 0 if success, or -1 if write fails.
+	 */
+	private int tfs_store_dir(Directory dir, int location)
+	{
+		return tfs_write_blocks(dir.getByteArr(), location);
+				
+	}
+	
+	/**
+	 * Stores a single slot of a directory to disk, for when only that slot has changed
+	 * and the size of the directory is unchanged. Only the block holding the slot is read
+	 * and written, or two blocks if the slot spans them. The FAT is not changed, so 
+	 * tfs_sync() is not called. If the slot holds an inline entry, its data slots are 
+	 * stored with it.
+	 * 
+	 * @param dir The Directory holding the changed slot.
+	 * @param location int block number of the location of the stored directory.
+	 * @param slot The slot to store.
+	 * @return 0 if success, or -1 if a read or write fails.
+	 */
+	private int tfs_store_dir_slot(Directory dir, int location, int slot)
+	{
+		int count = dir.numSlotsUsed(slot);
+		ByteBuffer slotBB = ByteBuffer.allocate(count * FCB.FCB_SIZE);
+		for (int k = 0; k < count; k++)
+			dir.encodeSlot(slot + k, slotBB, k * FCB.FCB_SIZE);
+		
+		return ( (tfs_write_range(location, slot * FCB.FCB_SIZE, slotBB.array(), 0, slotBB.capacity())) < 0 ? -1 : 0);
+	}
+	
+	/**
+	 * Stores the entry of a file opened by tfs_open() to its slot in its parent directory,
+	 * using the parent location and slot recorded in the FDT. The path is not searched. 
+	 * If the parent is the root directory, its entry in rD is updated as well. The data slots 
+	 * of an inline file are stored with its entry.
+	 * 
+	 * @param fd File descriptor of the open file.
+	 * @return 0 if success, or -1 if the parent is not known or the write fails.
+	 */
+	private int tfs_store_entry_FDT(int fd)
+	{
+		FCB fileFCB = fd_Table.getFCB(fd);
+		int parentLoc = fd_Table.getParentLocation(fd);
+		int slot = fd_Table.getSlot(fd);
+		if (fileFCB == null || parentLoc < 0 || slot < 0)
+			return -1;
+		
+		return tfs_store_entry(parentLoc, slot, fileFCB);
+	}
+	
+	/**
+	 * Stores the entry of a file to the given slot of the parent directory stored at parentLoc,
+	 * with its data slots if it is inline. If the parent is the root directory, its entry in rD
+	 * is updated as well.
+	 * 
+	 * @param parentLoc Location of the parent directory.
+	 * @param slot Slot of the entry in the parent.
+	 * @param fileFCB The entry to store.
+	 * @return 0 if success, or -1 if the write fails.
+	 */
+	private int tfs_store_entry(int parentLoc, int slot, FCB fileFCB)
+	{
+		if (parentLoc == PCB.getRootDir())               //Root directory is also held in memory.
+			rD.update(fileFCB);
+		
+		ByteBuffer slotBB = ByteBuffer.allocate((1 + fileFCB.getInlineSlots()) * FCB.FCB_SIZE);
+		fileFCB.encodeWithData(slotBB, 0);
+		
+		return ( (tfs_write_range(parentLoc, slot * FCB.FCB_SIZE, slotBB.array(), 0, slotBB.capacity())) < 0 ? -1 : 0);
+	}
+	
+    /**
+	 * Writes the bytes in the buffer to disk, starting at the specified block number int
+	 * location. Handles several cases which may occur:
+	 * 
+	 * 1)Starting block is empty, so data is written to an empty section of disk.
+	 *   Avoid FAT lookup if possible by checking if specified location is first free block
+	 *   index maintained by PCB.
+	 *   
+	 * 2)Starting block is NOT empty. 
+	 *   FAT lookup occurs to find linked blocks of existing data (file or directory). 
+	 *   Data stored in these blocks is overwritten.
+	 * 
+	 * In both cases, if additional blocks are required, these are obtained by looking up available 
+	 * block in the FAT.
+	 * The FAT is updated accordingly and written back to disk.
+	 * 
+	 * @param buf The buffer in memory to write from.
+	 * @param location The location (block num) to begin write. 
+	 * @return int The starting block written to if success or -1 if write fails.
+	 * @throws IllegalArgumentException if location (block number) is invalid.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+
+	private int tfs_write_blocks(byte[] buf, int location) throws IllegalArgumentException
+	{
+		if (location < 0 || location > PCB.getNumBlocks())  //Invalid location, throw IllegalArgumentException.
+			throw new IllegalArgumentException("Cannot write blocks. Illegal argument for disk location (block). Block number " + location + " not in file system.");
+		
+		int blocksNeeded = 0;
+		if (buf == null)      //For empty blocks, just write a dummy block.
+			blocksNeeded = 1;
+		else
+			blocksNeeded = tfs_calcBlocksNeeded(buf.length);      //Calc number of blocks needed.
+		
+        int blSize = PCB.getBlockSize();                          //Current block size. 
+		
+		/**
+		 *  Case 1: Starting block is empty. Write will begin at first free block index stored in PCB.
+		 *  Write continues across available blocks found in FAT, if additional blocks are required.
+		 *  Resets first free block index in PCB to another free block.
+		 */
+		 if (PCB.getFAT()[location] == 0)
+		 {
+			allocLock.lock();                                         //Every block written is taken from the FAT.
+			try
+			{
+			  //If only one block is needed.
+			  if (blocksNeeded == 1)
+			  {
+				TFSDiskInputOutput.tfs_dio_writeBlock(location, buf); //Now write the block to disk.
+				PCB.updateFAT(location, -1);                          //Mark entry in FAT as EOF.
+				if (location == PCB.getFirstFreeBlock())              //If first free block has been used
+					PCB.setFirstFreeBlock(tfs_getOneFreeBlock());     //Find another free block to which to set value of first free block.
+			  }
+		  
+			  //If more than one block is needed, use tfs_getFreeBlocks to get a queue of available blocks.
+			  else 
+			  {
+				Queue<Integer> freeQ = tfs_getFreeBlocks(blocksNeeded - 1);    //Get one less block, since arg location will be used for first.
+				int curPos = 0;                                              //Current position in buf.
+                int writeLoc = location;                                     //First write location. 
+	         
+				 /*
+				  * Write all the bytes in buf to available blocks.
+				  * Write blocks as subsets of buf.
+				  */
+				  while(curPos < buf.length)
+				   {
+						/*
+						 * Write subset of buf of size block size to disk at writeLoc, which is a free location found in freeQ.
+						 * FAT is updated accordingly so that blocks are linked in their FAT entries. Current write location's
+						 * (block's) entry is updated with value at head of the queue of free blocks, freeQ.
+						 */
+						  //Perform write of subset of buf.
+						 int writeResult = TFSDiskInputOutput.tfs_dio_writeBlock(writeLoc, buf, curPos); 
+						 if (writeResult < 0)
+						 {
+							 System.err.println("Write to disk block "+writeLoc + " failed.");
+							 return -1;
+						 }
+						 
+						  if (!(freeQ.isEmpty()))                                                        //Make sure there are more free blocks.
+						  {
+							PCB.updateFAT(writeLoc, freeQ.peek());                                     //Update FAT to reflect write.
+							writeLoc = freeQ.poll();                                                  //Get next write location.
+						  }
+					 
+						 curPos += blSize;                                                 //Add block size to cur position in buf.              
+				   }
+			   
+				   PCB.updateFAT(writeLoc, -1);                                                        //Mark last block written as EOF.
+			   
+				   if (location == PCB.getFirstFreeBlock())              //If first free block has been used
+						PCB.setFirstFreeBlock(tfs_getOneFreeBlock());     //Find another free block to which to set value of first free block.
+			   
+				}   //End-else
+			} finally
+			{
+				allocLock.unlock();
+			}
+				
+		}  //End-if
+		
+		
+		/**
+		 *  Case 2: Starting block is not empty. This implies that the location and any logically linked blocks already
+		 *  contain data and must be overwritten. Performs check to make sure that enough space is available. Free
+		 *  blocks are acquired, if needed. Also, excess blocks marked as linked in FAT are marked as free.
+		 *  Only the freeing and taking of blocks is done while holding allocLock. Blocks already linked belong to
+		 *  the caller, who holds the lock of their directory.
+		 *  
+		 **/
+		else
+		{
+			/*
+			 * Continue writing from buf until EOF is reached or all of buf is written. 
+			 * If buf.length is shorter than the space available in the currently linked 
+			 * blocks, free up these blocks by marking them with 0 in FAT.
+			 */
+			int curEntry = location; 
+            int curPos = 0;                                      //Current position in arg buf.
+			int blocksWritten = 0;                               //Number of blocks written so far. 
+			int lastWritten = location;                          //Last block written, which becomes EOF.
+			
+			//Continue until current EOF is reached, or no more is needed. Write at least one block to location given.
+			while (curEntry > 0 && blocksWritten < blocksNeeded)
+		    {
+		    	if (buf != null)                                 //If buf is empty, no need to actually write.
+		    		TFSDiskInputOutput.tfs_dio_writeBlock(curEntry, buf, curPos);
+		    	
+				blocksWritten++;
+				curPos += blSize;                                //Update position in buf.
+				lastWritten = curEntry;
+				curEntry = PCB.getFAT()[curEntry];
+			}
+			
+			Queue<Integer> availBlocks = null;                   //Blocks taken for the rest of buf, if any.
+			allocLock.lock();
+			try
+			{
+				int rest = PCB.getFAT()[lastWritten];           //Blocks after the last written are no longer needed.
+				PCB.updateFAT(lastWritten, -1);                 //Mark last block written as EOF.
+				if (rest > 0)
+					tfs_free_chain(rest);
+				
+				//If more blocks are still needed, get free blocks from FAT and link them after the last written.
+				if (blocksWritten < blocksNeeded)
+				{
+					availBlocks = tfs_getFreeBlocks(blocksNeeded - blocksWritten);
+					for (int block : availBlocks)
+					{
+						PCB.updateFAT(lastWritten, block);
+						lastWritten = block;
+					}
+					PCB.updateFAT(lastWritten, -1);               //Mark last block taken as EOF.
+				}
+			} finally
+			{
+				allocLock.unlock();
+			}
+			
+			if (availBlocks != null)                             //Write the rest of buf to the blocks taken.
+			{
+				for (int block : availBlocks)
+				{
+					TFSDiskInputOutput.tfs_dio_writeBlock(block, buf, curPos);
+					curPos += blSize;
+				}
+			}
+		
+		}//End-else
+			  
+		 //Call tfs_sync() to write PCB back to disk, with FAT.
+		tfs_sync();
+		
+		return location;
+		
+	}
+	
+	
+	/**
+	 * Stores a new sparse file of size bytes, all 0. Only its first block is written, by
+	 * tfs_write_blocks(). If the file needs more blocks, the block is marked HOLE in the FAT,
+	 * so the rest of the file is a hole until it is written.
+	 * 
+	 * @param size The size of the new file.
+	 * @return int The location of the first block, or -1 if the write fails.
+	 * @throws RuntimeException if no free block is available.
+	 */
+	private int tfs_write_sparse(int size)
+	{
+		int location = tfs_write_blocks(new byte[PCB.getBlockSize()]);
+		if (location < 0 || size <= PCB.getBlockSize())
+			return location;
+		
+		PCB.updateFAT(location, FileAccessTable.HOLE);
+		return (tfs_sync() < 0 ? -1 : location);
+	}
+	
+	/**
+	 * Overloaded version of tfs_write_blocks(byte[] buf, int location)
+	 * Takes no arg for location, so any location (start block) may be used on disk.
+	 * 
+	 * Useful if desired location is not known and any location may be used.
+	 * First free block stored in PCB will be used for initial block by
+	 * calling PCB.getFirstFreeBlock. It is taken while holding allocLock, so
+	 * no other call writes to it, and the write then continues as for a block
+	 * already in use.
+	 * 
+	 * @param buf The byte buffer to write to disk
+	 * @return The starting location of write or -1 if write fails.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+	private int tfs_write_blocks(byte[] buf)
+	{
+		int location;
+		allocLock.lock();
+		try
+		{
+			location = PCB.getFirstFreeBlock();                   //Start write at first free block.
+			if (location < 0 || PCB.getFAT()[location] != 0)
+				throw new RuntimeException("Insufficient space available on disk.");
+			PCB.updateFAT(location, -1);
+			PCB.setFirstFreeBlock(tfs_getOneFreeBlock());
+		} finally
+		{
+			allocLock.unlock();
+		}
+		
+		try
+		{
+			return tfs_write_blocks(buf, location);
+		} catch (RuntimeException e)
+		{
+			tfs_free_chain(location);                             //Give back the block taken.
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Overloaded version of tfs_write_blocks() for the blocks of a file stored with a block map.
+	 * Writes one block from src for each of the entries from to to, and records in entries
+	 * where each block was stored, moving the position of src past them.
+	 *
+	 * While the dedup layer is on, each block is hashed before anything is written. If a block
+	 * in the index holds the same bytes, the entry refers to that block instead, and nothing is
+	 * written. Otherwise a block the file alone refers to is written in place, while a hole or
+	 * a block shared with other files is given a free block, searching from just after the
+	 * block before it. A block no longer referred to is freed by tfs_clear_blocks(). Blocks
+	 * written are added to the index. Only the FAT in memory is changed, and the entries must
+	 * be written back to the map by the caller.
+	 *
+	 * Holds allocLock throughout, since a block of the file may be shared with a file in 
+	 * another directory from the moment it is in the index. Writes to mapped files are
+	 * therefore made one at a time.
+	 *
+	 * @param entries Entries of the map, each a block or 0 for a hole.
+	 * @param from The first entry to write.
+	 * @param to The entry after the last one to write.
+	 * @param src Buffer holding (to - from) blocks of bytes.
+	 * @return int 0 if success, or -1 if a write fails.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+	private int tfs_write_blocks(int[] entries, int from, int to, ByteBuffer src)
+	{
+		allocLock.lock();
+		try
+		{
+			byte[] blockBuf = new byte[PCB.getBlockSize()];
+			int hint = (from > 0 ? entries[from - 1] + 1 : PCB.getRootDir() + 1);   //Where the search for a free block begins.
+			for (int i = from; i < to; i++)
+			{
+				src.get(blockBuf);
+				String key = (dedup ? tfs_block_hash(blockBuf) : null);
+				Integer found = (key == null ? null : blockIndex.get(key));
+				if (found != null)                            //Same bytes are held already. Refer to them.
+				{
+					if (found != entries[i])
+					{
+						tfs_add_ref(found);
+						tfs_clear_blocks(entries, i, i + 1);
+						entries[i] = found;
+					}
+					hint = found + 1;
+					continue;
+				}
+	
+				if (entries[i] == 0 || blockRefs.containsKey(entries[i]))   //Hole, or block other files read.
+				{
+					int block = tfs_getFreeBlocks(1, hint).remove();
+					PCB.updateFAT(block, -1);
+					tfs_clear_blocks(entries, i, i + 1);
+					entries[i] = block;
+				}
+				else                                          //Block of the file's own is changed.
+					tfs_unindex(entries[i]);
+	
+				if (TFSDiskInputOutput.tfs_dio_writeBlock(entries[i], blockBuf) < 0)
+					return -1;
+	
+				if (key != null)
+				{
+					blockIndex.put(key, entries[i]);
+					blockKeys.put(entries[i], key);
+				}
+				hint = entries[i] + 1;
+			}
+	
+			return 0;
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	
+	/**
+	 *  Reads blocks starting at the given disk location and returns an array of bytes
+     *  holding the bytes of these blocks.
+	 *  
+	 *  FAT is consulted to ensure that all linked blocks are read following this block.
+	 *  Read continues until EOF marker (-1) entry is found at an index for a given block.
+	 * 
+	 * @param location int giving starting location (block) for read
+	 * @return byte[] holding bytes read from location.
+	 * @throws IllegalArgumentException if block number is invalid or block is empty.
+	 */
+	
+	private byte[] tfs_read_blocks(int location)
+	{
+		if (location < 0 || location > PCB.getNumBlocks())  //Invalid location, throw IllegalArgumentException.
+			throw new IllegalArgumentException("Cannot read blocks. Illegal argument for disk location (block). Block number " + location + " not in file system.");
+		
+		else if ((PCB.getFAT())[location] == 0)  //If block is empty, throw IllegalArgumentException.
+			throw new IllegalArgumentException("Cannot read from block " + location + " since block is empty.");
+		
+		
+		int numBlocks = 0;
+		
+		//Determine the size of the output array  by looking in FAT. Count num blocks until an entry marked EOF is reached.
+		for (int fB = location; fB > 0; fB = (PCB.getFAT())[fB])
+		{
+			numBlocks++;
+		}
+				
+		byte[] outArr = new byte[PCB.getBlockSize() * numBlocks]; //The output array of bytes of size block size * numBlocks.
+		int outPos = 0;                                          //Position in large array of bytes to output.
+		
+		/*
+		 *  Loop to get linked blocks using FAT lookup to get block numbers.  Continue until FAT entry holding EOF (-1) is encountered,
+		 *  meaning current block won't have any blocks following it.
+		 *  Each block is read straight into its place in the output array. Moves curBlock to next block after each iteration.
+		 */
+		for (int curBlock = location; curBlock > 0; curBlock = (PCB.getFAT())[curBlock])
+        {
+			TFSDiskInputOutput.tfs_dio_readBlock(curBlock, outArr, outPos);             //Read the block into outArr at outPos.
+			outPos += PCB.getBlockSize();
+		}
+			
+		return outArr;                                                                //Return the large array of bytes of these block(s).
+		
+			
+	}
+	
+	
+    /**
+	 * Service method for calculating the number of blocks that will
+	 * be needed to store a given element.
+	 * 
+	 * @param elemSize The size of the file or directory to be stored.
+	 * @return int The number of blocks needed to store an element.
+	 */
+	private int tfs_calcBlocksNeeded(int elemSize)
+	{
+		//If size is 0 bytes, 0 blocks are really needed but return 1 so dummy blocks may be written.
+		if (elemSize == 0)     
+			return 1;
+		if (elemSize <= PCB.getBlockSize()) //If size is <= blocksize, 1 block is needed.
+			return 1;
+		
+		//Otherwise more blocks are needed.
+		int blocksNeeded = elemSize / PCB.getBlockSize();       //Calc number of blocks needed to store directory.
+			
+		//If elemSize is not divisible by blocksize, an extra block is needed for remainder.
+		if ((elemSize % PCB.getBlockSize()) != 0)
+			blocksNeeded++;
+			
+		return blocksNeeded;
+	}
+	
+	/**
+	 * Finds index of one free block in FAT and returns it.
+	 * Ignores the block number of first free block entry in FCB.
+	 * The caller must hold allocLock, so the block is not taken by another call.
+	 * 
+	 * @return int index of one free block, or -1 if no block found.
+	 */
+	private int tfs_getOneFreeBlock()
+	{
+		int [] tmpFAT = PCB.getFAT(); 
+		int numBlocksTFS = PCB.getNumBlocks();
+				
+		//Start looking just after root directory. Ignore first free block.
+		for (int i = (PCB.getRootDir() + 1); i <= numBlocksTFS; i++)
+		{
+			if ((tmpFAT[i] == 0) && (i != PCB.getFirstFreeBlock()))
+				return i;
+		}
+				
+		return -1;
+			
+	}
+	
+	/**
+	 * Service method for block numbers of n free blocks. These
+	 * are returned as a queue of Integers which are the block numbers of
+	 * the free blocks. Consults FAT to find n free blocks.
+	 * 
+	 * Note that, like tfs_getOneFreeBlock, first free block will NOT
+	 * be included. The blocks are not marked in the FAT, so the caller must
+	 * hold allocLock until it has done so.
+	 * 
+	 *  
+	 * @param n The number of free blocks needed
+	 * @return List<Integer> A list with indexes of free blocks with one extra free block
+	 * @throws RuntimeException If enough blocks could not be found.
+	 * 
+	 */
+	private Queue<Integer> tfs_getFreeBlocks(int n)
+	{
+		return tfs_getFreeBlocks(n, PCB.getRootDir() + 1);
+	}
+	
+	/**
+	 * Overloaded version of tfs_getFreeBlocks(int n) which begins the search at block start,
+	 * and wraps around to the block after the root directory if the end of the disk is reached.
+	 * Used when appending to a file, so that the search begins just after its last block rather
+	 * than passing over every block in use before it.
+	 * 
+	 * @param n The number of free blocks needed
+	 * @param start The block at which to begin the search.
+	 * @return List<Integer> A list with indexes of free blocks
+	 * @throws RuntimeException If enough blocks could not be found.
+	 */
+	private Queue<Integer> tfs_getFreeBlocks(int n, int start)
+	{
+		int num = n;                             //Number of blocks required.
+		int blocksFound = 0;
+		int [] tmpFAT = PCB.getFAT();            //Get the current FAT in memory.
+		int numBlocksTFS = PCB.getNumBlocks();
+		int first = PCB.getRootDir() + 1;        //Does not attempt to search blocks before or at block of rootDir.
+		if (start < first || start >= numBlocksTFS)
+			start = first;
+		Queue<Integer> freeQ = new LinkedList<Integer>();
+		
+				
+		/*
+		 * If more blocks are needed, find the required number of free blocks and store 
+		 * their indexes in list. Search from start to end of disk, then from first up to start.
+		 */
+		for (int j = 0; blocksFound < num && j < numBlocksTFS - first; j++)
+		{
+			int i = start + j;
+			if (i >= numBlocksTFS)
+				i -= numBlocksTFS - first;
+			
+			if ((tmpFAT[i] == 0) && (i != PCB.getFirstFreeBlock()))   //If block is a free block, add its index to list
+			{
+				blocksFound++;           //Increment blocks found to indicate another has been found
+				freeQ.add(new Integer(i));
+			}
+			
+		}
+		
+		if (blocksFound < num)            //Throw RunTimeException if enough blocks not found.
+			throw new RuntimeException("Insufficient space available on disk.");
+		
+		return freeQ;
+		
+	}
+	
+	/**
+	 * Logically frees up linked blocks on disk, starting at the location specified.
+	 * This is simply done by updating FAT.
+	 * Prevents clearing the PCB or FAT blocks.
+	 *
+	 * @param location The location from which to start
+	 *
+	 * @throws IllegalArgumentException if location is not within file system or numBytes is invalid.
+	 *
+	 *
+	 */
+	private void tfs_clear_blocks(int location)
+	{
+		tfs_free_chain(location);
+		tfs_sync();                           //Sync to store updated PCB to disk, with FAT.
+	}
+	
+	/**
+	 * Overloaded version of tfs_clear_blocks() for the blocks of a removed file, which may be
+	 * stored with a block map. See tfs_release_blocks(). The FAT is written to disk.
+	 *
+	 * @param entry The FCB of the removed file.
+	 */
+	private void tfs_clear_blocks(FCB entry)
+	{
+		if (entry.isInline())                 //No blocks, so the FAT is not changed.
+			return;
+		
+		tfs_release_blocks(entry);
+		tfs_sync();
+	}
+	
+	/**
+	 * Overloaded version of tfs_clear_blocks() for the entries from to to of a block map. One
+	 * reference is dropped from each block, and a block nothing refers to any more is freed
+	 * and taken out of the index. The entries are set to 0, so they are holes afterwards.
+	 * Only the FAT in memory is changed. Holds allocLock.
+	 *
+	 * @param entries Entries of the map, each a block or 0 for a hole.
+	 * @param from The first entry to clear.
+	 * @param to The entry after the last one to clear.
+	 */
+	private void tfs_clear_blocks(int[] entries, int from, int to)
+	{
+		allocLock.lock();
+		try
+		{
+			for (int i = from; i < to; i++)
+			{
+				if (entries[i] > 0 && tfs_drop_ref(entries[i]))
+				{
+					tfs_unindex(entries[i]);
+					PCB.updateFAT(entries[i], 0);
+				}
+				entries[i] = 0;
+			}
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Frees the linked blocks starting at the location specified by updating the FAT,
+	 * without writing the FAT to disk. Used where many chains are freed at once,
+	 * followed by a single tfs_sync(). Holds allocLock.
+	 *
+	 * @param location The location from which to start
+	 * @throws IllegalArgumentException if location is not within file system.
+	 */
+	private void tfs_free_chain(int location)
+	{
+		allocLock.lock();
+		try
+		{
+			if (location < PCB.getRootDir() || location > PCB.getNumBlocks())
+				throw new IllegalArgumentException("Cannot clear blocks. Invalid location given");
+	
+			//Set entries in FAT to 0 for these linked blocks to reflect changes.
+	
+			int curBlock = location;
+			int oldVal = curBlock;
+			do
+			{
+				oldVal = PCB.getFAT()[oldVal];     //Save the value previously held in this index.
+				PCB.updateFAT(curBlock, 0);        //Set index to 0.
+				curBlock = oldVal;
+	
+			} while (oldVal > 0);
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Frees the blocks of an entry which was removed, without writing the FAT to disk. A file
+	 * stored with a block map drops its reference to each of its blocks with tfs_clear_blocks(),
+	 * so blocks which other files still refer to are kept, and then its map is freed. Any
+	 * other entry has its chain freed. Inline files have no blocks, so nothing is freed.
+	 *
+	 * @param entry The FCB of the removed entry.
+	 */
+	private void tfs_release_blocks(FCB entry)
+	{
+		if (entry.isInline())
+			return;
+	
+		if (entry.isMapped())
+		{
+			int[] entries = tfs_read_map(entry.getLocation());
+			if (entries == null)                 //Blocks of data are lost, but the map itself is still freed.
+				System.err.println("Reading block map of " + entry.getStrName() + " failed.");
+			else
+				tfs_clear_blocks(entries, 0, entries.length);
+		}
+	
+		tfs_free_chain(entry.getLocation());
+	}
+	
+	/**
+	 * Reads every entry of the block map at location, including any 0 entries after the last
+	 * block of the file in the last block of the map.
+	 *
+	 * @param location The first block of the map.
+	 * @return int[] The entries, or null if a block could not be read.
+	 */
+	private int[] tfs_read_map(int location)
+	{
+		byte[] bytes = tfs_read_blocks(location);
+		if (bytes == null)
+			return null;
+	
+		int[] entries = new int[bytes.length / 4];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(entries);
+		return entries;
+	}
+	
+	/**
+	 * Overloaded version of tfs_read_map() which reads count entries of the map of a file of
+	 * size bytes, starting at entry first. Only the blocks of the map holding them are read.
+	 * Entries past the last block of the file are 0, and are not read.
+	 *
+	 * @param location The first block of the map.
+	 * @param size The size of the file.
+	 * @param first The first entry to read.
+	 * @param count The number of entries to read.
+	 * @return int[] The entries, or null if a block could not be read.
+	 */
+	private int[] tfs_read_map(int location, int size, int first, int count)
+	{
+		int[] entries = new int[count];
+		int stored = Math.min(count, tfs_calcBlocksNeeded(size) - first);   //Entries up to the last block of the file.
+		if (stored <= 0)
+			return entries;
+	
+		ByteBuffer bytes = ByteBuffer.allocate(stored * 4);
+		if (tfs_read_range(location, first * 4, bytes.array(), 0, stored * 4) < 0)
+			return null;
+	
+		bytes.asIntBuffer().get(entries, 0, stored);
+		return entries;
+	}
+	
+	/**
+	 * Writes entries into the block map at location, starting at entry first. The chain of the
+	 * map grows by tfs_write_range() if the entries run past it, and new blocks of the map are
+	 * filled with 0, so the entries between hold holes.
+	 *
+	 * @param location The first block of the map.
+	 * @param first The entry at which to begin the write.
+	 * @param entries The entries to write.
+	 * @return int 0 if success, or -1 if a write fails.
+	 * @throws RuntimeException If enough free blocks could not be found.
+	 */
+	private int tfs_write_map(int location, int first, int[] entries)
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(entries.length * 4);
+		bytes.asIntBuffer().put(entries);
+		return (tfs_write_range(location, first * 4, bytes) < 0 ? -1 : 0);
+	}
+	
+	/**
+	 * Stores the block map of a new file of size bytes, all in holes, so no blocks of data
+	 * are taken. Only the map itself is written, by tfs_write_blocks().
+	 *
+	 * @param size The size of the new file.
+	 * @return int The first block of the map, or -1 if the write fails.
+	 * @throws RuntimeException if sufficient space is not available on disk.
+	 */
+	private int tfs_new_map(int size)
+	{
+		int mapBlocks = tfs_calcBlocksNeeded(4 * tfs_calcBlocksNeeded(size));
+		return tfs_write_blocks(new byte[mapBlocks * PCB.getBlockSize()]);
+	}
+	
+	/**
+	 * Reads length bytes into buf, starting at bufOffset, from the file of size bytes stored
+	 * with the block map at location, starting at the file offset given. Only the entries of
+	 * the map covering the range are read. Holes are filled with 0 without reading the disk,
+	 * and runs of consecutive blocks covered fully are read directly into buf with one read.
+	 *
+	 * @param location The first block of the map.
+	 * @param size The size of the file.
+	 * @param offset File offset at which to begin the read.
+	 * @param buf Buffer to read into.
+	 * @param bufOffset Position in buf of the first byte read.
+	 * @param length Number of bytes to read.
+	 * @return int 0 if success, or -1 if a read fails.
+	 */
+	private int tfs_read_mapped(int location, int size, int offset, byte[] buf, int bufOffset, int length)
+	{
+		int blSize = PCB.getBlockSize();
+		int first = offset / blSize;
+		int[] entries = tfs_read_map(location, size, first, (offset + length - 1) / blSize + 1 - first);
+		if (entries == null)
+			return -1;
+	
+		byte[] tmpBytes = null;                           //Temporary buffer for partial blocks.
+		int inner = offset % blSize;                      //Position in the first block where read begins.
+		int bytesRead = 0;
+		for (int i = 0; i < entries.length; i++)
+		{
+			int count = Math.min(blSize - inner, length - bytesRead);   //Bytes of this block being read.
+			if (entries[i] == 0)                          //Hole.
+				Arrays.fill(buf, bufOffset + bytesRead, bufOffset + bytesRead + count, (byte) 0);
+			else if (count == blSize)                     //Full block. Read it and any following consecutive full blocks directly into buf.
+			{
+				int run = 1;
+				while (length - bytesRead >= (run + 1) * blSize && entries[i + run] == entries[i] + run)
+					run++;
+	
+				if (TFSDiskInputOutput.tfs_dio_readBlocks(entries[i], run, buf, bufOffset + bytesRead) < 0)
+					return -1;
+	
+				count = run * blSize;
+				i += run - 1;
+			}
+			else
+			{
+				if (tmpBytes == null)
+					tmpBytes = new byte[blSize];
+				if (TFSDiskInputOutput.tfs_dio_readBlock(entries[i], tmpBytes) < 0)
+					return -1;
+				System.arraycopy(tmpBytes, inner, buf, bufOffset + bytesRead, count);
+			}
+	
+			bytesRead += count;
+			inner = 0;
+		}
+	
+		return 0;
+	}
+	
+	/**
+	 * Writes the remaining bytes of src into the file of size bytes stored with the block map
+	 * at location, starting at the file offset given, and moves the position of src past them.
+	 * Only the entries of the map covering the range are read. The first and last blocks are
+	 * read and patched if the range covers them only partly, and a hole is patched as a block
+	 * of 0. The blocks are then written by tfs_write_blocks(), which decides for each where it
+	 * is stored, and the entries changed are written back to the map. Blocks in holes before
+	 * offset are not written. The FAT is written to disk if it was changed.
+	 *
+	 * @param location The first block of the map.
+	 * @param size The size of the file before the write.
+	 * @param offset File offset at which to begin the write.
+	 * @param src Buffer holding the bytes to write, from its position up to its limit.
+	 * @return int 0 if success, or -1 if a read or write fails or blocks could not be counted.
+	 * @throws RuntimeException If enough free blocks could not be found.
+	 */
+	private int tfs_write_mapped(int location, int size, int offset, ByteBuffer src)
+	{
+		int blSize = PCB.getBlockSize();
+		int first = offset / blSize;
+		int[] entries = tfs_read_map(location, size, first, (offset + src.remaining() - 1) / blSize + 1 - first);
+		if (entries == null)
+			return -1;
+	
+		int[] before = entries.clone();
+		int inner = offset % blSize;                      //Position in the first block where write begins.
+		int i = 0;
+		while (i < entries.length)
+		{
+			if (inner == 0 && src.remaining() >= blSize)  //Full blocks. Written straight from src.
+			{
+				int run = src.remaining() / blSize;
+				ByteBuffer blocks = src.duplicate();
+				blocks.limit(blocks.position() + run * blSize);
+				if (tfs_write_blocks(entries, i, i + run, blocks) < 0)
+					return -1;
+	
+				src.position(blocks.position());
+				i += run;
+			}
+			else                                          //Partial block. Read it, patch it, write it.
+			{
+				byte[] tmpBytes = new byte[blSize];
+				if (entries[i] > 0 && TFSDiskInputOutput.tfs_dio_readBlock(entries[i], tmpBytes) < 0)
+					return -1;
+	
+				src.get(tmpBytes, inner, Math.min(blSize - inner, src.remaining()));
+				if (tfs_write_blocks(entries, i, i + 1, ByteBuffer.wrap(tmpBytes)) < 0)
+					return -1;
+				i++;
+			}
+			inner = 0;
+		}
+	
+		if (Arrays.equals(entries, before))               //Every block was written where it was.
+			return 0;
+	
+		return (tfs_write_map(location, first, entries) < 0 || tfs_sync() < 0 ? -1 : 0);
+	}
+	
+	/**
+	 * Changes the size of the file stored with the block map at location from size to newSize
+	 * bytes, for tfs_truncate_FDT(). A longer file has 0 entries added to its map, so the bytes
+	 * added are a hole. A shorter file has the rest of its new last block written as 0 by
+	 * tfs_write_mapped(), and drops the blocks after it with tfs_clear_blocks(). Their entries
+	 * are set to 0 where they stay in the map, and the blocks of the map no longer needed are
+	 * freed.
+	 *
+	 * @param location The first block of the map.
+	 * @param size The size of the file before the change.
+	 * @param newSize The new size of the file.
+	 * @return int 0 if success, or -1 if a read or write fails.
+	 * @throws RuntimeException If enough free blocks could not be found.
+	 */
+	private int tfs_truncate_mapped(int location, int size, int newSize)
+	{
+		int count = tfs_calcBlocksNeeded(size);
+		int newCount = tfs_calcBlocksNeeded(newSize);
+		if (newSize > size)
+			return (newCount > count ? tfs_write_map(location, newCount - 1, new int[1]) : 0);
+	
+		int blSize = PCB.getBlockSize();
+		int[] entries = tfs_read_map(location, size, newCount - 1, count - newCount + 1);
+		if (entries == null)
+			return -1;
+	
+		int kept = (newSize == 0 ? 0 : 1);                //Entries read which stay in the file.
+		int used = newSize - (newCount - 1) * blSize;     //Bytes of the new last block which are kept.
+		if (kept > 0 && used < blSize && entries[0] > 0
+				&& tfs_write_mapped(location, size, newSize, ByteBuffer.allocate(blSize - used)) < 0)
+			return -1;
+	
+		tfs_clear_blocks(entries, kept, entries.length);
+		int mapBlocks = tfs_calcBlocksNeeded(4 * newCount);
+		int cleared = Math.min(count, mapBlocks * blSize / 4) - (newCount - 1 + kept);   //Entries cleared in the blocks of the map kept.
+		if (cleared > 0 && tfs_write_map(location, newCount - 1 + kept, new int[cleared]) < 0)
+			return -1;
+	
+		return (tfs_trim_chain(location, mapBlocks) < 0 || tfs_sync() < 0 ? -1 : 0);
+	}
+	
+	/**
+	 * Stores a file held in a chain of blocks with a block map instead, so that single blocks
+	 * of it can be shared. The map lists the blocks of the chain in turn, and 0 for the blocks
+	 * of a hole at its end. The map is written by tfs_write_blocks() before the chain is
+	 * unlinked, so nothing is changed if it cannot be written. Each block of data then ends
+	 * its own chain in the FAT. The blocks are added to the index while it is kept. The entry
+	 * is marked MAPPED_FILE, and must be stored by the caller.
+	 *
+	 * @param entry The FCB of the file.
+	 * @return int The first block of the map, or -1 if it could not be written.
+	 */
+	private int tfs_map_file(FCB entry)
+	{
+		int blSize = PCB.getBlockSize();
+		int count = tfs_calcBlocksNeeded(entry.getSize());
+		ByteBuffer map = ByteBuffer.allocate(tfs_calcBlocksNeeded(4 * count) * blSize);
+		int block = entry.getLocation();
+		for (int i = 0; i < count && block > 0; i++, block = PCB.getFAT()[block])
+			map.putInt(block);
+	
+		int location;
+		try
+		{
+			location = tfs_write_blocks(map.array());
+		} catch (RuntimeException e)
+		{
+			System.err.println("Writing block map failed: " + e.getMessage());
+			return -1;
+		}
+		if (location < 0)
+			return -1;
+	
+		int rest = block;                                 //Blocks past the end of the file, if any.
+		for (int i = 0; i < map.position() / 4; i++)
+			PCB.updateFAT(map.getInt(i * 4), -1);
+		if (rest > 0)
+			tfs_free_chain(rest);
+		if (tfs_sync() < 0)
+			return -1;
+	
+		entry.setFileOrDir(FCB.MAPPED_FILE);
+		entry.setLocation(location);
+		if (blockIndex != null && tfs_index_map(location, new HashSet<Integer>()) < 0)   //Blocks not added are only not shared.
+			System.err.println("Adding blocks at " + location + " to the index failed.");
+		return location;
+	}
+	
+	/**
+	 * Stores the open file associated with fd with a block map by tfs_map_file(), and forgets
+	 * the blocks recorded for it in the FDT. The entry is stored if the file was opened by
+	 * tfs_open(). Otherwise it is stored by the path based caller.
+	 *
+	 * @param fd The file descriptor of the file.
+	 * @return int The first block of the map, or -1 if an error occurs.
+	 */
+	private int tfs_map_FDT(int fd)
+	{
+		int location = tfs_map_file(fd_Table.getFCB(fd));
+		if (location < 0)
+			return -1;
+	
+		fd_Table.updatePos(fd, 0, location);
+		fd_Table.updateTail(fd, -1, 0);
+		if (fd_Table.getParentLocation(fd) >= 0 && tfs_store_entry_FDT(fd) < 0)
+			return -1;
+	
+		return location;
+	}
+	
+	/**
+	 * Stores the file of the entry down the path with a block map by tfs_map_file(), before
+	 * another entry refers to its blocks. If the file is open, its FCB in the FDT is changed
+	 * instead, and the blocks recorded for it are forgotten. The parent of the file must be
+	 * locked for writing.
+	 *
+	 * @param dirs Elements of the path to the file, as returned by getValidPath().
+	 * @return int The first block of the map, or -1 if the file cannot be found or its entry
+	 * cannot be stored.
+	 */
+	private int tfs_map_entry(String[] dirs)
+	{
+		FCBView lookupView = lookupViews.get();
+		int parentLoc = PCB.getRootDir();         //Find parent directory, starting with root.
+		int parentSize = rD.getByteSize();
+		if (dirs.length > 1)
+		{
+			if (tfs_lookup(dirs, dirs.length - 1, true, lookupView) < 0)
+				return -1;
+			parentLoc = lookupView.getLocation();
+			parentSize = lookupView.getSize();
+		}
+	
+		int slot = tfs_find_entry(parentLoc, parentSize, dirs[dirs.length - 1], false, lookupView);
+		if (slot < 0)
+			return -1;
+	
+		FCB target = lookupView.toFCB();
+		int fd = (fd_Table.isEmpty() ? -1 : fd_Table.getFD(parentLoc, slot));
+		if (fd >= 0)                              //If file is open, its entry in the FDT is changed as well.
+			target = fd_Table.getFCB(fd);
+	
+		int location = tfs_map_file(target);
+		if (location < 0)
+			return -1;
+	
+		if (fd >= 0)
+		{
+			fd_Table.updatePos(fd, 0, location);
+			fd_Table.updateTail(fd, -1, 0);
+			fd_Table.updateShared(fd);
+		}
+	
+		return (tfs_store_entry(parentLoc, slot, target) < 0 ? -1 : location);
+	}
+	
+	/**
+	 * Stores a file held with a block map in a chain of blocks of its own again, before its
+	 * blocks are rewritten in place. Its data is read and written to a new chain, and then its
+	 * map is released. The entry is no longer marked MAPPED_FILE, and must be stored by the
+	 * caller.
+	 *
+	 * @param entry The FCB of the file.
+	 * @return int The first block of the new chain, or -1 if an error occurs.
+	 */
+	private int tfs_unmap(FCB entry)
+	{
+		int size = entry.getSize();
+		byte[] data = new byte[tfs_calcBlocksNeeded(size) * PCB.getBlockSize()];
+		if (size > 0 && tfs_read_mapped(entry.getLocation(), size, 0, data, 0, size) < 0)
+			return -1;
+	
+		int location;
+		try
+		{
+			location = tfs_write_blocks(data);
+		} catch (RuntimeException e)
+		{
+			System.err.println("Writing blocks failed: " + e.getMessage());
+			return -1;
+		}
+		if (location < 0)
+			return -1;
+	
+		tfs_release_blocks(entry);
+		if (tfs_sync() < 0)
+			return -1;
+	
+		entry.setFileOrDir(false);
+		entry.setLocation(location);
+		return location;
+	}
+	
+	/**
+	 * Finds the first block of the map of every file marked MAPPED_FILE, by searching the
+	 * whole tree with tfs_find().
+	 *
+	 * @return List<Integer> The maps found, or null if a directory could not be read.
+	 */
+	private List<Integer> tfs_map_locations()
+	{
+		List<Integer> maps = new ArrayList<Integer>();
+		return (tfs_find("/", v -> v.isMapped(), (p, f) -> maps.add(f.getLocation())) < 0 ? null : maps);
+	}
+	
+	/**
+	 * Counts the references to the blocks of mapped files, if they have not been counted since
+	 * mounting. Called by tfs_mount(). A block is referred to by each entry of a map holding it. Only blocks referred
+	 * to more than once are kept in blockRefs. The maps are found by tfs_map_locations(), so
+	 * this must be done before an entry is removed from a directory stored on disk.
+	 *
+	 * @return int 0 if success, or -1 if a directory or map could not be read.
+	 */
+	private int tfs_load_refs()
+	{
+		if (blockRefs != null)
+			return 0;
+	
+		List<Integer> maps = tfs_map_locations();
+		if (maps == null)
+			return -1;
+	
+		Map<Integer, Integer> refs = new HashMap<Integer, Integer>();
+		for (int location : maps)
+		{
+			int[] entries = tfs_read_map(location);
+			if (entries == null)
+				return -1;
+			for (int block : entries)
+			{
+				if (block > 0)
+					refs.merge(block, 1, Integer::sum);
+			}
+		}
+	
+		refs.values().removeIf(r -> r < 2);
+		blockRefs = refs;
+		return 0;
+	}
+	
+	/**
+	 * Adds the blocks of mapped files to the index, if it has not been built since mounting or
+	 * since the dedup layer was turned on. The maps are found by tfs_map_locations(), and each
+	 * block is read and hashed once by tfs_index_map().
+	 *
+	 * @return int 0 if success, or -1 if a directory or block could not be read.
+	 */
+	private int tfs_load_index()
+	{
+		if (blockIndex != null)
+			return 0;
+	
+		List<Integer> maps = tfs_map_locations();
+		if (maps == null)
+			return -1;
+	
+		blockIndex = new HashMap<String, Integer>();
+		blockKeys = new HashMap<Integer, String>();
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int location : maps)
+		{
+			if (tfs_index_map(location, seen) < 0)
+			{
+				blockIndex = null;
+				blockKeys = null;
+				return -1;
+			}
+		}
+	
+		return 0;
+	}
+	
+	/**
+	 * Reads and hashes the blocks of the map at location, and adds each to the index unless
+	 * a block with the same bytes is in it already. Blocks in seen are skipped, as they have
+	 * been added already, and the blocks read are added to seen.
+	 *
+	 * @param location The first block of the map.
+	 * @param seen Blocks already added.
+	 * @return int 0 if success, or -1 if a block could not be read.
+	 */
+	private int tfs_index_map(int location, Set<Integer> seen)
+	{
+		allocLock.lock();
+		try
+		{
+			int[] entries = tfs_read_map(location);
+			if (entries == null)
+				return -1;
+	
+			byte[] buf = new byte[PCB.getBlockSize()];
+			for (int block : entries)
+			{
+				if (block <= 0 || !seen.add(block))
+					continue;
+				if (TFSDiskInputOutput.tfs_dio_readBlock(block, buf) < 0)
+					return -1;
+	
+				String key = tfs_block_hash(buf);
+				if (blockIndex.putIfAbsent(key, block) == null)
+					blockKeys.put(block, key);
+			}
+	
+			return 0;
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops one reference to a block, for a map entry which no longer refers to it.
+	 * A block which is not shared has one reference, which is not counted in blockRefs.
+	 *
+	 * @param block The block.
+	 * @return boolean true if nothing refers to the block any more, so it can be freed.
+	 */
+	private boolean tfs_drop_ref(int block)
+	{
+		allocLock.lock();
+		try
+		{
+			Integer refs = (blockRefs == null ? null : blockRefs.get(block));
+			if (refs == null)                    //Block is not shared.
+				return true;
+	
+			if (refs > 2)
+				blockRefs.put(block, refs - 1);
+			else
+				blockRefs.remove(block);         //One reference left. Block is no longer shared.
+	
+			return false;
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds one reference to a block, for a map entry which now refers to it as well.
+	 *
+	 * @param block The block.
+	 */
+	private void tfs_add_ref(int block)
+	{
+		allocLock.lock();
+		try
+		{
+			blockRefs.merge(block, 2, (refs, one) -> refs + 1);
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes a block out of the index, before it is changed or freed.
+	 *
+	 * @param block The block.
+	 */
+	private void tfs_unindex(int block)
+	{
+		allocLock.lock();
+		try
+		{
+			String key = (blockKeys == null ? null : blockKeys.remove(block));
+			if (key != null)
+				blockIndex.remove(key);
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the SHA-256 hash of the bytes of a block, which is its key in the index. Two
+	 * blocks with the same key hold the same bytes, so one can be used in place of the other.
+	 */
+	private String tfs_block_hash(byte[] buf)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available.", e);
+		}
+	
+		return Base64.getEncoder().encodeToString(digest.digest(buf));
+	}
+	
+	/**
+	 * Takes a chain of n free blocks from the FAT and links them, marking the last as EOF.
+	 * The search for free blocks continues from the cursor of alloc, where the previous call
+	 * for the same copy stopped, so the FAT is scanned only once during a tree copy. Like 
+	 * tfs_getFreeBlocks(), the first free block is never taken. Blocks are not written, and
+	 * the FAT is not written to disk. The chain is added to the chains of alloc, so that it 
+	 * can be freed if the copy fails.
+	 * 
+	 * Holds allocLock, since it is called by the tasks of tfs_cp_recursive() and by calls 
+	 * in other directories.
+	 * 
+	 * @param alloc The blocks taken so far by the calling copy.
+	 * @param n The number of blocks needed.
+	 * @return int The first block of the chain.
+	 * @throws RuntimeException If enough blocks could not be found.
+	 */
+	private int tfs_alloc_chain(Allocation alloc, int n)
+	{
+		allocLock.lock();
+		try
+		{
+			int [] tmpFAT = PCB.getFAT();
+			int numBlocksTFS = PCB.getNumBlocks();
+			int first = -1;
+			int prev = -1;
+		
+			for (int i = alloc.cursor; n > 0 && i < numBlocksTFS; i++)
+			{
+				if ((tmpFAT[i] == 0) && (i != PCB.getFirstFreeBlock()))
+				{
+					PCB.updateFAT(i, -1);              //New last block of the chain.
+					if (prev < 0)
+						first = i;
+					else
+						PCB.updateFAT(prev, i);        //Link previous block to this one.
+				
+					prev = i;
+					alloc.cursor = i + 1;
+					n--;
+				}
+			}
+		
+			if (n > 0)                                  //Give back partial chain and throw if enough blocks not found.
+			{
+				if (first >= 0)
+					tfs_free_chain(first);
+				throw new RuntimeException("Insufficient space available on disk.");
+			}
+		
+			alloc.chains.add(first);
+			return first;
+		} finally
+		{
+			allocLock.unlock();
+		}
+	}
+	
+	/**
+	 * Counts the blocks linked in the FAT starting at location.
+	 * 
+	 * @param location The first block of the chain.
+	 * @return int The number of blocks in the chain.
 	 */
-	
-	private Directory tfs_load_dir(int location, int size)
+	private int tfs_chain_length(int location)
 	{
-		byte[] bDir = tfs_read_blocks(location);   //Call tfs_read_blocks and load them into memory here.
+		int numBlocks = 0;
+		for (int fB = location; fB > 0; fB = (PCB.getFAT())[fB])
+			numBlocks++;
 		
-		/*
-		 * Now use the byte[] to reconstruct the Directory in memory, of size given by int size.
-		 * This is done by static Directory.bytesToDir() method. Note that this method
-		 * will not catch any IllegalArgumentException thrown by Directory.bytesToDir().
-		 */
-		return Directory.bytesToDir(bDir, size);
+		return numBlocks;
 	}
 	
 	/**
-	 * Stores a directory to disk at the given location (block). Uses tfs_write_blocks()
-	 * to write the blocks of the directory to disk to the given location. Note that
-	 * tfs_write_blocks calls tfs_sync() to synchronize file system data in memory with
-	 * data held on disk.
+	 * Checks if the first size bytes of the chain starting at location are held in consecutive
+	 * blocks. A chain which ends, or ends in a hole, before size bytes is not.
 	 * 
-	 * @param dir The Directory to store to disk.
-	 * @param location int block number of the location to store the directory.
-	 * @return 0 if success, or -1 if write fails.
+	 * @param location The first block of the chain.
+	 * @param size The number of bytes to check.
+	 * @return true if the blocks holding size bytes follow on from location.
 	 */
-	private int tfs_store_dir(Directory dir, int location)
+	private boolean tfs_is_contiguous(int location, int size)
 	{
-		return tfs_write_blocks(dir.getByteArr(), location);
-				
+		int[] fat = PCB.getFAT();
+		int block = location;
+		int blocks = tfs_calcBlocksNeeded(size);
+		for (int i = 1; i < blocks; i++, block++)
+		{
+			if (fat[block] != block + 1)
+				return false;
+		}
+		
+		return (location > 0);
 	}
 	
-    /**
-	 * Writes the bytes in the buffer to disk, starting at the specified block number int
-	 * location. Handles several cases which may occur:
-	 * 
-	 * 1)Starting block is empty, so data is written to an empty section of disk.
-	 *   Avoid FAT lookup if possible by checking if specified location is first free block
-	 *   index maintained by PCB.
-	 *   
-	 * 2)Starting block is NOT empty. 
-	 *   FAT lookup occurs to find linked blocks of existing data (file or directory). 
-	 *   Data stored in these blocks is overwritten.
-	 * 
-	 * In both cases, if additional blocks are required, these are obtained by looking up available 
-	 * block in the FAT.
-	 * The FAT is updated accordingly and written back to disk.
+	/**
+	 * Writes the bytes in buf into the existing chain of blocks starting at location, one block
+	 * at a time. The FAT is not changed, so the chain must already hold enough blocks for buf.
 	 * 
-	 * @param buf The buffer in memory to write from.
-	 * @param location The location (block num) to begin write. 
-	 * @return int The starting block written to if success or -1 if write fails.
-	 * @throws IllegalArgumentException if location (block number) is invalid.
-	 * @throws RuntimeException if sufficient space is not available on disk.
+	 * @param buf The bytes to write.
+	 * @param location The first block of the chain.
+	 * @return int 0 if success, or -1 if a write fails or the chain is too short.
 	 */
-
-	private int tfs_write_blocks(byte[] buf, int location) throws IllegalArgumentException
+	private int tfs_write_chain(byte[] buf, int location)
 	{
-		if (location < 0 || location > PCB.getNumBlocks())  //Invalid location, throw IllegalArgumentException.
-			throw new IllegalArgumentException("Cannot write blocks. Illegal argument for disk location (block). Block number " + location + " not in file system.");
-		
-		int blocksNeeded = 0;
-		if (buf == null)      //For empty blocks, just write a dummy block.
-			blocksNeeded = 1;
-		else
-			blocksNeeded = tfs_calcBlocksNeeded(buf.length);      //Calc number of blocks needed.
-		
-        int blSize = PCB.getBlockSize();                          //Current block size. 
-		
-		/**
-		 *  Case 1: Starting block is empty. Write will begin at first free block index stored in PCB.
-		 *  Write continues across available blocks found in FAT, if additional blocks are required.
-		 *  Resets first free block index in PCB to another free block.
-		 */
-		 if (PCB.getFAT()[location] == 0)
-		 {
-			  //If only one block is needed.
-			  if (blocksNeeded == 1)
-			  {
-				TFSDiskInputOutput.tfs_dio_writeBlock(location, buf); //Now write the block to disk.
-				PCB.updateFAT(location, -1);                          //Mark entry in FAT as EOF.
-				if (location == PCB.getFirstFreeBlock())              //If first free block has been used
-					PCB.setFirstFreeBlock(tfs_getOneFreeBlock());     //Find another free block to which to set value of first free block.
-			  }
-			  
-			  //If more than one block is needed, use tfs_getFreeBlocks to get a queue of available blocks.
-			  else 
-			  {
-				Queue<Integer> freeQ = tfs_getFreeBlocks(blocksNeeded - 1);    //Get one less block, since arg location will be used for first.
-				int curPos = 0;                                              //Current position in buf.
-                int writeLoc = location;                                     //First write location. 
-		         
-				 /*
-				  * Write all the bytes in buf to available blocks.
-				  * Write blocks as subsets of buf.
-				  */
-				  while(curPos < buf.length)
-				   {
-						/*
-						 * Write subset of buf of size block size to disk at writeLoc, which is a free location found in freeQ.
-						 * FAT is updated accordingly so that blocks are linked in their FAT entries. Current write location's
-						 * (block's) entry is updated with value at head of the queue of free blocks, freeQ.
-						 */
-						  //Perform write of subset of buf.
-						 int writeResult = TFSDiskInputOutput.tfs_dio_writeBlock(writeLoc, Arrays.copyOfRange(buf, curPos, (curPos + blSize))); 
-						 if (writeResult < 0)
-						 {
-							 System.err.println("Write to disk block "+writeLoc + " failed.");
-							 return -1;
-						 }
-							 
-						  if (!(freeQ.isEmpty()))                                                        //Make sure there are more free blocks.
-						  {
-							PCB.updateFAT(writeLoc, freeQ.peek());                                     //Update FAT to reflect write.
-							writeLoc = freeQ.poll();                                                  //Get next write location.
-						  }
-						 
-						 curPos += blSize;                                                 //Add block size to cur position in buf.              
-				   }
-				   
-				   PCB.updateFAT(writeLoc, -1);                                                        //Mark last block written as EOF.
-				   
-				   if (location == PCB.getFirstFreeBlock())              //If first free block has been used
-						PCB.setFirstFreeBlock(tfs_getOneFreeBlock());     //Find another free block to which to set value of first free block.
-				   
-				}   //End-else
-				
-		}  //End-if
-		
-		
-		/**
-		 *  Case 2: Starting block is not empty. This implies that the location and any logically linked blocks already
-		 *  contain data and must be overwritten. Performs check to make sure that enough space is available. Free
-		 *  blocks are acquired, if needed. Also, excess blocks marked as linked in FAT are marked as free.
-		 *  
-		 **/
-		else
+		int curBlock = location;
+		for (int curPos = 0; curPos < buf.length; curPos += PCB.getBlockSize())
 		{
-			/*
-			 * Continue writing from buf until EOF is reached. Check to see if
-			 * all blocks could be written over existing blocks. If buf.length
-			 * is shorter than the space available in the currently linked blocks,
-			 * free up these blocks by marking them with 0 in FAT.
-			 */
-			int curEntry = location; 
-            int curPos = 0;                                      //Current position in arg buf.
-			int blocksWritten = 0;                               //Number of blocks written so far. 
+			if (curBlock <= 0 || TFSDiskInputOutput.tfs_dio_writeBlock(curBlock, buf, curPos) < 0)
+				return -1;
 			
-			//Continue until current EOF is reached. Write at least one block to location given.
-			do            		
-		    {
-			     if (blocksWritten < blocksNeeded)                //If there is more to write, write the current block at curEntry.
-				 {
-			    	if (buf != null)                              //If buf is empty, no need to actually write.
-			    		TFSDiskInputOutput.tfs_dio_writeBlock(curEntry, Arrays.copyOfRange(buf, curPos, (curPos + blSize)));
-			    	
-					blocksWritten++;
-					curPos += blSize;                           //Update position in buf.
-				 }
-				 //Otherwise, update FAT to reflect the fact that some blocks are now available, since fewer were needed.
-				 else
-				 {
-					PCB.updateFAT(curEntry, 0);             //Mark these blocks as free.
-				 }
-			   //Set value of curEntry to next linked block value held in this entry. Don't update it if value is EOF.
-				 if ( (PCB.getFAT()[curEntry]) != -1)
-					 curEntry = PCB.getFAT()[curEntry];  
-				 
-			}while ( (PCB.getFAT()[curEntry]) != -1);
-			
-			
-			
-			//If more blocks are still needed, get free blocks from FAT and update FAT accordingly.
-		    if(blocksWritten < blocksNeeded) 
-			{
-			    Queue<Integer> availBlocks = tfs_getFreeBlocks(blocksNeeded - blocksWritten);
-			    PCB.updateFAT(curEntry, availBlocks.peek());                    //Update FAT to reflect previous write.
-				curEntry = availBlocks.poll();                                  //Set next write location at next free block.
-				
-				while (curPos < buf.length)
-				{
-				          //Perform write of subset of buf.
-						 TFSDiskInputOutput.tfs_dio_writeBlock(curEntry, Arrays.copyOfRange(buf, curPos, (curPos + blSize)));   
-						  if (!(availBlocks.isEmpty()))                                     //Make sure there are more free blocks.
-						  {
-							PCB.updateFAT(curEntry, availBlocks.peek());                    //Update FAT to reflect write.
-							curEntry = availBlocks.poll();                                  //Get next write location.
-						  }
-						 
-						 curPos += blSize;                                                 //Add block size to cur position in buf.
-				}
-				
-				PCB.updateFAT(curEntry, -1);                                              //Mark last block written to as EOF.
-				
-			}
+			curBlock = PCB.getFAT()[curBlock];
+		}
 		
-		}//End-else
-			  
-		 //Call tfs_sync() to write PCB back to disk, with FAT.
-		tfs_sync();
+		return 0;
+	}
+	
+	/**
+	 * Copies the blocks of the chain starting at source into the chain starting at destination,
+	 * through blockBuf, until either chain ends. Where both chains continue in consecutive 
+	 * blocks, as many blocks as fit in blockBuf are copied by one read and one write. If both 
+	 * chains end together and source ends in a hole, destination is marked to end in a hole too.
+	 * 
+	 * @param source The first block of the chain to copy.
+	 * @param destination The first block of the chain to copy to.
+	 * @param blockBuf Buffer of one or more blocks used for the copy.
+	 * @return int 0 if success, or -1 if a read or write fails.
+	 */
+	private int tfs_copy_chain(int source, int destination, byte[] blockBuf)
+	{
+		int[] fat = PCB.getFAT();
+		int maxRun = Math.max(1, blockBuf.length / PCB.getBlockSize());
+		int src = source;
+		int dest = destination;
+		int destLast = destination;
+		while (src > 0 && dest > 0)
+		{
+			int run = 1;                                 //Count blocks which follow on in both chains.
+			while (run < maxRun && fat[src + run - 1] == src + run && fat[dest + run - 1] == dest + run)
+				run++;
+			
+			if (TFSDiskInputOutput.tfs_dio_readBlocks(src, run, blockBuf, 0) < 0 
+					|| TFSDiskInputOutput.tfs_dio_writeBlocks(dest, run, blockBuf, 0) < 0)
+				return -1;
+			
+			destLast = dest + run - 1;
+			src = fat[src + run - 1];
+			dest = fat[destLast];
+		}
 		
-		return location;
+		if (src == FileAccessTable.HOLE && dest <= 0)
+			PCB.updateFAT(destLast, FileAccessTable.HOLE);
 		
+		return 0;
 	}
 	
-	
 	/**
-	 * Overloaded version of tfs_write_blocks(byte[] buf, int location)
-	 * Takes no arg for location, so any location (start block) may be used on disk.
+	 * Transfers the first length bytes of the chain starting at location between the chain
+	 * and a host file, one run of consecutive blocks at a time, using tfs_dio_transferTo() or
+	 * tfs_dio_transferFrom(). The host file is read or written from its current position.
 	 * 
-	 * Useful if desired location is not known and any location may be used.
-	 * First free block stored in PCB will be used for initial block by
-	 * calling PCB.getFirstFreeBlock.
-	 * 
-	 * @param buf The byte buffer to write to disk
-	 * @return The starting location of write or -1 if write fails.
+	 * @param host The channel of the host file.
+	 * @param location The first block of the chain.
+	 * @param length The number of bytes to transfer.
+	 * @param toHost true to copy from the chain to host, false to copy from host to the chain.
+	 * @return int 0 if success, or -1 if a transfer fails or the chain is too short. If the 
+	 * chain ends in a hole, 0 is written to host for the rest of length.
 	 */
-	private int tfs_write_blocks(byte[] buf)
+	private int tfs_transfer_chain(FileChannel host, int location, int length, boolean toHost)
 	{
-		return tfs_write_blocks(buf, PCB.getFirstFreeBlock()); //Start write at first free block.
+		int[] fat = PCB.getFAT();
+		int blSize = PCB.getBlockSize();
+		int curBlock = location;
+		for (int done = 0; done < length; )
+		{
+			if (curBlock == FileAccessTable.HOLE && toHost)
+				return tfs_write_zeros(host, length - done);
+			if (curBlock <= 0)
+				return -1;
+			
+			int run = 1;                                  //Count consecutive blocks still needed.
+			while ((long) run * blSize < length - done && fat[curBlock + run - 1] == curBlock + run)
+				run++;
+			
+			int n = (int) Math.min((long) run * blSize, length - done);
+			int result = (toHost ? TFSDiskInputOutput.tfs_dio_transferTo(curBlock, n, host) 
+					: TFSDiskInputOutput.tfs_dio_transferFrom(host, curBlock, n));
+			if (result < 0)
+				return -1;
 			
+			done += n;
+			curBlock = fat[curBlock + run - 1];
+		}
+		
+		return 0;
 	}
 	
-	
 	/**
-	 *  Reads blocks starting at the given disk location and returns an array of bytes
-     *  holding the bytes of these blocks.
-	 *  
-	 *  FAT is consulted to ensure that all linked blocks are read following this block.
-	 *  Read continues until EOF marker (-1) entry is found at an index for a given block.
+	 * Writes count bytes of 0 to host, for the part of a file in a hole.
 	 * 
-	 * @param location int giving starting location (block) for read
-	 * @return byte[] holding bytes read from location.
-	 * @throws IllegalArgumentException if block number is invalid or block is empty.
+	 * @return int 0 if success, or -1 if the write fails.
 	 */
-	
-	private byte[] tfs_read_blocks(int location)
+	private int tfs_write_zeros(FileChannel host, int count)
 	{
-		if (location < 0 || location > PCB.getNumBlocks())  //Invalid location, throw IllegalArgumentException.
-			throw new IllegalArgumentException("Cannot read blocks. Illegal argument for disk location (block). Block number " + location + " not in file system.");
-		
-		else if ((PCB.getFAT())[location] == 0)  //If block is empty, throw IllegalArgumentException.
-			throw new IllegalArgumentException("Cannot read from block " + location + " since block is empty.");
-		
+		ByteBuffer zeros = ByteBuffer.allocate(Math.min(count, COPY_BLOCKS * PCB.getBlockSize()));
+		try
+		{
+			while (count > 0)
+			{
+				zeros.clear();
+				zeros.limit(Math.min(count, zeros.capacity()));
+				count -= host.write(zeros);
+			}
+		} catch (IOException e)
+		{
+			System.err.println("Writing to host failed: " + e.getMessage());
+			return -1;
+		}
 		
-		int numBlocks = 0;
+		return 0;
+	}
+	
+	/**
+	 * Walks the tree below the given directory with a RemoveTreeTask, then frees the blocks 
+	 * of every entry found and closes any removed files which are open. The FAT is not 
+	 * written to disk, and the directory itself is not freed.
+	 * 
+	 * A file open in the tree may be written through its fd while only the lock of its parent
+	 * is held, so before it is closed the lock of its parent is taken for writing, which waits
+	 * for any such write to end. If any was taken, the tree is walked again, since the writes
+	 * may have given the files other blocks. The caller holds the lock of the parent of dir, 
+	 * so no file in the tree can be opened again.
+	 * 
+	 * @param dir The FCB of the directory whose contents are removed.
+	 * @return int 0 if success, or -1 if a directory in the tree could not be read. 
+	 * Nothing is freed in this case.
+	 */
+	private int tfs_remove_tree(FCB dir)
+	{
+		Queue<FCB> removed = tfs_read_tree(dir);
+		if (removed == null)
+			return -1;
 		
-		//Determine the size of the output array  by looking in FAT. Count num blocks until an entry marked EOF is reached.
-		for (int fB = location; fB > 0; fB = (PCB.getFAT())[fB])
+		Set<Integer> dirs = new HashSet<Integer>();          //Locations of the removed directories.
+		dirs.add(dir.getLocation());
+		for (FCB entry : removed)
 		{
-			numBlocks++;
+			if (entry.is_Dir())
+				dirs.add(entry.getLocation());
 		}
-				
-		byte[] outArr = new byte[PCB.getBlockSize() * numBlocks]; //The output array of bytes of size block size * numBlocks.
-		int outPos = 0;                                          //Position in large array of bytes to output.
-		int bufPos = 0;                                        //Position in the small buffer.
 		
-		/*
-		 *  Outer loop to get linked blocks using FAT lookup to get block numbers.  Continue until FAT entry holding EOF (-1) is encountered,
-		 *  meaning current block won't have any blocks following it.
-		 *  Moves curBlock to next block after each iteration.
-		 */
-		for (int curBlock = location; curBlock > 0; curBlock = (PCB.getFAT())[curBlock])
-        {
-			byte[] buf = new byte[PCB.getBlockSize()];                                  //The buffer.
-			TFSDiskInputOutput.tfs_dio_readBlock(curBlock, buf);                         //Read the block into the buffer buf.
-
-            while (bufPos < buf.length && outPos < outArr.length)                 //Add bytes from current buffer to the large output array.
+		boolean waited = false;                              //true if a write through an fd may have changed the tree.
+		for (int fd = 0; fd < fd_Table.getCapacity() && !(fd_Table.isEmpty()); fd++)
+		{
+			int parentLoc = fd_Table.getParentLocation(fd);
+			if (dirs.contains(parentLoc))                    //If a removed file is open, close each of its entries.
 			{
-				outArr[outPos] = buf[bufPos];
-				
-				outPos++;          //Increment both indexes.
-				bufPos++;
+				tfs_lock_dir(parentLoc, true);               //Waits for writes of the file through fd.
+				waited = true;
+				if (fd_Table.getParentLocation(fd) == parentLoc)   //fd was not closed while waiting.
+					tfs_close_updateFDT(fd);
 			}
-			//Reset buffer index after buffer has been read into outArr.
-			bufPos = 0;
 		}
-			
-		return outArr;                                                                //Return the large array of bytes of these block(s).
 		
-			
+		if (waited && (removed = tfs_read_tree(dir)) == null)
+			return -1;
+		
+		for (FCB entry : removed)                            //Blocks other files still refer to are kept.
+			tfs_release_blocks(entry);
+		
+		return 0;
+	}
+	
+	/**
+	 * Walks the tree below the given directory with a RemoveTreeTask.
+	 * 
+	 * @param dir The FCB of the directory.
+	 * @return Queue<FCB> Every entry in the tree, or null if a directory could not be read.
+	 */
+	private Queue<FCB> tfs_read_tree(FCB dir)
+	{
+		Queue<FCB> removed = new ConcurrentLinkedQueue<FCB>();
+		try
+		{
+			ForkJoinPool.commonPool().invoke(new RemoveTreeTask(dir, removed));
+		} catch (RuntimeException e)
+		{
+			System.err.println("Removing contents of " + dir.getStrName() + " failed: " + e.getMessage());
+			return null;
+		}
+		
+		return removed;
 	}
 	
 	
-    /**
-	 * Service method for calculating the number of blocks that will
-	 * be needed to store a given element.
+	
+	/*********************************************************************************
+	 * Private locking methods. Every public call holds the read lock of mountLock, so the
+	 * file system is not mounted or unmounted during it. Directories are locked with their
+	 * lock in dirLocks: for reading by tfs_lookup() as it goes down a path, and for writing by
+	 * tfs_lock_path() for the directories a call changes. A file is guarded by the lock of its
+	 * parent directory, and a directory by its own lock. Only a call holding that lock for 
+	 * writing changes the blocks of the file or directory, or links blocks to its chain or 
+	 * unlinks them, so a call which writes into blocks it already has needs no other lock.
 	 * 
-	 * @param elemSize The size of the file or directory to be stored.
-	 * @return int The number of blocks needed to store an element.
+	 * The FAT is shared by every file, so any change which takes a free block or frees one is
+	 * made while holding allocLock, together with the search for the free blocks. allocLock 
+	 * also guards the first free block in the PCB, the counts and index of shared blocks, and
+	 * the writing of the FAT to disk by tfs_sync(). It is only held for as long as that takes.
+	 * A write to a file stored with a block map holds it throughout, since its blocks may be
+	 * shared with files in other directories, see tfs_write_blocks(int[], int, int, ByteBuffer).
+	 * 
+	 * Locks are always taken in the same order, so no two calls wait for each other. A call
+	 * takes its directory locks from root down, in order of depth, and in order of location 
+	 * among directories of the same depth, see tfs_lock_paths(). A directory lock is held 
+	 * together with the locks of every directory above it, so none of them is moved to another
+	 * depth while it is held. Calls on a file descriptor are the exception, since they lock
+	 * only the parent of the file, as are the locks tfs_remove_tree() takes on the parents of
+	 * open files in a tree it removes. A call on a file descriptor never waits for another 
+	 * directory lock while holding one, so neither can be part of a cycle. allocLock is always
+	 * taken last: no call waits for a directory lock, or for the tasks of tfs_find() or 
+	 * tfs_cp_recursive(), while it holds allocLock.
+	 * The locks taken by a call are recorded in the LockScope of its thread, and are released
+	 * together when the outermost public call returns.
 	 */
-	private int tfs_calcBlocksNeeded(int elemSize)
+	
+	/**
+	 * Begins a public call by taking the read lock of mountLock. Must be matched by tfs_end(),
+	 * in a finally block.
+	 */
+	private void tfs_begin()
 	{
-		//If size is 0 bytes, 0 blocks are really needed but return 1 so dummy blocks may be written.
-		if (elemSize == 0)     
-			return 1;
-		if (elemSize <= PCB.getBlockSize()) //If size is <= blocksize, 1 block is needed.
-			return 1;
-		
-		//Otherwise more blocks are needed.
-		int blocksNeeded = elemSize / PCB.getBlockSize();       //Calc number of blocks needed to store directory.
-			
-		//If elemSize is not divisible by blocksize, an extra block is needed for remainder.
-		if ((elemSize % PCB.getBlockSize()) != 0);
-			blocksNeeded++;
-			
-		return blocksNeeded;
+		mountLock.readLock().lock();
+		lockScopes.get().depth++;
 	}
 	
 	/**
-	 * Finds index of one free block in FAT and returns it.
-	 * Ignores the block number of first free block entry in FCB.
+	 * Ends a public call begun by tfs_begin(). If it is not nested in another public call,
+	 * the directory locks it took are released.
+	 */
+	private void tfs_end()
+	{
+		LockScope scope = lockScopes.get();
+		if (--scope.depth == 0)
+			scope.release();
+		mountLock.readLock().unlock();
+	}
+	
+	/**
+	 * Locks the directory at location until the current public call returns, unless the call
+	 * already holds its lock. Nothing is locked outside of a public call, such as by the tasks
+	 * of tfs_cp_recursive(), which run while the call that started them holds its locks. The
+	 * tasks of tfs_find() lock the directories they search themselves.
 	 * 
-	 * @return int index of one free block, or -1 if no block found.
+	 * @param location The location of the directory.
+	 * @param write true to lock the directory for writing, false for reading.
+	 * @throws IllegalStateException if write is true and the call holds the read lock, 
+	 * which cannot be upgraded.
 	 */
-	private int tfs_getOneFreeBlock()
+	private void tfs_lock_dir(int location, boolean write)
 	{
-		int [] tmpFAT = PCB.getFAT(); 
-		int numBlocksTFS = PCB.getNumBlocks();
-				
-		//Start looking just after root directory. Ignore first free block.
-		for (int i = (PCB.getRootDir() + 1); i <= numBlocksTFS; i++)
+		LockScope scope = lockScopes.get();
+		if (scope.depth == 0)
+			return;
+		
+		Lock held = scope.held.get(location);
+		if (held != null)
 		{
-			if ((tmpFAT[i] == 0) && (i != PCB.getFirstFreeBlock()))
-				return i;
+			if (write && held instanceof ReentrantReadWriteLock.ReadLock)
+				throw new IllegalStateException("Directory at block " + location + " is already locked for reading.");
+			return;
 		}
-				
-		return -1;
-			
+		
+		ReentrantReadWriteLock dirLock = dirLocks.computeIfAbsent(location, k -> new ReentrantReadWriteLock());
+		Lock lock = (write ? dirLock.writeLock() : dirLock.readLock());
+		lock.lock();
+		scope.held.put(location, lock);
 	}
 	
 	/**
-	 * Service method for block numbers of n free blocks. These
-	 * are returned as a queue of Integers which are the block numbers of
-	 * the free blocks. Consults FAT to find n free blocks.
+	 * Locks the directories along path, which a call is about to change. The last writeLast
+	 * directories leading to the target are locked for writing, the others for reading. A 
+	 * call which adds or removes an entry locks 2, since the size of the parent directory is
+	 * stored in its own parent. Must be called before the call looks up anything else, so
+	 * that no directory it writes is already locked for reading. A call which uses more than
+	 * one path locks them together with tfs_lock_paths().
 	 * 
-	 * Note that, like tfs_getOneFreeBlock, first free block will NOT
-	 * be included. 
+	 * @param path Path from the root to the target. Nothing is locked if it is invalid.
+	 * @param writeLast The number of directories to lock for writing, ending at the parent.
+	 */
+	private void tfs_lock_path(String path, int writeLast)
+	{
+		String[] dirs = (path == null ? null : getValidPath(path));
+		if (dirs != null)
+			tfs_lock_path(dirs, dirs.length, writeLast);
+	}
+	
+	/**
+	 * Locks the directories leading to element count - 1 of dirs, starting at root. Each 
+	 * directory is searched for the next one after it is locked. If a directory cannot be
+	 * found, the rest are not locked, as the call will fail before using them.
 	 * 
-	 *  
-	 * @param n The number of free blocks needed
-	 * @return List<Integer> A list with indexes of free blocks with one extra free block
-	 * @throws RuntimeException If enough blocks could not be found.
+	 * @param dirs Elements of the path, as returned by getValidPath().
+	 * @param count Number of elements of dirs leading to and including the target.
+	 * @param writeLast The number of directories to lock for writing, ending at the parent.
+	 */
+	private void tfs_lock_path(String[] dirs, int count, int writeLast)
+	{
+		tfs_lock_paths(new String[][] {dirs}, new int[] {count}, new int[] {writeLast});
+	}
+	
+	/**
+	 * Locks the paths of a copy together with tfs_lock_paths(), before anything is looked up.
+	 * The parent of the destination and its parent are locked for writing, and the directories
+	 * leading to the source for reading. While the dedup layer is on, the parent of the source
+	 * is locked for writing instead, since a source held in a chain is given a block map by
+	 * tfs_map_entry() before it is copied.
 	 * 
+	 * @param sourcePath Path from root to the source.
+	 * @param destinationPath Path from root to the copy.
+	 * @param tree true to lock the source itself for reading as well, for a directory copied
+	 * by tfs_cp_recursive().
 	 */
-	private Queue<Integer> tfs_getFreeBlocks(int n)
+	private void tfs_lock_copy(String sourcePath, String destinationPath, boolean tree)
 	{
-		int num = n;                             //Number of blocks required.
-		int blocksFound = 0;
-		int [] tmpFAT = PCB.getFAT();            //Get the current FAT in memory.
-		int numBlocksTFS = PCB.getNumBlocks();
-		Queue<Integer> freeQ = new LinkedList<Integer>();
+		String[] sPath = (sourcePath == null ? null : getValidPath(sourcePath));
+		String[] dPath = (destinationPath == null ? null : getValidPath(destinationPath));
+		int sLength = (sPath == null ? 0 : sPath.length);
+		int dLength = (dPath == null ? 0 : dPath.length);
+		tfs_lock_paths(new String[][] {sPath, sPath, dPath}, new int[] {sLength + (tree ? 1 : 0), sLength, dLength}, 
+				new int[] {0, (dedup ? 1 : 0), 2});
+	}
+	
+	/**
+	 * Locks the directories along several paths used by one call, such as the source and
+	 * destination of a copy, as tfs_lock_path() locks one. The paths are gone down together,
+	 * one depth at a time, and the directories of all of them at one depth are locked in
+	 * order of location, so that locks are always taken in order of depth and then location.
+	 * A directory on more than one path is locked for writing if any of them writes it.
+	 * 
+	 * @param paths Elements of each path, as returned by getValidPath(). A null path is skipped.
+	 * @param counts Number of elements of each path leading to and including its target.
+	 * @param writeLast The number of directories to lock for writing on each path, ending at its parent.
+	 */
+	private void tfs_lock_paths(String[][] paths, int[] counts, int[] writeLast)
+	{
+		if (!isMounted)
+			return;
 		
-				
-		/*
-		 * If more blocks are needed, find the required number of free blocks and store 
-		 * their indexes in list
-		 * Does not attempt to search blocks before or at block of rootDir.
-		 */
-		for (int i = (PCB.getRootDir() + 1); blocksFound < num && i < numBlocksTFS; i++)
+		FCBView view = lookupViews.get();
+		int[] locations = new int[paths.length];          //Directory reached on each path, or -1 if one was not found.
+		int[] sizes = new int[paths.length];
+		int depths = 0;
+		for (int p = 0; p < paths.length; p++)
 		{
-			if ((tmpFAT[i] == 0) && (i != PCB.getFirstFreeBlock()))   //If block is a free block, add its index to list
+			locations[p] = (paths[p] == null ? -1 : PCB.getRootDir());
+			if (paths[p] != null)
+				depths = Math.max(depths, counts[p]);
+		}
+		
+		for (int depth = 0; depth < depths; depth++)
+		{
+			Map<Integer, Boolean> level = new TreeMap<Integer, Boolean>();   //Directories at this depth, by location. true to write.
+			for (int p = 0; p < paths.length; p++)
 			{
-				blocksFound++;           //Increment blocks found to indicate another has been found
-				freeQ.add(new Integer(i));
+				if (locations[p] < 0 || depth >= counts[p])
+					continue;
+				if (depth > 0)                            //Search the directory above, which is locked already.
+				{
+					if (tfs_find_entry(locations[p], sizes[p], paths[p][depth - 1], true, view) < 0)
+					{
+						locations[p] = -1;
+						continue;
+					}
+					locations[p] = view.getLocation();
+					sizes[p] = view.getSize();
+				}
+				level.merge(locations[p], counts[p] - 1 - depth < writeLast[p], Boolean::logicalOr);
 			}
 			
+			for (Map.Entry<Integer, Boolean> dir : level.entrySet())
+				tfs_lock_dir(dir.getKey(), dir.getValue());
+			if (depth == 0)                               //Size of root is read once it is locked.
+				Arrays.fill(sizes, rD.getByteSize());
 		}
-		
-		if (blocksFound < num)            //Throw RunTimeException if enough blocks not found.
-			throw new RuntimeException("Insufficient space available on disk.");
-		
-		return freeQ;
-		
 	}
 	
 	/**
-	 * Logically frees up linked blocks on disk, starting at the location specified. 
-	 * This is simply done by updating FAT.
-	 * Prevents clearing the PCB or FAT blocks.
-	 * 
-	 * @param location The location from which to start
-	 *
-	 * @throws IllegalArgumentException if location is not within file system or numBytes is invalid.
-	 * 
+	 * Locks the parent directory of the file open as fd, whose entry a read or write uses.
 	 * 
+	 * @param fd File descriptor returned by tfs_open().
+	 * @param write true to lock the directory for writing, false for reading.
 	 */
-	private void tfs_clear_blocks(int location)
+	private void tfs_lock_fd(int fd, boolean write)
 	{
-		if (location < PCB.getRootDir() || location > PCB.getNumBlocks())
-			throw new IllegalArgumentException("Cannot clear blocks. Invalid location given");
-						
-		//Set entries in FAT to 0 for these linked blocks to reflect changes.
-		
-		int curBlock = location;
-		int oldVal = curBlock;
-		do
-		{
-			oldVal = PCB.getFAT()[oldVal];     //Save the value previously held in this index.
-			PCB.updateFAT(curBlock, 0);        //Set index to 0.
-			curBlock = oldVal;
-					
-		} while (oldVal > 0);
-			
-		tfs_sync();                           //Sync to store updated PCB to disk, with FAT.
-				
+		int parentLoc = fd_Table.getParentLocation(fd);
+		if (parentLoc >= 0)
+			tfs_lock_dir(parentLoc, write);
 	}
 	
 	
@@ -2078,15 +6604,19 @@ public class TFSFileSystem
 	 *  name, length, location (first block).
 	 *
 	 *  Then returns the file descriptor for this file, so its entry can be looked up in FDT later
+	 *  The location of the parent directory and the slot of the file's entry in it are recorded
+	 *  with the entry. If the file is open already, the new entry shares the FCB of the others.
 	 * 
 	 *  @param fileFCB The FCB representing the file that will be opened.
+	 *  @param parentLoc The location of the file's parent directory.
+	 *  @param slot The slot of the file's entry in its parent directory.
 	 *  @return int File descriptor for this file or -1 if exception occurred.
 	 */
-	private int tfs_open_getFD(FCB fileFCB)
+	private int tfs_open_getFD(FCB fileFCB, int parentLoc, int slot)
 	{
 		int fd = -1;
 		try{
-		fd = fd_Table.add(fileFCB, 0);        //Add the FCB as entry to the FDT, offset set at 0 initially. Returns the fd.
+		fd = fd_Table.add(fileFCB, 0, 0, parentLoc, slot);    //Add the FCB as entry to the FDT, offset set at 0 initially. Returns the fd.
 		}catch(RuntimeException ex)
 		 {
 		   return -1;                        //Return -1 if entry could not be added to FDT.
@@ -2117,6 +6647,42 @@ public class TFSFileSystem
 		return fd;
 	}
 	
+	/**
+	 * Checks that fd was returned by tfs_open() and is still open, with the given mode.
+	 * 
+	 * @param fd File descriptor to check.
+	 * @param mode Mode bits fd must have been opened with, or 0 for any.
+	 * @return boolean true if fd may be used, false otherwise.
+	 */
+	private boolean tfs_check_fd(int fd, int mode)
+	{
+		if (!isMounted || fd < 0 || fd >= fd_Table.getCapacity())
+			return false;
+		
+		int fdMode = fd_Table.getMode(fd);
+		return (fdMode != 0 && (fdMode & mode) == mode);
+	}
+	
+	/**
+	 * Updates the slots recorded in the FDT for open files whose parent is the directory 
+	 * at location, after the directory has been compacted and its entries have moved.
+	 * 
+	 * @param dir The compacted directory.
+	 * @param location The location of the directory on disk.
+	 */
+	private void tfs_refresh_slots(Directory dir, int location)
+	{
+		slotVersion.incrementAndGet();               //Slots recorded by tfs_stat() may have moved too.
+		if (fd_Table.isEmpty())
+			return;
+		
+		for (int fd = 0; fd < fd_Table.getCapacity(); fd++)
+		{
+			if (fd_Table.getParentLocation(fd) == location)
+				fd_Table.updateSlot(fd, dir.find(fd_Table.getFCB(fd)));
+		}
+	}
+	
 	/**
 	 *   Removes entry for file associated with fd from the FDT.
 	 *   Makes sure FDT is not empty.
@@ -2194,7 +6760,329 @@ public class TFSFileSystem
 		
 		return dirs;
 	}
+	
+	/**
+	 * Checks if a path is the same as, or lies below, another path. Names are compared 
+	 * without regard to case, as they are in directories.
+	 * 
+	 * @param path Elements of the path to check, as returned by getValidPath().
+	 * @param ancestor Elements of the possible ancestor.
+	 * @return true if path starts with all elements of ancestor.
+	 */
+	private boolean tfs_is_within(String[] path, String[] ancestor)
+	{
+		if (path.length < ancestor.length)
+			return false;
+		
+		for (int i = 0; i < ancestor.length; i++)
+		{
+			if (!path[i].equalsIgnoreCase(ancestor[i]))
+				return false;
+		}
+		
+		return true;
+	}
+			
+	
+	
+	/*********************************************************************************
+	 * Fork/join tasks used by tfs_rm_recursive(), tfs_cp_recursive() and tfs_find().
+	 * Each task handles one directory and forks a task for each of its subdirectories,
+	 * so sibling subtrees are processed in parallel.
+	 */
+	
+	/**
+	 * Reads the entries of one directory and adds them to a shared queue, forking
+	 * a task for each subdirectory. Only reads from disk, so the FAT is left unchanged
+	 * until every directory in the tree has been read.
+	 */
+	private class RemoveTreeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final FCB dir;                    //The directory whose entries are collected.
+		private final Queue<FCB> removed;         //Entries found in the whole tree.
+		
+		RemoveTreeTask(FCB dir, Queue<FCB> removed)
+		{
+			this.dir = dir;
+			this.removed = removed;
+		}
+		
+		protected void compute()
+		{
+			if (dir.getSize() == 0)               //Nothing stored in an empty directory.
+				return;
+			
+			List<FCB> entries = new ArrayList<FCB>();
+			if (tfs_read_entries(dir.getLocation(), dir.getSize(), 0, Integer.MAX_VALUE, entries) < 0)
+				throw new RuntimeException("Reading directory " + dir.getStrName() + " failed.");
+			
+			List<RemoveTreeTask> subtrees = new ArrayList<RemoveTreeTask>();
+			for (FCB entry : entries)
+			{
+				removed.add(entry);
+				if (entry.is_Dir())
+					subtrees.add(new RemoveTreeTask(entry, removed));
+			}
+			
+			invokeAll(subtrees);
+		}
+	}
+	
+	/**
+	 * Tests every entry of one directory with the predicate of tfs_find(), through a view of
+	 * the directory's bytes as read from disk, and forks a task for each subdirectory.
+	 * Matches are passed to the consumer while holding its lock, so calls never overlap.
+	 */
+	private class FindTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final int location;                            //Location of the directory to search.
+		private final int size;                                //Size of the directory to search.
+		private final int firstSlot;                           //First slot to test. 1 for root, to skip its own FCB.
+		private final String path;                             //Path of the directory, "" for root.
+		private final Predicate<FCBView> predicate;
+		private final BiConsumer<String, FCB> consumer;
+		private final AtomicInteger matches;                   //Number of matches in the whole search.
+		private final boolean lock;                            //true if the directory must be locked while it is searched. The target is locked by the call.
+		
+		FindTask(int location, int size, int firstSlot, String path, Predicate<FCBView> predicate, 
+				BiConsumer<String, FCB> consumer, AtomicInteger matches, boolean lock)
+		{
+			this.location = location;
+			this.size = size;
+			this.firstSlot = firstSlot;
+			this.path = path;
+			this.predicate = predicate;
+			this.consumer = consumer;
+			this.matches = matches;
+			this.lock = lock;
+		}
+		
+		/**
+		 * Searches the directory, holding its read lock until the tasks for its subdirectories
+		 * are done, so that none of them is removed while it is searched. The lock is taken
+		 * here rather than by tfs_lock_dir(), since the task may run on any thread of the pool.
+		 */
+		protected void compute()
+		{
+			int numSlots = size / FCB.FCB_SIZE;
+			if (numSlots <= firstSlot)                         //Nothing stored in directory.
+				return;
+			
+			Lock dirLock = (lock ? dirLocks.computeIfAbsent(location, k -> new ReentrantReadWriteLock()).readLock() : null);
+			if (dirLock != null)
+				dirLock.lock();
+			try
+			{
+				search(numSlots);
+			} finally
+			{
+				if (dirLock != null)
+					dirLock.unlock();
+			}
+		}
+		
+		private void search(int numSlots)
+		{
+			ByteBuffer dirBB = ByteBuffer.wrap(tfs_read_blocks(location));
+			FCBView view = new FCBView();
+			List<FindTask> subtrees = new ArrayList<FindTask>();
+			
+			for (int slot = firstSlot; slot < numSlots; slot++)
+			{
+				view.moveTo(dirBB, slot);
+				if (view.isFree())                             //Free slots hold no entry.
+					continue;
+				
+				String entryPath = null;                       //Only created if needed.
+				
+				if (predicate.test(view))
+				{
+					entryPath = path + "/" + view.getStrName();
+					FCB match = view.toFCB();
+					synchronized (consumer)
+					{
+						consumer.accept(entryPath, match);
+					}
+					matches.incrementAndGet();
+				}
+				
+				if (view.is_Dir())
+				{
+					if (entryPath == null)
+						entryPath = path + "/" + view.getStrName();
+					subtrees.add(new FindTask(view.getLocation(), view.getSize(), 0, entryPath, predicate, consumer, matches, true));
+				}
+			}
+			
+			invokeAll(subtrees);
+		}
+	}
+	
+	/**
+	 * Copies one directory. Its entries are read first, and free slots are not copied, so the
+	 * copy may be smaller than the source. A chain for the copy is then taken from 
+	 * tfs_alloc_chain() for the size of the entries copied, and recorded in location and 
+	 * copiedSize for whoever joins the task.
+	 * 
+	 * Each file is given a new chain and copied block by block, while tasks forked for the 
+	 * subdirectories run. Inline files are copied with their data slots, and take no chain.
+	 * A file stored with a block map has only its map copied, which is added to maps. Finally
+	 * the entries of the copy are encoded and written to its chain. Subtasks are always joined
+	 * before a failure is thrown, so no task is still running when the blocks of a failed copy
+	 * are freed. A subtask holds the read lock of the directory it copies until it is done, as
+	 * a FindTask does. The directory of the first task is locked by tfs_cp_recursive().
+	 */
+	private class CopyTreeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final int sourceLocation;         //Location of the directory to copy.
+		private final int sourceSize;             //Size of the directory to copy.
+		private final Queue<Integer> maps;        //Copied block maps of the whole tree, whose blocks are referred to once more.
+		private final Allocation alloc;           //Blocks taken for the whole copy.
+		private final boolean lock;               //true if the directory must be locked while it is copied.
+		private int location;                     //First block of the chain taken for the copy.
+		private int copiedSize;                   //Size of the copy, without the free slots of the source.
+		
+		CopyTreeTask(int sourceLocation, int sourceSize, Queue<Integer> maps, Allocation alloc, boolean lock)
+		{
+			this.sourceLocation = sourceLocation;
+			this.sourceSize = sourceSize;
+			this.maps = maps;
+			this.alloc = alloc;
+			this.lock = lock;
+		}
+		
+		protected void compute()
+		{
+			Lock dirLock = (lock ? dirLocks.computeIfAbsent(sourceLocation, k -> new ReentrantReadWriteLock()).readLock() : null);
+			if (dirLock != null)
+				dirLock.lock();
+			try
+			{
+				copy();
+			} finally
+			{
+				if (dirLock != null)
+					dirLock.unlock();
+			}
+		}
+		
+		private void copy()
+		{
+			List<FCB> entries = new ArrayList<FCB>();
+			if (sourceSize > 0 && tfs_read_entries(sourceLocation, sourceSize, 0, Integer.MAX_VALUE, entries) < 0)
+				throw new RuntimeException("Reading directory at block " + sourceLocation + " failed.");
+			int copiedSlots = 0;
+			for (FCB entry : entries)
+				copiedSlots += 1 + entry.getInlineSlots();
+			copiedSize = copiedSlots * FCB.FCB_SIZE;
+			location = tfs_alloc_chain(alloc, tfs_calcBlocksNeeded(copiedSize));
+			
+			List<CopyTreeTask> subtrees = new ArrayList<CopyTreeTask>();
+			List<FCB> subtreeEntries = new ArrayList<FCB>();          //Entries of subtrees, in the same order.
+			int[] fileSources = new int[entries.size()];             //Source chain of each file entry, 0 for dirs.
+			
+			//Take a chain for every file. The entries are then changed to point to their copies.
+			for (int i = 0; i < entries.size(); i++)
+			{
+				FCB entry = entries.get(i);
+				if (entry.is_Dir())                         //Chain is taken by the subtask.
+				{
+					subtrees.add(new CopyTreeTask(entry.getLocation(), entry.getSize(), maps, alloc, true));
+					subtreeEntries.add(entry);
+				}
+				else if (!entry.isInline())                 //Inline data is copied with the entry.
+				{
+					fileSources[i] = entry.getLocation();
+					entry.setLocation(tfs_alloc_chain(alloc, tfs_chain_length(fileSources[i])));
+					if (entry.isMapped())                   //Only the map is copied.
+						maps.add(entry.getLocation());
+				}
+			}
+			
+			for (CopyTreeTask t : subtrees)
+				t.fork();
+			
+			RuntimeException failure = null;
+			byte[] blockBuf = new byte[PCB.getBlockSize()];
+			for (int i = 0; i < entries.size() && failure == null; i++)
+			{
+				if (fileSources[i] > 0 && tfs_copy_chain(fileSources[i], entries.get(i).getLocation(), blockBuf) < 0)
+					failure = new RuntimeException("Copying file " + entries.get(i).getStrName() + " failed.");
+			}
+			
+			for (CopyTreeTask t : subtrees)          //Wait for every subtree, keeping the first failure.
+			{
+				try
+				{
+					t.join();
+				} catch (RuntimeException e)
+				{
+					if (failure == null)
+						failure = e;
+				}
+			}
+			
+			if (failure != null)
+				throw failure;
 			
+			for (int i = 0; i < subtrees.size(); i++)    //Entries point to the copies, which may have lost free slots.
+			{
+				subtreeEntries.get(i).setLocation(subtrees.get(i).location);
+				subtreeEntries.get(i).setSize(subtrees.get(i).copiedSize);
+			}
+			
+			//Write entries of the copy to its chain.
+			byte[] dirBytes = new byte[copiedSize];
+			ByteBuffer dirBB = ByteBuffer.wrap(dirBytes);
+			int slot = 0;
+			for (FCB entry : entries)
+				slot += entry.encodeWithData(dirBB, slot * FCB.FCB_SIZE);
+			
+			if (tfs_write_chain(dirBytes, location) < 0)
+				throw new RuntimeException("Writing directory at block " + location + " failed.");
+		}
+	}
+	
+	/**
+	 * The blocks taken by tfs_alloc_chain() for one call, which are freed together if the
+	 * call fails.
+	 */
+	private static class Allocation
+	{
+		private int cursor;                                              //Block where the next search for free blocks starts.
+		private final List<Integer> chains = new ArrayList<Integer>();   //First block of each chain taken.
+		
+		private Allocation(int cursor)
+		{
+			this.cursor = cursor;
+		}
+	}
+	
+	/**
+	 * The directory locks held by the public call running in one thread, with the number of
+	 * public calls it is nested in. See tfs_begin() and tfs_lock_dir().
+	 */
+	private static class LockScope
+	{
+		private int depth;                                                    //Number of public calls begun and not yet ended.
+		private final Map<Integer, Lock> held = new HashMap<Integer, Lock>();   //Lock taken on each directory, by location.
+		
+		/**
+		 * Releases every lock held, once the outermost call has ended.
+		 */
+		private void release()
+		{
+			for (Lock lock : held.values())
+				lock.unlock();
+			held.clear();
+		}
+	}
 	
 }
 		
\ No newline at end of file
@@ -0,0 +1,202 @@
+package tfs;
+
+/**
+ * TFSInputStream.java
+ * 
+ * Class TFSInputStream reads a TFS file as a java.io.InputStream, so that TFS files can be
+ * used with standard Java I/O code without building Strings with print(). The file is opened
+ * with TFSFileSystem.tfs_open() when the stream is created, and closed when the stream is closed.
+ * 
+ * Small reads are served from a buffer of one block, which is filled with one tfs_read() at a 
+ * time. Reads of at least one block go straight to tfs_read() into the caller's array, so they
+ * are done as multi-block disk reads without copying through the buffer.
+ * 
+ * The stream opens the file with a file descriptor of its own, so it does not share its 
+ * offset with other streams or channels on the same file, and closing it leaves them open.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+
+public class TFSInputStream extends InputStream
+{
+	private TFSFileSystem fs;            //File system holding the file.
+	private int fd;                      //File descriptor of the open file.
+	private byte[] buffer;               //Buffer of one block for small reads.
+	private int bufPos;                  //Position in buffer of next byte to return.
+	private int bufCount;                //Number of bytes held in buffer.
+	private boolean closed;
+	
+	/**
+	 * Constructor opens the file at the end of path for reading.
+	 * 
+	 * @param fs The mounted file system holding the file.
+	 * @param path Path from the root to the file.
+	 * @throws FileNotFoundException if the file does not exist.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public TFSInputStream(TFSFileSystem fs, String path) throws IOException
+	{
+		int result = fs.tfs_open(path, TFSFileSystem.MODE_READ);
+		if (result == -2)
+			throw new FileNotFoundException(path);
+		if (result < 0)
+			throw new IOException("Cannot open " + path);
+		
+		this.fs = fs;
+		fd = result;
+		buffer = new byte[TFSDiskInputOutput.getBlockSize()];
+	}
+	
+	/**
+	 * Reads the next byte of the file.
+	 * 
+	 * @return int The next byte, or -1 at end of file.
+	 * @throws IOException if the stream is closed or the read fails.
+	 */
+	public int read() throws IOException
+	{
+		if (bufPos >= bufCount && fill() <= 0)
+			return -1;
+		
+		return buffer[bufPos++] & 0xFF;
+	}
+	
+	/**
+	 * Reads up to len bytes of the file into b, starting at off. Bytes held in the buffer
+	 * are returned first. If at least one block is still wanted, it is read directly into b.
+	 * 
+	 * @param b Array to read into.
+	 * @param off Position in b of the first byte read.
+	 * @param len Maximum number of bytes to read.
+	 * @return int The number of bytes read, or -1 at end of file.
+	 * @throws IOException if the stream is closed or the read fails.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		ensureOpen();
+		
+		int n = Math.min(len, bufCount - bufPos);           //Copy what is buffered first.
+		System.arraycopy(buffer, bufPos, b, off, n);
+		bufPos += n;
+		
+		if (n < len)
+		{
+			if (len - n >= buffer.length)                   //Large read. Bypass buffer.
+			{
+				int result = fs.tfs_read(fd, b, off + n, len - n);
+				if (result < 0)
+					throw new IOException("Read failed");
+				n += result;
+			}
+			else if (fill() > 0)
+			{
+				int m = Math.min(len - n, bufCount);
+				System.arraycopy(buffer, 0, b, off + n, m);
+				bufPos = m;
+				n += m;
+			}
+		}
+		
+		return (n == 0 ? -1 : n);
+	}
+	
+	/**
+	 * Skips over up to n bytes of the file by moving the file offset.
+	 * 
+	 * @param n Number of bytes to skip.
+	 * @return long The number of bytes skipped.
+	 * @throws IOException if the stream is closed.
+	 */
+	public long skip(long n) throws IOException
+	{
+		ensureOpen();
+		if (n <= 0)
+			return 0;
+		
+		int buffered = bufCount - bufPos;
+		if (n <= buffered)
+		{
+			bufPos += (int) n;
+			return n;
+		}
+		
+		int skipped = (int) Math.min(n - buffered, remaining());
+		fs.tfs_seek(fd, fs.tfs_tell(fd) + skipped);
+		bufPos = bufCount = 0;
+		
+		return buffered + skipped;
+	}
+	
+	/**
+	 * Returns the number of bytes left before end of file.
+	 * 
+	 * @return int Bytes left to read.
+	 * @throws IOException if the stream is closed.
+	 */
+	public int available() throws IOException
+	{
+		ensureOpen();
+		return (bufCount - bufPos) + remaining();
+	}
+	
+	/**
+	 * Closes the stream and the file.
+	 */
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		
+		closed = true;
+		fs.tfs_close(fd);
+	}
+	
+	/**
+	 * Fills the buffer with the next bytes of the file.
+	 * 
+	 * @return int Number of bytes in buffer, 0 at end of file.
+	 * @throws IOException if the stream is closed or the read fails.
+	 */
+	private int fill() throws IOException
+	{
+		ensureOpen();
+		bufPos = 0;
+		bufCount = fs.tfs_read(fd, buffer, 0, buffer.length);
+		if (bufCount < 0)
+		{
+			bufCount = 0;
+			throw new IOException("Read failed");
+		}
+		
+		return bufCount;
+	}
+	
+	/**
+	 * Returns the number of bytes of the file after its offset.
+	 * 
+	 * @throws IOException if the file descriptor is no longer open in TFS.
+	 */
+	private int remaining() throws IOException
+	{
+		int size = fs.tfs_size(fd);
+		int offset = fs.tfs_tell(fd);
+		if (size < 0 || offset < 0)
+			throw new IOException("File closed");
+		
+		return size - offset;
+	}
+	
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+	}
+}
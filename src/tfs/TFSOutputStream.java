@@ -0,0 +1,169 @@
+package tfs;
+
+/**
+ * TFSOutputStream.java
+ * 
+ * Class TFSOutputStream writes a TFS file as a java.io.OutputStream, so that large payloads
+ * can be streamed into TFS without holding them in memory all at once. The file is 
+ * opened with TFSFileSystem.tfs_open() when the stream is created, and closed when the stream is
+ * closed. Writing starts at the beginning of the file, or at its end if appending. Bytes of the 
+ * file past the last byte written are kept.
+ * 
+ * Small writes are collected in a buffer of one block. The buffer is written when it reaches
+ * the end of the block it is in, so each buffered tfs_write() fills a block rather than parts 
+ * of two. Writes of at least one block go straight to tfs_write() from the caller's array, 
+ * so they are done as multi-block disk writes.
+ * 
+ * The stream opens the file with a file descriptor of its own, so it does not share its 
+ * offset with other streams or channels on the same file, and closing it leaves them open.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+
+public class TFSOutputStream extends OutputStream
+{
+	private TFSFileSystem fs;            //File system holding the file.
+	private int fd;                      //File descriptor of the open file.
+	private byte[] buffer;               //Buffer of one block for small writes.
+	private int count;                   //Number of bytes held in buffer.
+	private int limit;                   //Bytes buffer may hold before the end of the current block.
+	private boolean closed;
+	
+	/**
+	 * Constructor opens the file at the end of path for writing.
+	 * 
+	 * @param fs The mounted file system holding the file.
+	 * @param path Path from the root to the file. The file must already exist.
+	 * @param append true to start writing at the end of the file, false to start at its beginning.
+	 * @throws FileNotFoundException if the file does not exist.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public TFSOutputStream(TFSFileSystem fs, String path, boolean append) throws IOException
+	{
+		int result = fs.tfs_open(path, TFSFileSystem.MODE_WRITE);
+		if (result == -2)
+			throw new FileNotFoundException(path);
+		if (result < 0)
+			throw new IOException("Cannot open " + path);
+		
+		this.fs = fs;
+		fd = result;
+		fs.tfs_seek(fd, append ? fs.tfs_size(fd) : 0);
+		buffer = new byte[TFSDiskInputOutput.getBlockSize()];
+		resetLimit();
+	}
+	
+	/**
+	 * Writes one byte to the buffer.
+	 * 
+	 * @param b The byte to write, in the low 8 bits.
+	 * @throws IOException if the stream is closed or a write fails.
+	 */
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		buffer[count++] = (byte) b;
+		if (count >= limit)
+			flushBuffer();
+	}
+	
+	/**
+	 * Writes len bytes from b, starting at off. If at least one block is written, the buffer 
+	 * is flushed and the bytes are written directly from b. Otherwise they are buffered.
+	 * 
+	 * @param b Array holding the bytes to write.
+	 * @param off Position in b of the first byte to write.
+	 * @param len Number of bytes to write.
+	 * @throws IOException if the stream is closed or a write fails.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		ensureOpen();
+		
+		if (len >= buffer.length)                   //Large write. Bypass buffer.
+		{
+			flushBuffer();
+			if (fs.tfs_write(fd, b, off, len) != len)
+				throw new IOException("Write failed");
+			resetLimit();
+			return;
+		}
+		
+		while (len > 0)
+		{
+			int n = Math.min(len, limit - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count >= limit)
+				flushBuffer();
+		}
+	}
+	
+	/**
+	 * Writes any buffered bytes to the file.
+	 * 
+	 * @throws IOException if the stream is closed or a write fails.
+	 */
+	public void flush() throws IOException
+	{
+		ensureOpen();
+		flushBuffer();
+	}
+	
+	/**
+	 * Writes any buffered bytes, then closes the stream and the file.
+	 * 
+	 * @throws IOException if a write fails.
+	 */
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		
+		try
+		{
+			flushBuffer();
+		}
+		finally
+		{
+			closed = true;
+			fs.tfs_close(fd);
+		}
+	}
+	
+	/**
+	 * Writes the buffered bytes with one tfs_write(), and empties the buffer.
+	 * 
+	 * @throws IOException if the write fails.
+	 */
+	private void flushBuffer() throws IOException
+	{
+		if (count > 0 && fs.tfs_write(fd, buffer, 0, count) != count)
+			throw new IOException("Write failed");
+		
+		count = 0;
+		resetLimit();
+	}
+	
+	/**
+	 * Sets limit so that the buffer is flushed at the end of the block holding the file offset.
+	 */
+	private void resetLimit()
+	{
+		limit = buffer.length - (fs.tfs_tell(fd) % buffer.length);
+	}
+	
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+	}
+}
@@ -16,14 +16,19 @@ package tfs;
  *
  */
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.io.*;
 
+import tfs.structures.FCB;
+
 public class TFSShell extends Thread
 {
 	private static final String PNAME = "TFSDiskFile";     //Constant for virtual disk name.
 	private static final int SIZE = 65535;                 //Constant for size of file system.
 	private static final int BLOCKSIZE = 128;              //Constant for block size.
+	private static final int LS_PAGE_SIZE = 64;            //Number of entries read at a time by ls.
 	
 	public static void main(String [] args) throws UnsupportedEncodingException
 	{
@@ -33,7 +38,7 @@ public class TFSShell extends Thread
 		System.out.println("Choose from the following commands to manage a TFS file system:");
 		
 		
-		String[] commands = new String[17];               //Array of possible commands and descriptions of each.
+		String[] commands = new String[18];               //Array of possible commands and descriptions of each.
 		
 		/**
 		 * File system management commands for opening and printing metadata.
@@ -57,10 +62,14 @@ public class TFSShell extends Thread
 				+ "Intermediate directories will NOT be created.\nEntering \"mkdir /name_of_directory\" \n "
 				+ "will create a directory in root directory.";
 		
-		commands[7] = "rmdir /fullpath/.../dirName - |Removes the directory at the given location,\n if it exists and it is empty.";
+		commands[7] = "rmdir /fullpath/.../dirName - |Removes the directory at the given location,\n if it exists and it is empty."
+				+ "\nrmdir -r /fullpath/.../dirName - |Removes the directory and everything stored in it.";
 		
 		commands[8] = "ls /fullPath/.../dirName - |Lists the contents of the directory \nat the given destination,"
-				+ " with name, type (file or directory), and size of each entry.\nEntering \"ls /\" will print root directory. \n";
+				+ " with name, type (file or directory), and size of each entry.\nEntering \"ls /\" will print root directory. \n"
+				+ "find /fullPath/.../dirName pattern - |Lists every file or directory below the directory\n"
+				+ "whose name matches the pattern. '*' matches any characters and '?' matches one character.\n"
+				+ "Entering \"find / pattern\" will search the whole file system.\n";
 		
 		
 		/**
@@ -80,15 +89,20 @@ public class TFSShell extends Thread
 				+ "from the position given in the file, if the file exists.";
 		
 		commands[12] = "append /fullPath/fileName  - |Adds an entered"
-			   +" string of characters to the end of the file, if the specified file exists.";
+			   +" string of characters to the end of the file, if the specified file exists.\n"
+			   + "truncate /fullPath/fileName size - |Changes the size of the file. A longer file reads as 0 after its old end.";
 				
 		commands[13] = "cp /fullPath/Source_File /fullpath/Destination_File - | Copies "
 				+ "the contents\nof one file to a destination directory.\nChecks if "
-				+ "the Source_File exists and Destination_File does NOT exist.";
+				+ "the Source_File exists and Destination_File does NOT exist.\n"
+				+ "cp -r /fullPath/Source_Dir /fullpath/Destination_Dir - | Copies a directory and everything stored in it.";
 				
 		commands[14] = "rename /fullpath/oldFileName newName - |Renames the file if a file\nwith the new name "
 				+ "doesn't exist already in the file's directory.\n";
 		
+		commands[15] = "import hostPath /fullPath/fileName - |Copies a file from the host into a new TFS file.\n"
+				+ "export /fullPath/fileName hostPath - |Copies a TFS file into a new file on the host.\n";
+		
 		
 		
 		/**
@@ -96,8 +110,8 @@ public class TFSShell extends Thread
 		 * 
 		 */
 		
-		commands[15] = "***Exit Commands***\numount |Unmounts the file system";
-		commands[16] = "exit - |Exit from the shell and shut down the file system.";
+		commands[16] = "***Exit Commands***\numount |Unmounts the file system";
+		commands[17] = "exit - |Exit from the shell and shut down the file system.";
 		
 		
 		//Print the commands for the first time
@@ -226,7 +240,7 @@ public class TFSShell extends Thread
 				/**
 				 * *************************************************************************
 				 * 
-				 * commands[15] - commands[16]
+				 * commands[16] - commands[17]
 				 * File system managements commands for closing.
 				 * 
 				 * *************************************************************************
@@ -288,6 +302,50 @@ public class TFSShell extends Thread
 	} // End method main()
 	
 	
+	/**
+	 * Prints the entries of the directory down the given path. Entries are read
+	 * from the file system a page at a time using tfs_readdir(), so the first entries
+	 * are printed right away and a directory of any size can be listed.
+	 *
+	 * @param fileSys The mounted TFS file system.
+	 * @param path The absolute path from root to the directory to list.
+	 */
+	public static void listDirectory(TFSFileSystem fileSys, String path)
+	{
+		List<FCB> page = new ArrayList<FCB>(LS_PAGE_SIZE);   //Entries of the current page.
+		int cursor = 0;
+		int count = 0;
+
+		do
+		{
+			page.clear();
+			cursor = fileSys.tfs_readdir(path, cursor, LS_PAGE_SIZE, page);
+			if (cursor == -2)
+			{
+				System.out.println("Target directory not found.\n");
+				return;
+			}
+			else if (cursor < 0)
+			{
+				System.out.println("Invalid path.\n");
+				return;
+			}
+
+			for (FCB f : page)                 //Type, name, and size of each entry on one line.
+			{
+				if (f.is_Dir())
+					System.out.println("\t<DIR>\t" + f.getStrName() + "\t" + f.getSize() / FCB.FCB_SIZE + " entries");
+				else
+					System.out.println("\t     \t" + f.getStrName() + "\t" + f.getSize() + " bytes");
+			}
+			count += page.size();
+
+		} while (!page.isEmpty());
+
+		System.out.println(count + " entries\n");
+	}
+
+
 	/**
 	 * Method for handling the other TFS functions.
 	 * Handles possible errors and the case where
@@ -371,22 +429,15 @@ public class TFSShell extends Thread
 											
 				//Special case for printing root directory.
 				if(in.matches("ls /"))
-				{
 					System.out.println("Printing root directory...\n");
-					System.out.println(fileSys.tfs_ls("/").toString());             //Print the returned StringBuffer.
-				}
-				
-				//General case for directory.
-				else
-				{
-					System.out.println(fileSys.tfs_ls(path).toString());            //Print the returned StringBuffer.
-				}
+
+				listDirectory(fileSys, path);          //Print entries page by page as they are read.
 				return;
 			}
 			
 			/**
 			 * ****************************************************************
-			 *  commands[9] - commands[14]
+			 *  commands[9] - commands[15]
 			 *  File related commands. 
 			 * 
 			 * ****************************************************************
@@ -446,9 +497,17 @@ public class TFSShell extends Thread
 			{
 				String [] cm = in.split(" ");               //Split input into 4 Strings.
 				
-				StringBuffer buf = fileSys.print( cm[1], Integer.parseInt(cm[2]), Integer.parseInt(cm[3]) ); //Call tfs print()
+				System.out.println("\nAttempt to read " + cm[3] +" characters... ");
+				int result = fileSys.tfs_print(cm[1], Integer.parseInt(cm[2]), Integer.parseInt(cm[3]), System.out); //Characters go straight to System.out.
 				
-				System.out.println("\nAttempt to read " + cm[3] +" characters... \n" + buf.toString() + "\n");        //Get string in returned buffer.
+				if (result == 0)
+					System.out.println("\n");
+				else if (result == -2)
+					System.out.println("File cannot be found.\n");
+				else if (result == -3)
+					System.out.println("Invalid file position or number of characters.\n");
+				else
+					System.out.println("Error. File could not be read.\n");
 				
 				return;
 			}
@@ -509,6 +568,65 @@ public class TFSShell extends Thread
 			}
 			
 			
+			/**
+			 * Command "find /fullpath/dirName pattern" - |Lists entries below the directory whose names match the pattern.
+			 */
+			else if (in.matches("find " + PATH_REGEX + " \\S+") || in.matches("find / \\S+"))
+			{
+				String [] cm = in.split(" ");
+				final String pattern = cm[2];
+				
+				int result = fileSys.tfs_find(cm[1], v -> v.nameMatches(pattern), (p, f) -> 
+					System.out.println((f.is_Dir() ? "\t<DIR>\t" : "\t     \t") + p + (f.is_Dir() ? "" : "\t" + f.getSize() + " bytes")));
+				
+				if (result >= 0)
+					System.out.println(result + " matches\n");
+				else if (result == -2)
+					System.out.println("Target directory not found.\n");
+				else
+					System.out.println("Error. Could not search directory.\n");
+				
+				return;
+			}
+			
+			/**
+			 * Command "rmdir -r /fullpath/dirName" - |Removes the directory and everything stored in it.
+			 */
+			else if (in.matches("rmdir -r " + PATH_REGEX))
+			{
+				int result = fileSys.tfs_rm_recursive(in.split(" ")[2]);
+				
+				if (result == 0)
+					System.out.println("Directory and its contents deleted.\n");   //Success
+				else                                                            //General error.
+					System.out.println("Error. Directory could not be deleted\n");
+				
+				return;
+			}
+			
+			/**
+			 * Command "cp -r /fullPath/Source_Dir /fullpath/Destination_Dir" - |Copies a directory
+			 * and everything stored in it to a new directory.
+			 */
+			else if (in.matches("cp -r " + PATH_REGEX + " " + PATH_REGEX))
+			{
+				String [] paths = in.split(" ");          //Split input into 4 Strings, to get the 2 paths.
+				int result = fileSys.tfs_cp_recursive(paths[2], paths[3]);
+				
+				if (result == 0)
+					System.out.println("Copy completed.\n");                   //Success
+				else if (result == -2)
+					System.out.println("Source cannot be found.\n");          //Source doesn't exist.
+				else if (result == -3)                                       //Destination already exists.
+					System.out.println("Destination already exists in parent directory.\n");
+				else if (result == -4)                                       //Destination is inside source.
+					System.out.println("A directory cannot be copied into itself.\n");
+				else
+					System.out.println("Error. Source could not be copied to destination");  //General error.
+				
+				return;
+			}
+			
 			/**
 			 *  Command "cp /fullPath/Source_File /fullpath/Destination_File" - |Copies
 	         *  the contents of one file to a new file in a destination directory.
@@ -561,6 +679,67 @@ public class TFSShell extends Thread
 			}
 			
 			
+			/**
+			 * Command "truncate /fullPath/fileName size" - |Changes the size of the file.
+			 */
+			else if (in.matches("truncate " + PATH_REGEX + " \\d+"))
+			{
+				String[] cm = in.split(" ");
+				int result = fileSys.tfs_truncate(cm[1], Integer.parseInt(cm[2]));
+				
+				if (result == 0)
+					System.out.println("File size changed.\n");               //Success
+				else if (result == -2)
+					System.out.println("File cannot be found.\n");
+				else
+					System.out.println("Error. File size could not be changed.\n");  //General error.
+				
+				return;
+			}
+			
+			/**
+			 * Command "import hostPath /fullPath/fileName" - |Copies a file on the host into a new
+			 * file in TFS.
+			 */
+			else if (in.matches("import \\S+ " + PATH_REGEX))
+			{
+				String[] cm = in.split(" ");
+				int result = fileSys.tfs_import(cm[1], cm[2]);
+				
+				if (result == 0)
+					System.out.println("Import completed.\n");                 //Success
+				else if (result == -2)
+					System.out.println("Host file cannot be found or read.\n");
+				else if (result == -3)
+					System.out.println("File with target name already exists in parent directory.\n");
+				else
+					System.out.println("Error. Host file could not be imported.\n");  //General error.
+				
+				return;
+			}
+			
+			/**
+			 * Command "export /fullPath/fileName hostPath" - |Copies a file in TFS into a new
+			 * file on the host.
+			 */
+			else if (in.matches("export " + PATH_REGEX + " \\S+"))
+			{
+				String[] cm = in.split(" ");
+				int result = fileSys.tfs_export(cm[1], cm[2]);
+				
+				if (result == 0)
+					System.out.println("Export completed.\n");                 //Success
+				else if (result == -2)
+					System.out.println("Source file cannot be found.\n");
+				else if (result == -3)
+					System.out.println("Host file already exists.\n");
+				else
+					System.out.println("Error. File could not be exported.\n");  //General error.
+				
+				return;
+			}
+			
+			
 			 //If nothing matches, command must be invalid.
 			System.out.println("Invalid command. Please try again.\n");  
 		
@@ -0,0 +1,122 @@
+package tfs.nio;
+
+/**
+ * TFSDirectoryStream.java
+ * 
+ * Class TFSDirectoryStream iterates over the entries of a directory in a TFSVolume. Entries
+ * are read from disk with TFSFileSystem.tfs_readdir() a page at a time as the iterator
+ * advances, so only one page of FCBs is held in memory however large the directory is.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import tfs.structures.FCB;
+
+public class TFSDirectoryStream implements DirectoryStream<Path>
+{
+	public final static int PAGE_SIZE = 64;          //Number of entries read at a time.
+	
+	private final TFSVolume volume;
+	private final TFSPath dir;                       //Directory being listed.
+	private final DirectoryStream.Filter<? super Path> filter;
+	private boolean iterated;                        //Only one iterator may be returned.
+	private volatile boolean closed;
+	
+	/**
+	 * Constructor for a stream over an existing directory.
+	 * 
+	 * @param volume The volume holding the directory.
+	 * @param dir Path of the directory.
+	 * @param filter Filter for the entries to return.
+	 */
+	TFSDirectoryStream(TFSVolume volume, TFSPath dir, DirectoryStream.Filter<? super Path> filter)
+	{
+		this.volume = volume;
+		this.dir = dir;
+		this.filter = filter;
+	}
+	
+	public synchronized Iterator<Path> iterator()
+	{
+		if (closed)
+			throw new IllegalStateException("Directory stream is closed");
+		if (iterated)
+			throw new IllegalStateException("Iterator already returned");
+		
+		iterated = true;
+		return new EntryIterator();
+	}
+	
+	public void close()
+	{
+		closed = true;
+	}
+	
+	/**
+	 * Iterator reading the next page of entries when the current one is used up.
+	 */
+	private class EntryIterator implements Iterator<Path>
+	{
+		private final List<FCB> page = new ArrayList<FCB>(PAGE_SIZE);
+		private int index;                           //Index of the next entry in page.
+		private int cursor;                          //Cursor for the next call to tfs_readdir(), -1 at end.
+		private Path next;                           //Next accepted entry, null if not found yet.
+		
+		public boolean hasNext()
+		{
+			while (next == null && !closed)
+			{
+				if (index == page.size())
+				{
+					if (cursor < 0 || !readPage())
+						return false;
+				}
+				
+				Path entry = dir.resolve(page.get(index++).getStrName());
+				try
+				{
+					if (filter.accept(entry))
+						next = entry;
+				}catch (IOException e)
+				 {
+					throw new DirectoryIteratorException(e);
+				 }
+			}
+			
+			return next != null;
+		}
+		
+		public Path next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			Path result = next;
+			next = null;
+			return result;
+		}
+		
+		/**
+		 * Reads the next page of entries.
+		 * 
+		 * @return boolean true if any entries were read.
+		 */
+		private boolean readPage()
+		{
+			page.clear();
+			index = 0;
+			int result = volume.tfs().tfs_readdir(dir.tfsPath(), cursor, PAGE_SIZE, page);
+			if (result < 0)
+				throw new DirectoryIteratorException(new IOException("Cannot read directory " + dir));
+			
+			cursor = (page.isEmpty() ? -1 : result);
+			return !page.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package tfs.nio;
+
+/**
+ * TFSFileAttributes.java
+ * 
+ * Class TFSFileAttributes holds the basic attributes of a file or directory in a TFSVolume,
+ * taken from its FCB. TFS does not record times, so all times are the epoch. The file key
+ * is the first block of the file, which is unique while the file exists. A file which keeps
+ * its data inline in its directory has no blocks, so it has no file key.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import tfs.structures.FCB;
+
+public class TFSFileAttributes implements BasicFileAttributes
+{
+	private final static FileTime NO_TIME = FileTime.fromMillis(0);
+	
+	private final boolean directory;
+	private final int location;              //First block, or -1 for an inline file.
+	private final int size;
+	
+	/**
+	 * Constructor takes the attributes from an FCB.
+	 * 
+	 * @param fcb FCB of the file or directory.
+	 */
+	TFSFileAttributes(FCB fcb)
+	{
+		directory = fcb.is_Dir();
+		location = (fcb.isInline() ? -1 : fcb.getLocation());
+		size = fcb.getSize();
+	}
+	
+	/**
+	 * Returns the attributes named by a "basic:" attribute string, eg. "size,isDirectory"
+	 * or "*", as a map.
+	 * 
+	 * @param names Comma separated attribute names, without the view name.
+	 * @return Map from attribute name to value.
+	 * @throws IllegalArgumentException if a name is not a basic attribute.
+	 */
+	Map<String, Object> toMap(String names)
+	{
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (String name : names.split(","))
+		{
+			boolean all = name.equals("*");
+			if (all || name.equals("size"))
+				map.put("size", size());
+			if (all || name.equals("isDirectory"))
+				map.put("isDirectory", isDirectory());
+			if (all || name.equals("isRegularFile"))
+				map.put("isRegularFile", isRegularFile());
+			if (all || name.equals("isSymbolicLink"))
+				map.put("isSymbolicLink", false);
+			if (all || name.equals("isOther"))
+				map.put("isOther", false);
+			if (all || name.equals("fileKey"))
+				map.put("fileKey", fileKey());
+			if (all || name.equals("lastModifiedTime"))
+				map.put("lastModifiedTime", NO_TIME);
+			if (all || name.equals("lastAccessTime"))
+				map.put("lastAccessTime", NO_TIME);
+			if (all || name.equals("creationTime"))
+				map.put("creationTime", NO_TIME);
+			
+			if (!all && !map.containsKey(name))
+				throw new IllegalArgumentException("Unknown attribute " + name);
+		}
+		
+		return map;
+	}
+	
+	public FileTime lastModifiedTime()
+	{
+		return NO_TIME;
+	}
+	
+	public FileTime lastAccessTime()
+	{
+		return NO_TIME;
+	}
+	
+	public FileTime creationTime()
+	{
+		return NO_TIME;
+	}
+	
+	public boolean isRegularFile()
+	{
+		return !directory;
+	}
+	
+	public boolean isDirectory()
+	{
+		return directory;
+	}
+	
+	public boolean isSymbolicLink()
+	{
+		return false;
+	}
+	
+	public boolean isOther()
+	{
+		return false;
+	}
+	
+	public long size()
+	{
+		return size;
+	}
+	
+	public Object fileKey()
+	{
+		return (location < 0 ? null : location);
+	}
+}
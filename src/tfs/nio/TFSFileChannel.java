@@ -0,0 +1,289 @@
+package tfs.nio;
+
+/**
+ * TFSFileChannel.java
+ * 
+ * Class TFSFileChannel is the java.nio.channels.FileChannel returned for files in a TFSVolume.
+ * Reads and writes are passed to a TFSByteChannel on the file, while holding the lock of that
+ * channel, so that a read or write at a given position does not move the position used by a
+ * call from another thread. TFSFileSystem locks the file's directory itself.
+ * 
+ * transferTo() and transferFrom() move data between this channel and any other channel, such
+ * as a FileChannel on the host, through a heap buffer of TFSByteChannel.BUFFER_BLOCKS blocks. 
+ * Each buffer is read from TFS as one multi-block read and written as one multi-block write. 
+ * The lock on the channel is only held while TFS is accessed, not while the other channel is.
+ * 
+ * Mapping and locking are not supported, and force() does nothing, as TFS writes through to
+ * the disk file on each write.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+
+import tfs.TFSByteChannel;
+import tfs.TFSDiskInputOutput;
+
+public class TFSFileChannel extends FileChannel
+{
+	private final TFSByteChannel channel;            //Channel on the open file. Also the lock for all access.
+	private final boolean append;                    //true if every write goes to end of file.
+	
+	/**
+	 * Constructor for a channel on an open file.
+	 * 
+	 * @param channel Channel on the open file.
+	 * @param append true if writes should always go to end of file.
+	 */
+	TFSFileChannel(TFSByteChannel channel, boolean append)
+	{
+		this.channel = channel;
+		this.append = append;
+	}
+	
+	public int read(ByteBuffer dst) throws IOException
+	{
+		synchronized (channel)
+		{
+			return channel.read(dst);
+		}
+	}
+	
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		synchronized (channel)
+		{
+			long total = 0;
+			for (int i = offset; i < offset + length; i++)
+			{
+				if (!dsts[i].hasRemaining())
+					continue;
+				
+				int n = channel.read(dsts[i]);
+				if (n < 0)
+					return (total == 0 ? -1 : total);
+				total += n;
+				if (dsts[i].hasRemaining())          //End of file reached.
+					break;
+			}
+			
+			return total;
+		}
+	}
+	
+	public int write(ByteBuffer src) throws IOException
+	{
+		synchronized (channel)
+		{
+			if (append)
+				channel.position(channel.size());
+			return channel.write(src);
+		}
+	}
+	
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		synchronized (channel)
+		{
+			long total = 0;
+			for (int i = offset; i < offset + length; i++)
+				total += write(srcs[i]);
+			
+			return total;
+		}
+	}
+	
+	public long position() throws IOException
+	{
+		synchronized (channel)
+		{
+			return channel.position();
+		}
+	}
+	
+	public FileChannel position(long newPosition) throws IOException
+	{
+		synchronized (channel)
+		{
+			channel.position(newPosition);
+			return this;
+		}
+	}
+	
+	public long size() throws IOException
+	{
+		synchronized (channel)
+		{
+			return channel.size();
+		}
+	}
+	
+	public FileChannel truncate(long size) throws IOException
+	{
+		synchronized (channel)
+		{
+			channel.truncate(size);
+			return this;
+		}
+	}
+	
+	/**
+	 * Does nothing, since every write to TFS has already been written to the disk file.
+	 */
+	public void force(boolean metaData) throws IOException
+	{
+		ensureOpen();
+	}
+	
+	/**
+	 * Writes up to count bytes of the file, starting at position, to target. The position of
+	 * this channel is not changed.
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException("Negative position or count");
+		
+		ByteBuffer buf = transferBuffer(count);
+		long total = 0;
+		while (total < count)
+		{
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), count - total));
+			if (read(buf, position + total) <= 0)
+				break;
+			
+			buf.flip();
+			while (buf.hasRemaining())
+			{
+				int n = target.write(buf);
+				if (n == 0 && buf.hasRemaining())        //Non-blocking target is full.
+					return total + buf.position();
+			}
+			total += buf.limit();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Reads up to count bytes from src and writes them to the file, starting at position. The 
+	 * position of this channel is not changed. Nothing is transferred if position is past end
+	 * of file.
+	 */
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException("Negative position or count");
+		if (position > size())
+			return 0;
+		
+		ByteBuffer buf = transferBuffer(count);
+		long total = 0;
+		while (total < count)
+		{
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), count - total));
+			int n = src.read(buf);
+			if (n <= 0)
+				break;
+			
+			buf.flip();
+			write(buf, position + total);
+			total += n;
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Reads from the file at position, without changing the position of the channel.
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException
+	{
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position");
+		
+		synchronized (channel)
+		{
+			long old = channel.position();
+			try
+			{
+				channel.position(position);
+				return channel.read(dst);
+			}finally
+			 {
+				channel.position(old);
+			 }
+		}
+	}
+	
+	/**
+	 * Writes to the file at position, without changing the position of the channel.
+	 */
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position");
+		
+		synchronized (channel)
+		{
+			long old = channel.position();
+			try
+			{
+				channel.position(position);
+				return channel.write(src);
+			}finally
+			 {
+				channel.position(old);
+			 }
+		}
+	}
+	
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+	{
+		throw new UnsupportedOperationException("TFS files cannot be mapped");
+	}
+	
+	public FileLock lock(long position, long size, boolean shared) throws IOException
+	{
+		throw new UnsupportedOperationException("TFS files cannot be locked");
+	}
+	
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException
+	{
+		throw new UnsupportedOperationException("TFS files cannot be locked");
+	}
+	
+	protected void implCloseChannel() throws IOException
+	{
+		synchronized (channel)
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * @throws ClosedChannelException if the channel is closed.
+	 */
+	private void ensureOpen() throws ClosedChannelException
+	{
+		if (!isOpen())
+			throw new ClosedChannelException();
+	}
+	
+	/**
+	 * @param count Number of bytes to transfer.
+	 * @return ByteBuffer Heap buffer for a transfer, of at most BUFFER_BLOCKS blocks.
+	 */
+	private static ByteBuffer transferBuffer(long count)
+	{
+		int max = TFSByteChannel.BUFFER_BLOCKS * TFSDiskInputOutput.getBlockSize();
+		return ByteBuffer.allocate((int) Math.max(1, Math.min(max, count)));
+	}
+}
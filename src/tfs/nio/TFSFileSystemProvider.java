@@ -0,0 +1,494 @@
+package tfs.nio;
+
+/**
+ * TFSFileSystemProvider.java
+ * 
+ * Class TFSFileSystemProvider lets a TFS disk be used as a java.nio.file.FileSystem, so that
+ * the methods of java.nio.file.Files work on files stored in TFS. The provider is registered
+ * for the "tfs" URI scheme. A URI names the disk file on the host and optionally a path
+ * in TFS after "!", eg. tfs:/home/user/TFSDiskFile!/dir/file.
+ * 
+ * A disk is mounted with FileSystems.newFileSystem(), given either such a URI or the host path 
+ * of the disk file. The block size is read from the start of the disk. If the environment map 
+ * has "create" set to "true" and the disk file does not exist, a new TFS is made first with 
+ * tfs_mkfs(), using the "length" and "blockSize" entries of the map, or 65535 and 128 bytes.
+ * 
+ * Each operation is passed to the TFSFileSystem of the volume, which locks the directories it
+ * uses, so operations from several threads run at the same time. An operation made of several
+ * calls, such as a move by copy and delete, is not atomic:
+ * 
+ * newByteChannel/newFileChannel  - tfs_open(), returning a TFSFileChannel
+ * newDirectoryStream             - tfs_readdir()
+ * createDirectory                - tfs_mkdir()
+ * delete                         - tfs_rm() or tfs_rmdir()
+ * copy                           - tfs_cp(), or tfs_mkdir() for a directory
+ * move                           - tfs_rename(), or copy and delete
+ * readAttributes/checkAccess     - tfs_stat(), from the slot recorded in the TFSPath
+ * 
+ * Copies between a TFS volume and the host use streams or FileChannel.transferTo() and
+ * transferFrom(), which the channels of both file systems support.
+ * 
+ * TRUNCATE_EXISTING is done by tfs_truncate(). Since TFSDiskInputOutput keeps the open disk
+ * in static fields, only one volume may be open at a time.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+
+import tfs.TFSByteChannel;
+import tfs.TFSDiskInputOutput;
+import tfs.TFSFileSystem;
+import tfs.structures.FCB;
+
+public class TFSFileSystemProvider extends FileSystemProvider
+{
+	public final static String SCHEME = "tfs";
+	private final static int DEFAULT_LENGTH = 65535;        //Disk size used by "create" if none is given.
+	private final static int DEFAULT_BLOCK_SIZE = 128;      //Block size used by "create" if none is given.
+	
+	private TFSVolume volume;                               //The open volume, or null.
+	
+	public String getScheme()
+	{
+		return SCHEME;
+	}
+	
+	public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException
+	{
+		return newFileSystem(imageOf(uri), env);
+	}
+	
+	/**
+	 * Mounts the TFS disk stored in the host file at path.
+	 * 
+	 * @param path Host path of the disk file.
+	 * @param env "create", "length" and "blockSize", see class description.
+	 * @return FileSystem The mounted volume.
+	 * @throws FileSystemAlreadyExistsException if a volume is already open.
+	 * @throws IOException if the disk cannot be created or mounted.
+	 */
+	public synchronized FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException
+	{
+		if (volume != null)
+			throw new FileSystemAlreadyExistsException(volume.image().toString());
+		
+		Path image = path.toAbsolutePath().normalize();
+		String name = image.toString();
+		TFSFileSystem tfs = new TFSFileSystem();
+		
+		if (!Files.exists(image))
+		{
+			if (!"true".equals(String.valueOf(env.get("create"))))
+				throw new NoSuchFileException(name);
+			
+			long length = longEnv(env, "length", DEFAULT_LENGTH);
+			int blockSize = intEnv(env, "blockSize", DEFAULT_BLOCK_SIZE);
+			if (tfs.tfs_mkfs(name, length, blockSize) < 0)
+				throw new IOException("Cannot create TFS disk " + name);
+			TFSDiskInputOutput.tfs_dio_close();
+		}
+		
+		int blockSize;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(image)))
+		{
+			blockSize = in.readInt();                           //Block size is the first value in the PCB.
+		}
+		
+		if (blockSize <= 0 || tfs.tfs_mount(name, Files.size(image), blockSize) < 0)
+			throw new IOException("Cannot mount TFS disk " + name);
+		
+		volume = new TFSVolume(this, image, tfs);
+		return volume;
+	}
+	
+	public synchronized FileSystem getFileSystem(URI uri)
+	{
+		Path image = imageOf(uri);
+		if (volume == null || !volume.image().equals(image.toAbsolutePath().normalize()))
+			throw new FileSystemNotFoundException(uri.toString());
+		
+		return volume;
+	}
+	
+	public Path getPath(URI uri)
+	{
+		String ssp = uri.getSchemeSpecificPart();
+		int bang = ssp.indexOf('!');
+		return getFileSystem(uri).getPath(bang < 0 ? "/" : ssp.substring(bang + 1));
+	}
+	
+	/**
+	 * Called by a volume when it is closed, so that another can be opened.
+	 */
+	synchronized void volumeClosed(TFSVolume closed)
+	{
+		if (volume == closed)
+			volume = null;
+	}
+	
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+	{
+		return newFileChannel(path, options, attrs);
+	}
+	
+	/**
+	 * Opens or creates a file, returning a TFSFileChannel on it. READ, WRITE, APPEND, CREATE, 
+	 * CREATE_NEW and TRUNCATE_EXISTING are supported, and other options are ignored.
+	 */
+	public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+	{
+		TFSPath p = toTFSPath(path);
+		String target = p.tfsPath();
+		
+		boolean append = options.contains(StandardOpenOption.APPEND);
+		boolean write = append || options.contains(StandardOpenOption.WRITE);
+		boolean read = options.contains(StandardOpenOption.READ) || !write;
+		if (append && options.contains(StandardOpenOption.READ))
+			throw new IllegalArgumentException("READ and APPEND cannot be used together");
+		if (append && options.contains(StandardOpenOption.TRUNCATE_EXISTING))
+			throw new IllegalArgumentException("APPEND and TRUNCATE_EXISTING cannot be used together");
+		if (attrs.length > 0)
+			throw new UnsupportedOperationException("TFS files have no attributes to set");
+		
+		TFSFileSystem tfs = p.volume().tfs();
+		FCB fcb = tfs.tfs_stat(target, p.entrySlot());
+		boolean exists = (fcb != null && !fcb.is_Dir());
+		
+		if (write && options.contains(StandardOpenOption.CREATE_NEW) && exists)
+			throw new FileAlreadyExistsException(p.toString());
+		if (!exists)
+		{
+			if (fcb != null && target.equals("/"))
+				throw new FileSystemException(p.toString(), null, "Is a directory");
+			if (!write || !(options.contains(StandardOpenOption.CREATE) || options.contains(StandardOpenOption.CREATE_NEW)))
+				throw new NoSuchFileException(p.toString());
+			
+			createFile(tfs, p, !options.contains(StandardOpenOption.CREATE_NEW));
+		}
+		else if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING) && fcb.getSize() > 0)
+		{
+			if (tfs.tfs_truncate(target, 0) < 0)
+				throw new IOException("Cannot truncate " + p);
+		}
+		
+		int mode = (read ? TFSFileSystem.MODE_READ : 0) | (write ? TFSFileSystem.MODE_WRITE : 0);
+		return new TFSFileChannel(new TFSByteChannel(tfs, target, mode), append);
+	}
+	
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException
+	{
+		TFSPath p = toTFSPath(dir);
+		TFSFileSystem tfs = p.volume().tfs();
+		int result = tfs.tfs_readdir(p.tfsPath(), 0, 0, new ArrayList<FCB>());   //Check that directory exists.
+		if (result == -2)
+		{
+			if (tfs.tfs_stat(p.tfsPath(), p.entrySlot()) != null)
+				throw new NotDirectoryException(p.toString());
+			throw new NoSuchFileException(p.toString());
+		}
+		if (result < 0)
+			throw new IOException("Cannot read directory " + p);
+		
+		return new TFSDirectoryStream(p.volume(), p, filter);
+	}
+	
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException
+	{
+		TFSPath p = toTFSPath(dir);
+		TFSFileSystem tfs = p.volume().tfs();
+		FCB fcb = tfs.tfs_stat(p.tfsPath(), p.entrySlot());
+		if (fcb != null)
+			throw new FileAlreadyExistsException(p.toString());
+		
+		checkParent(tfs, p);
+		if (tfs.tfs_mkdir(p.tfsPath()) < 0)
+		{
+			if (tfs.tfs_stat(p.tfsPath(), p.entrySlot()) != null)     //Made by another thread since.
+				throw new FileAlreadyExistsException(p.toString());
+			throw new IOException("Cannot create directory " + p);
+		}
+	}
+	
+	/**
+	 * Deletes a file, or an empty directory.
+	 */
+	public void delete(Path path) throws IOException
+	{
+		TFSPath p = toTFSPath(path);
+		String target = p.tfsPath();
+		TFSFileSystem tfs = p.volume().tfs();
+		FCB fcb = tfs.tfs_stat(target, p.entrySlot());
+		if (fcb == null)
+			throw new NoSuchFileException(p.toString());
+		if (target.equals("/"))
+			throw new FileSystemException(p.toString(), null, "Cannot delete root");
+		
+		int result = (fcb.is_Dir() ? tfs.tfs_rmdir(target) : tfs.tfs_rm(target));
+		if (result == -2)
+			throw new DirectoryNotEmptyException(p.toString());
+		if (result < 0)
+			throw new IOException("Cannot delete " + p);
+	}
+	
+	/**
+	 * Copies a file with tfs_cp(). A directory is copied as a new empty directory.
+	 */
+	public void copy(Path source, Path target, CopyOption... options) throws IOException
+	{
+		TFSPath s = toTFSPath(source);
+		TFSPath t = toTFSPath(target);
+		TFSFileSystem tfs = s.volume().tfs();
+		FCB fcb = tfs.tfs_stat(s.tfsPath(), s.entrySlot());
+		if (fcb == null)
+			throw new NoSuchFileException(s.toString());
+		if (isSameFile(s, t))
+			return;
+		
+		prepareTarget(tfs, t, options);
+		int result = (fcb.is_Dir() ? tfs.tfs_mkdir(t.tfsPath()) : tfs.tfs_cp(s.tfsPath(), t.tfsPath()));
+		if (result == -3)
+			throw new FileAlreadyExistsException(t.toString());
+		if (result < 0)
+			throw new IOException("Cannot copy " + s + " to " + t);
+	}
+	
+	/**
+	 * Moves a file within its directory with tfs_rename(). Other moves are done by copying 
+	 * the file or directory tree and deleting the source, so they are not atomic. A directory
+	 * cannot be moved to a path inside itself.
+	 * 
+	 * A directory tree is copied by tfs_cp_recursive() and then removed by tfs_rm_recursive(),
+	 * each of which locks only what it reads and changes. Files changed in the source between
+	 * the two calls are removed without being copied, as they would be by a move on a host
+	 * file system which copies across devices.
+	 */
+	public void move(Path source, Path target, CopyOption... options) throws IOException
+	{
+		TFSPath s = toTFSPath(source);
+		TFSPath t = toTFSPath(target);
+		TFSFileSystem tfs = s.volume().tfs();
+		FCB fcb = tfs.tfs_stat(s.tfsPath(), s.entrySlot());
+		if (fcb == null)
+			throw new NoSuchFileException(s.toString());
+		if (s.tfsPath().equals("/"))
+			throw new FileSystemException(s.toString(), null, "Cannot move root");
+		if (isSameFile(s, t))
+			return;
+		if (t.toAbsolutePath().normalize().startsWith(s.toAbsolutePath().normalize()))
+			throw new FileSystemException(s.toString(), t.toString(), "Cannot move a directory into itself");
+		
+		prepareTarget(tfs, t, options);
+		boolean rename = !fcb.is_Dir() && s.toAbsolutePath().getParent().equals(t.toAbsolutePath().getParent());
+		if (!rename && Arrays.asList(options).contains(StandardCopyOption.ATOMIC_MOVE))
+			throw new AtomicMoveNotSupportedException(s.toString(), t.toString(), "Only files can be renamed within a directory");
+		
+		if (!fcb.is_Dir())
+		{
+			int result;
+			if (rename)
+				result = tfs.tfs_rename(s.tfsPath(), t.getFileName().toString());
+			else
+			{
+				result = tfs.tfs_cp(s.tfsPath(), t.tfsPath());
+				if (result >= 0)
+					result = tfs.tfs_rm(s.tfsPath());
+			}
+			
+			if (result < 0)
+				throw new IOException("Cannot move " + s + " to " + t);
+			return;
+		}
+		
+		int result = tfs.tfs_cp_recursive(s.tfsPath(), t.tfsPath());
+		if (result >= 0)
+			result = tfs.tfs_rm_recursive(s.tfsPath());
+		if (result < 0)
+			throw new IOException("Cannot move " + s + " to " + t);
+	}
+	
+	/**
+	 * Paths are the same file if they are equal, or if they lead to an entry with the same
+	 * first block.
+	 */
+	public boolean isSameFile(Path path, Path path2) throws IOException
+	{
+		if (path.equals(path2))
+			return true;
+		if (!(path2 instanceof TFSPath) || path.getFileSystem() != path2.getFileSystem())
+			return false;
+		
+		TFSPath p = toTFSPath(path);
+		TFSFileSystem tfs = p.volume().tfs();
+		TFSPath p2 = (TFSPath) path2;
+		FCB a = tfs.tfs_stat(p.tfsPath(), p.entrySlot());
+		FCB b = tfs.tfs_stat(p2.tfsPath(), p2.entrySlot());
+		if (a == null || b == null)
+			return false;
+		if (a.isInline() || b.isInline())      //Blocks do not identify the file. Names are compared ignoring case.
+			return p.tfsPath().equalsIgnoreCase(p2.tfsPath());
+		
+		return (a.getLocation() == b.getLocation());
+	}
+	
+	public boolean isHidden(Path path)
+	{
+		return false;
+	}
+	
+	public FileStore getFileStore(Path path)
+	{
+		throw new UnsupportedOperationException("TFS has no file stores");
+	}
+	
+	/**
+	 * Checks that the file or directory exists. TFS has no permissions, so any access is allowed.
+	 */
+	public void checkAccess(Path path, AccessMode... modes) throws IOException
+	{
+		stat(toTFSPath(path));
+	}
+	
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options)
+	{
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException
+	{
+		if (type != BasicFileAttributes.class && type != TFSFileAttributes.class)
+			throw new UnsupportedOperationException("Only basic attributes are supported");
+		
+		return (A) new TFSFileAttributes(stat(toTFSPath(path)));
+	}
+	
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException
+	{
+		int colon = attributes.indexOf(':');
+		if (colon >= 0 && !attributes.substring(0, colon).equals("basic"))
+			throw new UnsupportedOperationException("Only basic attributes are supported");
+		
+		return new TFSFileAttributes(stat(toTFSPath(path))).toMap(attributes.substring(colon + 1));
+	}
+	
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options)
+	{
+		throw new UnsupportedOperationException("TFS attributes cannot be set");
+	}
+	
+	/**
+	 * @return FCB of the file or directory down path.
+	 * @throws NoSuchFileException if it does not exist.
+	 */
+	private static FCB stat(TFSPath p) throws IOException
+	{
+		FCB fcb = p.volume().tfs().tfs_stat(p.tfsPath(), p.entrySlot());
+		if (fcb == null)
+			throw new NoSuchFileException(p.toString());
+		return fcb;
+	}
+	
+	/**
+	 * Creates an empty file, after checking that its parent directory exists.
+	 * 
+	 * @param mayExist true if a file made by another thread since it was looked for may be used.
+	 */
+	private static void createFile(TFSFileSystem tfs, TFSPath p, boolean mayExist) throws IOException
+	{
+		checkParent(tfs, p);
+		int result = tfs.tfs_create(p.tfsPath());
+		if (result == -2 && mayExist)
+			return;
+		if (result == -2)
+			throw new FileAlreadyExistsException(p.toString());
+		if (result < 0)
+			throw new IOException("Cannot create " + p);
+	}
+	
+	/**
+	 * @throws NoSuchFileException if the parent directory of p does not exist.
+	 */
+	private static void checkParent(TFSFileSystem tfs, TFSPath p) throws IOException
+	{
+		Path parent = p.toAbsolutePath().getParent();
+		if (parent == null)
+			throw new FileSystemException(p.toString(), null, "Root already exists");
+		
+		if (tfs.tfs_readdir(((TFSPath) parent).tfsPath(), 0, 0, new ArrayList<FCB>()) < 0)
+			throw new NoSuchFileException(parent.toString());
+	}
+	
+	/**
+	 * Removes the target of a copy or move if REPLACE_EXISTING is given.
+	 * 
+	 * @throws FileAlreadyExistsException if the target exists and is not to be replaced.
+	 */
+	private static void prepareTarget(TFSFileSystem tfs, TFSPath t, CopyOption... options) throws IOException
+	{
+		FCB fcb = tfs.tfs_stat(t.tfsPath(), t.entrySlot());
+		if (fcb == null)
+		{
+			checkParent(tfs, t);
+			return;
+		}
+		if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING))
+			throw new FileAlreadyExistsException(t.toString());
+		
+		int result = (fcb.is_Dir() ? tfs.tfs_rmdir(t.tfsPath()) : tfs.tfs_rm(t.tfsPath()));
+		if (result == -2)
+			throw new DirectoryNotEmptyException(t.toString());
+		if (result < 0)
+			throw new IOException("Cannot replace " + t);
+	}
+	
+	/**
+	 * @throws ProviderMismatchException if path is not a TFS path.
+	 */
+	private static TFSPath toTFSPath(Path path)
+	{
+		if (!(path instanceof TFSPath))
+			throw new ProviderMismatchException();
+		
+		return (TFSPath) path;
+	}
+	
+	/**
+	 * Returns the host path of the disk file named by a tfs: URI.
+	 */
+	private static Path imageOf(URI uri)
+	{
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+			throw new IllegalArgumentException("URI scheme is not " + SCHEME);
+		
+		String ssp = uri.getSchemeSpecificPart();
+		int bang = ssp.indexOf('!');
+		return Paths.get(bang < 0 ? ssp : ssp.substring(0, bang));
+	}
+	
+	/**
+	 * @return int value of key in env, or def if not set.
+	 */
+	private static int intEnv(Map<String, ?> env, String key, int def)
+	{
+		Object value = env.get(key);
+		return (value == null ? def : Integer.parseInt(String.valueOf(value)));
+	}
+	
+	private static long longEnv(Map<String, ?> env, String key, long def)
+	{
+		Object value = env.get(key);
+		return (value == null ? def : Long.parseLong(String.valueOf(value)));
+	}
+}
@@ -0,0 +1,364 @@
+package tfs.nio;
+
+/**
+ * TFSPath.java
+ * 
+ * Class TFSPath is a java.nio.file.Path in a TFSVolume. A path is a list of names separated by
+ * "/", and is absolute if it starts with "/". The names are split and the absolute path passed
+ * to TFSFileSystem is built once, when the path is created, so a path used for many calls is 
+ * only resolved to a TFS path string once. The parent location and slot of the entry it leads
+ * to are recorded by the first tfs_stat() of the path, so later ones read the entry from its
+ * slot without going down the path again, until entries in the volume are moved.
+ * 
+ * Like names in TFS directories, paths are compared without regard to case.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import tfs.structures.EntrySlot;
+
+public class TFSPath implements Path
+{
+	private final TFSVolume volume;          //Volume this path belongs to.
+	private final String[] names;            //Names in the path, without empty names.
+	private final boolean absolute;          //true if path starts at root.
+	private String tfsPath;                  //Absolute path string used with TFSFileSystem. Built when first needed.
+	private int hash;                        //Cached hash code, 0 until computed.
+	private final AtomicReference<EntrySlot> entrySlot = new AtomicReference<EntrySlot>();   //Slot of the entry, recorded by tfs_stat().
+	
+	/**
+	 * Constructor parses a path string. Repeated and trailing "/" are ignored.
+	 * 
+	 * @param volume The volume the path belongs to.
+	 * @param path The path string.
+	 */
+	TFSPath(TFSVolume volume, String path)
+	{
+		this.volume = volume;
+		this.absolute = path.startsWith("/");
+		
+		List<String> parts = new ArrayList<String>();
+		for (String part : path.split("/"))
+		{
+			if (!part.isEmpty())
+				parts.add(part);
+		}
+		this.names = parts.toArray(new String[parts.size()]);
+	}
+	
+	private TFSPath(TFSVolume volume, String[] names, boolean absolute)
+	{
+		this.volume = volume;
+		this.names = names;
+		this.absolute = absolute;
+	}
+	
+	/**
+	 * Returns the absolute, normalized path string for this path, as passed to TFSFileSystem. 
+	 * Relative paths are taken to be relative to root.
+	 * 
+	 * @return String path from root, eg. "/dir/file", or "/" for root.
+	 */
+	String tfsPath()
+	{
+		if (tfsPath == null)
+		{
+			TFSPath norm = (TFSPath) normalize();
+			StringBuilder sb = new StringBuilder();
+			for (String name : norm.names)
+				sb.append('/').append(name);
+			
+			tfsPath = (sb.length() == 0 ? "/" : sb.toString());
+		}
+		
+		return tfsPath;
+	}
+	
+	/**
+	 * @return AtomicReference Holds the slot of the entry this path leads to, for tfs_stat().
+	 */
+	AtomicReference<EntrySlot> entrySlot()
+	{
+		return entrySlot;
+	}
+	
+	/**
+	 * @return TFSVolume The volume this path belongs to.
+	 */
+	TFSVolume volume()
+	{
+		return volume;
+	}
+	
+	public FileSystem getFileSystem()
+	{
+		return volume;
+	}
+	
+	public boolean isAbsolute()
+	{
+		return absolute;
+	}
+	
+	public Path getRoot()
+	{
+		return (absolute ? new TFSPath(volume, new String[0], true) : null);
+	}
+	
+	public Path getFileName()
+	{
+		if (names.length == 0)
+			return null;
+		
+		return new TFSPath(volume, new String[] {names[names.length - 1]}, false);
+	}
+	
+	public Path getParent()
+	{
+		if (names.length == 0 || (names.length == 1 && !absolute))
+			return null;
+		
+		return new TFSPath(volume, Arrays.copyOf(names, names.length - 1), absolute);
+	}
+	
+	public int getNameCount()
+	{
+		return names.length;
+	}
+	
+	public Path getName(int index)
+	{
+		if (index < 0 || index >= names.length)
+			throw new IllegalArgumentException("Invalid name index " + index);
+		
+		return new TFSPath(volume, new String[] {names[index]}, false);
+	}
+	
+	public Path subpath(int beginIndex, int endIndex)
+	{
+		if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+			throw new IllegalArgumentException("Invalid subpath " + beginIndex + ", " + endIndex);
+		
+		return new TFSPath(volume, Arrays.copyOfRange(names, beginIndex, endIndex), false);
+	}
+	
+	public boolean startsWith(Path other)
+	{
+		if (!(other instanceof TFSPath))
+			return false;
+		
+		TFSPath o = (TFSPath) other;
+		if (o.absolute != absolute || o.names.length > names.length)
+			return false;
+		
+		for (int i = 0; i < o.names.length; i++)
+		{
+			if (!names[i].equalsIgnoreCase(o.names[i]))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	public boolean startsWith(String other)
+	{
+		return startsWith(volume.getPath(other));
+	}
+	
+	public boolean endsWith(Path other)
+	{
+		if (!(other instanceof TFSPath))
+			return false;
+		
+		TFSPath o = (TFSPath) other;
+		if (o.absolute)
+			return equals(o);
+		if (o.names.length > names.length)
+			return false;
+		
+		int shift = names.length - o.names.length;
+		for (int i = 0; i < o.names.length; i++)
+		{
+			if (!names[shift + i].equalsIgnoreCase(o.names[i]))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	public boolean endsWith(String other)
+	{
+		return endsWith(volume.getPath(other));
+	}
+	
+	/**
+	 * Removes "." names, and ".." names together with the name before them.
+	 * A ".." at the start of an absolute path is dropped.
+	 */
+	public Path normalize()
+	{
+		Deque<String> out = new ArrayDeque<String>();
+		boolean changed = false;
+		for (String name : names)
+		{
+			if (name.equals("."))
+				changed = true;
+			else if (name.equals("..") && !out.isEmpty() && !out.peekLast().equals(".."))
+			{
+				out.removeLast();
+				changed = true;
+			}
+			else if (name.equals("..") && absolute)
+				changed = true;
+			else
+				out.addLast(name);
+		}
+		
+		if (!changed)
+			return this;
+		
+		return new TFSPath(volume, out.toArray(new String[out.size()]), absolute);
+	}
+	
+	public Path resolve(Path other)
+	{
+		TFSPath o = checkPath(other);
+		if (o.absolute)
+			return o;
+		if (o.names.length == 0)
+			return this;
+		
+		String[] joined = Arrays.copyOf(names, names.length + o.names.length);
+		System.arraycopy(o.names, 0, joined, names.length, o.names.length);
+		return new TFSPath(volume, joined, absolute);
+	}
+	
+	public Path resolve(String other)
+	{
+		return resolve(volume.getPath(other));
+	}
+	
+	public Path resolveSibling(Path other)
+	{
+		Path parent = getParent();
+		return (parent == null ? other : parent.resolve(other));
+	}
+	
+	public Path resolveSibling(String other)
+	{
+		return resolveSibling(volume.getPath(other));
+	}
+	
+	public Path relativize(Path other)
+	{
+		TFSPath o = checkPath(other);
+		if (o.absolute != absolute)
+			throw new IllegalArgumentException("Cannot relativize paths of different types");
+		
+		int common = 0;
+		while (common < names.length && common < o.names.length && names[common].equalsIgnoreCase(o.names[common]))
+			common++;
+		
+		List<String> rel = new ArrayList<String>();
+		for (int i = common; i < names.length; i++)
+			rel.add("..");
+		for (int i = common; i < o.names.length; i++)
+			rel.add(o.names[i]);
+		
+		return new TFSPath(volume, rel.toArray(new String[rel.size()]), false);
+	}
+	
+	public URI toUri()
+	{
+		return volume.toUri(tfsPath());
+	}
+	
+	public Path toAbsolutePath()
+	{
+		return (absolute ? this : new TFSPath(volume, names, true));
+	}
+	
+	public Path toRealPath(LinkOption... options) throws IOException
+	{
+		TFSPath real = (TFSPath) toAbsolutePath().normalize();
+		volume.provider().checkAccess(real);
+		return real;
+	}
+	
+	public File toFile()
+	{
+		throw new UnsupportedOperationException("TFS paths are not host files");
+	}
+	
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+	{
+		throw new UnsupportedOperationException("TFS does not support watch services");
+	}
+	
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events)
+	{
+		throw new UnsupportedOperationException("TFS does not support watch services");
+	}
+	
+	public Iterator<Path> iterator()
+	{
+		List<Path> list = new ArrayList<Path>(names.length);
+		for (int i = 0; i < names.length; i++)
+			list.add(getName(i));
+		
+		return list.iterator();
+	}
+	
+	public int compareTo(Path other)
+	{
+		return toString().compareToIgnoreCase(other.toString());
+	}
+	
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof TFSPath))
+			return false;
+		
+		TFSPath o = (TFSPath) other;
+		return o.volume == volume && toString().equalsIgnoreCase(o.toString());
+	}
+	
+	public int hashCode()
+	{
+		if (hash == 0)
+			hash = toString().toLowerCase(Locale.ROOT).hashCode();
+		
+		return hash;
+	}
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String name : names)
+		{
+			if (sb.length() > 0 || absolute)
+				sb.append('/');
+			sb.append(name);
+		}
+		
+		if (sb.length() == 0 && absolute)
+			return "/";
+		return sb.toString();
+	}
+	
+	private TFSPath checkPath(Path other)
+	{
+		if (!(other instanceof TFSPath))
+			throw new ProviderMismatchException();
+		
+		return (TFSPath) other;
+	}
+}
@@ -0,0 +1,258 @@
+package tfs.nio;
+
+/**
+ * TFSVolume.java
+ * 
+ * Class TFSVolume is a java.nio.file.FileSystem for a mounted TFS disk. It is created by
+ * TFSFileSystemProvider, and holds the TFSFileSystem which every operation on its paths is 
+ * passed to. TFSFileSystem locks what each call uses, so operations on a volume may be made
+ * from several threads at once.
+ * 
+ * Only one TFS disk can be open in a JVM at a time, because TFSDiskInputOutput keeps the open
+ * disk in static fields. Closing the volume unmounts the disk.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import tfs.TFSFileSystem;
+
+public class TFSVolume extends FileSystem
+{
+	private final TFSFileSystemProvider provider;
+	private final Path image;                 //Host path of the disk file.
+	private final TFSFileSystem tfs;          //The mounted TFS.
+	private final TFSPath root;
+	private volatile boolean open = true;
+	
+	/**
+	 * Constructor for a volume on an already mounted TFS.
+	 * 
+	 * @param provider The provider which created the volume.
+	 * @param image Host path of the disk file.
+	 * @param tfs The mounted TFS.
+	 */
+	TFSVolume(TFSFileSystemProvider provider, Path image, TFSFileSystem tfs)
+	{
+		this.provider = provider;
+		this.image = image;
+		this.tfs = tfs;
+		this.root = new TFSPath(this, "/");
+	}
+	
+	/**
+	 * @return TFSFileSystem The mounted TFS.
+	 * @throws ClosedFileSystemException if the volume is closed.
+	 */
+	TFSFileSystem tfs()
+	{
+		if (!open)
+			throw new ClosedFileSystemException();
+		
+		return tfs;
+	}
+	
+	/**
+	 * @return Path Host path of the disk file.
+	 */
+	Path image()
+	{
+		return image;
+	}
+	
+	/**
+	 * Returns the URI for a path in this volume, of the form tfs:/host/disk!/dir/file.
+	 * 
+	 * @param tfsPath Absolute path in the volume.
+	 * @return URI of the path.
+	 */
+	URI toUri(String tfsPath)
+	{
+		try
+		{
+			return new URI(TFSFileSystemProvider.SCHEME, image.toUri().getPath() + "!" + tfsPath, null);
+		}catch (URISyntaxException e)
+		 {
+			throw new IllegalStateException(e);
+		 }
+	}
+	
+	public FileSystemProvider provider()
+	{
+		return provider;
+	}
+	
+	/**
+	 * Unmounts the TFS and closes the disk. Open channels on the volume may not be used after.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (!open)
+			return;
+		
+		open = false;
+		provider.volumeClosed(this);
+		if (tfs.tfs_exit() < 0)                    //Waits for calls made before the volume was closed.
+			throw new IOException("Cannot close TFS disk " + image);
+	}
+	
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	public boolean isReadOnly()
+	{
+		return false;
+	}
+	
+	public String getSeparator()
+	{
+		return "/";
+	}
+	
+	public Iterable<Path> getRootDirectories()
+	{
+		return Collections.<Path>singletonList(root);
+	}
+	
+	public Iterable<FileStore> getFileStores()
+	{
+		return Collections.<FileStore>emptyList();
+	}
+	
+	public Set<String> supportedFileAttributeViews()
+	{
+		return Collections.singleton("basic");
+	}
+	
+	public Path getPath(String first, String... more)
+	{
+		if (more.length == 0)
+			return new TFSPath(this, first);
+		
+		StringBuilder sb = new StringBuilder(first);
+		for (String part : more)
+		{
+			if (!part.isEmpty())
+			{
+				if (sb.length() > 0)
+					sb.append('/');
+				sb.append(part);
+			}
+		}
+		
+		return new TFSPath(this, sb.toString());
+	}
+	
+	/**
+	 * Returns a matcher for "glob:" or "regex:" patterns, applied to the path string. 
+	 * Like TFS names, matching is not case sensitive.
+	 */
+	public PathMatcher getPathMatcher(String syntaxAndPattern)
+	{
+		int colon = syntaxAndPattern.indexOf(':');
+		if (colon <= 0)
+			throw new IllegalArgumentException("Pattern must be syntax:pattern");
+		
+		String syntax = syntaxAndPattern.substring(0, colon);
+		String pattern = syntaxAndPattern.substring(colon + 1);
+		String regex;
+		if (syntax.equalsIgnoreCase("regex"))
+			regex = pattern;
+		else if (syntax.equalsIgnoreCase("glob"))
+			regex = globToRegex(pattern);
+		else
+			throw new UnsupportedOperationException("Syntax " + syntax + " not supported");
+		
+		final Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		return new PathMatcher()
+		{
+			public boolean matches(Path path)
+			{
+				return p.matcher(path.toString()).matches();
+			}
+		};
+	}
+	
+	public UserPrincipalLookupService getUserPrincipalLookupService()
+	{
+		throw new UnsupportedOperationException("TFS has no users");
+	}
+	
+	public WatchService newWatchService()
+	{
+		throw new UnsupportedOperationException("TFS does not support watch services");
+	}
+	
+	/**
+	 * Converts a glob to a regular expression. "*" and "?" do not match "/", while "**" does.
+	 * Groups "{a,b}" and classes "[abc]" are also supported.
+	 * 
+	 * @param glob The glob pattern.
+	 * @return String Regular expression matching the same paths.
+	 */
+	private static String globToRegex(String glob)
+	{
+		StringBuilder regex = new StringBuilder();
+		boolean inGroup = false;
+		for (int i = 0; i < glob.length(); i++)
+		{
+			char c = glob.charAt(i);
+			switch (c)
+			{
+				case '*':
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+					{
+						regex.append(".*");
+						i++;
+					}
+					else
+						regex.append("[^/]*");
+					break;
+				case '?':
+					regex.append("[^/]");
+					break;
+				case '{':
+					regex.append("(?:");
+					inGroup = true;
+					break;
+				case '}':
+					regex.append(')');
+					inGroup = false;
+					break;
+				case ',':
+					regex.append(inGroup ? "|" : ",");
+					break;
+				case '[':
+					int end = glob.indexOf(']', i + 1);
+					if (end < 0)
+						throw new java.util.regex.PatternSyntaxException("Missing ]", glob, i);
+					String cls = glob.substring(i + 1, end);
+					if (cls.startsWith("!"))
+						cls = "^" + cls.substring(1);
+					regex.append('[').append(cls.replace("\\", "\\\\")).append(']');
+					i = end;
+					break;
+				case '\\':
+					if (i + 1 < glob.length())
+						regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+					break;
+				default:
+					regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		
+		return regex.toString();
+	}
+}
@@ -1,9 +1,19 @@
 package tfs.structures;
 
 /**
- * Manages a directory to be used in the file system, in memory. Uses a doubly linked linear list
- * to store directory entries (FCB objects). The list is an instance of LinkedList and 
- * so it can use the methods implemented by this class from the List interface. 
+ * Manages a directory to be used in the file system, in memory. Uses an ArrayList to store
+ * directory entries (FCB objects), where the index of each entry is its slot in the directory
+ * as stored on disk.
+ * 
+ * Removing an entry leaves its slot free (null in the list, stored on disk as FCB.FREE_SLOT), 
+ * so the entries after it keep their slots and only the removed slot has to be written to disk. 
+ * Free slots are reused by the next entries added. Once free slots outnumber the entries, 
+ * the directory is compacted by dropping all free slots, which changes its size.
+ * 
+ * The entry of an inline file (see FCB.isInline()) is followed by the data slots holding its data.
+ * These are held in the list as DATA_SLOT, and are written from the data of the entry before them.
+ * An inline entry is added to the first run of free slots long enough for it and its data slots.
+ * Its data slots are freed along with it, or when it is updated to use fewer of them.
  * 
  * Methods are provided to perform the various basic functions needed in a directory.
  * 
@@ -24,18 +34,21 @@ import java.nio.ByteBuffer;
 
 public class Directory 
 {
-	//Create the list of FCB objects to contain this directory.
+	//Create the list of FCB objects to contain this directory. Free slots are null.
 	private List <FCB> dirList;
+	private int freeSlots;                //Number of free slots in dirList.
+	private int dataSlots;                //Number of data slots of inline entries in dirList.
+	private final static FCB DATA_SLOT = new FCB();     //Held in the list in place of a data slot.
 	
 	
 	/**
 	 * Constructor for Directory class initializes data member dirList as a pointer to an
-	 * an LinkedList storing FCB objects. 
+	 * an ArrayList storing FCB objects. 
 	 * 
 	 */
 	public Directory()
 	{
-		dirList = new LinkedList<FCB>();
+		dirList = new ArrayList<FCB>();
 	}
 	
 	/**
@@ -50,18 +63,110 @@ public class Directory
 		if(dirList.contains(entry))   //Throw DirAddException if entry is already in dir. 
 			throw new DirModException("Could not add entry for \"" + entry.getStrName() +"\".Directory already contains entry.");
 		
-		else                          //Otherwise add the entry to directory.
-			dirList.add(entry);   
+		else                          //Otherwise add the entry to directory, in a free slot if there is one.
+			addToSlot(entry);   
 				
 	}
 	
+	/**
+	 * Puts the entry into the first free slot, or adds it after the last slot if no slot is free.
+	 * An inline entry is put with its data slots into the first run of free slots which can hold 
+	 * them all, or added after the last slot.
+	 */
+	private void addToSlot(FCB entry)
+	{
+		int needed = 1 + entry.getInlineSlots();
+		int start = (freeSlots >= needed ? findFreeRun(needed) : -1);
+		
+		if (start >= 0)
+		{
+			dirList.set(start, entry);
+			for (int k = 1; k < needed; k++)
+				dirList.set(start + k, DATA_SLOT);
+			freeSlots -= needed;
+		}
+		else
+		{
+			dirList.add(entry);
+			for (int k = 1; k < needed; k++)
+				dirList.add(DATA_SLOT);
+		}
+		
+		dataSlots += needed - 1;
+	}
+	
+	/**
+	 * Returns the first slot of the first run of at least length free slots, or -1 if there is none.
+	 */
+	private int findFreeRun(int length)
+	{
+		int run = 0;
+		for (int slot = 0; slot < dirList.size(); slot++)
+		{
+			run = (dirList.get(slot) == null ? run + 1 : 0);
+			if (run == length)
+				return slot - length + 1;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the number of data slots which follow the given slot.
+	 */
+	private int dataSlotsAfter(int slot)
+	{
+		int count = 0;
+		while (slot + 1 + count < dirList.size() && dirList.get(slot + 1 + count) == DATA_SLOT)
+			count++;
+		
+		return count;
+	}
+	
+	/**
+	 * Returns the number of slots used by the entry in the given slot, which is 1 plus its 
+	 * data slots if it is inline. Useful for storing a changed entry with its data to disk.
+	 * 
+	 * @param slot The slot of the entry.
+	 * @return int number of consecutive slots starting at slot used by the entry.
+	 */
+	public int numSlotsUsed(int slot)
+	{
+		return 1 + dataSlotsAfter(slot);
+	}
+	
+	/**
+	 * Adds several new entries to the directory at once. Unlike calling addNewEntry() for
+	 * each entry, the entries already in the directory are only looked at once, as the names
+	 * are checked with a HashSet. Nothing is added if any entry is already in the directory,
+	 * or appears twice in entries.
+	 * 
+	 * @param entries The FCB's to be added to the directory.
+	 * @throws DirModException if an entry is already in the directory or appears twice.
+	 */
+	public void addNewEntries(List<FCB> entries) throws DirModException
+	{
+		Set<FCB> names = new HashSet<FCB>(dirList);
+		
+		for (FCB entry : entries)
+		{
+			if (!(names.add(entry)))    //Throw DirModException if entry name is already used.
+				throw new DirModException("Could not add entry for \"" + entry.getStrName() +"\".Directory already contains entry.");
+		}
+		
+		for (FCB entry : entries)
+			addToSlot(entry);
+	}
+	
 	/**
 	 * Updates an existing entry in this directory. Calls find() to get the index
 	 * of the entry and then overwrites the entry which was found.
+	 * If the entry now uses fewer data slots than before, the rest are freed.
 	 * 
 	 * 
 	 * @param updatedEntry The updated version of an existing entry.
-	 * @throws DirModException if the directory does not contain the entry.
+	 * @throws DirModException if the directory does not contain the entry, or 
+	 *         the entry would need more data slots than it has.
 	 */
 	public void update(FCB updatedEntry) throws DirModException
 	{
@@ -73,6 +178,16 @@ public class Directory
 		//Otherwise, update the entry which was found.
 		else
 		{
+			int oldData = dataSlotsAfter(index);
+			int newData = updatedEntry.getInlineSlots();
+			if (newData > oldData)
+				throw new DirModException("Cannot update entry since it needs more data slots than it has.");
+			
+			for (int k = newData + 1; k <= oldData; k++)    //Free data slots no longer used.
+				dirList.set(index + k, null);
+			freeSlots += oldData - newData;
+			dataSlots -= oldData - newData;
+			
 			dirList.set(index, updatedEntry);    //Replace entry with new entry.
 		}
 				
@@ -174,16 +289,20 @@ public class Directory
 	
 	public int find(String name, boolean dOrF)
 	{
-		for (int i = 0; i < dirList.size(); i++) //Iterate through list and look at names of entries
+		/*
+		 *  Uses FCB.equals method by creating one temporary FCB and comparing it with each entry.
+		 *  Its case-folded name is only computed once for the whole search.
+		 */
+		FCB target = new FCB(name, dOrF, 1, 1);
+		
+		int i = 0;
+		for (FCB current : dirList) //Iterate through list and look at names of entries
 		{
-			FCB current = dirList.get(i);
-			
-			/*
-			 *  Uses FCB.equals method by creating another temporary FCB and comparing with current entry, FCB current.
-			 *  Return index of current entry if it matches name and is also either a directory or file.
-			 */
-			if( (new FCB(name, dOrF, 1, 1)).equals(current) )    
+			//Return index of current entry if it matches name and is also either a directory or file.
+			if (target.equals(current))    
 				return i;
+			
+			i++;
 		}
 		
 		//If not found, return -1;
@@ -227,7 +346,8 @@ public class Directory
 	}
 	
 	/**
-	 * Removes an entry from the directory, it it exists.
+	 * Removes an entry from the directory, it it exists. The slot of the entry is left free,
+	 * as are its data slots if it is inline, unless this leaves more free slots than entries, in which case the directory is compacted.
 	 * 
 	 * @param victim
 	 * @return The FCB of entry that was removed
@@ -245,14 +365,45 @@ public class Directory
 		if (index < 0)
 			throw new DirModException("Entry could not be found for removal");
 		
-		//Otherwise, if element is found, return this element.
+		//Otherwise, if element is found, free its slot and return this element.
 		else
 		{
-			return dirList.remove(index);
+			int data = dataSlotsAfter(index);
+			FCB removed = dirList.set(index, null);
+			for (int k = 1; k <= data; k++)
+				dirList.set(index + k, null);
+			freeSlots += 1 + data;
+			dataSlots -= data;
+			
+			if (freeSlots > numEntries())       //Compact if most slots are free.
+				compact();
+			
+			return removed;
 		}
 		
 	}
 	
+	/**
+	 * Drops all free slots, so that the entries are stored in consecutive slots. Data slots are
+	 * kept after their entries.
+	 * Slots of entries after a free slot change, as does the size of the directory.
+	 */
+	public void compact()
+	{
+		if (freeSlots == 0)
+			return;
+		
+		List<FCB> compacted = new ArrayList<FCB>(numEntries());
+		for (FCB f : dirList)
+		{
+			if (f != null)
+				compacted.add(f);
+		}
+		
+		dirList = compacted;
+		freeSlots = 0;
+	}
+	
 	/**
 	 * Overloaded version of removeEntry. Finds associated FCB of the name specified
 	 * in argument. For convenience, uses getByName to find the FCB. 
@@ -275,17 +426,28 @@ public class Directory
 	}
 	
 	/**
-	 * Get the number of entries in this directory.
+	 * Get the number of entries in this directory. Free slots and data slots are not counted.
 	 * 
 	 * @return int num entries in directory or 0 if empty
 	 */
 	public int numEntries()
 	{
-		return dirList.size();
+		return dirList.size() - freeSlots - dataSlots;
 	}
 	
 	/**
-	 *  Calculates the size of this directory in bytes.
+	 * Get the number of free slots in this directory.
+	 * 
+	 * @return int num free slots in directory.
+	 */
+	public int numFreeSlots()
+	{
+		return freeSlots;
+	}
+	
+	/**
+	 *  Calculates the size of this directory in bytes. Free slots and data slots are included, 
+	 *  since they are stored on disk.
 	 *
 	 *  @return int The number of bytes that hold this directory.
 	 **/
@@ -298,8 +460,9 @@ public class Directory
 	
 	/**
 	 * Creates and returns an array of bytes of the FCB's for the files and directories
-	 * stored in this directory. Utilizes the getByteArr() method of tfs.structues.FCB for
-	 * convenience. Useful for storing directory to disk.
+	 * stored in this directory. Each entry is encoded straight into the output array by
+	 * the encode() method of tfs.structures.FCB, so only the output array is created.
+	 * Useful for storing directory to disk.
 	 * 
 	 * @return byte[] An array of bytes holding the bytes of the FCB's stored in this directory.
 	 *         
@@ -311,31 +474,44 @@ public class Directory
 		
 		//Number of entries multiplied by constant size of FCB's gives size of output array.
 		byte [] outArr = new byte[getByteSize()];
-		byte [] tmpArr;
+		ByteBuffer outBB = ByteBuffer.wrap(outArr);    //Wrap once, entries are written at their offsets.
 		
 		int outPos = 0;   //Current position in the output array.
-		int inPos = 0;   //Current position in the array of the current FCB.
 		
-		//Now copy bytes of each entry into the output array of bytes.
-		for (int i = 0; i < dirList.size(); i++) //Outer loop for the list, iterates through dirList.
+		for (int slot = 0; slot < dirList.size(); slot++)         //Encode each slot at its position in the output array.
 		{
-			tmpArr = dirList.get(i).getByteArr();          //Get byte array of the next entry in directory.
-			
-			//Null entries not added. Inner loop, loop for all the bytes of current entry.
-			while (tmpArr != null && inPos < tmpArr.length)   
-			{                   
-				outArr[outPos] = tmpArr[inPos];                      //Copy byte to output array.
-			
-				outPos++;
-				inPos++;
-			}
-			inPos = 0;    //Reset position in inner array to 0 for next entry.
-		
+			encodeSlot(slot, outBB, outPos);
+			outPos += FCB.FCB_SIZE;
 		}
 		
 		return outArr;
 	}
 	
+	/**
+	 * Writes the entry in the given slot into buf at offset, or marks it as free if the
+	 * slot holds no entry. A data slot is written from the data of the inline entry it
+	 * belongs to. Useful for storing a single changed slot to disk.
+	 * 
+	 * @param slot The slot to encode.
+	 * @param buf The buffer to write into. Must have FCB.FCB_SIZE bytes available after offset.
+	 * @param offset Position in buf of the first byte of the slot.
+	 */
+	public void encodeSlot(int slot, ByteBuffer buf, int offset)
+	{
+		FCB f = dirList.get(slot);
+		if (f == null)
+			FCB.encodeFreeSlot(buf, offset);
+		else if (f == DATA_SLOT)
+		{
+			int head = slot - 1;                  //Find the inline entry the data slot belongs to.
+			while (dirList.get(head) == DATA_SLOT)
+				head--;
+			dirList.get(head).encodeInlineSlot(slot - head - 1, buf, offset);
+		}
+		else
+			f.encode(buf, offset);
+	}
+	
 	/**
 	 * Static method which creates a directory using the bytes provided 
 	 * in byte array bDir.
@@ -353,25 +529,36 @@ public class Directory
 					+ "\nmeaning size of directory must be divisible by size of FCB");
 		
 		Directory outDir = new Directory();            //The directory to return.
+		ByteBuffer dirBB = ByteBuffer.wrap(bDir);      //Wrap all bytes once. Entries are decoded at their offsets.
 		
-		//Iterate through and recreate each entry (FCB) in memory and add to the directory. Increment by FCB.FCB_SIZE each time.
+		/*
+		 * Iterate through and recreate each entry (FCB) in memory and add to the directory. Increment by FCB.FCB_SIZE each time.
+		 * Entries stored on disk are already unique, so they are added without the check done by addNewEntry().
+		 * Data slots which do not belong to the inline entry before them are left over, and are free.
+		 */
+		int pendingData = 0;                           //Data slots still to come for the last inline entry.
 		for (int i = 0; i < size; i += FCB.FCB_SIZE)  
 		{
-			//Temporary array hold bytes of the current entry. which is from i (inclusive) to i + FCB.FCB_SIZE (exclusive).
-			byte[] tmpFCBBytes = Arrays.copyOfRange(bDir, i, i + FCB.FCB_SIZE);
-			ByteBuffer tmpBB = ByteBuffer.wrap(tmpFCBBytes);   //Wrap the FCB bytes of this entry into a byte buffer.
-			
-			//Now get bytes from buffer for the various data members of the FCB.
-			byte[] tmpName = new byte[15];    //The name stored by entry.
-			tmpBB.get(tmpName, 0, 15);        //Copy first 15 bytes for name into byte array name.
-			byte tmp_isDir = tmpBB.get();     //Get byte for is directory or not.              
-			int tmpLocation = tmpBB.getInt(); //Get int for disk location (block num)               
-			int tmpSize = tmpBB.getInt();     //Get int for Size (num bytes)
-			
-					
-			//Add an FCB entry to directory with the above data as its stored data.
-			outDir.addNewEntry(new FCB(tmpName, tmp_isDir, tmpLocation, tmpSize));
-			
+			if (FCB.isDataSlot(dirBB, i) && pendingData > 0)
+			{
+				outDir.dirList.add(DATA_SLOT);
+				outDir.dataSlots++;
+				pendingData--;
+			}
+			else if (!FCB.holdsEntry(dirBB, i))       //Free slots are kept, so entries keep their slots.
+			{
+				outDir.dirList.add(null);
+				outDir.freeSlots++;
+				pendingData = 0;
+			}
+			else
+			{
+				FCB entry = FCB.decode(dirBB, i);
+				if (i + (1 + entry.getInlineSlots()) * FCB.FCB_SIZE <= size)
+					entry.readInlineData(dirBB, i);
+				outDir.dirList.add(entry);
+				pendingData = entry.getInlineSlots();
+			}
 		}
 			
 		return outDir;
@@ -387,13 +574,16 @@ public class Directory
 	 */
 	public String listContents()
 	{
-		if (dirList.isEmpty())                //Indicate if dir is empty.
+		if (numEntries() == 0)                //Indicate if dir is empty.
 			return "Empty directory";
 					
 		StringBuffer sB = new StringBuffer(this.getByteSize() - 2*(dirList.size()));   //String buffer for contents of dir.
-		sB.append("Directory with " + this.getByteSize() / FCB.FCB_SIZE +" entries contains:\n"); //Add number of entries to info string buffer.
+		sB.append("Directory with " + numEntries() +" entries contains:\n"); //Add number of entries to info string buffer.
 		for (FCB f : dirList)
 		{
+			if (f == null || f == DATA_SLOT)  //Skip free slots and data slots.
+				continue;
+			
 			//Append this entry's type (file or dir), name, and size to sB.
 			sB.append("\n\tType (File or directory): " + (f.is_Dir() ? "Directory" : "File") + "\n\tName: " + f.getStrName());
 			//Add size of num entries if directory
@@ -413,7 +603,10 @@ public class Directory
 	{
 		StringBuffer sB = new StringBuffer(this.getByteSize() - 3*(dirList.size()));    //New String buffer for contents of dir.
 		for (FCB f : dirList)                                                           //Iterate over list backing directory.
-			sB.append(f.toString() +"\n\n");                                            //Add current entry to String buffer.
+		{
+			if (f != null && f != DATA_SLOT)                                            //Skip free slots and data slots.
+				sB.append(f.toString() +"\n\n");                                        //Add current entry to String buffer.
+		}
 		
 		return sB.toString();			
 	}
@@ -0,0 +1,81 @@
+package tfs.structures;
+
+/**
+ * EntrySlot.java
+ *
+ * Class EntrySlot records where the entry at the end of a path was found: the location of its
+ * parent directory and its slot there, as the FDT does for open files. It is filled in by
+ * TFSFileSystem.tfs_stat() and given back to it on the next call for the same path, so the
+ * entry can be read from its slot without searching every directory along the path again.
+ *
+ * Entries move when a directory is compacted, removed or renamed. The file system counts these
+ * changes, and the count at the time the entry was found is recorded as its version. A slot
+ * with an older version is not used.
+ *
+ * An EntrySlot cannot be changed, so one may be shared by several threads.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+public class EntrySlot
+{
+	private final int parentLoc;          //Location of the parent directory.
+	private final int slot;               //Slot of the entry in its parent.
+	private final boolean dir;            //true if the entry is a directory.
+	private final long version;           //Count of moves in the file system when the entry was found.
+
+	/**
+	 * Constructor for the slot an entry was found in.
+	 *
+	 * @param parentLoc Location of the parent directory.
+	 * @param slot Slot of the entry in its parent.
+	 * @param dir true if the entry is a directory, false if it is a file.
+	 * @param version Count of moves when the entry was found.
+	 */
+	public EntrySlot(int parentLoc, int slot, boolean dir, long version)
+	{
+		this.parentLoc = parentLoc;
+		this.slot = slot;
+		this.dir = dir;
+		this.version = version;
+	}
+
+	/**
+	 * @return int Location of the parent directory.
+	 */
+	public int getParentLocation()
+	{
+		return parentLoc;
+	}
+
+	/**
+	 * @return int Slot of the entry in its parent.
+	 */
+	public int getSlot()
+	{
+		return slot;
+	}
+
+	/**
+	 * @return boolean true if the entry is a directory.
+	 */
+	public boolean is_Dir()
+	{
+		return dir;
+	}
+
+	/**
+	 * @return long Count of moves in the file system when the entry was found.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	public String toString()
+	{
+		return "Slot " + slot + " of directory at block " + parentLoc + (dir ? " (directory)" : "") + ", version " + version;
+	}
+}
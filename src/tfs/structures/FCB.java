@@ -18,9 +18,31 @@ package tfs.structures;
  *  Several methods are provided for accessing and modifying these data members. A method for converting
  *  the FCB to an array of bytes is also provided, called getByteArr(), so that it can easily be stored to disk. 
  *  FCB attributes will be stored in the byte array in the order shown above. This array has a fixed size. 
+ *  Methods encode() and decode() write and read the same layout directly to and from a ByteBuffer at a
+ *  given offset, so that many FCB's can be stored in or loaded from one buffer without intermediate arrays.
  *  
- *  Finally, FCB overrides the Object equals method, so that FCB's can be compared.
- *  FCB's are compared by their name in a non-case sensitive manner.
+ *  A slot of a stored directory which holds no entry is marked by storing FREE_SLOT in place of
+ *  isDirectory. See encodeFreeSlot() and isFreeSlot().
+ *  
+ *  A small file may keep its data inline, in the directory holding it, so that it can be read without
+ *  reading any blocks of its own. The entry of such a file stores INLINE_FILE in place of isDirectory,
+ *  the number of data slots reserved for it in place of the starting block, and the length of its data
+ *  as its size. Its data follows in that many slots directly after the entry. Each data slot stores
+ *  DATA_SLOT in place of isDirectory, and INLINE_SLOT_BYTES bytes of data in the bytes around it.
+ *  See encodeInlineSlot() and readInlineData().
+ *  
+ *  A file whose blocks hold its data compressed stores COMPRESSED_FILE in place of isDirectory. Its
+ *  size is the size of the data before compression. See TFSFileSystem.tfs_setCompressed().
+ *  
+ *  A file stored with a block map stores MAPPED_FILE in place of isDirectory. Its starting block is the
+ *  first block of the map, which holds the block of each block of data in turn, or 0 for a hole. Other
+ *  files may refer to the same blocks of data, so they are only freed or changed once it is known that 
+ *  no other file does. See TFSFileSystem.tfs_setDedup().
+ *  
+ *  Finally, FCB overrides the Object equals and hashCode methods, so that FCB's can be compared.
+ *  FCB's are compared by their name in a non-case sensitive manner. Whenever the name is set, a 
+ *  case-folded copy of the name and its hash are stored as well. Comparisons use these, so that
+ *  names do not have to be converted to Strings every time FCB's are compared.
  *
  * @author Oloff Biermann
  * @version 8.77
@@ -29,16 +51,30 @@ package tfs.structures;
 
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.io.*;
 
 public class FCB
 {
 	public final static int FCB_SIZE = 24;          //Size is fixed at 24 bytes.
 	public final static int MAX_NAME = 15;           //Max length of name stored is 15 bytes.
+	final static int IS_DIR_POS = 15;                //Positions of attributes within the stored FCB.
+	final static int LOCATION_POS = 16;
+	final static int SIZE_POS = 20;
+	public final static byte FREE_SLOT = (byte) 0x80;   //Stored in place of isDirectory for a free directory slot.
+	public final static byte DATA_SLOT = (byte) 0x81;   //Stored in place of isDirectory for a slot of inline data.
+	public final static byte INLINE_FILE = 2;           //Stored in place of isDirectory for a file with inline data.
+	public final static byte COMPRESSED_FILE = 3;       //Stored in place of isDirectory for a file with compressed blocks.
+	public final static byte MAPPED_FILE = 4;           //Stored in place of isDirectory for a file stored with a block map.
+	public final static int INLINE_SLOT_BYTES = FCB_SIZE - 1;    //Bytes of inline data held by one data slot.
 	private byte[] name = new byte[15];              //Max file or directory name size is 15 bytes.
+	private byte[] foldedName = new byte[0];         //Name with case folded, used for comparisons.
+	private int nameHash = 1;                        //Hash of foldedName (1 for an empty name).
 	private byte isDir;
 	private int startingBlock;
 	private int size;
+	private byte[] inlineData;                       //Data of an inline file. null if not read or not inline.
 
 	/**
 	 * Constructor creates a blank FCB. Takes no args.
@@ -85,6 +121,22 @@ public class FCB
 		setSize(numBytes);
 	}
 	
+	/**
+	 *  Overloaded constructor for a file which keeps its data inline, in data slots following its entry.
+	 *  
+	 *  @param n String with name for file
+	 *  @param data byte[] with the data of the file. Not copied.
+	 *  @param dataSlots int for the number of data slots reserved for the file
+	 *  @throws IllegalArgumentException if the data does not fit in the data slots.
+	 */
+	public FCB(String n, byte[] data, int dataSlots) throws IllegalArgumentException
+	{
+		setName(n);
+		isDir = INLINE_FILE;
+		setLocation(dataSlots);
+		setInlineData(data);
+	}
+	
 	/**
 	 *   Sets the name stored by this FCB. As mentioned, max name size is 15 bytes.
 	 *   Any additional bytes will be discarded after string is converted to bytes.
@@ -129,8 +181,54 @@ public class FCB
 			name[i] = n[i];
 		}
 				
+		foldName();                            //Store case-folded name for comparisons.
 		
+	}
+	
+	/**
+	 * Stores a case-folded copy of the name and its hash, which are used by equals() and hashCode().
+	 * Two names are folded to the same bytes exactly when their Strings are equal ignoring case.
+	 * ASCII names are folded byte by byte. Other names are folded one char at a time, in the same 
+	 * way as String.equalsIgnoreCase() compares chars.
+	 */
+	private void foldName()
+	{
+		int nLength = 0;
+		boolean ascii = true;
+		while (nLength < MAX_NAME && name[nLength] != 0)    //Name ends at first unused (0) byte.
+		{
+			if (name[nLength] < 0)                           //Byte of a multi-byte UTF-8 char.
+				ascii = false;
+			nLength++;
+		}
 		
+		if (ascii)
+		{
+			foldedName = new byte[nLength];
+			for (int i = 0; i < nLength; i++)
+				foldedName[i] = foldCase(name[i]);
+		}
+		else
+		{
+			char[] chars = getStrName().toCharArray();
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+			
+			foldedName = new String(chars).getBytes(StandardCharsets.UTF_8);
+		}
+		
+		nameHash = Arrays.hashCode(foldedName);
+	}
+	
+	/**
+	 * Converts ASCII upper case letters to lower case. Other bytes are returned as they are.
+	 * 
+	 * @param b The byte to fold.
+	 * @return byte The folded byte.
+	 */
+	static byte foldCase(byte b)
+	{
+		return ((b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b);
 	}
 	
 	/**
@@ -143,17 +241,19 @@ public class FCB
 	public void setFileOrDir(boolean is_D) 
 	{
 		isDir = (byte)(is_D ? 1 : 0);      //Note cast to byte.
+		inlineData = null;                 //No longer inline, if it was.
 	}
 	
 	/**
 	 * Overloaded version of setFileOrDir which takes byte arg instead of boolean.
-	 * @throws IllegalArgumentException if value is not 0 or 1  
+	 * INLINE_FILE, COMPRESSED_FILE and MAPPED_FILE are also accepted, for the other kinds of stored file.
+	 * @throws IllegalArgumentException if value is not 0, 1, INLINE_FILE, COMPRESSED_FILE or MAPPED_FILE  
 	 */
 	 public void setFileOrDir(byte iS) throws IllegalArgumentException
 	 {
 		 byte f = 0;
 		 byte t = 1;
-		 if (iS == f || iS == t)    //If arg is 0 or 1, set data member isDir.
+		 if (iS == f || iS == t || iS == INLINE_FILE || iS == COMPRESSED_FILE || iS == MAPPED_FILE)    //If arg is valid, set data member isDir.
 			isDir = iS;
 		
 		 else    //Otherwise throw exception to indicate that invalid arg was given.
@@ -210,17 +310,22 @@ public class FCB
 	
 	/**
 	 * Returns name as a UTF-8 string. Not UTF-16,
-	 * since 1 byte chars are used internally. 
-	 * 
+	 * since 1 byte chars are used internally.
+	 * Unused bytes at the end of the name are not included.
+	 *
 	 * @return name as UTF-8 formatted string.
-	 * 
+	 *
 	 */
 	public String getStrName()
-	{	
-		String strName = ""; 
+	{
+		String strName = "";
+		int nLength = 0;
+		while (nLength < MAX_NAME && name[nLength] != 0)    //Name ends at first unused (0) byte.
+			nLength++;
+
 		try
 		{
-			strName = new String(name, "UTF-8");
+			strName = new String(name, 0, nLength, "UTF-8");
 		}catch (UnsupportedEncodingException e)
 		{
 			System.err.println("Could not convert byte name to string");
@@ -240,6 +345,84 @@ public class FCB
 		return (isDir == 1 ? true : false);
 	}
 	
+	/**
+	 *  Returns true if this FCB manages a file which keeps its data inline, in its directory.
+	 *
+	 *  @return boolean true if inline, otherwise false.
+	 **/
+	public boolean isInline()
+	{
+		return (isDir == INLINE_FILE);
+	}
+	
+	/**
+	 *  Returns true if this FCB manages a file whose blocks hold its data compressed.
+	 *
+	 *  @return boolean true if compressed, otherwise false.
+	 **/
+	public boolean isCompressed()
+	{
+		return (isDir == COMPRESSED_FILE);
+	}
+	
+	/**
+	 *  Returns true if this FCB manages a file stored with a block map, whose blocks may be shared
+	 *  with other files.
+	 *
+	 *  @return boolean true if mapped, otherwise false.
+	 **/
+	public boolean isMapped()
+	{
+		return (isDir == MAPPED_FILE);
+	}
+	
+	/**
+	 *  Returns the number of data slots following the entry of an inline file, or 0 for any other entry.
+	 *
+	 *  @return int number of data slots.
+	 **/
+	public int getInlineSlots()
+	{
+		return (isDir == INLINE_FILE ? startingBlock : 0);
+	}
+	
+	/**
+	 *  Returns the data of an inline file. The array is not copied. null if this FCB is not inline,
+	 *  or was created without reading its data slots.
+	 *
+	 *  @return byte[] data of the inline file, with the length of its size.
+	 **/
+	public byte[] getInlineData()
+	{
+		return inlineData;
+	}
+	
+	/**
+	 *  Sets the data of an inline file, and its size to the length of the data. The array is not copied.
+	 *
+	 *  @param data byte[] with the new data of the file.
+	 *  @throws IllegalArgumentException if this FCB is not inline, or the data does not fit in its data slots.
+	 **/
+	public void setInlineData(byte[] data) throws IllegalArgumentException
+	{
+		if (!isInline() || data.length > startingBlock * INLINE_SLOT_BYTES)
+			throw new IllegalArgumentException("Inline data does not fit in the data slots of the file.");
+		
+		inlineData = data;
+		size = data.length;
+	}
+	
+	/**
+	 *  Returns the number of data slots needed to hold the given number of bytes inline.
+	 *
+	 *  @param numBytes int number of bytes of data.
+	 *  @return int number of data slots.
+	 **/
+	public static int inlineSlotsFor(int numBytes)
+	{
+		return (numBytes + INLINE_SLOT_BYTES - 1) / INLINE_SLOT_BYTES;
+	}
+	
 	/**
 	 *  Returns the location of this file or directory on disk. This is the starting block number.
 	 *
@@ -293,20 +476,181 @@ public class FCB
 	 {
 		ByteBuffer tmpBB = ByteBuffer.allocate(FCB_SIZE);     //Byte buffer to hold all bytes.
 		
-		tmpBB.put(name);                     //Transfer name into buffer.
-		tmpBB.put(isDir);                    //Transfer isDirectory into buffer.
-		tmpBB.putInt(startingBlock);        //Put 4 bytes of startingBlock into buffer.
-		tmpBB.putInt(size);                // Put 4 bytes of size into buffer.
+		encode(tmpBB, 0);                 //Transfer all attributes into buffer.
 		
 		return tmpBB.array();             //Return the byte array backing this buffer.
 	  }
 	 
+	 /**
+	  *   Writes this FCB into buf at the given offset, in the same order as getByteArr().
+	  *   Absolute puts are used, so the position of buf is not changed and no
+	  *   intermediate arrays are created.
+	  *
+	  *   @param buf The buffer to write into. Must have FCB_SIZE bytes available after offset.
+	  *   @param offset Position in buf of the first byte of this FCB.
+	  **/
+	 public void encode(ByteBuffer buf, int offset)
+	 {
+		for (int i = 0; i < MAX_NAME; i++)             //Transfer name into buffer.
+			buf.put(offset + i, name[i]);
+		
+		buf.put(offset + IS_DIR_POS, isDir);            //Transfer isDirectory into buffer.
+		buf.putInt(offset + LOCATION_POS, startingBlock);   //Put 4 bytes of startingBlock into buffer.
+		buf.putInt(offset + SIZE_POS, size);              //Put 4 bytes of size into buffer.
+	 }
+	 
+	 /**
+	  *   Marks the FCB_SIZE bytes in buf at the given offset as a free directory slot. 
+	  *   The name is cleared and FREE_SLOT is stored in place of isDirectory.
+	  *
+	  *   @param buf The buffer to write into. Must have FCB_SIZE bytes available after offset.
+	  *   @param offset Position in buf of the first byte of the slot.
+	  **/
+	 public static void encodeFreeSlot(ByteBuffer buf, int offset)
+	 {
+		for (int i = 0; i < FCB_SIZE; i++)
+			buf.put(offset + i, (byte) 0);
+		
+		buf.put(offset + IS_DIR_POS, FREE_SLOT);
+	 }
+	 
+	 /**
+	  *   Returns true if the slot stored in buf at the given offset is a free directory slot,
+	  *   written by encodeFreeSlot().
+	  *
+	  *   @param buf The buffer to read from.
+	  *   @param offset Position in buf of the first byte of the slot.
+	  *   @return boolean true if the slot holds no entry.
+	  **/
+	 public static boolean isFreeSlot(ByteBuffer buf, int offset)
+	 {
+		return (buf.get(offset + IS_DIR_POS) == FREE_SLOT);
+	 }
+	 
+	 /**
+	  *   Returns true if the slot stored in buf at the given offset is a data slot of an inline file,
+	  *   written by encodeInlineSlot(). A data slot only belongs to the inline entry before it if it 
+	  *   is within the data slots that entry reserves. Any other data slot is left over from an entry
+	  *   which was removed or moved its data to blocks, and holds no entry either.
+	  *
+	  *   @param buf The buffer to read from.
+	  *   @param offset Position in buf of the first byte of the slot.
+	  *   @return boolean true if the slot is marked as a data slot.
+	  **/
+	 public static boolean isDataSlot(ByteBuffer buf, int offset)
+	 {
+		return (buf.get(offset + IS_DIR_POS) == DATA_SLOT);
+	 }
+	 
+	 /**
+	  *   Returns true if the slot stored in buf at the given offset holds an entry, that is if
+	  *   it is neither a free slot nor a data slot.
+	  *
+	  *   @param buf The buffer to read from.
+	  *   @param offset Position in buf of the first byte of the slot.
+	  *   @return boolean true if the slot holds an entry.
+	  **/
+	 public static boolean holdsEntry(ByteBuffer buf, int offset)
+	 {
+		byte b = buf.get(offset + IS_DIR_POS);
+		return (b != FREE_SLOT && b != DATA_SLOT);
+	 }
+	 
+	 /**
+	  *   Writes data slot k of this inline file into buf at the given offset. Bytes of the data
+	  *   past its end are stored as 0.
+	  *
+	  *   @param k The number of the data slot, from 0.
+	  *   @param buf The buffer to write into. Must have FCB_SIZE bytes available after offset.
+	  *   @param offset Position in buf of the first byte of the slot.
+	  **/
+	 public void encodeInlineSlot(int k, ByteBuffer buf, int offset)
+	 {
+		int start = k * INLINE_SLOT_BYTES;
+		for (int i = 0; i < INLINE_SLOT_BYTES; i++)
+		{
+			int d = start + i;
+			byte b = (inlineData != null && d < inlineData.length ? inlineData[d] : 0);
+			buf.put(offset + (i < IS_DIR_POS ? i : i + 1), b);     //Skip the byte of the marker.
+		}
+		
+		buf.put(offset + IS_DIR_POS, DATA_SLOT);
+	 }
+	 
+	 /**
+	  *   Writes the entry of this FCB into buf at the given offset, followed by its data slots if it
+	  *   is inline.
+	  *
+	  *   @param buf The buffer to write into. Must have room for every slot after offset.
+	  *   @param offset Position in buf of the first byte of the entry.
+	  *   @return int number of slots written.
+	  **/
+	 public int encodeWithData(ByteBuffer buf, int offset)
+	 {
+		encode(buf, offset);
+		
+		int dataSlots = getInlineSlots();
+		for (int k = 0; k < dataSlots; k++)
+			encodeInlineSlot(k, buf, offset + (k + 1) * FCB_SIZE);
+		
+		return (1 + dataSlots);
+	 }
+	 
+	 /**
+	  *   Reads the data of this inline file from the data slots which follow its entry. offset is 
+	  *   the position of the entry itself. Nothing is read if this FCB is not inline.
+	  *
+	  *   @param buf The buffer to read from. Must hold every data slot of the file.
+	  *   @param offset Position in buf of the first byte of the entry.
+	  **/
+	 public void readInlineData(ByteBuffer buf, int offset)
+	 {
+		if (!isInline())
+			return;
+		
+		byte[] data = new byte[size];
+		for (int d = 0; d < size; d++)
+		{
+			int k = d / INLINE_SLOT_BYTES;
+			int i = d % INLINE_SLOT_BYTES;
+			data[d] = buf.get(offset + (k + 1) * FCB_SIZE + (i < IS_DIR_POS ? i : i + 1));
+		}
+		
+		inlineData = data;
+	 }
+	 
+	 /**
+	  *   Creates an FCB from the bytes stored in buf at the given offset, which must
+	  *   be in the order written by encode(). Absolute gets are used, so the position
+	  *   of buf is not changed. Only the FCB and its name array are created.
+	  *
+	  *   @param buf The buffer to read from.
+	  *   @param offset Position in buf of the first byte of the FCB.
+	  *   @return FCB holding the attributes read from buf.
+	  *   @throws IllegalArgumentException if the stored attributes are invalid.
+	  **/
+	 public static FCB decode(ByteBuffer buf, int offset) throws IllegalArgumentException
+	 {
+		FCB outFCB = new FCB();
+		
+		for (int i = 0; i < MAX_NAME; i++)             //Copy name bytes straight into new FCB.
+			outFCB.name[i] = buf.get(offset + i);
+		outFCB.foldName();
+		
+		outFCB.setFileOrDir(buf.get(offset + IS_DIR_POS));
+		outFCB.setLocation(buf.getInt(offset + LOCATION_POS));
+		outFCB.setSize(buf.getInt(offset + SIZE_POS));
+		
+		return outFCB;
+	 }
+	 
 	 
 	 /**
 	  * Method compares two FCB objects by name and if they are both either directories or files.
 	  * Returns true if names are equal(ignoring case) and they are both files or both directories.
 	  * 
-	  * Overrides Object.equals for FCB objects. 
+	  * Overrides Object.equals for FCB objects. The hashes of the case-folded names are compared
+	  * first. The folded names themselves are only compared if the hashes match.
 	  * 
 	  * @return boolean true if FCB's have same name and are both associated with files or directories, false otherwise
 	  *  
@@ -317,14 +661,27 @@ public class FCB
 		 if (!(other instanceof FCB))                       //Can never be equal if argument is not an instance of FCB.
 			 return false;
 		 
-		 String n = this.getStrName();                           //Name stored for this object
-		 String otherObjName = ((FCB)other).getStrName();        //Name stored by other FCB. Note case to FCB
-		 		 		 		 
-		//Return true if the names match, ignoring case, both are files or dirs.
-		 if ( (n.equalsIgnoreCase(otherObjName)) && (this.is_Dir() == (((FCB)other).is_Dir())) )  
-			 return true;
+		 FCB otherFCB = (FCB)other;
 		 
-		 return false;                           //Otherwise return false.
+		 //Different hashes or types mean FCB's can't be equal.
+		 if (nameHash != otherFCB.nameHash || this.is_Dir() != otherFCB.is_Dir())
+			 return false;
+		 		 		 		 
+		//Return true if the names match, ignoring case.
+		 return Arrays.equals(foldedName, otherFCB.foldedName);
+	 }
+	 
+	 /**
+	  * Returns a hash code consistent with equals(), made from the hash of the
+	  * case-folded name and the type of entry. Inline files hash as files.
+	  * 
+	  * Overrides Object.hashCode for FCB objects.
+	  * 
+	  * @return int hash code of this FCB.
+	  */
+	 public int hashCode()
+	 {
+		 return (31 * nameHash + (is_Dir() ? 1 : 0));
 	 }
 	 
 		
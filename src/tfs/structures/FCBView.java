@@ -0,0 +1,333 @@
+package tfs.structures;
+
+/**
+ * FCBView.java
+ * 
+ * Class FCBView is a read-only view of one directory entry stored in a ByteBuffer, such as the 
+ * bytes of a directory read from disk. It reads the attributes of the entry (name, isDirectory, 
+ * starting block and size) straight from the buffer at the entry's slot, using the same layout 
+ * as FCB.encode(). No FCB object is created.
+ * 
+ * A view is a flyweight. One view can be moved over every slot of a directory, or over the slots
+ * of several directories, by calling moveTo(). This makes read-only operations such as searching
+ * a directory or walking a path possible without creating any objects on the heap.
+ * 
+ * Names are compared directly against the stored bytes by nameEquals(), in the same non-case 
+ * sensitive manner as FCB.equals(). Names made up of ASCII characters are compared byte by byte.
+ * Other names fall back to comparing FCB's. Names can also be matched against a glob pattern by
+ * nameMatches(), in the same way.
+ * 
+ * Data slots of inline files hold no entry, and are seen as free by isFree(). toFCB() reads the
+ * data of an inline entry as well, if its data slots are held in the buffer.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+public class FCBView 
+{
+	private ByteBuffer buf;             //The buffer holding the entry.
+	private int slot;                   //The slot of the entry in buf.
+	private int offset;                 //Position in buf of first byte of the entry.
+	
+	//Compares a char of a glob with a byte of the stored name. Made once, so ASCII names are matched without creating objects.
+	private final CharMatcher byteMatcher = (c, n) -> c < 0x80 && FCB.foldCase((byte) c) == FCB.foldCase(buf.get(offset + n));
+	
+	/**
+	 * Constructor creates a view which is not yet positioned on any entry.
+	 * moveTo() must be called before attributes can be read.
+	 */
+	public FCBView()
+	{
+		
+	}
+	
+	/**
+	 * Constructor creates a view of the entry at the given slot in buf.
+	 * 
+	 * @param buf ByteBuffer holding directory entries.
+	 * @param slot The slot of the entry. Entry starts at byte slot * FCB.FCB_SIZE.
+	 */
+	public FCBView(ByteBuffer buf, int slot)
+	{
+		moveTo(buf, slot);
+	}
+	
+	/**
+	 * Positions this view on the entry at the given slot in buf.
+	 * 
+	 * @param buf ByteBuffer holding directory entries.
+	 * @param slot The slot of the entry. Entry starts at byte slot * FCB.FCB_SIZE.
+	 * @return This view, for convenience.
+	 * @throws IllegalArgumentException if the slot is not entirely within buf.
+	 */
+	public FCBView moveTo(ByteBuffer buf, int slot) throws IllegalArgumentException
+	{
+		if (slot < 0 || (slot + 1) * FCB.FCB_SIZE > buf.capacity())
+			throw new IllegalArgumentException("Slot " + slot + " is not within buffer.");
+		
+		this.buf = buf;
+		this.slot = slot;
+		this.offset = slot * FCB.FCB_SIZE;
+		
+		return this;
+	}
+	
+	/**
+	 * Positions this view on the entry at the given slot in the buffer it already views.
+	 * 
+	 * @param slot The slot of the entry.
+	 * @return This view, for convenience.
+	 */
+	public FCBView moveTo(int slot)
+	{
+		return moveTo(buf, slot);
+	}
+	
+	/**
+	 * @return int The slot of the entry this view is positioned on.
+	 */
+	public int getSlot()
+	{
+		return slot;
+	}
+	
+	/**
+	 *  Returns true if the viewed entry manages a directory, or false if it manages a file.
+	 *
+	 *  @return boolean true if dir, otherwise false.
+	 **/
+	public boolean is_Dir()
+	{
+		return (buf.get(offset + FCB.IS_DIR_POS) == 1);
+	}
+	
+	/**
+	 *  Returns true if the viewed entry manages a file which keeps its data inline.
+	 *
+	 *  @return boolean true if inline, otherwise false.
+	 **/
+	public boolean isInline()
+	{
+		return (buf.get(offset + FCB.IS_DIR_POS) == FCB.INLINE_FILE);
+	}
+	
+	/**
+	 *  Returns true if the viewed entry manages a file stored with a block map.
+	 *
+	 *  @return boolean true if mapped, otherwise false.
+	 **/
+	public boolean isMapped()
+	{
+		return (buf.get(offset + FCB.IS_DIR_POS) == FCB.MAPPED_FILE);
+	}
+	
+	/**
+	 *  Returns true if the viewed slot holds no entry. This is a free slot, or a data slot
+	 *  of an inline file.
+	 *
+	 *  @return boolean true if slot is free, otherwise false.
+	 **/
+	public boolean isFree()
+	{
+		return !FCB.holdsEntry(buf, offset);
+	}
+	
+	/**
+	 *  Returns the location (starting block) of the viewed file or directory.
+	 *
+	 *  @return int starting block number of file or directory.
+	 **/
+	public int getLocation()
+	{
+		return buf.getInt(offset + FCB.LOCATION_POS);
+	}
+	
+	/**
+	 *  Returns the size in bytes of the viewed file or directory.
+	 *
+	 *  @return int size of file or dir in bytes.
+	 **/
+	public int getSize()
+	{
+		return buf.getInt(offset + FCB.SIZE_POS);
+	}
+	
+	/**
+	 *  Returns the name of the viewed entry as a String. Unlike the other methods of this
+	 *  class, this creates a new String.
+	 *  
+	 *  @return String The name of the entry.
+	 */
+	public String getStrName()
+	{
+		return toFCB().getStrName();
+	}
+	
+	/**
+	 * Compares the stored name of the viewed entry with the given name, ignoring case.
+	 * The result is the same as comparing FCB's with equals(), apart from the type of entry,
+	 * so a name longer than FCB.MAX_NAME bytes is compared by its first FCB.MAX_NAME bytes only.
+	 * 
+	 * ASCII names are compared with the stored bytes directly, without creating any objects.
+	 * 
+	 * @param target The name to compare with.
+	 * @return boolean true if the names match, false otherwise.
+	 */
+	public boolean nameEquals(String target)
+	{
+		int pos = 0;                                     //Position in stored name.
+		
+		for (int i = 0; i < target.length() && pos < FCB.MAX_NAME; i++)
+		{
+			char c = target.charAt(i);
+			byte stored = buf.get(offset + pos);
+			
+			if (c >= 0x80 || stored < 0)                 //Non-ASCII chars take more than one byte. Compare as Strings.
+				return slowNameEquals(target);
+			
+			if (FCB.foldCase(stored) != FCB.foldCase((byte) c))
+				return false;
+			
+			pos++;
+		}
+		
+		//Whole target matched. Stored name must end here as well.
+		return (pos == FCB.MAX_NAME || buf.get(offset + pos) == 0);
+	}
+	
+	/**
+	 * Matches the stored name of the viewed entry against a glob pattern, ignoring case.
+	 * In the pattern, '*' matches any number of characters and '?' matches exactly one
+	 * character. All other characters must match themselves.
+	 * 
+	 * ASCII names are matched against the stored bytes directly, without creating any objects.
+	 * 
+	 * @param glob The pattern to match.
+	 * @return boolean true if the whole name matches the pattern, false otherwise.
+	 */
+	public boolean nameMatches(String glob)
+	{
+		int nameLength = 0;
+		while (nameLength < FCB.MAX_NAME && buf.get(offset + nameLength) != 0)
+		{
+			if (buf.get(offset + nameLength) < 0)          //Non-ASCII chars take more than one byte. Match as Strings.
+				return slowNameMatches(glob);
+			nameLength++;
+		}
+		
+		return globMatches(glob, nameLength, byteMatcher);
+	}
+	
+	/**
+	 * Creates an FCB holding the attributes of the viewed entry. The data of an inline file
+	 * is read as well, if all of its data slots are within the buffer.
+	 * 
+	 * @return FCB A new FCB equal to the viewed entry.
+	 */
+	public FCB toFCB()
+	{
+		FCB outFCB = FCB.decode(buf, offset);
+		if (offset + (1 + outFCB.getInlineSlots()) * FCB.FCB_SIZE <= buf.capacity())
+			outFCB.readInlineData(buf, offset);
+		
+		return outFCB;
+	}
+	
+	/**
+	 * Compares names by creating an FCB for each, so that they are compared by FCB.equals().
+	 * Used for names which are not ASCII.
+	 */
+	private boolean slowNameEquals(String target)
+	{
+		FCB targetFCB = new FCB(target, is_Dir(), 0, 0);        //Truncates name in the same way as stored names.
+		
+		return targetFCB.equals(toFCB());
+	}
+	
+	/**
+	 * Matches the name as a String against glob in the same way as nameMatches(), comparing
+	 * chars in the same way as String.equalsIgnoreCase(). Used for names which are not ASCII.
+	 */
+	private boolean slowNameMatches(String glob)
+	{
+		String name = getStrName();
+		
+		return globMatches(glob, name.length(), (c, n) -> foldChar(c) == foldChar(name.charAt(n)));
+	}
+	
+	/**
+	 * Matches a name of nameLength chars against glob, used by both nameMatches() and
+	 * slowNameMatches(). Only '*' and '?' are handled here. Every other char of glob is
+	 * compared with the char of the name by matcher.
+	 */
+	private static boolean globMatches(String glob, int nameLength, CharMatcher matcher)
+	{
+		int p = 0;                          //Position in glob.
+		int n = 0;                          //Position in name.
+		int starP = -1;                     //Position of last '*' seen in glob.
+		int starN = 0;                      //Position in name where last '*' started matching.
+		
+		while (n < nameLength)
+		{
+			if (p < glob.length())
+			{
+				char c = glob.charAt(p);
+				if (c == '*')                                   //Let '*' match nothing at first.
+				{
+					starP = p++;
+					starN = n;
+					continue;
+				}
+				
+				if (c == '?' || matcher.matches(c, n))
+				{
+					p++;
+					n++;
+					continue;
+				}
+			}
+			
+			if (starP < 0)                                       //Mismatch, and no '*' to take the char.
+				return false;
+			
+			p = starP + 1;                                       //Let last '*' match one more char.
+			n = ++starN;
+		}
+		
+		while (p < glob.length() && glob.charAt(p) == '*')      //Only '*' may be left in glob.
+			p++;
+		
+		return (p == glob.length());
+	}
+	
+	/**
+	 * Compares char c of a glob with the char at position n of a name.
+	 */
+	private interface CharMatcher
+	{
+		boolean matches(char c, int n);
+	}
+	
+	/**
+	 * Folds the case of a char in the same way as String.equalsIgnoreCase().
+	 */
+	private static char foldChar(char c)
+	{
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+	
+	/**
+	 *  Method for getting string representation of the viewed entry. Useful for debugging.
+	 *
+	 *  @return String data stored in the viewed entry
+	 **/
+	public String toString()
+	{
+		return "Slot " + slot + "\n" + toFCB().toString();
+	}
+	
+}
@@ -17,9 +17,26 @@ package tfs.structures;
  * The second array holds the current file pointer (position) for each entry. Indexes in the second
  * table correspond to FCB entries in the first table.
  * 
+ * Two more arrays hold the tail of each open file: the block holding its last byte, and the
+ * number of bytes used in that block. These let an append start at the tail block without
+ * walking the FAT from the first block of the file. A tail of -1 means it is not known yet.
+ * 
+ * Files opened by TFSFileSystem.tfs_open() also have a handle recorded: the mode they were 
+ * opened with, the location of the parent directory and the slot of the file's entry in it, 
+ * and the position of the last block used by a read or write. Files opened implicitly by the 
+ * path based calls have a mode of 0.
+ * 
+ * Each call to tfs_open() adds an entry of its own, so a file may have several entries, each
+ * with its own offset. These entries share one FCB, so a change to the size or blocks of the 
+ * file through one entry is seen through the others.
+ * 
  * Several methods are provided for accessing and modifying entries in the two tables. This is to 
  * keep track of opening and closing operations for files in the system.
  * 
+ * The methods which add, remove or search for entries are synchronized, so files may be opened
+ * and closed by several threads at once. The other methods use the entry of one file descriptor,
+ * which is only used by one thread at a time.
+ * 
  * @author Oloff Biermann
  * @version 8.77
  *
@@ -30,6 +47,13 @@ public class FDT
 	private int counter;                  //Counter to keep track of number of entries in FDT.
 	private FCB [] cntrlBlockTable;       //The first table for storing FCB's
 	private int [] offsetTable;           //Second table for storing offsets (current file pointers) for each entry in first table.
+	private int [] tailTable;             //Block holding last byte of file for each entry, or -1 if not known.
+	private int [] tailFillTable;         //Number of bytes used in the tail block for each entry.
+	private int [] modeTable;             //Mode each entry was opened with by tfs_open(), or 0.
+	private int [] parentTable;           //Location of parent directory of each entry, or -1 if not known.
+	private int [] slotTable;             //Slot of each entry in its parent directory, or -1 if not known.
+	private int [] posIndexTable;         //Index within the file of the block last used for each entry.
+	private int [] posBlockTable;         //Block number of that block.
 	
 	/**
 	 *   Constructor takes only 1 argument for max size of table. This is used to initialize the two arrays with an appropriate capacity.
@@ -43,6 +67,13 @@ public class FDT
 		counter = 0;                         //Initialize counter to 0. 
 		cntrlBlockTable = new FCB[size];     //Initialize first table holding FCB's.
 		offsetTable = new int[size];         //Initialize second table for offsets.
+		tailTable = new int[size];           //Initialize tables for tails.
+		tailFillTable = new int[size];
+		modeTable = new int[size];           //Initialize tables for handles.
+		parentTable = new int[size];
+		slotTable = new int[size];
+		posIndexTable = new int[size];
+		posBlockTable = new int[size];
 	}
 	
 	/**
@@ -62,7 +93,7 @@ public class FDT
 	  *   @return boolean true if table is full, false otherwise.
 	  *
 	  */
-	 public boolean isFull()
+	 public synchronized boolean isFull()
 	 {  
 		return ((counter >= getCapacity()) ? true : false);
 	 }
@@ -72,7 +103,7 @@ public class FDT
 	  *
 	  *   @return boolean true if table is empty, false otherwise.
 	  */
-	  public boolean isEmpty()
+	  public synchronized boolean isEmpty()
 	  {
 		return ((counter == 0) ? true : false);
 	  }
@@ -90,7 +121,7 @@ public class FDT
 	 * @returns int File Descriptor for this entry.
 	 * 
 	 */
-	public int add(FCB cntrlblck, int offset)
+	public synchronized int add(FCB cntrlblck, int offset)
 	{
 		if (offset < 0 || offset > cntrlblck.getSize())            //Invalid offset
 			throw new IllegalArgumentException("Invalid offset");
@@ -105,6 +136,13 @@ public class FDT
 		
 		cntrlBlockTable[i] = cntrlblck;
 		offsetTable[i] = offset;        //Add entries to both tables.
+		tailTable[i] = -1;              //Tail not known until first found.
+		tailFillTable[i] = 0;
+		modeTable[i] = 0;               //No handle until recorded.
+		parentTable[i] = -1;
+		slotTable[i] = -1;
+		posIndexTable[i] = 0;           //First block of file is always known.
+		posBlockTable[i] = cntrlblck.getLocation();
 			
 		counter++;                    //Increment counter to indicate another entry added.
 		
@@ -112,6 +150,68 @@ public class FDT
 	}
 	
 	
+	/**
+	 * Adds an entry for a file opened by TFSFileSystem.tfs_open(), with its handle. A new entry is
+	 * added even if the file is open already, so each entry has its own offset. If another entry
+	 * has the same parent and slot, the new entry shares its FCB instead of cntrlblck.
+	 * 
+	 * @param cntrlblck Pointer to FCB representing this open file.
+	 * @param offset int offset within this open file, the current file pointer.
+	 * @param mode The mode the file is opened with.
+	 * @param parentLocation The location (first block) of the file's parent directory.
+	 * @param slot The slot of the file's entry in its parent directory.
+	 * @throws IllegalArgumentException if offset is invalid
+	 * @throws RuntimException if FDT is full
+	 * 
+	 * @returns int File Descriptor for this entry.
+	 */
+	public synchronized int add(FCB cntrlblck, int offset, int mode, int parentLocation, int slot)
+	{
+		for (int j = 0; j < cntrlBlockTable.length; j++)
+		{
+			if (cntrlBlockTable[j] != null && parentTable[j] == parentLocation && slotTable[j] == slot)
+			{
+				cntrlblck = cntrlBlockTable[j];          //File is open already. Share its FCB.
+				break;
+			}
+		}
+		
+		int i = add(cntrlblck, offset);
+		modeTable[i] = mode;
+		parentTable[i] = parentLocation;
+		slotTable[i] = slot;
+		
+		return i;
+	}
+	
+	/**
+	 * Called after the file open as fd has been changed through fd. The other entries of the
+	 * file share its FCB, but the tail and last block used recorded for them may no longer be 
+	 * valid, so they are marked as not known. An offset past the end of the file, which may have 
+	 * become shorter, is moved back to the end.
+	 * 
+	 * @param fd File descriptor of the entry the file was changed through.
+	 */
+	public synchronized void updateShared(int fd)
+	{
+		if (!(isOpen(fd)))
+			return;
+		
+		FCB shared = cntrlBlockTable[fd];
+		for (int i = 0; i < cntrlBlockTable.length; i++)
+		{
+			if (i != fd && cntrlBlockTable[i] == shared)
+			{
+				tailTable[i] = -1;
+				tailFillTable[i] = 0;
+				posIndexTable[i] = 0;
+				posBlockTable[i] = shared.getLocation();
+				offsetTable[i] = Math.min(offsetTable[i], shared.getSize());
+			}
+		}
+	}
+	
+	
 	/**
 	 *   Search the table to determine if a given entry is in the table.	
 	 *	 Entries are actually compared by FCB.equals method. First check if table is empty.
@@ -179,7 +279,7 @@ public class FDT
 	 * @return fd of entry associated with FCB or -1 if not found
 	 */
 	
-	public int getFD(FCB f)
+	public synchronized int getFD(FCB f)
 	{
 		if (f == null)
 			return -1;
@@ -199,6 +299,30 @@ public class FDT
 	}
 	
 	
+	/**
+	 * Get the fd of an entry for the file whose own entry is stored at the given slot of the
+	 * directory at parentLocation. Unlike getFD(FCB f), this does not depend on the name or
+	 * location of the file, since files in different directories may have the same name, and 
+	 * the same location when their blocks are shared or they are inline.
+	 * 
+	 * @param parentLocation The location of the parent directory of the file.
+	 * @param slot The slot of the file's entry in its parent directory.
+	 * @return int File descriptor for the entry, or -1 if it is not open.
+	 */
+	public synchronized int getFD(int parentLocation, int slot)
+	{
+		if (parentLocation < 0 || slot < 0)
+			return -1;
+		
+		for (int i = 0; i < cntrlBlockTable.length; i++)
+		{
+			if (cntrlBlockTable[i] != null && parentTable[i] == parentLocation && slotTable[i] == slot)
+				return i;
+		}
+		
+		return -1;
+	}
+	
 	/**
 	 * Get the disk location (block) associated with entry for fd.
 	 * 
@@ -260,14 +384,186 @@ public class FDT
 			offsetTable[fd] = updatedOffset;
 	}
 	
+	/**
+	 * Get the tail block for the entry associated with fd. This is the block 
+	 * holding the last byte of the file, or the first block if the file is empty.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Tail block for entry, or -1 if not known or no such entry exists.
+	 */
+	public int getTailBlock(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return tailTable[fd];
+	}
+	
+	/**
+	 * Get the number of bytes used in the tail block for the entry associated with fd.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Bytes used in tail block, or -1 if no such entry exists.
+	 */
+	public int getTailFill(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return tailFillTable[fd];
+	}
+	
+	/**
+	 * Records the tail of the file for an entry. Use a block of -1 to mark the 
+	 * tail as not known, for example after the file's blocks have been rewritten.
+	 * 
+	 * @param fd File descriptor of file entry to update
+	 * @param block The block holding the last byte of the file.
+	 * @param fill The number of bytes used in that block.
+	 * @throws IllegalArgumentException if fd is invalid.
+	 */
+	public void updateTail(int fd, int block, int fill)
+	{
+		if (!(isOpen(fd)))
+			throw new IllegalArgumentException("File not open in table");
+		
+		tailTable[fd] = block;
+		tailFillTable[fd] = fill;
+	}
+	
+	/**
+	 * Records the handle for an entry opened by tfs_open(): its mode, and where its 
+	 * own entry is stored on disk.
+	 * 
+	 * @param fd File descriptor of file entry to update
+	 * @param mode The mode the file is open with.
+	 * @param parentLocation The location (first block) of the file's parent directory.
+	 * @param slot The slot of the file's entry in its parent directory.
+	 * @throws IllegalArgumentException if fd is invalid.
+	 */
+	public void updateHandle(int fd, int mode, int parentLocation, int slot)
+	{
+		if (!(isOpen(fd)))
+			throw new IllegalArgumentException("File not open in table");
+		
+		modeTable[fd] = mode;
+		parentTable[fd] = parentLocation;
+		slotTable[fd] = slot;
+	}
+	
+	/**
+	 * Get the mode the entry associated with fd was opened with.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Mode of entry, or 0 if it was not opened by tfs_open() or no such entry exists.
+	 */
+	public int getMode(int fd)
+	{
+		if (!(isOpen(fd)))
+			return 0;
+		
+		return modeTable[fd];
+	}
+	
+	/**
+	 * Get the location of the parent directory of the entry associated with fd.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Location of parent, or -1 if not known or no such entry exists.
+	 */
+	public int getParentLocation(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return parentTable[fd];
+	}
+	
+	/**
+	 * Get the slot of the entry associated with fd in its parent directory.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Slot of entry, or -1 if not known or no such entry exists.
+	 */
+	public int getSlot(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return slotTable[fd];
+	}
+	
+	/**
+	 * Updates the slot of an entry, for when its parent directory has been compacted.
+	 * 
+	 * @param fd File descriptor of file entry to update
+	 * @param slot The new slot of the file's entry in its parent directory.
+	 * @throws IllegalArgumentException if fd is invalid.
+	 */
+	public void updateSlot(int fd, int slot)
+	{
+		if (!(isOpen(fd)))
+			throw new IllegalArgumentException("File not open in table");
+		
+		slotTable[fd] = slot;
+	}
+	
+	/**
+	 * Get the index within the file of the block last used by a read or write for the
+	 * entry associated with fd. This is 0 until a read or write is done.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Index of block, or -1 if no such entry exists.
+	 */
+	public int getPosIndex(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return posIndexTable[fd];
+	}
+	
+	/**
+	 * Get the block number of the block last used by a read or write for the
+	 * entry associated with fd. This is the first block of the file until a read or write is done.
+	 * 
+	 * @param fd File descriptor associated with an entry to locate
+	 * @return int Block number, or -1 if no such entry exists.
+	 */
+	public int getPosBlock(int fd)
+	{
+		if (!(isOpen(fd)))
+			return -1;
+		
+		return posBlockTable[fd];
+	}
+	
+	/**
+	 * Records the block last used by a read or write for an entry.
+	 * 
+	 * @param fd File descriptor of file entry to update
+	 * @param index The index of the block within the file.
+	 * @param block The block number of that block.
+	 * @throws IllegalArgumentException if fd is invalid.
+	 */
+	public void updatePos(int fd, int index, int block)
+	{
+		if (!(isOpen(fd)))
+			throw new IllegalArgumentException("File not open in table");
+		
+		posIndexTable[fd] = index;
+		posBlockTable[fd] = block;
+	}
+	
 	/**
 	 * Allows an FCB pointer to be updated for a given entry in table.
+	 * The other entries sharing the FCB of the entry are updated as well.
 	 * 
 	 * @param fd File descriptor of file entry to update
 	 * @param updatedFCB The updated FCB for this entry
 	 * @throws InvalidArgumentException if fd is invalid.
 	 */
-	public void updateFCB(int fd, FCB updatedFCB)
+	public synchronized void updateFCB(int fd, FCB updatedFCB)
 	{
 		if (fd < 0 || fd > offsetTable.length)
 			throw new IllegalArgumentException("File descriptor invalid");
@@ -275,8 +571,12 @@ public class FDT
 		if (cntrlBlockTable[fd] == null)    //If entry doesn't exist.
 			throw new IllegalArgumentException("File not open in table");
 		
-		else
-			cntrlBlockTable[fd] = updatedFCB;
+		FCB old = cntrlBlockTable[fd];
+		for (int i = 0; i < cntrlBlockTable.length; i++)
+		{
+			if (cntrlBlockTable[i] == old)
+				cntrlBlockTable[i] = updatedFCB;
+		}
 		
 	}
 	
@@ -287,7 +587,7 @@ public class FDT
 	 *   @param fd file descriptor of entry to remove
 	 *   @return int 0 if success or -1 if removal failed.
 	 **/
-	public int remove(int fd) 
+	public synchronized int remove(int fd) 
 	{
 				
 		if (this.isEmpty() || fd < 0 || fd >= offsetTable.length)     //If fd is not valid.
@@ -295,6 +595,13 @@ public class FDT
 			
 		cntrlBlockTable[fd] = null;   //Otherwise, remove entry and return index. Both table's values at that index are reset.
 		offsetTable[fd] = 0;
+		tailTable[fd] = -1;
+		tailFillTable[fd] = 0;
+		modeTable[fd] = 0;
+		parentTable[fd] = -1;
+		slotTable[fd] = -1;
+		posIndexTable[fd] = 0;
+		posBlockTable[fd] = 0;
 		
 		counter--;						//Decrement counter to mark removal.
 		
@@ -323,7 +630,9 @@ public class FDT
 			{
 				result +=" " + cntrlBlockTable[j].toString();
 				//Now include the offset for each entry in offsetTable. Include empty entries.
-				result += "\nOffset within file: " + offsetTable[j]+ "\n\n";
+				result += "\nOffset within file: " + offsetTable[j]+ "\n";
+				result += "Tail block: " + tailTable[j] + ", bytes used: " + tailFillTable[j] + "\n";
+				result += "Mode: " + modeTable[j] + ", parent: " + parentTable[j] + ", slot: " + slotTable[j] + "\n\n";
 			}
 		
 		}
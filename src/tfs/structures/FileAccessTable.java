@@ -14,6 +14,12 @@ package tfs.structures;
  * Each array INDEX corresponds to a block, and holds the value of the next block which makes
  * up a file or anything else stored in the file system. Free blocks are marked as 0. All 
  * entries are set to 0 initially.
+ * 
+ * The last block of a chain is marked as -1 (EOF), or as HOLE if the chain belongs to a sparse
+ * file. A sparse file has fewer blocks than its size needs. The part of the file after its last
+ * block is a hole, which reads as 0 and takes no blocks until it is written. As the hole can 
+ * only be at the end of the chain, a file written in the middle of its hole is stored with a
+ * block map instead, which marks each block of a hole on its own. See FCB.MAPPED_FILE.
  *  
  * Methods are provided to determine the total number of blocks represented by the table
  * change an entry, access an entry to determine next block, as well as to return a string 
@@ -28,6 +34,8 @@ package tfs.structures;
 public class FileAccessTable 
 {
 	
+	public final static int HOLE = -2;     //Marks the last block of a sparse file, instead of -1.
+	
 	private int [] FAT;
 	private int size;
 		
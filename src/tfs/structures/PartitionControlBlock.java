@@ -27,6 +27,8 @@ package tfs.structures;
 
 public class PartitionControlBlock 
 {
+	public final static int MAX_BLOCKS = (Integer.MAX_VALUE - 16) / 4;   //Most blocks whose FAT fits in the PCB array written by tfs_sync().
+
 	private int blockSize;
 	private int numBlocks;			//This is the number of blocks in total.
 									//Number of blocks is equal to the size of the FAT.
@@ -0,0 +1,122 @@
+package tfs.testing;
+
+/**
+ * Driver program which tests that a call changing one directory does not hold up changes to
+ * another. A named pipe is made on the host with mkfifo, and one thread imports it into /a/sub
+ * with tfs_import(). Opening the pipe blocks until something opens it for writing, so the
+ * import waits there while holding the write locks of /a and /a/sub. A second thread then
+ * creates a file in /b/c, appends to a file in /b, which takes blocks from the FAT, and writes
+ * to it through a file descriptor. It must finish within a few seconds, while the import is
+ * still waiting. The pipe is then opened for writing and closed, which lets the import finish
+ * with an empty file.
+ *
+ * If mkfifo is not available on the host, the test is skipped. The disk file and the pipe are
+ * made in the host's temporary directory and deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import tfs.TFSFileSystem;
+
+public class Driver_ConcurrentWrites
+{
+	private final static int LENGTH = 4 << 20;         //Size of the disk.
+	private final static int BLOCK_SIZE = 512;
+	private final static long WAIT = 5000;             //Milliseconds the writes in /b may take.
+	
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		String tmp = System.getProperty("java.io.tmpdir");
+		File disk = new File(tmp, "ConcurrentDisk" + System.nanoTime());
+		File fifo = new File(tmp, "ConcurrentPipe" + System.nanoTime());
+		TFSFileSystem tfs = new TFSFileSystem();
+	
+		try
+		{
+			if (!makeFifo(fifo))
+			{
+				System.out.println("mkfifo is not available on this host. Test skipped.");
+				return;
+			}
+	
+			System.out.println("Making file system with tfs_mkfs() returns: " + tfs.tfs_mkfs(disk.getPath(), LENGTH, BLOCK_SIZE));
+			System.out.println("Mounting it with tfs_mount() returns: " + tfs.tfs_mount(disk.getPath(), LENGTH, BLOCK_SIZE));
+			for (String dir : new String[] {"/a", "/a/sub", "/b", "/b/c"})
+				System.out.println("Making " + dir + " returns: " + tfs.tfs_mkdir(dir));
+			System.out.println("Creating /b/f returns: " + tfs.tfs_create("/b/f"));
+	
+			int[] importResult = {Integer.MIN_VALUE};
+			Thread importer = new Thread(() -> importResult[0] = tfs.tfs_import(fifo.getPath(), "/a/sub/x"));
+			importer.start();
+			Thread.sleep(500);                              //Let the import lock /a and /a/sub and wait for the pipe.
+			System.out.println("Import into /a/sub is waiting for the pipe: " + importer.isAlive());
+	
+			int[] results = new int[4];
+			Arrays.fill(results, Integer.MIN_VALUE);
+			Thread writer = new Thread(() ->
+			{
+				byte[] data = new byte[4 * BLOCK_SIZE];
+				Arrays.fill(data, (byte) 'b');
+				results[0] = tfs.tfs_create("/b/c/g");
+				results[1] = tfs.tfs_append("/b/f", data);
+				int fd = tfs.tfs_open("/b/f", TFSFileSystem.MODE_READ_WRITE);
+				results[2] = tfs.tfs_write(fd, data, 0, BLOCK_SIZE);
+				results[3] = tfs.tfs_close(fd);
+			});
+			long start = System.nanoTime();
+			writer.start();
+			writer.join(WAIT);
+	
+			if (writer.isAlive())
+				System.out.println("Writes in /b while the import waits: FAILED: still blocked after " + WAIT + " ms.");
+			else
+			{
+				System.out.println("Writes in /b while the import waits took " + (System.nanoTime() - start) / 1000000 + " ms.");
+				System.out.println("Creating /b/c/g returns: " + results[0]);
+				System.out.println("Appending 4 blocks to /b/f returns: " + results[1]);
+				System.out.println("Writing 1 block through an fd returns: " + results[2]);
+				System.out.println("Closing the fd returns: " + results[3]);
+			}
+			System.out.println("Import is still waiting: " + importer.isAlive());
+	
+			try (FileOutputStream out = new FileOutputStream(fifo))   //Lets the import read the pipe, which is then empty.
+			{
+			}
+			importer.join();
+			writer.join();
+			System.out.println("Import returns: " + importResult[0]);
+			System.out.println("Size of /a/sub/x: " + tfs.tfs_stat("/a/sub/x").getSize());
+			System.out.println("Size of /b/f: " + tfs.tfs_stat("/b/f").getSize());
+			System.out.println("Unmounting returns: " + tfs.tfs_unmount());
+		} finally
+		{
+			disk.delete();
+			fifo.delete();
+		}
+	}
+	
+	/**
+	 * Makes a named pipe at the given path with the host's mkfifo command.
+	 *
+	 * @return boolean true if the pipe was made.
+	 */
+	private static boolean makeFifo(File fifo) throws InterruptedException
+	{
+		try
+		{
+			Process mkfifo = new ProcessBuilder("mkfifo", fifo.getPath()).start();
+			return (mkfifo.waitFor() == 0 && fifo.exists());
+		} catch (IOException e)
+		{
+			return false;
+		}
+	}
+	
+}
@@ -0,0 +1,99 @@
+package tfs.testing;
+
+/**
+ * Driver program which tests copies and batch creates while the dedup layer is on. A file in
+ * root is copied by tfs_cp_recursive() into a directory three levels down, which gives the
+ * source a block map and so locks root for writing while the destination is also locked. It
+ * must return 0, and the copy must hold the same bytes and share the blocks of the source.
+ * tfs_cp() of the same file into another directory must do the same. With an inline limit
+ * of 100 bytes, tfs_createBatch() must keep a file of 10 bytes inline and give a file of
+ * 1000 bytes a block map, as tfs_create() does.
+ *
+ * The disk file is made in the host's temporary directory and deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import tfs.TFSFileSystem;
+import tfs.structures.FCB;
+
+public class Driver_Dedup
+{
+	private final static int LENGTH = 1 << 20;         //Size of the disk.
+	private final static int BLOCK_SIZE = 512;
+	private final static int FILE_SIZE = 4 * BLOCK_SIZE;
+	
+	public static void main(String[] args) throws UnsupportedEncodingException
+	{
+		File disk = new File(System.getProperty("java.io.tmpdir"), "DedupDisk" + System.nanoTime());
+		TFSFileSystem tfs = new TFSFileSystem();
+	
+		try
+		{
+			System.out.println("Making file system with tfs_mkfs() returns: " + tfs.tfs_mkfs(disk.getPath(), LENGTH, BLOCK_SIZE));
+			System.out.println("Mounting it with tfs_mount() returns: " + tfs.tfs_mount(disk.getPath(), LENGTH, BLOCK_SIZE));
+			System.out.println("Turning on dedup with tfs_setDedup() returns: " + tfs.tfs_setDedup(true));
+	
+			byte[] data = new byte[FILE_SIZE];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) ('a' + i / BLOCK_SIZE);
+			System.out.println("Creating /f returns: " + tfs.tfs_create("/f"));
+			System.out.println("Appending " + FILE_SIZE + " bytes to /f returns: " + tfs.tfs_append("/f", data));
+			for (String dir : new String[] {"/a", "/a/b", "/a/b/c"})
+				System.out.println("Making " + dir + " returns: " + tfs.tfs_mkdir(dir));
+	
+			try
+			{
+				System.out.println("Copying /f to /a/b/c/g with tfs_cp_recursive() returns: " + tfs.tfs_cp_recursive("/f", "/a/b/c/g"));
+			} catch (RuntimeException e)
+			{
+				System.out.println("Copying /f to /a/b/c/g with tfs_cp_recursive(): FAILED: " + e);
+			}
+			check(tfs, "/a/b/c/g", data);
+			System.out.println("Copying /f to /a/h with tfs_cp() returns: " + tfs.tfs_cp("/f", "/a/h"));
+			check(tfs, "/a/h", data);
+			System.out.println("Bytes saved by sharing blocks: " + tfs.tfs_dedupSaved() + " (expected " + 2 * FILE_SIZE + ")");
+	
+			System.out.println("\nSetting the inline limit to 100 returns: " + tfs.tfs_setInlineLimit(100));
+			System.out.println("Creating /a/b1 of 10 bytes and /a/b2 of 1000 bytes with tfs_createBatch() returns: "
+					+ tfs.tfs_createBatch("/a", new String[] {"b1", "b2"}, new int[] {10, 1000}));
+			FCB b1 = tfs.tfs_stat("/a/b1");
+			FCB b2 = tfs.tfs_stat("/a/b2");
+			System.out.println("/a/b1 is inline: " + b1.isInline() + ", size " + b1.getSize());
+			System.out.println("/a/b2 has a block map: " + b2.isMapped() + ", size " + b2.getSize());
+	
+			System.out.println("\nRemoving /a with tfs_rm_recursive() returns: " + tfs.tfs_rm_recursive("/a"));
+			System.out.println("Removing /f returns: " + tfs.tfs_rm("/f"));
+			System.out.println("Unmounting returns: " + tfs.tfs_unmount());
+		} finally
+		{
+			disk.delete();
+		}
+	}
+	
+	/**
+	 * Reads the file at path and prints whether it holds the bytes expected.
+	 */
+	private static void check(TFSFileSystem tfs, String path, byte[] expected)
+	{
+		int fd = tfs.tfs_open(path, TFSFileSystem.MODE_READ);
+		if (fd < 0)
+		{
+			System.out.println("Opening " + path + ": FAILED: returns " + fd);
+			return;
+		}
+	
+		byte[] read = new byte[expected.length];
+		int n = tfs.tfs_read(fd, read, 0, read.length);
+		tfs.tfs_close(fd);
+		System.out.println("Reading " + path + " returns " + n + " bytes, "
+				+ (Arrays.equals(read, expected) ? "holding the bytes of /f." : "FAILED: bytes differ."));
+	}
+	
+}
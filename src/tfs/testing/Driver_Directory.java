@@ -18,6 +18,7 @@ package tfs.testing;
 
 import tfs.structures.*;
 import tfs.exceptions.*;
+import java.util.*;
 
 
 public class Driver_Directory 
@@ -98,6 +99,25 @@ public class Driver_Directory
 		System.out.println("\n"+ testDir.numEntries() + " entries with size of directory in bytes: " + testDir.getByteSize());  //Test getByteSize()
 		System.out.println("Finding the first (file) entry in restored dir returns index " + restoredDir.find("New Name", false)); 
 		System.out.println("Finding the second (directory) entry in restored dir returns index " + restoredDir.find(heldTestDir));
+		
+		//Removing an entry leaves its slot free, and the slot is stored and restored as free.
+		restoredDir.addNewEntry(non_existant_entry);
+		restoredDir.removeEntry("New Name", false);
+		System.out.println("\nRemoved first entry from restored dir. Entries: " + restoredDir.numEntries() 
+				+ ", free slots: " + restoredDir.numFreeSlots() + ", size in bytes: " + restoredDir.getByteSize());
+		Directory withFreeSlot = Directory.bytesToDir(restoredDir.getByteArr(), restoredDir.getByteSize());
+		System.out.println("After restoring from bytes, finding the second entry returns index " + withFreeSlot.find(heldTestDir)
+				+ " and free slots: " + withFreeSlot.numFreeSlots());
+		restoredDir.addNewEntry(remEntry1);
+		System.out.println("Putting first entry back in reuses its slot. Finding it returns index " + restoredDir.find(remEntry1)
+				+ ", free slots: " + restoredDir.numFreeSlots());
+		
+		//Test adding several entries at once with addNewEntries().
+		List<FCB> batch = new ArrayList<FCB>();
+		for (int i = 0; i < 3; i++)
+			batch.add(new FCB("batch_file_" + i, false, 20 + i, 0));
+		restoredDir.addNewEntries(batch);
+		System.out.println("\nAdded " + batch.size() + " entries at once. Restored dir now has " + restoredDir.numEntries() + " entries.");
 				
 		
 		
@@ -117,6 +137,15 @@ public class Driver_Directory
 			e.printStackTrace();
 		}
 		
+		try
+		{
+			restoredDir.addNewEntries(batch);       //Add entries which already exist, all at once.
+		 
+		}catch (DirModException e)
+		{
+			e.printStackTrace();
+		}
+		
 		try
 		{
 			testDir.removeEntry("non_existant_file_entry", false);
@@ -80,6 +80,37 @@ public class Driver_FCB
 		//Test equals() method which compares FCB objects by name.
 		System.out.println("\nComparing second test FCB with the one restored from byte buffer using equals() returns: " + testD.equals(test_cpy));
 		System.out.println("Comparing first FCB(the file) with the second FCB(directory), which are different, returns: " + testF.equals(testD));
+		
+		//Names differing only in case are equal and have the same hash code.
+		FCB upper = new FCB("README.TXT", false, 1, 1);
+		FCB lower = new FCB("readme.txt", false, 2, 2);
+		System.out.println("Comparing \"README.TXT\" with \"readme.txt\" returns: " + upper.equals(lower)
+				+ ", hash codes equal: " + (upper.hashCode() == lower.hashCode()));
+		
+		//Test encode() and decode() by storing both FCB's side by side in one buffer, after some leading bytes.
+		ByteBuffer sharedBB = ByteBuffer.allocate(8 + 2 * FCB.FCB_SIZE);
+		testF.encode(sharedBB, 8);
+		testD.encode(sharedBB, 8 + FCB.FCB_SIZE);
+		
+		FCB decodedF = FCB.decode(sharedBB, 8);
+		FCB decodedD = FCB.decode(sharedBB, 8 + FCB.FCB_SIZE);
+		
+		System.out.println("\nEncode both FCB's into one buffer at offsets 8 and " + (8 + FCB.FCB_SIZE) + " and decode them again:");
+		System.out.println(decodedF.toString() + "\n\n" + decodedD.toString());
+		System.out.println("\nBuffer position is unchanged at " + sharedBB.position() + ". Decoded FCB's are equal to originals: " 
+				+ (decodedF.equals(testF) && decodedD.equals(testD)));
+		
+		//Test an inline file, whose data is stored in two data slots after its entry.
+		byte[] data = "Forty bytes of data kept in the entry...".getBytes();
+		FCB inline = new FCB("small.txt", data, FCB.inlineSlotsFor(data.length));
+		ByteBuffer inlineBB = ByteBuffer.allocate(3 * FCB.FCB_SIZE);
+		int slots = inline.encodeWithData(inlineBB, 0);
+		
+		FCB decodedI = FCB.decode(inlineBB, 0);
+		decodedI.readInlineData(inlineBB, 0);
+		System.out.println("\nInline file stored in " + slots + " slots. Second slot is a data slot: " + FCB.isDataSlot(inlineBB, FCB.FCB_SIZE)
+				+ ", data read back is equal: " + java.util.Arrays.equals(data, decodedI.getInlineData())
+				+ ", equal to file with same name: " + decodedI.equals(new FCB("SMALL.TXT", false, 1, 1)));
 				
 				
 	}
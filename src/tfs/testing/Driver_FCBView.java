@@ -0,0 +1,82 @@
+package tfs.testing;
+
+/**
+ * Driver program to test the tfs.structures.FCBView class. A few FCB's are encoded into one
+ * buffer, as they would be stored in a directory, and a single view is moved over every slot 
+ * to read their attributes. Name comparison through nameEquals() is tested with names that 
+ * differ in case, names longer than the maximum name length and non-ASCII names.
+ * 
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+import tfs.structures.FCB;
+import tfs.structures.FCBView;
+
+public class Driver_FCBView 
+{
+
+	public static void main(String[] args) 
+	{
+		FCB[] entries = new FCB[3];
+		entries[0] = new FCB("Test_File", false, 200, 1000);
+		entries[1] = new FCB("Test dir", true, 42, 72);
+		entries[2] = new FCB("Fichier_\u00e9t\u00e9", false, 75, 12);
+		
+		//Encode all entries into one buffer, one slot each.
+		ByteBuffer dirBB = ByteBuffer.allocate(entries.length * FCB.FCB_SIZE);
+		for (int i = 0; i < entries.length; i++)
+			entries[i].encode(dirBB, i * FCB.FCB_SIZE);
+		
+		//Move one view over each slot and print attributes read from the buffer.
+		FCBView view = new FCBView();
+		for (int i = 0; i < entries.length; i++)
+		{
+			view.moveTo(dirBB, i);
+			System.out.println("Slot " + view.getSlot() + ": name " + view.getStrName() + ", directory " + view.is_Dir() 
+					+ ", location " + view.getLocation() + ", size " + view.getSize());
+		}
+		
+		//Test nameEquals() against the first entry.
+		view.moveTo(0);
+		System.out.println("\nComparing slot 0 with \"test_file\" returns: " + view.nameEquals("test_file"));
+		System.out.println("Comparing slot 0 with \"Test_Fil\" returns: " + view.nameEquals("Test_Fil"));
+		System.out.println("Comparing slot 0 with \"Test_File2\" returns: " + view.nameEquals("Test_File2"));
+		
+		//Names longer than max name length are compared by their first 15 bytes, as with FCB.equals().
+		FCB longName = new FCB("Fifteen_bytes_long_plus_more", false, 10, 10);
+		longName.encode(dirBB, 0);
+		System.out.println("\nReplaced slot 0 with an entry whose name was truncated to: " + view.getStrName());
+		System.out.println("Comparing slot 0 with \"FIFTEEN_BYTES_LONG_AND_OTHERS\" returns: " + view.nameEquals("FIFTEEN_BYTES_LONG_AND_OTHERS"));
+		
+		//Non-ASCII names are compared as Strings.
+		view.moveTo(2);
+		System.out.println("\nComparing slot 2 with \"FICHIER_\u00c9T\u00c9\" returns: " + view.nameEquals("FICHIER_\u00c9T\u00c9"));
+		System.out.println("Comparing slot 2 with \"Fichier_ete\" returns: " + view.nameEquals("Fichier_ete"));
+		
+		//Test nameMatches() with glob patterns.
+		System.out.println("\nMatching slot 2 with \"fichier_*\" returns: " + view.nameMatches("fichier_*"));
+		System.out.println("Matching slot 2 with \"*_\u00e9t?\" returns: " + view.nameMatches("*_\u00e9t?"));
+		view.moveTo(0);
+		System.out.println("Matching slot 0 with \"fif*_?\" returns: " + view.nameMatches("fif*_?"));
+		System.out.println("Matching slot 0 with \"*bytes\" returns: " + view.nameMatches("*bytes"));
+		view.moveTo(2);
+		
+		//Restore an FCB from the view and compare it with the original.
+		FCB restored = view.toFCB();
+		System.out.println("\nFCB created from slot 2 is equal to the original entry: " + restored.equals(entries[2]));
+		
+		//Make sure exception is thrown for a slot outside the buffer.
+		try
+		{
+			view.moveTo(entries.length);
+		}catch (IllegalArgumentException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+}
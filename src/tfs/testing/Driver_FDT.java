@@ -54,6 +54,12 @@ public class Driver_FDT
 		//Print table again to make sure first entry was updated.
 		System.out.println(testFDT.toString());
 		
+		//Record a tail for the first entry, as an append would. Tail is -1 until it is recorded.
+		System.out.println("Tail block of first entry before update: " + testFDT.getTailBlock(fd1));
+		testFDT.updateTail(fd1, 12, 32);
+		System.out.println("Tail block of first entry after update: " + testFDT.getTailBlock(fd1)
+			+ ", bytes used in tail block: " + testFDT.getTailFill(fd1) + "\n");
+		
 				
 		System.out.println("\n\nRemove all entries from FDT. Before removes, isEmpty() returns: " + testFDT.isEmpty() + "\n");
 		System.out.println("Calling isOpen() for the first entry using its file descriptor returns: "+ testFDT.isOpen(fd1));
@@ -0,0 +1,85 @@
+package tfs.testing;
+
+/**
+ * Driver program which tests that a file cannot grow past Integer.MAX_VALUE bytes, the largest
+ * size its entry can record. A file system of 8 MB with blocks of 4096 bytes is made in a disk
+ * file in the host's temporary directory, holding a sparse file 10 bytes short of the limit.
+ * Appends and writes which would take it past the limit must return -1 and leave its size as
+ * it was, as must a TFSByteChannel write, which throws instead. A write of the last 10 bytes
+ * must then succeed and be read back. The disk file is deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import tfs.TFSByteChannel;
+import tfs.TFSFileSystem;
+
+public class Driver_MaxFileSize
+{
+	private final static int LENGTH = 8 << 20;         //Size of the disk.
+	private final static int BLOCK_SIZE = 4096;
+	private final static int FILE_SIZE = Integer.MAX_VALUE - 10;   //Size of the sparse file, 10 bytes short of the limit.
+	
+	public static void main(String[] args) throws IOException
+	{
+		Path disk = Paths.get(System.getProperty("java.io.tmpdir"), "MaxSizeDisk" + System.nanoTime());
+		String diskPath = disk.toString();
+		TFSFileSystem tfs = new TFSFileSystem();
+	
+		try
+		{
+			System.out.println("Making file system of " + LENGTH + " bytes with tfs_mkfs() returns: " + tfs.tfs_mkfs(diskPath, LENGTH, BLOCK_SIZE));
+			System.out.println("Mounting it with tfs_mount() returns: " + tfs.tfs_mount(diskPath, LENGTH, BLOCK_SIZE));
+			System.out.println("Creating /big of " + FILE_SIZE + " bytes returns: " + tfs.tfs_create("/big", FILE_SIZE));
+	
+			byte[] data = "Twenty bytes of data".getBytes(StandardCharsets.UTF_8);
+			System.out.println("Appending 20 bytes returns: " + tfs.tfs_append("/big", data));
+			System.out.println("Appending 5 and then 20 bytes returns: " + tfs.tfs_append("/big", ByteBuffer.wrap(data, 0, 5), ByteBuffer.wrap(data)));
+			System.out.println("Size after the appends: " + tfs.tfs_stat("/big").getSize() + (tfs.tfs_stat("/big").getSize() == FILE_SIZE ? ", unchanged." : ", FAILED: changed."));
+	
+			int fd = tfs.tfs_open("/big", TFSFileSystem.MODE_READ_WRITE);
+			tfs.tfs_seek(fd, FILE_SIZE);
+			System.out.println("Writing 20 bytes at the end returns: " + tfs.tfs_write(fd, data, 0, data.length));
+			System.out.println("Writing 5 and then 20 bytes at the end returns: " + tfs.tfs_write(fd, new ByteBuffer[] {ByteBuffer.wrap(data, 0, 5), ByteBuffer.wrap(data)}));
+			System.out.println("Size after the writes: " + tfs.tfs_size(fd) + (tfs.tfs_size(fd) == FILE_SIZE ? ", unchanged." : ", FAILED: changed."));
+	
+			try (TFSByteChannel channel = new TFSByteChannel(tfs, "/big", TFSFileSystem.MODE_WRITE))
+			{
+				channel.position(FILE_SIZE + 5);
+				channel.write(ByteBuffer.wrap(data));
+				System.out.println("Writing 20 bytes through a channel past the end: FAILED: no exception.");
+			} catch (IOException e)
+			{
+				System.out.println("Writing 20 bytes through a channel past the end throws: " + e.getMessage());
+			}
+			System.out.println("Size after the channel write: " + tfs.tfs_size(fd) + (tfs.tfs_size(fd) == FILE_SIZE ? ", unchanged." : ", FAILED: changed."));
+	
+			System.out.println("Writing the last 10 bytes returns: " + tfs.tfs_write(fd, data, 0, 10));
+			System.out.println("Size after the write: " + tfs.tfs_size(fd));
+			byte[] end = new byte[10];
+			tfs.tfs_seek(fd, FILE_SIZE);
+			int read = tfs.tfs_read(fd, end, 0, end.length);
+			System.out.println("Reading them back returns " + read + " bytes, "
+				+ (Arrays.equals(end, Arrays.copyOf(data, 10)) ? "holding the bytes written." : "FAILED: bytes differ."));
+			System.out.println("Writing 1 more byte returns: " + tfs.tfs_write(fd, data, 0, 1));
+			tfs.tfs_close(fd);
+	
+			System.out.println("Removing /big returns: " + tfs.tfs_rm("/big"));
+			System.out.println("Unmounting returns: " + tfs.tfs_unmount());
+		} finally
+		{
+			Files.deleteIfExists(disk);
+		}
+	}
+	
+}
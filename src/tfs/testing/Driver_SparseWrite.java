@@ -0,0 +1,81 @@
+package tfs.testing;
+
+/**
+ * Driver program which tests writes into the middle of the hole of a sparse file. A file
+ * system of 64 KB is made in a disk file in the host's temporary directory, holding a sparse
+ * file of 1 MB, which is much larger than the disk. Bytes are written at offsets of 50 KB and
+ * 512 KB, which must succeed without taking blocks for the rest of the hole. The bytes written
+ * must then be read back, with 0 before and after them. The disk file is deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import tfs.TFSFileSystem;
+
+public class Driver_SparseWrite
+{
+	private final static int LENGTH = 64 * 1024;       //Size of the disk.
+	private final static int BLOCK_SIZE = 512;
+	private final static int FILE_SIZE = 1 << 20;      //Size of the sparse file, larger than the disk.
+	
+	public static void main(String[] args) throws IOException
+	{
+		Path disk = Paths.get(System.getProperty("java.io.tmpdir"), "SparseDisk" + System.nanoTime());
+		String diskPath = disk.toString();
+		TFSFileSystem tfs = new TFSFileSystem();
+	
+		try
+		{
+			System.out.println("Making file system of " + LENGTH + " bytes with tfs_mkfs() returns: " + tfs.tfs_mkfs(diskPath, LENGTH, BLOCK_SIZE));
+			System.out.println("Mounting it with tfs_mount() returns: " + tfs.tfs_mount(diskPath, LENGTH, BLOCK_SIZE));
+			System.out.println("Creating /sparse of " + FILE_SIZE + " bytes returns: " + tfs.tfs_create("/sparse", FILE_SIZE));
+	
+			byte[] data = "Bytes written in the middle of a hole".getBytes(StandardCharsets.UTF_8);
+			int[] offsets = {50 * 1024, 512 * 1024};
+			int fd = tfs.tfs_open("/sparse", TFSFileSystem.MODE_WRITE);
+			for (int offset : offsets)
+			{
+				tfs.tfs_seek(fd, offset);
+				System.out.println("Writing " + data.length + " bytes at offset " + offset + " returns: " + tfs.tfs_write(fd, data, 0, data.length));
+			}
+			System.out.println("Size after the writes: " + tfs.tfs_size(fd));
+			tfs.tfs_close(fd);
+	
+			//Each write is read back with a block of the hole on either side of it.
+			fd = tfs.tfs_open("/sparse", TFSFileSystem.MODE_READ);
+			for (int offset : offsets)
+			{
+				byte[] buf = new byte[data.length + 2 * BLOCK_SIZE];
+				tfs.tfs_seek(fd, offset - BLOCK_SIZE);
+				int read = tfs.tfs_read(fd, buf, 0, buf.length);
+				byte[] expected = new byte[buf.length];
+				System.arraycopy(data, 0, expected, BLOCK_SIZE, data.length);
+				System.out.println("Reading around offset " + offset + " returns " + read + " bytes, "
+					+ (Arrays.equals(buf, expected) ? "holding the bytes written and 0 around them." : "FAILED: bytes differ."));
+			}
+	
+			byte[] end = new byte[BLOCK_SIZE];
+			tfs.tfs_seek(fd, FILE_SIZE - BLOCK_SIZE);
+			int read = tfs.tfs_read(fd, end, 0, end.length);
+			System.out.println("Reading the last block returns " + read + " bytes, "
+				+ (Arrays.equals(end, new byte[BLOCK_SIZE]) ? "all 0." : "FAILED: not all 0."));
+			tfs.tfs_close(fd);
+	
+			System.out.println("Removing /sparse returns: " + tfs.tfs_rm("/sparse"));
+			System.out.println("Unmounting returns: " + tfs.tfs_unmount());
+		} finally
+		{
+			Files.deleteIfExists(disk);
+		}
+	}
+	
+}
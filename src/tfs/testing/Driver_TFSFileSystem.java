@@ -0,0 +1,198 @@
+package tfs.testing;
+
+/**
+ * Multi-threaded stress benchmark for TFSFileSystem. A file system is made with a few
+ * directories of small files, and the same work is then run by 1, 2, 4 and more threads at
+ * once, for a fixed time each. The number of calls completed per second is printed for each
+ * number of threads, with the speedup over one thread.
+ *
+ * Two kinds of work are run. In the first, every call reads: tfs_print() of a whole file, or
+ * tfs_stat(). These only take read locks, so they should scale with the number of cores. In
+ * the second, one call in ten appends to a file of the thread's own, in one of the directories,
+ * which locks that directory for writing. Readers of the other directories keep running.
+ *
+ * The largest number of threads can be given as the first argument, and the seconds each run
+ * takes as the second. By default it is twice the number of cores, for 2 seconds each.
+ *
+ * The disk file is made in the host's temporary directory and deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tfs.TFSFileSystem;
+
+public class Driver_TFSFileSystem
+{
+	private final static String DISK = "StressDisk";        //Prefix of the disk file's name.
+	private final static int LENGTH = 32 << 20;       //Length of the disk in bytes.
+	private final static int BLOCK_SIZE = 512;
+	private final static int DIRS = 8;                //Directories, each holding FILES files.
+	private final static int FILES = 16;
+	private final static int FILE_SIZE = 4096;
+
+	public static void main(String[] args) throws UnsupportedEncodingException, InterruptedException
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxThreads = (args.length > 0 ? Integer.parseInt(args[0]) : 2 * cores);
+		long seconds = (args.length > 1 ? Long.parseLong(args[1]) : 2);
+
+		File disk = new File(System.getProperty("java.io.tmpdir"), DISK + System.nanoTime());
+		try
+		{
+			stress(disk.getPath(), cores, maxThreads, seconds);
+		} finally
+		{
+			disk.delete();
+		}
+	}
+
+	/**
+	 * Makes and fills the file system on the disk file at diskPath, and runs the benchmark.
+	 */
+	private static void stress(String diskPath, int cores, int maxThreads, long seconds) throws UnsupportedEncodingException, InterruptedException
+	{
+		TFSFileSystem tfs = new TFSFileSystem();
+		System.out.println("Making file system with tfs_mkfs() returns: " + tfs.tfs_mkfs(diskPath, LENGTH, BLOCK_SIZE));
+		System.out.println("Mounting it with tfs_mount() returns: " + tfs.tfs_mount(diskPath, LENGTH, BLOCK_SIZE));
+
+		//Fill every file with its own bytes.
+		for (int d = 0; d < DIRS; d++)
+		{
+			tfs.tfs_mkdir("/d" + d);
+			for (int f = 0; f < FILES; f++)
+			{
+				byte[] data = new byte[FILE_SIZE];
+				Arrays.fill(data, (byte) ('a' + (d + f) % 26));
+				tfs.tfs_create(filePath(d, f));
+				tfs.tfs_append(filePath(d, f), data);
+			}
+		}
+		System.out.println("Created " + DIRS + " directories of " + FILES + " files of " + FILE_SIZE + " bytes.");
+		System.out.println("Cores available: " + cores + ". Each run takes " + seconds + " seconds.\n");
+		run(tfs, maxThreads, seconds, true);              //Warm up first, so the JIT does not favour later runs.
+
+		System.out.println("Threads    Reads/s   Speedup    Mixed/s   Speedup");
+		double firstReads = 0;
+		double firstMixed = 0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			double reads = run(tfs, threads, seconds, false);
+			double mixed = run(tfs, threads, seconds, true);
+			if (threads == 1)
+			{
+				firstReads = reads;
+				firstMixed = mixed;
+			}
+
+			System.out.println(String.format("%7d %10.0f %9.2f %10.0f %9.2f", threads, reads, reads / firstReads,
+					mixed, mixed / firstMixed));
+		}
+
+		System.out.println("\nUnmounting with tfs_unmount() returns: " + tfs.tfs_unmount());
+	}
+
+	/**
+	 * Runs the work with the given number of threads for the given time, and returns the
+	 * number of calls completed per second. A failed call stops the benchmark.
+	 */
+	private static double run(TFSFileSystem tfs, int threads, long seconds, boolean mixed) throws InterruptedException
+	{
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicLong calls = new AtomicLong();
+		long[] end = new long[1];
+		Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			String own = "/d" + (id % DIRS) + "/w" + id;          //File appended to by this thread.
+			if (mixed && tfs.tfs_stat(own) == null)
+				tfs.tfs_create(own);
+
+			workers[t] = new Thread(() ->
+			{
+				WritableByteChannel sink = new NullChannel();
+				Random random = new Random(id);
+				byte[] record = new byte[64];
+				long done = 0;
+				try
+				{
+					start.await();
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+
+				while (System.nanoTime() < end[0])
+				{
+					int op = random.nextInt(10);
+					String path = filePath(random.nextInt(DIRS), random.nextInt(FILES));
+					int result;
+					if (mixed && op == 0)
+					{
+						result = tfs.tfs_append(own, record);
+						if (result == 0 && tfs.tfs_stat(own).getSize() > 16 * FILE_SIZE)   //Keep the disk from filling up.
+							result = tfs.tfs_truncate(own, 0);
+					}
+					else if (op < 8)
+						result = tfs.tfs_print(path, 0, FILE_SIZE, sink);
+					else
+						result = (tfs.tfs_stat(path) == null ? -1 : 0);
+
+					if (result < 0)
+						throw new IllegalStateException("Call on " + path + " failed with " + result);
+					done++;
+				}
+
+				calls.addAndGet(done);
+			});
+			workers[t].start();
+		}
+
+		end[0] = System.nanoTime() + seconds * 1000000000L;
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+
+		return calls.get() / (double) seconds;
+	}
+
+	private static String filePath(int dir, int file)
+	{
+		return "/d" + dir + "/f" + file;
+	}
+
+	/**
+	 * Channel which discards every byte written to it, so only the cost of reading is measured.
+	 */
+	private static class NullChannel implements WritableByteChannel
+	{
+		public int write(ByteBuffer src)
+		{
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package tfs.testing;
+
+/**
+ * Driver program which tests moving directories through tfs.nio.TFSFileSystemProvider. A
+ * volume is made in a disk file in the host's temporary directory, holding a directory with a
+ * file and a subdirectory. The directory is then moved into its own subdirectory, which must
+ * fail without changing anything, and afterwards moved to a new place, which must succeed.
+ * Paths used before the move must not find the moved entries through the slots they recorded.
+ * The disk file is deleted at the end.
+ *
+ * @author Oloff Biermann
+ * @version 8.77
+ *
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import tfs.nio.TFSFileSystemProvider;
+
+public class Driver_TFSFileSystemProvider
+{
+
+	public static void main(String[] args) throws IOException
+	{
+		Path disk = Paths.get(System.getProperty("java.io.tmpdir"), "ProviderDisk" + System.nanoTime());
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put("create", "true");
+		env.put("length", 1 << 20);
+		env.put("blockSize", 512);
+
+		try (FileSystem volume = new TFSFileSystemProvider().newFileSystem(disk, env))
+		{
+			Path a = volume.getPath("/a");
+			Path file = volume.getPath("/a/file");
+			Files.createDirectory(a);
+			Files.createDirectory(volume.getPath("/a/b"));
+			Files.write(file, "Data which must survive".getBytes(StandardCharsets.UTF_8));
+
+			//Moving /a into /a/b must fail before anything is copied or removed.
+			try
+			{
+				Files.move(a, volume.getPath("/a/b/inner"));
+				System.out.println("FAILED: moving /a to /a/b/inner did not throw.");
+			} catch (FileSystemException e)
+			 {
+				System.out.println("Moving /a to /a/b/inner throws: " + e.getMessage());
+			 }
+
+			//Case of names does not matter, so this is inside /a as well.
+			try
+			{
+				Files.move(a, volume.getPath("/A/B/inner"));
+				System.out.println("FAILED: moving /a to /A/B/inner did not throw.");
+			} catch (FileSystemException e)
+			 {
+				System.out.println("Moving /a to /A/B/inner throws: " + e.getMessage());
+			 }
+
+			System.out.println("/a/b/inner exists after the moves: " + Files.exists(volume.getPath("/a/b/inner")));
+			System.out.println("/a/file still holds: " + new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+			//A move to a sibling is allowed, and only starts with the same letters.
+			Path moved = volume.getPath("/ab");
+			Files.move(a, moved);
+			System.out.println("\nAfter moving /a to /ab, /a exists: " + Files.exists(a) + ", /ab/b exists: "
+				+ Files.exists(volume.getPath("/ab/b")) + ", /ab/file holds: "
+				+ new String(Files.readAllBytes(volume.getPath("/ab/file")), StandardCharsets.UTF_8));
+
+			//The path objects used above recorded the slots of their entries, which have now moved.
+			System.out.println("The same path to /a/file exists after the move: " + Files.exists(file));
+			Files.createDirectory(a);
+			Files.write(file, "New".getBytes(StandardCharsets.UTF_8));
+			System.out.println("A new /a/file has size " + Files.size(file) + " and holds: "
+				+ new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		} finally
+		{
+			Files.deleteIfExists(disk);
+		}
+	}
+
+}